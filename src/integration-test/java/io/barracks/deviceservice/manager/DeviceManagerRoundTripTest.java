@@ -0,0 +1,140 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBObject;
+import io.barracks.deviceservice.Application;
+import io.barracks.deviceservice.model.DeviceEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.mongo.embedded.EmbeddedMongoAutoConfiguration;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.WebIntegrationTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration({Application.class, EmbeddedMongoAutoConfiguration.class})
+@WebIntegrationTest(randomPort = true)
+public class DeviceManagerRoundTripTest {
+    private static final String[] COUNTERS = {"insert", "query", "update", "delete", "getmore", "command"};
+    private final Logger logger = LoggerFactory.getLogger(DeviceManagerRoundTripTest.class);
+
+    @Autowired
+    private DeviceManager deviceManager;
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Before
+    public void setup() {
+        for (String collection : mongoTemplate.getCollectionNames()) {
+            if (!collection.startsWith("system.")) {
+                mongoTemplate.remove(new Query(), collection);
+            }
+        }
+    }
+
+    @Test
+    public void saveDeviceEvent_shouldUseABoundedNumberOfRoundTrips() {
+        final int deviceCount = 200;
+        final int pingCount = 10;
+        final String userId = UUID.randomUUID().toString();
+        final List<String> unitIds = new ArrayList<>(deviceCount);
+        for (int i = 0; i < deviceCount; i++) {
+            unitIds.add(UUID.randomUUID().toString());
+        }
+
+        final Measure firstPing = measure(userId, unitIds, 1);
+        final Measure steadyPing = measure(userId, unitIds, pingCount);
+
+        logger.warn("First ping: {} operations per event, p50 {}us, p99 {}us", firstPing.operationsPerEvent(), firstPing.percentile(50), firstPing.percentile(99));
+        logger.warn("Steady ping: {} operations per event, p50 {}us, p99 {}us", steadyPing.operationsPerEvent(), steadyPing.percentile(50), steadyPing.percentile(99));
+        // Device lookup, segment order, segments, event insert, device upsert and configuration insert
+        assertThat(firstPing.operationsPerEvent()).isLessThanOrEqualTo(6.5);
+        // Same without the configuration insert
+        assertThat(steadyPing.operationsPerEvent()).isLessThanOrEqualTo(5.5);
+    }
+
+    private Measure measure(String userId, List<String> unitIds, int pingCount) {
+        final long[] latencies = new long[unitIds.size() * pingCount];
+        final long before = countOperations();
+        int idx = 0;
+        for (int ping = 0; ping < pingCount; ping++) {
+            for (String unitId : unitIds) {
+                final DeviceEvent event = DeviceEvent.builder()
+                        .userId(userId)
+                        .unitId(unitId)
+                        .versionId("v" + ping)
+                        .additionalProperties(Collections.singletonMap("ping", ping))
+                        .build();
+                final long start = System.nanoTime();
+                deviceManager.saveDeviceEvent(event);
+                latencies[idx++] = System.nanoTime() - start;
+            }
+        }
+        // The serverStatus command itself is counted once
+        return new Measure(countOperations() - before - 1, latencies);
+    }
+
+    private long countOperations() {
+        final CommandResult status = mongoTemplate.getDb().getSisterDB("admin").command(new BasicDBObject("serverStatus", 1));
+        final DBObject counters = (DBObject) status.get("opcounters");
+        long total = 0;
+        for (String counter : COUNTERS) {
+            total += ((Number) counters.get(counter)).longValue();
+        }
+        return total;
+    }
+
+    private static final class Measure {
+        private final long operations;
+        private final long[] latencies;
+
+        Measure(long operations, long[] latencies) {
+            this.operations = operations;
+            this.latencies = latencies.clone();
+            Arrays.sort(this.latencies);
+        }
+
+        double operationsPerEvent() {
+            return (double) operations / latencies.length;
+        }
+
+        long percentile(int percentile) {
+            return latencies[Math.min(latencies.length - 1, latencies.length * percentile / 100)] / 1000;
+        }
+    }
+}
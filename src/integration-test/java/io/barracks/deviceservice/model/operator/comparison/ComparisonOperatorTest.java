@@ -49,7 +49,7 @@ public class ComparisonOperatorTest {
                 ).build();
         final ComparisonOperator operator = mock(ComparisonOperator.class);
         final JsonNode json = new ObjectMapper().valueToTree(device);
-        doCallRealMethod().when(operator).matches(any());
+        doCallRealMethod().when(operator).matches(any(JsonNode.class));
         doCallRealMethod().when(operator).prepareKey();
         when(operator.getKey()).thenReturn("versionId");
         doReturn(true).when(operator).compare(versionId);
@@ -0,0 +1,130 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model.operator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.operator.comparison.ComparisonOperator;
+import io.barracks.deviceservice.model.operator.logical.AndOperator;
+import io.barracks.deviceservice.model.operator.logical.OrOperator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the previous segment evaluation path, building a JSON tree of the device and interpreting the queries,
+ * with evaluating compiled queries against a {@link DeviceView}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SegmentEvaluationBenchmark {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Param({"1", "10"})
+    private int segmentCount;
+
+    private Device device;
+    private DeviceEvent event;
+    private List<Operator> queries;
+    private List<Operator> compiledQueries;
+
+    @Setup
+    public void setUp() {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("model", "sensor-v2");
+        properties.put("battery", 42);
+        properties.put("location", Collections.singletonMap("country", "FR"));
+        device = Device.builder()
+                .userId(UUID.randomUUID().toString())
+                .unitId(UUID.randomUUID().toString())
+                .firstSeen(new Date(1234567890L))
+                .build();
+        event = DeviceEvent.builder()
+                .userId(device.getUserId())
+                .unitId(device.getUnitId())
+                .versionId("1.0.3")
+                .receptionDate(new Date())
+                .additionalProperties(properties)
+                .build();
+        queries = new ArrayList<>(segmentCount);
+        compiledQueries = new ArrayList<>(segmentCount);
+        for (int segmentIdx = 0; segmentIdx < segmentCount; segmentIdx++) {
+            // Only the last segment matches, so that every query gets evaluated
+            final Operator query = new AndOperator(Arrays.asList(
+                    ComparisonOperator.from("regex", "versionId", segmentIdx == segmentCount - 1 ? "1\\.0\\..*" : "2\\..*"),
+                    new OrOperator(Arrays.asList(
+                            ComparisonOperator.from("in", "customClientData.location.country", Arrays.asList("DE", "FR", "IT")),
+                            ComparisonOperator.from("gte", "customClientData.battery", 50)
+                    )),
+                    ComparisonOperator.from("ne", "customClientData.model", "sensor-v1")
+            ));
+            queries.add(query);
+            compiledQueries.add(CompiledOperator.compile(query));
+        }
+    }
+
+    @Benchmark
+    public int jsonTree() {
+        final Device nextDevice = device.toBuilder().lastEvent(event).build();
+        final JsonNode jsonDevice = new ObjectMapper().valueToTree(nextDevice);
+        for (int queryIdx = 0; queryIdx < queries.size(); queryIdx++) {
+            if (queries.get(queryIdx).matches(jsonDevice)) {
+                return queryIdx;
+            }
+        }
+        return -1;
+    }
+
+    @Benchmark
+    public int jsonTreeWithSharedMapper() {
+        final Device nextDevice = device.toBuilder().lastEvent(event).build();
+        final JsonNode jsonDevice = MAPPER.valueToTree(nextDevice);
+        for (int queryIdx = 0; queryIdx < queries.size(); queryIdx++) {
+            if (queries.get(queryIdx).matches(jsonDevice)) {
+                return queryIdx;
+            }
+        }
+        return -1;
+    }
+
+    @Benchmark
+    public int deviceView() {
+        final Device nextDevice = device.toBuilder().lastEvent(event).build();
+        final DeviceView deviceView = DeviceView.of(nextDevice);
+        for (int queryIdx = 0; queryIdx < compiledQueries.size(); queryIdx++) {
+            if (compiledQueries.get(queryIdx).matches(deviceView)) {
+                return queryIdx;
+            }
+        }
+        return -1;
+    }
+}
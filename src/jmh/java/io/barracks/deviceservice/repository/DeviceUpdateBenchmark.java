@@ -0,0 +1,154 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceEvent;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.CompoundIndexDefinition;
+
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of the optimistic device updates when the given number of threads keep pinging the same
+ * device, or distinct devices, in the database given by the {@code benchmark.mongodb.uri} system property. The number
+ * of conflicts, each one costing a read and a retry, and the number of reads are printed when the benchmark ends.
+ * <p>
+ * {@code pingOwnKnownDevice} claims the device at the state known from its previous update, as the device manager does
+ * with its cache of device states, so that a ping costs one round trip instead of a read followed by the upsert.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+public class DeviceUpdateBenchmark {
+    private static final String USER_ID = "user-0";
+    private static final String SHARED_UNIT_ID = "unit-shared";
+
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong unitIdx = new AtomicLong();
+    private MongoClient client;
+    private MongoTemplate operations;
+    private DeviceRepositoryImpl repository;
+
+    @Setup
+    public void setUp() {
+        final MongoClientURI uri = new MongoClientURI(System.getProperty("benchmark.mongodb.uri", "mongodb://localhost:27017/barracks-benchmark"));
+        client = new MongoClient(uri);
+        operations = new MongoTemplate(client, uri.getDatabase());
+        operations.dropCollection(Device.class);
+        // Concurrent creations of a device only collide on the unique index
+        operations.indexOps(Device.class).ensureIndex(new CompoundIndexDefinition(
+                new BasicDBObject("userId", 1).append("unitId", 1)).unique());
+        repository = new DeviceRepositoryImpl(operations, new PageCounter(operations, 100, 10, 100));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println("conflicts=" + conflicts.get() + " reads=" + reads.get());
+        client.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Unit {
+        private String unitId;
+        private Device known;
+
+        @Setup
+        public void setUp(DeviceUpdateBenchmark benchmark) {
+            unitId = "unit-" + benchmark.unitIdx.incrementAndGet();
+        }
+    }
+
+    @Benchmark
+    public Device pingSharedDevice() {
+        return ping(SHARED_UNIT_ID);
+    }
+
+    @Benchmark
+    public Device pingOwnDevice(Unit unit) {
+        return ping(unit.unitId);
+    }
+
+    @Benchmark
+    public Device pingOwnKnownDevice(Unit unit) {
+        while (true) {
+            final Optional<Device> device = unit.known != null ? Optional.of(unit.known) : read(unit.unitId);
+            final DeviceEvent event = toEvent(unit.unitId, device);
+            try {
+                final Device previous = repository.upsertDeviceEvent(USER_ID, unit.unitId, event, device.map(Device::getRevision).orElse(null), null);
+                unit.known = Device.builder()
+                        .userId(USER_ID)
+                        .unitId(unit.unitId)
+                        .lastEvent(event)
+                        .revision(previous == null ? 1L : previous.getRevision() + 1)
+                        .build();
+                return previous;
+            } catch (OptimisticLockingFailureException e) {
+                conflicts.incrementAndGet();
+                unit.known = null;
+            }
+        }
+    }
+
+    private Device ping(String unitId) {
+        while (true) {
+            final Optional<Device> device = read(unitId);
+            final DeviceEvent event = toEvent(unitId, device);
+            try {
+                repository.upsertDeviceEvent(USER_ID, unitId, event, device.map(Device::getRevision).orElse(null), null);
+                return device.orElse(null);
+            } catch (OptimisticLockingFailureException e) {
+                conflicts.incrementAndGet();
+            }
+        }
+    }
+
+    private Optional<Device> read(String unitId) {
+        reads.incrementAndGet();
+        return repository.findByUserIdAndUnitId(USER_ID, unitId);
+    }
+
+    private DeviceEvent toEvent(String unitId, Optional<Device> device) {
+        return DeviceEvent.builder()
+                .userId(USER_ID)
+                .unitId(unitId)
+                .receptionDate(new Date())
+                .count(device.map(Device::getLastEvent).map(DeviceEvent::getCount).orElse(0) + 1)
+                .build();
+    }
+}
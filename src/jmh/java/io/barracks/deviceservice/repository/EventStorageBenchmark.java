@@ -0,0 +1,122 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceEventBucket;
+import io.barracks.deviceservice.model.DeviceEventDocument;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.CompoundIndexDefinition;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ingestion throughput of the per-event layout and of the bucketed layout of {@link EventBuckets}, in the
+ * database given by the {@code benchmark.mongodb.uri} system property. Each device reports one event per minute. The
+ * data and index sizes of both collections are printed when the benchmark ends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EventStorageBenchmark {
+    private static final String EVENTS_COLLECTION = DeviceEventDocument.class.getDeclaredAnnotation(Document.class).collection();
+    private static final String BUCKETS_COLLECTION = DeviceEventBucket.class.getDeclaredAnnotation(Document.class).collection();
+    private static final String USER_ID = "user-0";
+
+    @Param({"10000"})
+    private int unitCount;
+
+    private MongoClient client;
+    private MongoTemplate operations;
+    private DeviceEventRepositoryImpl documentRepository;
+    private DeviceEventRepositoryImpl bucketRepository;
+    private long eventIdx;
+
+    @Setup
+    public void setUp() {
+        final MongoClientURI uri = new MongoClientURI(System.getProperty("benchmark.mongodb.uri", "mongodb://localhost:27017/barracks-benchmark"));
+        client = new MongoClient(uri);
+        operations = new MongoTemplate(client, uri.getDatabase());
+        operations.dropCollection(EVENTS_COLLECTION);
+        operations.dropCollection(BUCKETS_COLLECTION);
+        // The indexes of both layouts are maintained on every write, so they are part of the measured cost
+        operations.indexOps(DeviceEventDocument.class).ensureIndex(new CompoundIndexDefinition(
+                new BasicDBObject("unitId", 1).append("userId", 1).append("receptionDate", -1)).unique());
+        operations.indexOps(DeviceEventDocument.class).ensureIndex(new CompoundIndexDefinition(
+                new BasicDBObject("userId", 1).append("receptionDate", 1).append("lastReceptionDate", 1).append("unitId", 1)));
+        operations.indexOps(DeviceEventBucket.class).ensureIndex(new CompoundIndexDefinition(
+                new BasicDBObject("userId", 1).append("unitId", 1).append("bucket", -1)));
+        operations.indexOps(DeviceEventBucket.class).ensureIndex(new CompoundIndexDefinition(
+                new BasicDBObject("userId", 1).append("last", 1)));
+        documentRepository = new DeviceEventRepositoryImpl(operations, new EventBuckets(operations, false, false, 86400, 200, 3600));
+        bucketRepository = new DeviceEventRepositoryImpl(operations, new EventBuckets(operations, true, false, 86400, 200, 3600));
+    }
+
+    @TearDown
+    public void tearDown() {
+        printStats(EVENTS_COLLECTION);
+        printStats(BUCKETS_COLLECTION);
+        client.close();
+    }
+
+    @Benchmark
+    public DeviceEvent insertDocument() {
+        return documentRepository.insertDeviceEvent(nextEvent());
+    }
+
+    @Benchmark
+    public DeviceEvent insertIntoBucket() {
+        return bucketRepository.insertDeviceEvent(nextEvent());
+    }
+
+    private DeviceEvent nextEvent() {
+        final long idx = eventIdx++;
+        return DeviceEvent.builder()
+                .id(new ObjectId().toString())
+                .userId(USER_ID)
+                .unitId("unit-" + idx % unitCount)
+                .versionId("version-" + idx % 10)
+                .receptionDate(new Date(TimeUnit.MINUTES.toMillis(idx / unitCount)))
+                .changed(idx % 20 == 0)
+                .build();
+    }
+
+    private void printStats(String collection) {
+        final CommandResult stats = operations.executeCommand(new BasicDBObject("collStats", collection));
+        System.out.println(collection + ": count=" + stats.get("count") + ", size=" + stats.get("size")
+                + ", totalIndexSize=" + stats.get("totalIndexSize"));
+    }
+}
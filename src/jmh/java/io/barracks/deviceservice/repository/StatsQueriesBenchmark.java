@@ -0,0 +1,148 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceEvent;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Compares the previous statistics queries, running one count per distinct version or user, with the aggregation
+ * pipelines of {@link DeviceRepositoryImpl}, on a synthetic set of devices stored in the database given by the
+ * {@code benchmark.mongodb.uri} system property. The data set is only generated when the collection does not already
+ * hold the expected number of devices.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StatsQueriesBenchmark {
+    private static final String COLLECTION = Device.class.getDeclaredAnnotation(Document.class).collection();
+    private static final String USER_ID = "user-0";
+    private static final int BATCH_SIZE = 10000;
+
+    @Param({"2000000"})
+    private int unitCount;
+
+    @Param({"1000"})
+    private int userCount;
+
+    @Param({"50"})
+    private int versionCount;
+
+    private MongoClient client;
+    private MongoTemplate operations;
+    private DeviceRepositoryImpl deviceRepository;
+
+    @Setup
+    public void setUp() {
+        final MongoClientURI uri = new MongoClientURI(System.getProperty("benchmark.mongodb.uri", "mongodb://localhost:27017/barracks-benchmark"));
+        client = new MongoClient(uri);
+        operations = new MongoTemplate(client, uri.getDatabase());
+        if (operations.getCollection(COLLECTION).count() != unitCount) {
+            operations.dropCollection(COLLECTION);
+            insertDevices();
+        }
+        deviceRepository = new DeviceRepositoryImpl(operations, new PageCounter(operations, 1, 1, 1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+    }
+
+    @Benchmark
+    public DataSet countPerVersionIdWithDistinct() {
+        final List<?> versionIds = operations.getCollection(COLLECTION)
+                .distinct("event.versionId", query(where("userId").is(USER_ID).and("event").exists(true)).getQueryObject());
+        final Map<String, BigDecimal> values = versionIds.stream()
+                .collect(Collectors.toMap(
+                        id -> (String) id,
+                        id -> BigDecimal.valueOf(operations.count(query(where("userId").is(USER_ID).and("event").exists(true).and("event.versionId").is(id)), Device.class))
+                ));
+        return DataSet.builder().values(values).total(values.values().stream().reduce(BigDecimal.ZERO, BigDecimal::add)).build();
+    }
+
+    @Benchmark
+    public DataSet countPerVersionIdWithAggregation() {
+        return deviceRepository.getDevicesCountPerVersionId(USER_ID);
+    }
+
+    @Benchmark
+    public DataSet countPerUserIdWithDistinct() {
+        final List<?> userIds = operations.getCollection(COLLECTION).distinct("userId");
+        final Map<String, BigDecimal> values = userIds.stream()
+                .collect(Collectors.toMap(
+                        id -> (String) id,
+                        id -> BigDecimal.valueOf(operations.count(query(where("userId").is(id)), Device.class))
+                ));
+        return DataSet.builder().values(values).total(values.values().stream().reduce(BigDecimal.ZERO, BigDecimal::add)).build();
+    }
+
+    @Benchmark
+    public DataSet countPerUserIdWithAggregation() {
+        return deviceRepository.getDeviceCountPerUserId();
+    }
+
+    private void insertDevices() {
+        final List<Device> batch = new ArrayList<>(BATCH_SIZE);
+        final Date receptionDate = new Date();
+        for (int unitIdx = 0; unitIdx < unitCount; unitIdx++) {
+            // Half of the devices belong to the benchmarked tenant, the others are spread over the remaining ones
+            final String userId = unitIdx % 2 == 0 ? USER_ID : "user-" + (1 + unitIdx / 2 % (userCount - 1));
+            final String unitId = "unit-" + unitIdx;
+            final DeviceEvent event = DeviceEvent.builder()
+                    .userId(userId)
+                    .unitId(unitId)
+                    .versionId("version-" + unitIdx % versionCount)
+                    .receptionDate(receptionDate)
+                    .build();
+            batch.add(Device.builder().userId(userId).unitId(unitId).firstSeen(receptionDate).lastEvent(event).build());
+            if (batch.size() == BATCH_SIZE) {
+                operations.insert(batch, Device.class);
+                batch.clear();
+            }
+        }
+        operations.insert(batch, Device.class);
+    }
+}
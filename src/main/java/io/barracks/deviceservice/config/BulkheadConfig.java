@@ -0,0 +1,77 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.config;
+
+import io.barracks.deviceservice.rest.BulkheadFilter;
+import io.barracks.deviceservice.rest.TrafficClass;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.embedded.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.servlet.DispatcherType;
+import java.util.Arrays;
+
+/**
+ * Budgets of the {@link BulkheadFilter}, which is only installed when enabled. The concurrencies should add up to less
+ * than the container's thread pool.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "io.barracks.deviceservice.bulkheads", name = "enabled")
+public class BulkheadConfig {
+    @Bean
+    public BulkheadFilter bulkheadFilter(
+            GaugeService gaugeService,
+            @Value("${io.barracks.deviceservice.bulkheads.queueTimeout:10000}") long queueTimeout,
+            @Value("${io.barracks.deviceservice.bulkheads.ingestion.concurrency:32}") int ingestionConcurrency,
+            @Value("${io.barracks.deviceservice.bulkheads.ingestion.queueLength:500}") int ingestionQueueLength,
+            @Value("${io.barracks.deviceservice.bulkheads.deviceReads.concurrency:16}") int deviceReadsConcurrency,
+            @Value("${io.barracks.deviceservice.bulkheads.deviceReads.queueLength:100}") int deviceReadsQueueLength,
+            @Value("${io.barracks.deviceservice.bulkheads.segmentListings.concurrency:8}") int segmentListingsConcurrency,
+            @Value("${io.barracks.deviceservice.bulkheads.segmentListings.queueLength:50}") int segmentListingsQueueLength,
+            @Value("${io.barracks.deviceservice.bulkheads.stats.concurrency:8}") int statsConcurrency,
+            @Value("${io.barracks.deviceservice.bulkheads.stats.queueLength:20}") int statsQueueLength,
+            @Value("${io.barracks.deviceservice.bulkheads.match.concurrency:16}") int matchConcurrency,
+            @Value("${io.barracks.deviceservice.bulkheads.match.queueLength:200}") int matchQueueLength) {
+        return new BulkheadFilter(Arrays.asList(
+                new BulkheadFilter.Bulkhead(TrafficClass.INGESTION, ingestionConcurrency, ingestionQueueLength),
+                new BulkheadFilter.Bulkhead(TrafficClass.DEVICE_READS, deviceReadsConcurrency, deviceReadsQueueLength),
+                new BulkheadFilter.Bulkhead(TrafficClass.SEGMENT_LISTINGS, segmentListingsConcurrency, segmentListingsQueueLength),
+                new BulkheadFilter.Bulkhead(TrafficClass.STATS, statsConcurrency, statsQueueLength),
+                new BulkheadFilter.Bulkhead(TrafficClass.MATCH, matchConcurrency, matchQueueLength)
+        ), gaugeService, queueTimeout);
+    }
+
+    @Bean
+    public FilterRegistrationBean bulkheadFilterRegistration(BulkheadFilter bulkheadFilter) {
+        final FilterRegistrationBean registration = new FilterRegistrationBean(bulkheadFilter);
+        // Queued requests come back through the filter as asynchronous dispatches once admitted
+        registration.setDispatcherTypes(DispatcherType.REQUEST, DispatcherType.ASYNC);
+        registration.setAsyncSupported(true);
+        return registration;
+    }
+}
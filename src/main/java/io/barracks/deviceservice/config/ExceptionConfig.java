@@ -27,22 +27,33 @@ package io.barracks.deviceservice.config;
 import cz.jirutka.spring.exhandler.RestHandlerExceptionResolverBuilder;
 import io.barracks.commons.configuration.ExceptionHandlingConfiguration;
 import io.barracks.deviceservice.manager.exception.*;
+import io.barracks.deviceservice.repository.exception.BrokenEventHistoryException;
 import io.barracks.deviceservice.repository.exception.FilterCreationFailedException;
+import io.barracks.deviceservice.repository.exception.InvalidCursorException;
 import io.barracks.deviceservice.rest.exception.BarracksQueryFormatException;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpStatus;
 
+import javax.validation.ConstraintViolationException;
+
 @Configuration
 public class ExceptionConfig extends ExceptionHandlingConfiguration {
     @Override
     public RestHandlerExceptionResolverBuilder restExceptionResolver() {
         return super.restExceptionResolver()
                 .addErrorMessageHandler(InvalidSegmentOrderException.class, HttpStatus.BAD_REQUEST)
+                .addErrorMessageHandler(InvalidDeviceEventException.class, HttpStatus.BAD_REQUEST)
+                .addErrorMessageHandler(InvalidStatsKeyException.class, HttpStatus.BAD_REQUEST)
                 .addErrorMessageHandler(BarracksQueryFormatException.class, HttpStatus.BAD_REQUEST)
                 .addErrorMessageHandler(SegmentConversionException.class, HttpStatus.INTERNAL_SERVER_ERROR)
                 .addErrorMessageHandler(DuplicateKeyException.class, HttpStatus.BAD_REQUEST)
+                .addErrorMessageHandler(OptimisticLockingFailureException.class, HttpStatus.CONFLICT)
                 .addErrorMessageHandler(FilterCreationFailedException.class, HttpStatus.BAD_REQUEST)
+                .addErrorMessageHandler(InvalidCursorException.class, HttpStatus.BAD_REQUEST)
+                .addErrorMessageHandler(ConstraintViolationException.class, HttpStatus.BAD_REQUEST)
+                .addErrorMessageHandler(BrokenEventHistoryException.class, HttpStatus.INTERNAL_SERVER_ERROR)
                 .addErrorMessageHandler(FilterNotFoundException.class, HttpStatus.NOT_FOUND)
                 .addErrorMessageHandler(MatchingFilterNotFoundException.class, HttpStatus.INTERNAL_SERVER_ERROR)
                 .addErrorMessageHandler(NoMatchingFilterFoundException.class, HttpStatus.NOT_FOUND)
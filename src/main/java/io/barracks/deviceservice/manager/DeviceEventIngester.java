@@ -0,0 +1,191 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.barracks.deviceservice.manager.exception.InvalidDeviceEventException;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceEventBatchItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validation;
+import javax.validation.Validator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+@Service
+public class DeviceEventIngester {
+    private static final Logger logger = LoggerFactory.getLogger(DeviceEventIngester.class);
+
+    private final DeviceManager deviceManager;
+    private final Validator validator;
+    private final boolean asynchronous;
+    private final int workerCount;
+    private final int batchSize;
+    private final long retryAfter;
+    private final long shutdownTimeout;
+    private final BlockingQueue<DeviceEvent> queue;
+    /**
+     * Events are offered under the read lock and the ingester is marked as stopping under the write lock, so no event
+     * can be queued once {@link #stop()} went past that point and the final flush sees every accepted event.
+     */
+    private final ReadWriteLock stoppingLock = new ReentrantReadWriteLock();
+    private ExecutorService workers;
+    private volatile boolean stopping;
+
+    @Autowired
+    public DeviceEventIngester(
+            DeviceManager deviceManager,
+            @Value("${io.barracks.deviceservice.ingestion.async:false}") boolean asynchronous,
+            @Value("${io.barracks.deviceservice.ingestion.queueCapacity:10000}") int queueCapacity,
+            @Value("${io.barracks.deviceservice.ingestion.workers:4}") int workerCount,
+            @Value("${io.barracks.deviceservice.ingestion.batchSize:100}") int batchSize,
+            @Value("${io.barracks.deviceservice.ingestion.retryAfter:1}") long retryAfter,
+            @Value("${io.barracks.deviceservice.ingestion.shutdownTimeout:30}") long shutdownTimeout) {
+        this.deviceManager = deviceManager;
+        this.validator = Validation.buildDefaultValidatorFactory().getValidator();
+        this.asynchronous = asynchronous;
+        this.workerCount = workerCount;
+        this.batchSize = batchSize;
+        this.retryAfter = retryAfter;
+        this.shutdownTimeout = shutdownTimeout;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!asynchronous) {
+            return;
+        }
+        workers = Executors.newFixedThreadPool(workerCount, new ThreadFactoryBuilder()
+                .setNameFormat("device-event-ingester-%d")
+                .build());
+        for (int i = 0; i < workerCount; i++) {
+            workers.submit(this::drain);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        stoppingLock.writeLock().lock();
+        try {
+            stopping = true;
+        } finally {
+            stoppingLock.writeLock().unlock();
+        }
+        if (workers != null) {
+            workers.shutdown();
+            if (!workers.awaitTermination(shutdownTimeout, TimeUnit.SECONDS)) {
+                logger.warn("Ingestion workers did not stop within {}s", shutdownTimeout);
+                workers.shutdownNow();
+            }
+        }
+        // Whatever is still queued once the workers are done is flushed by the calling thread
+        while (flush() > 0) {
+            // Keep flushing until the queue is empty
+        }
+    }
+
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Validates the event and queues it for the ingestion workers, stamped with the date it was accepted at so that
+     * the time it spends in the queue does not delay its reception date.
+     *
+     * @return false if the queue is full or the ingester is stopping, in which case the caller should retry later.
+     */
+    public boolean enqueue(DeviceEvent event) {
+        final Set<ConstraintViolation<DeviceEvent>> violations = validator.validate(event);
+        if (!violations.isEmpty()) {
+            throw new InvalidDeviceEventException(violations);
+        }
+        final DeviceEvent accepted = event.toBuilder().receptionDate(deviceManager.createReceptionDate()).build();
+        stoppingLock.readLock().lock();
+        try {
+            return !stopping && queue.offer(accepted);
+        } finally {
+            stoppingLock.readLock().unlock();
+        }
+    }
+
+    int getQueueSize() {
+        return queue.size();
+    }
+
+    void drain() {
+        while (!stopping) {
+            try {
+                final DeviceEvent first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    final List<DeviceEvent> batch = new ArrayList<>(batchSize);
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    save(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    int flush() {
+        final List<DeviceEvent> batch = new ArrayList<>(batchSize);
+        queue.drainTo(batch, batchSize);
+        if (!batch.isEmpty()) {
+            save(batch);
+        }
+        return batch.size();
+    }
+
+    private void save(List<DeviceEvent> batch) {
+        try {
+            for (DeviceEventBatchItem item : deviceManager.saveDeviceEvents(batch)) {
+                if (item.getError() != null) {
+                    logger.warn("Failed to save queued event {} : {}", batch.get(item.getIndex()), item.getError());
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to save " + batch.size() + " queued events", e);
+        }
+    }
+}
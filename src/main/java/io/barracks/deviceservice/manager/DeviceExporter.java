@@ -0,0 +1,141 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceFields;
+import io.barracks.deviceservice.model.operator.Operator;
+import io.barracks.deviceservice.repository.DeviceRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Streams all the devices of a user from database cursors. Users with more than one range of devices have their
+ * ranges of ids read in parallel into bounded buffers, which the calling thread passes on range after range, so the
+ * devices come in id order from a single thread.
+ */
+@Service
+public class DeviceExporter {
+    /**
+     * Marks the end of the devices of a range in its buffer.
+     */
+    private static final Device END_OF_RANGE = Device.builder().build();
+
+    private final DeviceRepository deviceRepository;
+    private final int workerCount;
+    private final int rangeSize;
+    private final int bufferSize;
+    private ExecutorService workers;
+
+    @Autowired
+    public DeviceExporter(
+            DeviceRepository deviceRepository,
+            @Value("${io.barracks.deviceservice.export.workers:4}") int workerCount,
+            @Value("${io.barracks.deviceservice.export.rangeSize:50000}") int rangeSize,
+            @Value("${io.barracks.deviceservice.export.bufferSize:1000}") int bufferSize) {
+        this.deviceRepository = deviceRepository;
+        this.workerCount = workerCount;
+        this.rangeSize = rangeSize;
+        this.bufferSize = bufferSize;
+    }
+
+    @PostConstruct
+    public void start() {
+        workers = Executors.newFixedThreadPool(workerCount);
+    }
+
+    @PreDestroy
+    public void stop() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Passes every device of the user matching the query to the consumer, from the calling thread and in id order.
+     */
+    public void exportDevices(String userId, Optional<Operator> query, DeviceFields fields, Consumer<Device> consumer) {
+        final List<String> boundaries = deviceRepository.findIdBoundariesByUserId(userId, rangeSize);
+        if (boundaries.size() <= 1) {
+            try (CloseableIterator<Device> devices = deviceRepository.streamByUserId(userId, query, fields, null, null)) {
+                devices.forEachRemaining(consumer);
+            }
+            return;
+        }
+        // The ranges are read in the order they are passed on, so the range being drained always has a worker
+        final List<BlockingQueue<Device>> buffers = new ArrayList<>(boundaries.size());
+        final List<Future<?>> ranges = new ArrayList<>(boundaries.size());
+        for (int idx = 0; idx < boundaries.size(); idx++) {
+            // The first and last ranges are left open to include the devices created during the export
+            final String fromId = idx == 0 ? null : boundaries.get(idx);
+            final String toId = idx == boundaries.size() - 1 ? null : boundaries.get(idx + 1);
+            final BlockingQueue<Device> buffer = new ArrayBlockingQueue<>(bufferSize);
+            buffers.add(buffer);
+            ranges.add(workers.submit(() -> {
+                readRange(userId, query, fields, fromId, toId, buffer);
+                return null;
+            }));
+        }
+        try {
+            for (int idx = 0; idx < boundaries.size(); idx++) {
+                final BlockingQueue<Device> buffer = buffers.get(idx);
+                for (Device device = buffer.take(); device != END_OF_RANGE; device = buffer.take()) {
+                    consumer.accept(device);
+                }
+                ranges.get(idx).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while exporting the devices of " + userId, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to export the devices of " + userId, e.getCause());
+        } finally {
+            ranges.forEach(range -> range.cancel(true));
+        }
+    }
+
+    private void readRange(String userId, Optional<Operator> query, DeviceFields fields, @Nullable String fromId, @Nullable String toId, BlockingQueue<Device> buffer) throws InterruptedException {
+        try (CloseableIterator<Device> devices = deviceRepository.streamByUserId(userId, query, fields, fromId, toId)) {
+            while (devices.hasNext()) {
+                buffer.put(devices.next());
+            }
+        } finally {
+            // Also ends a failed range, its error being raised once the devices read before it are passed on
+            buffer.put(END_OF_RANGE);
+        }
+    }
+}
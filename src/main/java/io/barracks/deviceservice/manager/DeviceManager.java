@@ -24,24 +24,35 @@
 
 package io.barracks.deviceservice.manager;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import io.barracks.deviceservice.manager.exception.DeviceNotFoundException;
 import io.barracks.deviceservice.model.*;
+import io.barracks.deviceservice.model.operator.DeviceView;
 import io.barracks.deviceservice.model.operator.Operator;
 import io.barracks.deviceservice.repository.*;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
 
 import javax.annotation.Nullable;
-import java.util.Date;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Service
 public class DeviceManager {
+    private static final Logger logger = LoggerFactory.getLogger(DeviceManager.class);
+    private static final char HEARTBEAT_ID_SEPARATOR = ':';
 
     private final DeviceEventRepository deviceEventRepository;
 
@@ -49,93 +60,435 @@ public class DeviceManager {
 
     private final DeviceRepository deviceRepository;
 
+    private final SegmentCatalog segmentCatalog;
 
-    private final SegmentRepository segmentRepository;
+    private final StatsRollups statsRollups;
 
-    private final SegmentOrderRepository segmentOrderRepository;
+    private final SeenSketches seenSketches;
+
+    private final TopValues topValues;
+
+    private final QuantileSketches quantileSketches;
+
+    private final PropertyDeltas propertyDeltas;
+
+    private final boolean coalesceHeartbeats;
+
+    private final long heartbeatBucketMillis;
+
+    private final int maxUpdateAttempts;
+
+    /**
+     * Last state written by this instance for the devices, keyed by user and unit ids, so that a ping only claims the
+     * device at this state instead of reading it first. A device updated elsewhere in the meantime is at another
+     * revision, the claim then failing and the ping being processed again on the state read from the database.
+     */
+    private final Cache<List<String>, Device> deviceStates;
 
     @Autowired
     public DeviceManager(
             DeviceEventRepository deviceEventRepository,
             DeviceConfigurationRepository deviceConfigurationRepository,
             DeviceRepository deviceRepository,
-            SegmentRepository segmentRepository,
-            SegmentOrderRepository segmentOrderRepository) {
+            SegmentCatalog segmentCatalog,
+            StatsRollups statsRollups,
+            SeenSketches seenSketches,
+            TopValues topValues,
+            QuantileSketches quantileSketches,
+            PropertyDeltas propertyDeltas,
+            @Value("${io.barracks.deviceservice.events.coalesceHeartbeats:false}") boolean coalesceHeartbeats,
+            @Value("${io.barracks.deviceservice.events.heartbeatBucket:3600}") long heartbeatBucket,
+            @Value("${io.barracks.deviceservice.devices.maxUpdateAttempts:5}") int maxUpdateAttempts,
+            @Value("${io.barracks.deviceservice.devices.stateCacheSize:0}") long stateCacheSize) {
         this.deviceEventRepository = deviceEventRepository;
         this.deviceConfigurationRepository = deviceConfigurationRepository;
         this.deviceRepository = deviceRepository;
-        this.segmentRepository = segmentRepository;
-        this.segmentOrderRepository = segmentOrderRepository;
+        this.segmentCatalog = segmentCatalog;
+        this.statsRollups = statsRollups;
+        this.seenSketches = seenSketches;
+        this.topValues = topValues;
+        this.quantileSketches = quantileSketches;
+        this.propertyDeltas = propertyDeltas;
+        this.coalesceHeartbeats = coalesceHeartbeats;
+        this.heartbeatBucketMillis = TimeUnit.SECONDS.toMillis(heartbeatBucket);
+        this.maxUpdateAttempts = maxUpdateAttempts;
+        this.deviceStates = CacheBuilder.newBuilder().maximumSize(stateCacheSize).build();
     }
 
     public DeviceEvent saveDeviceEvent(DeviceEvent receivedEvent) {
+        // Concurrent pings of the device are not serialized, the one updating it last is processed again on its new state
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return trySaveDeviceEvent(receivedEvent);
+            } catch (OptimisticLockingFailureException e) {
+                if (attempt >= maxUpdateAttempts) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    DeviceEvent trySaveDeviceEvent(DeviceEvent receivedEvent) {
         // Init and retrieve basic information
-        final Date creationDate = createReceptionDate();
-        Device device = getOrCreateDevice(receivedEvent.getUserId(), receivedEvent.getUnitId());
+        final String userId = receivedEvent.getUserId();
+        final String unitId = receivedEvent.getUnitId();
+        final List<String> stateKey = Arrays.asList(userId, unitId);
+        final Device knownDevice = deviceStates.getIfPresent(stateKey);
+        final Optional<Device> existingDevice = knownDevice != null ? Optional.of(knownDevice) : deviceRepository.findByUserIdAndUnitId(userId, unitId);
+        Device device = existingDevice.orElseGet(() -> Device.builder().userId(userId).unitId(unitId).build());
+        // A ping retried after a concurrent update must not reuse the reception date of the event that won
+        final Date creationDate = createReceptionDate(receivedEvent, device.getLastEvent());
         if (device.hasPinged()) {
-            device = deviceRepository.updateFirstSeen(receivedEvent.getUserId(), receivedEvent.getUnitId(), creationDate);
+            device = device.toBuilder().firstSeen(creationDate).build();
+        }
+
+        // Evaluate the segment and check for changes
+        final DeviceEvent processed = propertyDeltas.encode(
+                processDeviceEvent(getActiveSegments(userId), device, receivedEvent, createEventId(), creationDate),
+                device.getLastEvent()
+        );
+        final Optional<DeviceEvent> heartbeat = toHeartbeat(processed, device.getLastEvent());
+        final DeviceEvent toSave = heartbeat.orElse(processed);
+
+        // Claim the device with a single upsert, the default configuration is only used if the device is new, then store
+        // the event once it is known to follow the previous one
+        final DeviceConfiguration defaultConfiguration = existingDevice.isPresent() ? null : createDefaultConfiguration(userId, unitId);
+        final Device previous;
+        try {
+            previous = deviceRepository.upsertDeviceEvent(userId, unitId, toSave, device.getRevision(), defaultConfiguration);
+        } catch (OptimisticLockingFailureException e) {
+            deviceStates.invalidate(stateKey);
+            throw e;
+        }
+        final DeviceEvent saved;
+        try {
+            saved = heartbeat.isPresent() ? deviceEventRepository.foldHeartbeat(toSave) : deviceEventRepository.insertDeviceEvent(toSave);
+        } catch (RuntimeException e) {
+            // The device must not keep pointing to an event which was not stored
+            deviceStates.invalidate(stateKey);
+            revertDevice(existingDevice.orElseGet(() -> Device.builder().userId(userId).unitId(unitId).build()), previous == null, e);
+            throw e;
+        }
+        if (previous == null && defaultConfiguration != null) {
+            deviceConfigurationRepository.insert(defaultConfiguration);
+        }
+        deviceStates.put(stateKey, device.toBuilder()
+                .configuration(previous == null && defaultConfiguration != null ? defaultConfiguration : device.getConfiguration())
+                .lastEvent(toSave)
+                .revision(previous == null || previous.getRevision() == null ? 1L : previous.getRevision() + 1)
+                .build());
+        final Map<String, DeviceEvent> previousEvents = device.getLastEvent() == null ? Collections.emptyMap() : Collections.singletonMap(unitId, device.getLastEvent());
+        final Map<String, DeviceEvent> lastEvents = Collections.singletonMap(unitId, saved);
+        statsRollups.recordLastEvents(userId, previousEvents, lastEvents);
+        topValues.recordLastEvents(userId, previousEvents, lastEvents);
+        seenSketches.recordSeen(userId, Collections.singletonList(saved));
+        quantileSketches.recordLastEvents(userId, previousEvents, lastEvents);
+        return saved;
+    }
+
+    public List<DeviceEventBatchItem> saveDeviceEvents(List<DeviceEvent> receivedEvents) {
+        final DeviceEventBatchItem[] results = new DeviceEventBatchItem[receivedEvents.size()];
+        final Map<String, List<Integer>> indexesByUserId = new LinkedHashMap<>();
+        for (int eventIdx = 0; eventIdx < receivedEvents.size(); eventIdx++) {
+            final DeviceEvent event = receivedEvents.get(eventIdx);
+            if (event == null || StringUtils.isEmpty(event.getUserId()) || StringUtils.isEmpty(event.getUnitId())) {
+                results[eventIdx] = DeviceEventBatchItem.failed(eventIdx, HttpStatus.BAD_REQUEST, "Event requires a userId and a unitId");
+            } else {
+                indexesByUserId.computeIfAbsent(event.getUserId(), userId -> new ArrayList<>()).add(eventIdx);
+            }
+        }
+        indexesByUserId.forEach((userId, indexes) -> saveUserDeviceEvents(userId, receivedEvents, indexes, results));
+        return Arrays.asList(results);
+    }
+
+    void saveUserDeviceEvents(String userId, List<DeviceEvent> receivedEvents, List<Integer> indexes, DeviceEventBatchItem[] results) {
+        final Map<String, List<Integer>> indexesByUnitId = new LinkedHashMap<>();
+        for (int eventIdx : indexes) {
+            indexesByUnitId.computeIfAbsent(receivedEvents.get(eventIdx).getUnitId(), unitId -> new ArrayList<>()).add(eventIdx);
+        }
+
+        // Resolve every device of the batch at once, the missing ones getting a default configuration once created
+        final Set<String> unitIds = indexesByUnitId.keySet();
+        final Map<String, Device> devices = deviceRepository.findByUserIdAndUnitIdIn(userId, unitIds).stream()
+                .collect(Collectors.toMap(Device::getUnitId, Function.identity()));
+        final Set<String> createdUnitIds = unitIds.stream()
+                .filter(unitId -> !devices.containsKey(unitId))
+                .collect(Collectors.toSet());
+        createdUnitIds.forEach(unitId -> devices.put(unitId, Device.builder()
+                .userId(userId)
+                .unitId(unitId)
+                .configuration(createDefaultConfiguration(userId, unitId))
+                .build()));
+
+        // Process the events of each device in order and claim the devices at once, the devices updated concurrently
+        // being read and processed again
+        final List<Segment> segments = getActiveSegments(userId);
+        final Map<String, DeviceEvents> eventsByUnitId = new HashMap<>();
+        final Map<String, DeviceEvent> previousEvents = new HashMap<>();
+        final List<Device> claimedDevices = new ArrayList<>();
+        final Map<String, String> deviceFailuresByUnitId = new HashMap<>();
+        Set<String> pendingUnitIds = new LinkedHashSet<>(unitIds);
+        for (int attempt = 1; !pendingUnitIds.isEmpty(); attempt++) {
+            if (attempt > 1) {
+                // A device created concurrently keeps the configuration it was created with
+                deviceRepository.findByUserIdAndUnitIdIn(userId, pendingUnitIds).forEach(device -> {
+                    devices.put(device.getUnitId(), device);
+                    createdUnitIds.remove(device.getUnitId());
+                });
+            }
+            final List<Device> deviceUpdates = new ArrayList<>(pendingUnitIds.size());
+            for (String unitId : pendingUnitIds) {
+                final DeviceEvents events = processDeviceEvents(segments, devices.get(unitId), receivedEvents, indexesByUnitId.get(unitId));
+                eventsByUnitId.put(unitId, events);
+                deviceUpdates.add(Device.builder()
+                        .userId(userId)
+                        .unitId(unitId)
+                        .configuration(createdUnitIds.contains(unitId) ? devices.get(unitId).getConfiguration() : null)
+                        .firstSeen(events.processed.get(0).getReceptionDate())
+                        .lastEvent(events.processed.get(events.processed.size() - 1))
+                        .revision(devices.get(unitId).getRevision())
+                        .build());
+            }
+            final Map<Integer, String> deviceFailures = deviceRepository.updateDevices(deviceUpdates);
+            final Set<String> conflictingUnitIds = new LinkedHashSet<>();
+            for (int updateIdx = 0; updateIdx < deviceUpdates.size(); updateIdx++) {
+                final Device update = deviceUpdates.get(updateIdx);
+                final String error = deviceFailures.get(updateIdx);
+                if (error == null) {
+                    claimedDevices.add(update);
+                    final DeviceEvent previous = devices.get(update.getUnitId()).getLastEvent();
+                    if (previous != null) {
+                        previousEvents.put(update.getUnitId(), previous);
+                    }
+                } else if (DeviceRepositoryCustom.CONCURRENT_UPDATE_ERROR.equals(error) && attempt < maxUpdateAttempts) {
+                    conflictingUnitIds.add(update.getUnitId());
+                } else {
+                    deviceFailuresByUnitId.put(update.getUnitId(), error);
+                }
+            }
+            pendingUnitIds = conflictingUnitIds;
+        }
+
+        // Write the events of the claimed devices at once, then put back the devices whose last event could not be stored
+        // and store the configurations of the created devices which were kept
+        final List<DeviceEvent> toSave = new ArrayList<>(indexes.size());
+        final Map<String, Integer> saveOffsets = new HashMap<>();
+        for (Device device : claimedDevices) {
+            saveOffsets.put(device.getUnitId(), toSave.size());
+            toSave.addAll(eventsByUnitId.get(device.getUnitId()).toSave);
+        }
+        final Map<Integer, String> eventFailures = insertDeviceEvents(toSave);
+        final Map<String, DeviceEvent> lastEvents = new HashMap<>();
+        final List<DeviceConfiguration> defaultConfigurations = new ArrayList<>();
+        for (Device device : claimedDevices) {
+            final String unitId = device.getUnitId();
+            final List<Integer> saveIndexes = eventsByUnitId.get(unitId).saveIndexes;
+            final int lastSaveIdx = saveOffsets.get(unitId) + saveIndexes.get(saveIndexes.size() - 1);
+            if (eventFailures.containsKey(lastSaveIdx)) {
+                revertDevice(devices.get(unitId), createdUnitIds.contains(unitId), null);
+                continue;
+            }
+            lastEvents.put(unitId, device.getLastEvent());
+            if (createdUnitIds.contains(unitId)) {
+                defaultConfigurations.add(device.getConfiguration());
+            }
+        }
+        if (!defaultConfigurations.isEmpty()) {
+            deviceConfigurationRepository.insert(defaultConfigurations);
+        }
+        statsRollups.recordLastEvents(userId, previousEvents, lastEvents);
+        topValues.recordLastEvents(userId, previousEvents, lastEvents);
+        quantileSketches.recordLastEvents(userId, previousEvents, lastEvents);
+
+        final List<DeviceEvent> seenEvents = new ArrayList<>(indexes.size());
+        indexesByUnitId.forEach((unitId, unitIndexes) -> {
+            final DeviceEvents events = eventsByUnitId.get(unitId);
+            for (int position = 0; position < unitIndexes.size(); position++) {
+                final int eventIdx = unitIndexes.get(position);
+                final String deviceError = deviceFailuresByUnitId.get(unitId);
+                if (deviceError != null) {
+                    final HttpStatus status = DeviceRepositoryCustom.CONCURRENT_UPDATE_ERROR.equals(deviceError) ? HttpStatus.CONFLICT : HttpStatus.INTERNAL_SERVER_ERROR;
+                    results[eventIdx] = DeviceEventBatchItem.failed(eventIdx, status, deviceError);
+                    continue;
+                }
+                final int saveIdx = saveOffsets.get(unitId) + events.saveIndexes.get(position);
+                if (eventFailures.containsKey(saveIdx)) {
+                    results[eventIdx] = DeviceEventBatchItem.failed(eventIdx, HttpStatus.INTERNAL_SERVER_ERROR, eventFailures.get(saveIdx));
+                } else {
+                    results[eventIdx] = DeviceEventBatchItem.created(eventIdx, events.processed.get(position));
+                    seenEvents.add(events.processed.get(position));
+                }
+            }
+        });
+        seenSketches.recordSeen(userId, seenEvents);
+    }
+
+    /**
+     * Inserts the events, a failure of the whole write failing every one of them so that the devices claimed for them
+     * can be put back.
+     */
+    private Map<Integer, String> insertDeviceEvents(List<DeviceEvent> toSave) {
+        try {
+            return deviceEventRepository.insertDeviceEvents(toSave);
+        } catch (RuntimeException e) {
+            logger.error("Failed to insert " + toSave.size() + " device events", e);
+            final Map<Integer, String> failures = new HashMap<>();
+            for (int saveIdx = 0; saveIdx < toSave.size(); saveIdx++) {
+                failures.put(saveIdx, e.getMessage());
+            }
+            return failures;
+        }
+    }
+
+    /**
+     * Puts back a device claimed for events which could not be stored, a failure to do so being added to the one
+     * which caused it, if any, or logged.
+     */
+    private void revertDevice(Device previous, boolean created, @Nullable RuntimeException cause) {
+        try {
+            deviceRepository.revertDevice(previous, created);
+        } catch (RuntimeException e) {
+            if (cause != null) {
+                cause.addSuppressed(e);
+            } else {
+                logger.error("Failed to revert device " + previous.getUnitId() + " of user " + previous.getUserId(), e);
+            }
         }
+    }
+
+    /**
+     * Processes the events received for a device, each one being compared to the previous one.
+     */
+    DeviceEvents processDeviceEvents(List<Segment> segments, Device device, List<DeviceEvent> receivedEvents, List<Integer> indexes) {
+        final DeviceEvents events = new DeviceEvents(indexes.size());
+        final Map<String, Integer> heartbeatSaveIndexes = new HashMap<>();
+        Device current = device;
+        for (int eventIdx : indexes) {
+            final DeviceEvent receivedEvent = receivedEvents.get(eventIdx);
+            DeviceEvent event = propertyDeltas.encode(
+                    processDeviceEvent(segments, current, receivedEvent, createEventId(), createReceptionDate(receivedEvent, current.getLastEvent())),
+                    current.getLastEvent()
+            );
+            final Optional<DeviceEvent> heartbeat = toHeartbeat(event, current.getLastEvent());
+            if (heartbeat.isPresent()) {
+                // Consecutive pings folded into the same heartbeat record are written at once
+                event = heartbeat.get();
+                final Integer saveIdx = heartbeatSaveIndexes.get(event.getId());
+                if (saveIdx != null) {
+                    final DeviceEvent pending = events.toSave.get(saveIdx);
+                    events.toSave.set(saveIdx, pending.toBuilder()
+                            .lastReceptionDate(event.getLastReceptionDate())
+                            .count(pending.getCount() + event.getCount())
+                            .build());
+                    events.saveIndexes.add(saveIdx);
+                } else {
+                    heartbeatSaveIndexes.put(event.getId(), events.toSave.size());
+                    events.saveIndexes.add(events.toSave.size());
+                    events.toSave.add(event);
+                }
+            } else {
+                events.saveIndexes.add(events.toSave.size());
+                events.toSave.add(event);
+            }
+            current = current.toBuilder().lastEvent(event).build();
+            events.processed.add(event);
+        }
+        return events;
+    }
 
-        // Prepare base results from what we already have
+    DeviceEvent processDeviceEvent(List<Segment> segments, Device device, DeviceEvent receivedEvent, @Nullable String id, Date receptionDate) {
         final DeviceEvent.DeviceEventBuilder processedEventBuilder = DeviceEvent.builder()
-                .userId(receivedEvent.getUserId())
-                .unitId(receivedEvent.getUnitId())
+                .id(id)
+                .userId(device.getUserId())
+                .unitId(device.getUnitId())
                 .versionId(receivedEvent.getVersionId())
                 .deviceIP(receivedEvent.getDeviceIP())
-                .receptionDate(creationDate)
+                .receptionDate(receptionDate)
                 .additionalProperties(receivedEvent.getAdditionalProperties());
-
-        // Find operator Id and check for changes
-        final String segmentId = getExclusiveSegmentId(device, processedEventBuilder.build()).orElse(null);
-        final DeviceEvent latestEvent = device.getLastEvent();
-        final boolean changed = hasChanged(receivedEvent, segmentId, latestEvent);
-
-        // Complete final event computation and save
-        final DeviceEvent toSave = processedEventBuilder
+        final String segmentId = getExclusiveSegmentId(segments, device, processedEventBuilder.build()).orElse(null);
+        final long fingerprint = EventFingerprint.of(receivedEvent.getVersionId(), receivedEvent.getAdditionalProperties(), segmentId, receivedEvent.getDeviceIP());
+        return processedEventBuilder
                 .segmentId(segmentId)
-                .changed(changed)
+                .fingerprint(fingerprint)
+                .changed(hasChanged(receivedEvent, segmentId, fingerprint, device.getLastEvent()))
                 .build();
-        final DeviceEvent saved = deviceEventRepository.save(toSave);
-        deviceRepository.updateDeviceEvent(receivedEvent.getUserId(), receivedEvent.getUnitId(), saved);
-        return saved;
+    }
+
+    /**
+     * Turns an unchanged event into a heartbeat record when heartbeats are coalesced. The record is identified by the
+     * event which started the current state of the device and by the time bucket of the event, so consecutive unchanged
+     * pings of the same bucket are folded into it.
+     */
+    Optional<DeviceEvent> toHeartbeat(DeviceEvent event, @Nullable DeviceEvent previous) {
+        if (!coalesceHeartbeats || event.isChanged() || previous == null || previous.getId() == null) {
+            return Optional.empty();
+        }
+        String stateId = previous.getId();
+        if (!previous.isChanged() && previous.getCount() != null && stateId.lastIndexOf(HEARTBEAT_ID_SEPARATOR) > 0) {
+            stateId = stateId.substring(0, stateId.lastIndexOf(HEARTBEAT_ID_SEPARATOR));
+        }
+        final long receptionTime = event.getReceptionDate().getTime();
+        final long bucketStart = receptionTime - Math.floorMod(receptionTime, heartbeatBucketMillis);
+        return Optional.of(event.toBuilder()
+                .id(stateId + HEARTBEAT_ID_SEPARATOR + bucketStart)
+                .lastReceptionDate(event.getReceptionDate())
+                .count(1)
+                .build());
     }
 
     Optional<String> getExclusiveSegmentId(Device device, DeviceEvent event) {
-        final Device nextDevice = device.toBuilder()
-                .lastEvent(event)
-                .build();
-        final JsonNode jsonDevice = new ObjectMapper().valueToTree(nextDevice);
-        final SegmentOrder order = segmentOrderRepository.findByUserId(device.getUserId());
-        final List<Segment> segments = segmentRepository.getSegmentsInIds(device.getUserId(), order.getSegmentIds());
-        Optional<Segment> electedSegment = segments.stream().filter(segment -> segment.getQuery().matches(jsonDevice)).findFirst();
-        if (electedSegment.isPresent()) {
-            return Optional.of(electedSegment.get().getId());
+        return getExclusiveSegmentId(getActiveSegments(device.getUserId()), device, event);
+    }
+
+    Optional<String> getExclusiveSegmentId(List<Segment> segments, Device device, DeviceEvent event) {
+        final DeviceView deviceView = DeviceView.of(device, event);
+        for (Segment segment : segments) {
+            if (segment.getQuery().matches(deviceView)) {
+                return Optional.of(segment.getId());
+            }
         }
         return Optional.empty();
     }
 
-    boolean hasChanged(DeviceEvent source, String segmentId, @Nullable DeviceEvent latest) {
-        if (latest != null) {
-            final DeviceEvent toCompare = DeviceEvent.create(
-                    latest.getId(),
-                    source.getUnitId(),
-                    source.getUserId(),
-                    source.getVersionId(),
-                    latest.getReceptionDate(),
-                    source.getAdditionalProperties(),
-                    latest.isChanged(),
-                    segmentId,
-                    source.getDeviceIP()
-            );
-            return !toCompare.equals(latest);
+    List<Segment> getActiveSegments(String userId) {
+        return segmentCatalog.getActiveSegments(userId);
+    }
+
+    boolean hasChanged(DeviceEvent source, String segmentId, long fingerprint, @Nullable DeviceEvent latest) {
+        if (latest != null && latest.getFingerprint() != null) {
+            return fingerprint != latest.getFingerprint();
         }
-        return true;
+        // Events stored before fingerprints were introduced are compared field by field
+        return latest == null
+                || !Objects.equals(source.getUnitId(), latest.getUnitId())
+                || !Objects.equals(source.getUserId(), latest.getUserId())
+                || !Objects.equals(source.getVersionId(), latest.getVersionId())
+                || !Objects.equals(source.getDeviceIP(), latest.getDeviceIP())
+                || !Objects.equals(segmentId, latest.getSegmentId())
+                || !Objects.equals(source.getAdditionalProperties(), latest.getAdditionalProperties());
+    }
+
+    String createEventId() {
+        return new ObjectId().toString();
     }
 
     Date createReceptionDate() {
         return new Date();
     }
 
+    /**
+     * Returns the date at which the event was accepted if it was stamped when queued, or the current date, moved after
+     * the reception date of the previous event of the device so that its events stay ordered.
+     */
+    Date createReceptionDate(DeviceEvent receivedEvent, @Nullable DeviceEvent previous) {
+        final Date acceptanceDate = receivedEvent.getReceptionDate();
+        final Date receptionDate = acceptanceDate != null ? acceptanceDate : createReceptionDate();
+        if (previous != null && previous.getReceptionDate() != null && !receptionDate.after(previous.getReceptionDate())) {
+            return new Date(previous.getReceptionDate().getTime() + 1);
+        }
+        return receptionDate;
+    }
+
     public DeviceConfiguration saveDeviceConfiguration(String userId, String unitId, DeviceConfiguration configuration) {
         final DeviceConfiguration toSave = DeviceConfiguration.builder()
                 .userId(userId)
@@ -147,6 +500,15 @@ public class DeviceManager {
         return saved;
     }
 
+    DeviceConfiguration createDefaultConfiguration(String userId, String unitId) {
+        return DeviceConfiguration.builder()
+                .id(new ObjectId().toString())
+                .userId(userId)
+                .unitId(unitId)
+                .creationDate(createReceptionDate())
+                .build();
+    }
+
     Device getOrCreateDevice(String userId, String unitId) {
         Optional<Device> device = deviceRepository.findByUserIdAndUnitId(userId, unitId);
         return device.orElseGet(() -> {
@@ -168,11 +530,39 @@ public class DeviceManager {
         return deviceRepository.findByUserId(userId, query, pageable);
     }
 
+    public CountedPage<Device> getDevicesByUserId(String userId, Optional<Operator> query, Pageable pageable, CountStrategy count, DeviceFields fields) {
+        return deviceRepository.findByUserId(userId, query, pageable, count, fields);
+    }
+
+    public CursorPage<Device> getDevicesByUserId(String userId, Optional<Operator> query, @Nullable String cursor, int limit, DeviceFields fields) {
+        return deviceRepository.findByUserId(userId, query, cursor, limit, fields);
+    }
+
     public Page<DeviceEvent> getDeviceEventsByUnitId(String userId, String unitId, boolean onlyChanged, Pageable pageable) {
         return deviceEventRepository.findByUserIdAndUnitId(userId, unitId, onlyChanged, pageable);
     }
 
+    public CursorPage<DeviceEvent> getDeviceEventsByUnitId(String userId, String unitId, boolean onlyChanged, @Nullable String cursor, int limit) {
+        return deviceEventRepository.findByUserIdAndUnitId(userId, unitId, onlyChanged, cursor, limit);
+    }
+
     public Device getDeviceByUserIdAndUnitId(String userId, String unitId) {
         return deviceRepository.findByUserIdAndUnitId(userId, unitId).orElseThrow(DeviceNotFoundException::new);
     }
+
+    /**
+     * Events received for a device: the processed events in reception order, the records to write, and for each
+     * processed event the index of the record holding it.
+     */
+    static final class DeviceEvents {
+        private final List<DeviceEvent> processed;
+        private final List<DeviceEvent> toSave;
+        private final List<Integer> saveIndexes;
+
+        private DeviceEvents(int size) {
+            this.processed = new ArrayList<>(size);
+            this.toSave = new ArrayList<>(size);
+            this.saveIndexes = new ArrayList<>(size);
+        }
+    }
 }
@@ -0,0 +1,66 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import io.barracks.deviceservice.repository.EventBuckets;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+/**
+ * Merges the event history into the bucketed layout when the service starts with
+ * {@code --io.barracks.deviceservice.events.buckets.migrate=true}. The cut-over goes in three steps: every instance
+ * first writes both layouts with {@code io.barracks.deviceservice.events.buckets.dualWrite=true}, then a dedicated
+ * instance runs the migration, and finally the bucketed layout is enabled everywhere. The events written before the
+ * first step are copied by the migration, and the ones written after it are already in the buckets.
+ */
+@Component
+public class EventBucketMigration implements ApplicationRunner {
+    private final EventBuckets eventBuckets;
+    private final boolean migrate;
+
+    @Autowired
+    public EventBucketMigration(
+            EventBuckets eventBuckets,
+            @Value("${io.barracks.deviceservice.events.buckets.migrate:false}") boolean migrate) {
+        this.eventBuckets = eventBuckets;
+        this.migrate = migrate;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (migrate) {
+            if (eventBuckets.isEnabled()) {
+                throw new IllegalStateException("Events must be migrated before enabling the bucketed layout");
+            }
+            if (!eventBuckets.isDualWrite()) {
+                throw new IllegalStateException("Events must be written to both layouts while they are migrated");
+            }
+            eventBuckets.migrate();
+        }
+    }
+}
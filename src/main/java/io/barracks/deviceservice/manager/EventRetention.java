@@ -0,0 +1,192 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import com.google.common.util.concurrent.RateLimiter;
+import io.barracks.deviceservice.model.CursorPage;
+import io.barracks.deviceservice.model.RetentionPolicy;
+import io.barracks.deviceservice.repository.DeviceEventRepository;
+import io.barracks.deviceservice.repository.RetentionPolicyRepository;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purges the event history of the users according to their {@link RetentionPolicy}. The purge runs on the instance
+ * holding its lease, deleting events in small rate limited batches so that it never competes with ingestion for the
+ * primary, and the deleted events, the reclaimed space and the purge throughput of each run are published as gauges.
+ */
+@Service
+public class EventRetention {
+    private static final Logger logger = LoggerFactory.getLogger(EventRetention.class);
+    private static final String PURGE_LEASE = "events.retention.purge";
+
+    private final DeviceEventRepository deviceEventRepository;
+    private final RetentionPolicyRepository retentionPolicyRepository;
+    private final GaugeService gaugeService;
+    private final Leases leases;
+    private final boolean enabled;
+    private final int defaultUnchangedEventsDays;
+    private final int defaultChangedEventsDays;
+    private final int batchSize;
+    private final RateLimiter rateLimiter;
+
+    @Autowired
+    public EventRetention(
+            DeviceEventRepository deviceEventRepository,
+            RetentionPolicyRepository retentionPolicyRepository,
+            GaugeService gaugeService,
+            Leases leases,
+            @Value("${io.barracks.deviceservice.events.retention.enabled:false}") boolean enabled,
+            @Value("${io.barracks.deviceservice.events.retention.unchangedEventsDays:0}") int defaultUnchangedEventsDays,
+            @Value("${io.barracks.deviceservice.events.retention.changedEventsDays:0}") int defaultChangedEventsDays,
+            @Value("${io.barracks.deviceservice.events.retention.batchSize:1000}") int batchSize,
+            @Value("${io.barracks.deviceservice.events.retention.maxDeletesPerSecond:5000}") double maxDeletesPerSecond) {
+        this.deviceEventRepository = deviceEventRepository;
+        this.retentionPolicyRepository = retentionPolicyRepository;
+        this.gaugeService = gaugeService;
+        this.leases = leases;
+        this.enabled = enabled;
+        this.defaultUnchangedEventsDays = defaultUnchangedEventsDays;
+        this.defaultChangedEventsDays = defaultChangedEventsDays;
+        this.batchSize = batchSize;
+        this.rateLimiter = RateLimiter.create(maxDeletesPerSecond);
+    }
+
+    /**
+     * Returns the policy applied to the user, the missing durations being replaced by the defaults.
+     */
+    public RetentionPolicy getPolicy(String userId) {
+        return resolve(userId, retentionPolicyRepository.getPolicy(userId).orElse(null));
+    }
+
+    public RetentionPolicy updatePolicy(String userId, RetentionPolicy policy) {
+        return resolve(userId, retentionPolicyRepository.updatePolicy(userId, policy));
+    }
+
+    /**
+     * Deletes the expired events of every user. When no default duration is configured, only the users with a policy
+     * are visited.
+     */
+    @Scheduled(
+            initialDelayString = "${io.barracks.deviceservice.events.retention.initialDelay:300000}",
+            fixedDelayString = "${io.barracks.deviceservice.events.retention.delay:3600000}"
+    )
+    public void purge() {
+        if (!enabled || !leases.tryAcquire(PURGE_LEASE)) {
+            return;
+        }
+        try {
+            purgeUsers();
+        } finally {
+            leases.release(PURGE_LEASE);
+        }
+    }
+
+    private void purgeUsers() {
+        final long start = System.nanoTime();
+        final Map<String, RetentionPolicy> policies = retentionPolicyRepository.getPolicies();
+        final Collection<String> userIds = defaultUnchangedEventsDays == 0 && defaultChangedEventsDays == 0
+                ? policies.keySet()
+                : deviceEventRepository.getUserIds();
+        final long averageEventSize = deviceEventRepository.getAverageEventSize();
+        long deletedEvents = 0;
+        for (String userId : userIds) {
+            if (!leases.tryAcquire(PURGE_LEASE)) {
+                logger.warn("Lost the lease of the purge, the next run purges the remaining users");
+                break;
+            }
+            final RetentionPolicy policy = resolve(userId, policies.get(userId));
+            try {
+                deletedEvents += purge(userId, false, policy.getUnchangedEventsDays());
+                deletedEvents += purge(userId, true, policy.getChangedEventsDays());
+            } catch (DataAccessException e) {
+                logger.warn("Failed to purge the events of " + userId, e);
+            }
+        }
+        report(new PurgeReport(deletedEvents, deletedEvents * averageEventSize, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    private long purge(String userId, boolean changed, int days) {
+        if (days <= 0) {
+            return 0;
+        }
+        final Date before = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days));
+        long deletedEvents = 0;
+        String cursor = null;
+        do {
+            rateLimiter.acquire(batchSize);
+            final CursorPage<String> deleted = deviceEventRepository.deleteEventsReceivedBefore(userId, changed, before, cursor, batchSize);
+            deletedEvents += deleted.getContent().size();
+            cursor = deleted.getNextCursor();
+        } while (cursor != null);
+        return deletedEvents;
+    }
+
+    private void report(PurgeReport report) {
+        logger.info(String.format("Purged %d expired events in %d ms (%.1f events/s, ~%d bytes reclaimed)",
+                report.getDeletedEvents(), report.getDurationMillis(), report.getEventsPerSecond(), report.getReclaimedBytes()));
+        gaugeService.submit("retention.deletedEvents", report.getDeletedEvents());
+        gaugeService.submit("retention.reclaimedBytes", report.getReclaimedBytes());
+        gaugeService.submit("retention.eventsPerSecond", report.getEventsPerSecond());
+        gaugeService.submit("timer.retention.purge", report.getDurationMillis());
+    }
+
+    private RetentionPolicy resolve(String userId, RetentionPolicy policy) {
+        final RetentionPolicy.RetentionPolicyBuilder builder = policy == null ? RetentionPolicy.builder() : policy.toBuilder();
+        if (policy == null || policy.getUnchangedEventsDays() == null) {
+            builder.unchangedEventsDays(defaultUnchangedEventsDays);
+        }
+        if (policy == null || policy.getChangedEventsDays() == null) {
+            builder.changedEventsDays(defaultChangedEventsDays);
+        }
+        return builder.userId(userId).build();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static final class PurgeReport {
+        private final long deletedEvents;
+        /**
+         * Estimated from the average event size, the storage engine reuses the space of the deleted events.
+         */
+        private final long reclaimedBytes;
+        private final long durationMillis;
+
+        private double getEventsPerSecond() {
+            return durationMillis == 0 ? deletedEvents : deletedEvents * 1000.0 / durationMillis;
+        }
+    }
+}
@@ -27,33 +27,51 @@ package io.barracks.deviceservice.manager;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import io.barracks.deviceservice.manager.exception.FilterNotFoundException;
 import io.barracks.deviceservice.manager.exception.MatchingFilterNotFoundException;
 import io.barracks.deviceservice.manager.exception.NoMatchingFilterFoundException;
+import io.barracks.deviceservice.model.CountStrategy;
+import io.barracks.deviceservice.model.CountedPage;
 import io.barracks.deviceservice.model.DeviceComponentRequest;
 import io.barracks.deviceservice.model.Filter;
+import io.barracks.deviceservice.model.operator.CompiledOperator;
+import io.barracks.deviceservice.model.operator.DeviceView;
 import io.barracks.deviceservice.repository.FilterRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @Service
 public class FilterManager {
     private final FilterRepository filterRepository;
     private final ObjectMapper objectMapper;
+    private final Cache<String, CompiledOperator> compiledQueries;
 
     @Autowired
-    public FilterManager(FilterRepository filterRepository, ObjectMapper objectMapper) {
+    public FilterManager(
+            FilterRepository filterRepository,
+            ObjectMapper objectMapper,
+            @Value("${io.barracks.deviceservice.filters.cache.maxSize:10000}") long maxSize,
+            @Value("${io.barracks.deviceservice.filters.cache.ttl:30}") long ttl) {
         this.filterRepository = filterRepository;
         this.objectMapper = objectMapper;
+        this.compiledQueries = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(ttl, TimeUnit.SECONDS)
+                .build();
     }
 
     public Filter createFilter(String userId, Filter filter) {
         final Filter toSave = filter.toBuilder().userId(userId).build();
+        compiledQueries.invalidate(getKey(userId, filter.getName()));
         return filterRepository.createFilter(toSave);
     }
 
@@ -61,24 +79,47 @@ public class FilterManager {
         return filterRepository.getFiltersByUserId(userId, pageable);
     }
 
+    public CountedPage<Filter> getFiltersByUserId(String userId, Pageable pageable, CountStrategy count) {
+        return filterRepository.getFiltersByUserId(userId, pageable, count);
+    }
+
     public Filter getFilterByUserIdAndName(String userId, String name) {
         return filterRepository.getFilterByUserIdAndName(userId, name).orElseThrow(() -> new FilterNotFoundException(userId, name));
     }
 
     public List<Filter> findMatchingFilters(List<String> names, DeviceComponentRequest event) {
-        final JsonNode deviceJson = getDeviceJson(event);
+        final DeviceView device = getDeviceView(event);
         return names.stream()
                 .map(filterName -> filterRepository.getFilterByUserIdAndName(event.getUserId(), filterName).orElseThrow(() -> new MatchingFilterNotFoundException(event.getUserId(), filterName)))
-                .filter(filter -> filter.getQuery().matches(deviceJson))
+                .filter(filter -> getCompiledQuery(filter).matches(device))
                 .collect(Collectors.toList());
     }
 
     public Filter findFirstMatchingFilter(List<String> names, DeviceComponentRequest event) {
-        final JsonNode deviceJson = getDeviceJson(event);
+        final DeviceView device = getDeviceView(event);
         return names.stream()
                 .map(filterName -> filterRepository.getFilterByUserIdAndName(event.getUserId(), filterName).orElseThrow(() -> new MatchingFilterNotFoundException(event.getUserId(), filterName)))
-                .filter(filter -> filter.getQuery().matches(deviceJson))
-                .findFirst().orElseThrow(() -> new NoMatchingFilterFoundException(event.getUserId(), names, deviceJson));
+                .filter(filter -> getCompiledQuery(filter).matches(device))
+                .findFirst().orElseThrow(() -> new NoMatchingFilterFoundException(event.getUserId(), names, getDeviceJson(event)));
+    }
+
+    /**
+     * Compiled queries are kept per filter and reused as long as the stored query is unchanged, so that filters
+     * written through other nodes are compiled again on their next match.
+     */
+    CompiledOperator getCompiledQuery(Filter filter) {
+        final String key = getKey(filter.getUserId(), filter.getName());
+        final CompiledOperator cached = compiledQueries.getIfPresent(key);
+        if (cached != null && cached.getSource().equals(filter.getQuery())) {
+            return cached;
+        }
+        final CompiledOperator compiled = CompiledOperator.compile(filter.getQuery());
+        compiledQueries.put(key, compiled);
+        return compiled;
+    }
+
+    DeviceView getDeviceView(DeviceComponentRequest event) {
+        return DeviceView.of(event, () -> getDeviceJson(event));
     }
 
     JsonNode getDeviceJson(DeviceComponentRequest event) {
@@ -91,5 +132,10 @@ public class FilterManager {
 
     public void deleteFilterByUserIdAndName(String userId, String name) {
         filterRepository.deleteFilterByUserIdAndName(userId, name);
+        compiledQueries.invalidate(getKey(userId, name));
+    }
+
+    private String getKey(String userId, String name) {
+        return userId + ":" + name;
     }
 }
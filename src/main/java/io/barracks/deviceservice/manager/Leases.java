@@ -0,0 +1,80 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import io.barracks.deviceservice.repository.LeaseRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Service;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Elects the instance running a background job with leases stored in the database. A job takes its lease before
+ * running, renews it while running, and stops as soon as a renewal fails: a lease is lost when it is not renewed
+ * within its duration, and another instance may then take it.
+ */
+@Service
+public class Leases {
+    private static final Logger logger = LoggerFactory.getLogger(Leases.class);
+
+    private final LeaseRepository leaseRepository;
+    private final long durationMillis;
+    private final String owner = UUID.randomUUID().toString();
+
+    @Autowired
+    public Leases(
+            LeaseRepository leaseRepository,
+            @Value("${io.barracks.deviceservice.leases.duration:600}") long duration) {
+        this.leaseRepository = leaseRepository;
+        this.durationMillis = TimeUnit.SECONDS.toMillis(duration);
+    }
+
+    /**
+     * Takes or renews the lease of the job for its duration, and returns whether this instance holds it.
+     */
+    public boolean tryAcquire(String name) {
+        try {
+            return leaseRepository.tryAcquire(name, owner, new Date(System.currentTimeMillis() + durationMillis));
+        } catch (DataAccessException e) {
+            logger.warn("Failed to acquire the lease of " + name, e);
+            return false;
+        }
+    }
+
+    public void release(String name) {
+        try {
+            leaseRepository.release(name, owner);
+        } catch (DataAccessException e) {
+            // The lease expires on its own
+            logger.warn("Failed to release the lease of " + name, e);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.QuantileBucket;
+import io.barracks.deviceservice.model.QuantileSketch;
+import io.barracks.deviceservice.model.Segment;
+import io.barracks.deviceservice.repository.QuantileBucketRepository;
+import io.barracks.deviceservice.repository.TrackedKeysRepository;
+import lombok.EqualsAndHashCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Maintains {@link QuantileSketch} sketches of the numeric custom client data keys opted in by a user, for each segment
+ * and time bucket. Each device counts once, with the number of its last event in the sketch of the bucket of that
+ * event: changes are moved between in-memory sketches which are periodically added to the stored ones, and the sketches
+ * of any range of buckets and segments are merged to answer quantiles.
+ */
+@Service
+public class QuantileSketches {
+    private static final Logger logger = LoggerFactory.getLogger(QuantileSketches.class);
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final QuantileBucketRepository quantileBucketRepository;
+    private final TrackedKeysRepository trackedKeysRepository;
+    private final boolean enabled;
+    private final long bucketMillis;
+    private final LoadingCache<String, List<String>> trackedKeys;
+    private Map<SketchKey, QuantileSketch> pendingSketches = new HashMap<>();
+
+    @Autowired
+    public QuantileSketches(
+            QuantileBucketRepository quantileBucketRepository,
+            TrackedKeysRepository trackedKeysRepository,
+            @Value("${io.barracks.deviceservice.stats.quantiles.enabled:false}") boolean enabled,
+            @Value("${io.barracks.deviceservice.stats.quantiles.bucket:3600}") long bucket,
+            @Value("${io.barracks.deviceservice.stats.quantiles.keysTtl:30}") long keysTtl) {
+        this.quantileBucketRepository = quantileBucketRepository;
+        this.trackedKeysRepository = trackedKeysRepository;
+        this.enabled = enabled;
+        this.bucketMillis = TimeUnit.SECONDS.toMillis(bucket);
+        this.trackedKeys = CacheBuilder.newBuilder()
+                .expireAfterWrite(keysTtl, TimeUnit.SECONDS)
+                .build(CacheLoader.from(trackedKeysRepository::getQuantileKeys));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isTracked(String userId, String key) {
+        return enabled && trackedKeys.getUnchecked(userId).contains(key);
+    }
+
+    public List<String> getTrackedKeys(String userId) {
+        return trackedKeysRepository.getQuantileKeys(userId);
+    }
+
+    /**
+     * Replaces the keys tracked for the user. Sketches only cover the events received after a key is tracked.
+     */
+    public List<String> updateTrackedKeys(String userId, List<String> keys) {
+        keys.forEach(TopValues::checkKey);
+        final List<String> updated = trackedKeysRepository.updateQuantileKeys(userId, keys).getQuantileKeys();
+        trackedKeys.invalidate(userId);
+        return updated;
+    }
+
+    /**
+     * Moves the number of each tracked key of the devices from the sketch of the segment and bucket of their previous
+     * last event to the one of their new last event, so that each device counts once with its last value. Devices whose
+     * value, segment and bucket did not change are skipped. Devices that are in no segment are counted in the
+     * {@link Segment#OTHER_ID} segment, and the last reception of a heartbeat record is used.
+     */
+    public void recordLastEvents(String userId, Map<String, DeviceEvent> previousEvents, Map<String, DeviceEvent> lastEvents) {
+        if (!enabled) {
+            return;
+        }
+        final List<String> keys;
+        try {
+            keys = trackedKeys.getUnchecked(userId);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to read the quantile keys of " + userId, e);
+            return;
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            lastEvents.forEach((unitId, event) -> {
+                final DeviceEvent previousEvent = previousEvents.get(unitId);
+                for (String key : keys) {
+                    final Map.Entry<SketchKey, Double> previous = getValue(userId, key, previousEvent);
+                    final Map.Entry<SketchKey, Double> value = getValue(userId, key, event);
+                    if (Objects.equals(previous, value)) {
+                        continue;
+                    }
+                    if (previous != null) {
+                        pendingSketches.computeIfAbsent(previous.getKey(), sketchKey -> QuantileSketch.empty()).remove(previous.getValue());
+                    }
+                    if (value != null) {
+                        pendingSketches.computeIfAbsent(value.getKey(), sketchKey -> QuantileSketch.empty()).add(value.getValue());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the number of the key in the event with the key of the sketch counting it, or null if there is none.
+     */
+    @Nullable
+    private Map.Entry<SketchKey, Double> getValue(String userId, String key, @Nullable DeviceEvent event) {
+        if (event == null) {
+            return null;
+        }
+        final Date receptionDate = event.getLastReceptionDate() != null ? event.getLastReceptionDate() : event.getReceptionDate();
+        final Object value = TopValues.getProperty(event, key);
+        if (receptionDate == null || !(value instanceof Number)) {
+            return null;
+        }
+        final String segmentId = event.getSegmentId() == null ? Segment.OTHER_ID : event.getSegmentId();
+        return new AbstractMap.SimpleImmutableEntry<>(
+                new SketchKey(userId, key, segmentId, getBucket(receptionDate.getTime())),
+                ((Number) value).doubleValue()
+        );
+    }
+
+    /**
+     * Adds the pending sketches to the stored ones. Sketches rejected by the database are kept for the next flush, but
+     * the whole flush is dropped if the write itself fails: the increments are not idempotent and some of them may have
+     * been applied.
+     */
+    @PreDestroy
+    @Scheduled(fixedDelayString = "${io.barracks.deviceservice.stats.quantiles.flushDelay:10000}")
+    public void flush() {
+        final Map<SketchKey, QuantileSketch> flushed;
+        synchronized (this) {
+            flushed = pendingSketches;
+            pendingSketches = new HashMap<>();
+        }
+        if (flushed.isEmpty()) {
+            return;
+        }
+        final List<SketchKey> keys = new ArrayList<>(flushed.keySet());
+        final Map<Integer, String> failures;
+        try {
+            failures = quantileBucketRepository.incrementBuckets(keys.stream()
+                    .map(key -> QuantileBucket.from(key.userId, key.key, key.segmentId, new Date(key.bucket), flushed.get(key)))
+                    .collect(Collectors.toList()));
+        } catch (DataAccessException e) {
+            logger.warn("Failed to store " + flushed.size() + " quantile sketches, dropping them", e);
+            return;
+        }
+        if (!failures.isEmpty()) {
+            logger.warn("Failed to store " + failures.size() + " quantile sketches, retrying on next flush: " + failures.values().iterator().next());
+            synchronized (this) {
+                failures.keySet().forEach(index -> {
+                    final SketchKey key = keys.get(index);
+                    pendingSketches.computeIfAbsent(key, retryKey -> QuantileSketch.empty()).merge(flushed.get(key));
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the median and the 90th and 99th percentiles of the last numbers of the key of the devices whose last
+     * event was received during the buckets overlapping the range, for one segment or for all the devices of the user.
+     * The total is the count of devices.
+     */
+    public DataSet getQuantiles(String userId, String key, @Nullable String segmentId, OffsetDateTime start, OffsetDateTime end) {
+        final Long from = start.equals(OffsetDateTime.MIN) ? null : getBucket(start.toInstant().toEpochMilli());
+        final Long to = end.equals(OffsetDateTime.MAX) ? null : getBucket(end.toInstant().toEpochMilli());
+        final QuantileSketch merged = quantileBucketRepository.findMergedSketch(userId, key, segmentId, toDate(from), toDate(to));
+        synchronized (this) {
+            pendingSketches.forEach((sketchKey, sketch) -> {
+                if (sketchKey.userId.equals(userId) && sketchKey.key.equals(key)
+                        && (segmentId == null || sketchKey.segmentId.equals(segmentId))
+                        && (from == null || sketchKey.bucket >= from) && (to == null || sketchKey.bucket <= to)) {
+                    merged.merge(sketch);
+                }
+            });
+        }
+        final DataSet.Builder builder = DataSet.builder();
+        if (merged.getCount() > 0) {
+            for (double quantile : QUANTILES) {
+                builder.value("p" + BigDecimal.valueOf(quantile * 100).stripTrailingZeros().toPlainString(), BigDecimal.valueOf(merged.getQuantile(quantile)));
+            }
+        }
+        return builder
+                .total(BigDecimal.valueOf(merged.getCount()))
+                .error(QuantileSketch.RELATIVE_ACCURACY)
+                .build();
+    }
+
+    private long getBucket(long time) {
+        return Math.floorDiv(time, bucketMillis) * bucketMillis;
+    }
+
+    @Nullable
+    private static Date toDate(@Nullable Long time) {
+        return time == null ? null : new Date(time);
+    }
+
+    @EqualsAndHashCode
+    private static final class SketchKey {
+        private final String userId;
+        private final String key;
+        private final String segmentId;
+        private final long bucket;
+
+        private SketchKey(String userId, String key, String segmentId, long bucket) {
+            this.userId = userId;
+            this.key = key;
+            this.segmentId = segmentId;
+            this.bucket = bucket;
+        }
+    }
+}
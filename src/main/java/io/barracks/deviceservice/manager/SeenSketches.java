@@ -0,0 +1,159 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.HyperLogLog;
+import io.barracks.deviceservice.repository.SeenSketchRepository;
+import lombok.EqualsAndHashCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the number of distinct devices of a user seen during a period from {@link HyperLogLog} sketches of the
+ * units seen in each time bucket. Pings are added to in-memory sketches which are periodically merged into the stored
+ * ones, so each bucket costs one write per flush whatever the ping volume.
+ */
+@Service
+public class SeenSketches {
+    private static final Logger logger = LoggerFactory.getLogger(SeenSketches.class);
+
+    private final SeenSketchRepository seenSketchRepository;
+    private final boolean enabled;
+    private final long bucketMillis;
+    private Map<SketchKey, HyperLogLog> pendingSketches = new HashMap<>();
+
+    @Autowired
+    public SeenSketches(
+            SeenSketchRepository seenSketchRepository,
+            @Value("${io.barracks.deviceservice.stats.sketches.enabled:false}") boolean enabled,
+            @Value("${io.barracks.deviceservice.stats.sketches.bucket:3600}") long bucket) {
+        this.seenSketchRepository = seenSketchRepository;
+        this.enabled = enabled;
+        this.bucketMillis = TimeUnit.SECONDS.toMillis(bucket);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds the units of the events to the sketches of the buckets they were received in, the last reception of a
+     * heartbeat record being used.
+     */
+    public void recordSeen(String userId, Collection<DeviceEvent> events) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            for (DeviceEvent event : events) {
+                final Date receptionDate = event.getLastReceptionDate() != null ? event.getLastReceptionDate() : event.getReceptionDate();
+                if (receptionDate != null) {
+                    pendingSketches.computeIfAbsent(new SketchKey(userId, getBucket(receptionDate.getTime())), key -> HyperLogLog.empty())
+                            .add(event.getUnitId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the pending sketches to the database. Sketches failing to be written are kept for the next flush.
+     */
+    @PreDestroy
+    @Scheduled(fixedDelayString = "${io.barracks.deviceservice.stats.sketches.flushDelay:10000}")
+    public void flush() {
+        final Map<SketchKey, HyperLogLog> flushed;
+        synchronized (this) {
+            flushed = pendingSketches;
+            pendingSketches = new HashMap<>();
+        }
+        flushed.forEach((key, sketch) -> {
+            try {
+                seenSketchRepository.mergeSketch(key.userId, new Date(key.bucket), sketch);
+            } catch (DataAccessException e) {
+                logger.warn("Failed to store the seen devices sketch of " + key.userId, e);
+                synchronized (this) {
+                    pendingSketches.computeIfAbsent(key, retryKey -> HyperLogLog.empty()).merge(sketch);
+                }
+            }
+        });
+    }
+
+    /**
+     * Estimates the devices seen during the buckets overlapping the range, the range being widened to whole buckets.
+     */
+    public DataSet getSeenDeviceCount(String userId, OffsetDateTime start, OffsetDateTime end) {
+        final Long from = start.equals(OffsetDateTime.MIN) ? null : getBucket(start.toInstant().toEpochMilli());
+        final Long to = end.equals(OffsetDateTime.MAX) ? null : getBucket(end.toInstant().toEpochMilli());
+        final HyperLogLog merged = seenSketchRepository.findMergedSketch(userId, toDate(from), toDate(to));
+        synchronized (this) {
+            pendingSketches.forEach((key, sketch) -> {
+                if (key.userId.equals(userId) && (from == null || key.bucket >= from) && (to == null || key.bucket <= to)) {
+                    merged.merge(sketch);
+                }
+            });
+        }
+        return DataSet.builder()
+                .total(BigDecimal.valueOf(merged.estimate()))
+                .error(HyperLogLog.getRelativeError())
+                .build();
+    }
+
+    private long getBucket(long time) {
+        return Math.floorDiv(time, bucketMillis) * bucketMillis;
+    }
+
+    @Nullable
+    private static Date toDate(@Nullable Long time) {
+        return time == null ? null : new Date(time);
+    }
+
+    @EqualsAndHashCode
+    private static final class SketchKey {
+        private final String userId;
+        private final long bucket;
+
+        private SketchKey(String userId, long bucket) {
+            this.userId = userId;
+            this.bucket = bucket;
+        }
+    }
+}
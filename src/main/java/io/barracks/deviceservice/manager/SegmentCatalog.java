@@ -0,0 +1,85 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import io.barracks.deviceservice.model.Segment;
+import io.barracks.deviceservice.model.operator.CompiledOperator;
+import io.barracks.deviceservice.repository.SegmentOrderRepository;
+import io.barracks.deviceservice.repository.SegmentRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Per-user cache of the active segments, in evaluation order and with their queries compiled.
+ * Entries are invalidated on every segment write made through this node and expire after a short TTL
+ * so that writes made through other nodes are eventually picked up.
+ */
+@Service
+public class SegmentCatalog {
+    private final SegmentRepository segmentRepository;
+    private final SegmentOrderRepository segmentOrderRepository;
+    private final LoadingCache<String, List<Segment>> activeSegments;
+
+    @Autowired
+    public SegmentCatalog(
+            SegmentRepository segmentRepository,
+            SegmentOrderRepository segmentOrderRepository,
+            @Value("${io.barracks.deviceservice.segments.cache.maxSize:10000}") long maxSize,
+            @Value("${io.barracks.deviceservice.segments.cache.ttl:30}") long ttl) {
+        this.segmentRepository = segmentRepository;
+        this.segmentOrderRepository = segmentOrderRepository;
+        this.activeSegments = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                .build(CacheLoader.from(this::loadActiveSegments));
+    }
+
+    public List<Segment> getActiveSegments(String userId) {
+        return activeSegments.getUnchecked(userId);
+    }
+
+    public void invalidate(String userId) {
+        activeSegments.invalidate(userId);
+    }
+
+    List<Segment> loadActiveSegments(String userId) {
+        final List<String> segmentIds = segmentOrderRepository.getSegmentIds(userId);
+        if (segmentIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(segmentRepository.getSegmentsInIds(userId, segmentIds).stream()
+                .map(segment -> segment.getQuery() == null ? segment : segment.toBuilder().query(CompiledOperator.compile(segment.getQuery())).build())
+                .collect(Collectors.toList()));
+    }
+}
@@ -26,7 +26,11 @@ package io.barracks.deviceservice.manager;
 
 import io.barracks.deviceservice.manager.exception.InvalidSegmentOrderException;
 import io.barracks.deviceservice.manager.exception.SegmentNotFoundException;
+import io.barracks.deviceservice.model.CountStrategy;
+import io.barracks.deviceservice.model.CountedPage;
+import io.barracks.deviceservice.model.CursorPage;
 import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceFields;
 import io.barracks.deviceservice.model.Segment;
 import io.barracks.deviceservice.model.SegmentOrder;
 import io.barracks.deviceservice.repository.DeviceRepository;
@@ -37,6 +41,7 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Nullable;
 import java.util.List;
 import java.util.Optional;
 
@@ -45,16 +50,20 @@ public class SegmentManager {
     private final SegmentRepository segmentRepository;
     private final DeviceRepository deviceRepository;
     private final SegmentOrderRepository segmentOrderRepository;
+    private final SegmentCatalog segmentCatalog;
 
     @Autowired
-    public SegmentManager(SegmentRepository segmentRepository, DeviceRepository deviceRepository, SegmentOrderRepository segmentOrderRepository) {
+    public SegmentManager(SegmentRepository segmentRepository, DeviceRepository deviceRepository, SegmentOrderRepository segmentOrderRepository, SegmentCatalog segmentCatalog) {
         this.segmentRepository = segmentRepository;
         this.deviceRepository = deviceRepository;
         this.segmentOrderRepository = segmentOrderRepository;
+        this.segmentCatalog = segmentCatalog;
     }
 
     public Segment createSegment(Segment segment) {
-        return segmentRepository.insert(segment);
+        final Segment created = segmentRepository.insert(segment);
+        segmentCatalog.invalidate(segment.getUserId());
+        return created;
     }
 
     public Segment getSegmentById(String id) {
@@ -66,18 +75,38 @@ public class SegmentManager {
                 .id(id)
                 .updated(null)
                 .build();
-        return segmentRepository.save(toSave);
+        final Segment saved = segmentRepository.save(toSave);
+        segmentCatalog.invalidate(segment.getUserId());
+        return saved;
     }
 
     public Page<Device> getDevicesBySegmentId(String segmentId, Pageable pageable) {
         return deviceRepository.findBySegmentId(segmentId, pageable);
     }
 
+    public CountedPage<Device> getDevicesBySegmentId(String segmentId, Pageable pageable, CountStrategy count, DeviceFields fields) {
+        return deviceRepository.findBySegmentId(segmentId, pageable, count, fields);
+    }
+
+    public CursorPage<Device> getDevicesBySegmentId(String segmentId, @Nullable String cursor, int limit, DeviceFields fields) {
+        return deviceRepository.findBySegmentId(segmentId, cursor, limit, fields);
+    }
+
     public Page<Device> getOtherDevicesForUser(String userId, Pageable pageable) {
         SegmentOrder order = segmentOrderRepository.findByUserId(userId);
         return deviceRepository.findDevicesNotIn(userId, order.getSegmentIds(), pageable);
     }
 
+    public CountedPage<Device> getOtherDevicesForUser(String userId, Pageable pageable, CountStrategy count, DeviceFields fields) {
+        SegmentOrder order = segmentOrderRepository.findByUserId(userId);
+        return deviceRepository.findDevicesNotIn(userId, order.getSegmentIds(), pageable, count, fields);
+    }
+
+    public CursorPage<Device> getOtherDevicesForUser(String userId, @Nullable String cursor, int limit, DeviceFields fields) {
+        SegmentOrder order = segmentOrderRepository.findByUserId(userId);
+        return deviceRepository.findDevicesNotIn(userId, order.getSegmentIds(), cursor, limit, fields);
+    }
+
     public List<Segment> getActiveSegments(String userId) {
         return segmentRepository.getSegmentsInIds(userId, segmentOrderRepository.findByUserId(userId).getSegmentIds());
     }
@@ -91,15 +120,35 @@ public class SegmentManager {
         if (segments.size() != order.size()) {
             throw new InvalidSegmentOrderException("Invalid segments order '" + order + "' for user '" + userId + "'");
         }
-        return segmentOrderRepository.updateOrder(userId, order).getSegmentIds();
+        final List<String> segmentIds = segmentOrderRepository.updateOrder(userId, order).getSegmentIds();
+        segmentCatalog.invalidate(userId);
+        return segmentIds;
     }
 
     public Page<Device> getDevicesBySegmentIdAndVersionId(String segmentId, String versionId, Pageable pageable) {
         return deviceRepository.findBySegmentIdAndVersionId(segmentId, versionId, pageable);
     }
 
+    public CountedPage<Device> getDevicesBySegmentIdAndVersionId(String segmentId, String versionId, Pageable pageable, CountStrategy count, DeviceFields fields) {
+        return deviceRepository.findBySegmentIdAndVersionId(segmentId, versionId, pageable, count, fields);
+    }
+
+    public CursorPage<Device> getDevicesBySegmentIdAndVersionId(String segmentId, String versionId, @Nullable String cursor, int limit, DeviceFields fields) {
+        return deviceRepository.findBySegmentIdAndVersionId(segmentId, versionId, cursor, limit, fields);
+    }
+
     public Page<Device> getOtherDevicesForUserAndVersionId(String userId, String versionId, Pageable pageable) {
         SegmentOrder order = segmentOrderRepository.findByUserId(userId);
         return deviceRepository.findForUserIdAndVersionIdAndNotSegmentIds(userId, versionId, order.getSegmentIds(), pageable);
     }
+
+    public CountedPage<Device> getOtherDevicesForUserAndVersionId(String userId, String versionId, Pageable pageable, CountStrategy count, DeviceFields fields) {
+        SegmentOrder order = segmentOrderRepository.findByUserId(userId);
+        return deviceRepository.findForUserIdAndVersionIdAndNotSegmentIds(userId, versionId, order.getSegmentIds(), pageable, count, fields);
+    }
+
+    public CursorPage<Device> getOtherDevicesForUserAndVersionId(String userId, String versionId, @Nullable String cursor, int limit, DeviceFields fields) {
+        SegmentOrder order = segmentOrderRepository.findByUserId(userId);
+        return deviceRepository.findForUserIdAndVersionIdAndNotSegmentIds(userId, versionId, order.getSegmentIds(), cursor, limit, fields);
+    }
 }
@@ -24,38 +24,309 @@
 
 package io.barracks.deviceservice.manager;
 
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.barracks.deviceservice.manager.exception.InvalidStatsKeyException;
 import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DataSetMatrix;
 import io.barracks.deviceservice.repository.DeviceEventRepository;
 import io.barracks.deviceservice.repository.DeviceRepository;
+import io.barracks.deviceservice.repository.SegmentOrderRepository;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Computes the statistics of the users' devices. Results are cached per user and query for a few seconds: concurrent
+ * identical requests wait for a single computation, and results older than the refresh delay are still served while
+ * being recomputed in the background. Each user has a cache of its own with a bounded number of results, so that a user
+ * requesting many distinct statistics only evicts its own results, and date ranges are widened to whole refresh delays
+ * so that ranges relative to the current time share their results.
+ */
 @Service
-public class StatsManager {
+public class StatsManager implements PublicMetrics {
     private final DeviceRepository deviceRepository;
     private final DeviceEventRepository deviceEventRepository;
+    private final SegmentOrderRepository segmentOrderRepository;
+    private final StatsRollups statsRollups;
+    private final SeenSketches seenSketches;
+    private final TopValues topValues;
+    private final QuantileSketches quantileSketches;
+    private final GaugeService gaugeService;
+    private final ExecutorService refreshWorkers;
+    private final long refreshMillis;
+    private final LoadingCache<String, LoadingCache<StatsQuery, Object>> results;
+    private CacheStats removedStats = new CacheStats(0, 0, 0, 0, 0, 0);
 
     @Autowired
-    public StatsManager(DeviceRepository deviceRepository, DeviceEventRepository deviceEventRepository) {
+    public StatsManager(
+            DeviceRepository deviceRepository,
+            DeviceEventRepository deviceEventRepository,
+            SegmentOrderRepository segmentOrderRepository,
+            StatsRollups statsRollups,
+            SeenSketches seenSketches,
+            TopValues topValues,
+            QuantileSketches quantileSketches,
+            GaugeService gaugeService,
+            @Value("${io.barracks.deviceservice.stats.cache.ttl:60}") long ttl,
+            @Value("${io.barracks.deviceservice.stats.cache.refresh:15}") long refresh,
+            @Value("${io.barracks.deviceservice.stats.cache.maxSize:10000}") long maxSize,
+            @Value("${io.barracks.deviceservice.stats.cache.maxSizePerUser:100}") long maxSizePerUser,
+            @Value("${io.barracks.deviceservice.stats.cache.refreshWorkers:2}") int refreshWorkers) {
+        this(deviceRepository, deviceEventRepository, segmentOrderRepository, statsRollups, seenSketches, topValues, quantileSketches, gaugeService, ttl, refresh, maxSize, maxSizePerUser, refreshWorkers, Ticker.systemTicker());
+    }
+
+    StatsManager(
+            DeviceRepository deviceRepository,
+            DeviceEventRepository deviceEventRepository,
+            SegmentOrderRepository segmentOrderRepository,
+            StatsRollups statsRollups,
+            SeenSketches seenSketches,
+            TopValues topValues,
+            QuantileSketches quantileSketches,
+            GaugeService gaugeService,
+            long ttl,
+            long refresh,
+            long maxSize,
+            long maxSizePerUser,
+            int refreshWorkers,
+            Ticker ticker) {
         this.deviceRepository = deviceRepository;
         this.deviceEventRepository = deviceEventRepository;
+        this.segmentOrderRepository = segmentOrderRepository;
+        this.statsRollups = statsRollups;
+        this.seenSketches = seenSketches;
+        this.topValues = topValues;
+        this.quantileSketches = quantileSketches;
+        this.gaugeService = gaugeService;
+        this.refreshWorkers = Executors.newFixedThreadPool(refreshWorkers);
+        this.refreshMillis = Math.max(1, TimeUnit.SECONDS.toMillis(refresh));
+        final CacheLoader<StatsQuery, Object> loader = CacheLoader.asyncReloading(CacheLoader.from(this::compute), this.refreshWorkers);
+        // The results of a user all expire within the ttl, so its cache is dropped once unused for as long
+        this.results = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .maximumSize(Math.max(1, maxSize / maxSizePerUser))
+                .expireAfterAccess(ttl, TimeUnit.SECONDS)
+                .removalListener((RemovalListener<String, LoadingCache<StatsQuery, Object>>) removal -> addRemovedStats(removal.getValue().stats()))
+                .build(new CacheLoader<String, LoadingCache<StatsQuery, Object>>() {
+                    @Override
+                    public LoadingCache<StatsQuery, Object> load(String userId) {
+                        return CacheBuilder.newBuilder()
+                                .ticker(ticker)
+                                .maximumSize(maxSizePerUser)
+                                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                                .refreshAfterWrite(refresh, TimeUnit.SECONDS)
+                                .recordStats()
+                                .build(loader);
+                    }
+                });
+    }
+
+    @PreDestroy
+    public void stop() {
+        refreshWorkers.shutdownNow();
     }
 
     public DataSet getDeviceCountPerVersionId(String userId) {
-        return deviceRepository.getDevicesCountPerVersionId(userId);
+        return get(new StatsQuery(StatsQuery.Kind.PER_VERSION_ID, userId, null, null, null, null, null));
     }
 
     public DataSet getLastSeenDeviceCount(String userId, OffsetDateTime start, OffsetDateTime end) {
-        return deviceRepository.getLastSeenDeviceCount(userId, start, end);
+        return get(new StatsQuery(StatsQuery.Kind.LAST_SEEN, userId, roundDown(start), roundUp(end), null, null, null));
     }
 
     public DataSet getSeenDeviceCount(String userId, OffsetDateTime start, OffsetDateTime end) {
-        return deviceEventRepository.getSeenDeviceCount(userId, start, end);
+        return get(new StatsQuery(StatsQuery.Kind.SEEN, userId, roundDown(start), roundUp(end), null, null, null));
+    }
+
+    public DataSet getExactSeenDeviceCount(String userId, OffsetDateTime start, OffsetDateTime end) {
+        return get(new StatsQuery(StatsQuery.Kind.EXACT_SEEN, userId, roundDown(start), roundUp(end), null, null, null));
     }
 
     public DataSet getDeviceCountPerUserId() {
-        return deviceRepository.getDeviceCountPerUserId();
+        return get(new StatsQuery(StatsQuery.Kind.PER_USER_ID, null, null, null, null, null, null));
+    }
+
+    public DataSetMatrix getDeviceCountPerSegmentIdAndVersionId(String userId) {
+        return get(new StatsQuery(StatsQuery.Kind.PER_SEGMENT_ID_AND_VERSION_ID, userId, null, null, null, null, null));
+    }
+
+    /**
+     * Counts the devices of the user for the most frequent values of a custom client data key. Keys tracked for the
+     * user are read from their summary, the others are aggregated from the devices.
+     */
+    public DataSet getTopValues(String userId, String key, int limit) {
+        TopValues.checkKey(key);
+        return get(new StatsQuery(StatsQuery.Kind.TOP_VALUES, userId, null, null, key, null, limit));
+    }
+
+    public List<String> getTrackedKeys(String userId) {
+        return topValues.getTrackedKeys(userId);
+    }
+
+    public List<String> updateTrackedKeys(String userId, List<String> keys) {
+        return topValues.updateTrackedKeys(userId, keys);
+    }
+
+    /**
+     * Estimates the median and the 90th and 99th percentiles of a numeric custom client data key tracked for the user,
+     * for the devices of a segment or all of them.
+     */
+    public DataSet getQuantiles(String userId, String key, @Nullable String segmentId, OffsetDateTime start, OffsetDateTime end) {
+        TopValues.checkKey(key);
+        if (!quantileSketches.isTracked(userId, key)) {
+            throw new InvalidStatsKeyException("Quantiles are not tracked for the custom client data key '" + key + "'");
+        }
+        return get(new StatsQuery(StatsQuery.Kind.QUANTILES, userId, roundDown(start), roundUp(end), key, segmentId, null));
+    }
+
+    public List<String> getQuantileKeys(String userId) {
+        return quantileSketches.getTrackedKeys(userId);
+    }
+
+    public List<String> updateQuantileKeys(String userId, List<String> keys) {
+        return quantileSketches.updateTrackedKeys(userId, keys);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        CacheStats stats;
+        synchronized (this) {
+            stats = removedStats;
+        }
+        long size = 0;
+        for (LoadingCache<StatsQuery, Object> userResults : results.asMap().values()) {
+            stats = stats.plus(userResults.stats());
+            size += userResults.size();
+        }
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("stats.cache.size", size));
+        metrics.add(new Metric<>("stats.cache.users", results.size()));
+        metrics.add(new Metric<>("stats.cache.hits", stats.hitCount()));
+        metrics.add(new Metric<>("stats.cache.misses", stats.missCount()));
+        metrics.add(new Metric<>("stats.cache.loads", stats.loadCount()));
+        metrics.add(new Metric<>("stats.cache.loadFailures", stats.loadExceptionCount()));
+        metrics.add(new Metric<>("stats.cache.evictions", stats.evictionCount()));
+        metrics.add(new Metric<>("stats.cache.averageLoadTime", TimeUnit.NANOSECONDS.toMillis((long) stats.averageLoadPenalty())));
+        return metrics;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(StatsQuery query) {
+        try {
+            // Each kind of query always loads the same type of result
+            return (T) results.getUnchecked(Strings.nullToEmpty(query.userId)).getUnchecked(query);
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private synchronized void addRemovedStats(CacheStats stats) {
+        removedStats = removedStats.plus(stats);
+    }
+
+    private OffsetDateTime roundDown(OffsetDateTime date) {
+        if (date.equals(OffsetDateTime.MIN) || date.equals(OffsetDateTime.MAX)) {
+            return date;
+        }
+        final long millis = date.toInstant().toEpochMilli();
+        return OffsetDateTime.ofInstant(Instant.ofEpochMilli(Math.floorDiv(millis, refreshMillis) * refreshMillis), ZoneOffset.UTC);
+    }
+
+    private OffsetDateTime roundUp(OffsetDateTime date) {
+        if (date.equals(OffsetDateTime.MIN) || date.equals(OffsetDateTime.MAX)) {
+            return date;
+        }
+        final long millis = date.toInstant().toEpochMilli();
+        return OffsetDateTime.ofInstant(Instant.ofEpochMilli(-Math.floorDiv(-millis, refreshMillis) * refreshMillis), ZoneOffset.UTC);
+    }
+
+    private Object compute(StatsQuery query) {
+        final long start = System.nanoTime();
+        try {
+            switch (query.kind) {
+                case PER_VERSION_ID:
+                    if (statsRollups.isEnabled()) {
+                        return statsRollups.getDeviceCountPerVersionId(query.userId);
+                    }
+                    return deviceRepository.getDevicesCountPerVersionId(query.userId);
+                case LAST_SEEN:
+                    if (statsRollups.isEnabled()) {
+                        return statsRollups.getLastSeenDeviceCount(query.userId, query.start, query.end);
+                    }
+                    return deviceRepository.getLastSeenDeviceCount(query.userId, query.start, query.end);
+                case SEEN:
+                    if (seenSketches.isEnabled()) {
+                        return seenSketches.getSeenDeviceCount(query.userId, query.start, query.end);
+                    }
+                    return deviceEventRepository.getSeenDeviceCount(query.userId, query.start, query.end);
+                case EXACT_SEEN:
+                    return deviceEventRepository.getSeenDeviceCount(query.userId, query.start, query.end);
+                case PER_USER_ID:
+                    return deviceRepository.getDeviceCountPerUserId();
+                case PER_SEGMENT_ID_AND_VERSION_ID:
+                    return deviceRepository.getDeviceCountPerSegmentIdAndVersionId(query.userId, segmentOrderRepository.getSegmentIds(query.userId));
+                case TOP_VALUES:
+                    if (topValues.isTracked(query.userId, query.key)) {
+                        return topValues.getTopValues(query.userId, query.key, query.limit);
+                    }
+                    return deviceRepository.getDeviceCountPerValue(query.userId, query.key, query.limit);
+                case QUANTILES:
+                    return quantileSketches.getQuantiles(query.userId, query.key, query.segmentId, query.start, query.end);
+                default:
+                    throw new IllegalArgumentException("Unknown statistic " + query.kind);
+            }
+        } finally {
+            gaugeService.submit("timer.stats." + query.kind.name().toLowerCase(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    @ToString
+    private static class StatsQuery {
+        private final Kind kind;
+        private final String userId;
+        private final OffsetDateTime start;
+        private final OffsetDateTime end;
+        private final String key;
+        private final String segmentId;
+        private final Integer limit;
+
+        private enum Kind {
+            PER_VERSION_ID,
+            LAST_SEEN,
+            SEEN,
+            EXACT_SEEN,
+            PER_USER_ID,
+            PER_SEGMENT_ID_AND_VERSION_ID,
+            TOP_VALUES,
+            QUANTILES
+        }
     }
 }
@@ -0,0 +1,316 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceFields;
+import io.barracks.deviceservice.model.StatsRollup;
+import io.barracks.deviceservice.model.StatsRollupGenerations;
+import io.barracks.deviceservice.repository.DeviceEventRepository;
+import io.barracks.deviceservice.repository.DeviceRepository;
+import io.barracks.deviceservice.repository.StatsRollupRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maintains per-user device counts while events are ingested, so that the statistics are read from a handful of
+ * rollups instead of scanning the devices. The rollups are rebuilt from the devices periodically to catch up with
+ * concurrent updates of the same device or with failed writes.
+ */
+@Service
+public class StatsRollups {
+    private static final Logger logger = LoggerFactory.getLogger(StatsRollups.class);
+    private static final DeviceFields RECONCILIATION_FIELDS = DeviceFields.parse("userId,unitId,lastEvent.versionId,lastEvent.receptionDate");
+    private static final String RECONCILIATION_LEASE = "statsRollups.reconciliation";
+
+    private final StatsRollupRepository statsRollupRepository;
+    private final DeviceRepository deviceRepository;
+    private final DeviceEventRepository deviceEventRepository;
+    private final Leases leases;
+    private final boolean enabled;
+    private final long bucketMillis;
+    private final long generationsTtlMillis;
+    private final Supplier<StatsRollupGenerations> generations;
+
+    @Autowired
+    public StatsRollups(
+            StatsRollupRepository statsRollupRepository,
+            DeviceRepository deviceRepository,
+            DeviceEventRepository deviceEventRepository,
+            Leases leases,
+            @Value("${io.barracks.deviceservice.stats.rollups.enabled:false}") boolean enabled,
+            @Value("${io.barracks.deviceservice.stats.rollups.bucket:3600}") long bucket,
+            @Value("${io.barracks.deviceservice.stats.rollups.generationsTtl:5}") long generationsTtl) {
+        this.statsRollupRepository = statsRollupRepository;
+        this.deviceRepository = deviceRepository;
+        this.deviceEventRepository = deviceEventRepository;
+        this.leases = leases;
+        this.enabled = enabled;
+        this.bucketMillis = TimeUnit.SECONDS.toMillis(bucket);
+        this.generationsTtlMillis = TimeUnit.SECONDS.toMillis(generationsTtl);
+        this.generations = generationsTtl > 0
+                ? Suppliers.memoizeWithExpiration(statsRollupRepository::getGenerations, generationsTtl, TimeUnit.SECONDS)
+                : statsRollupRepository::getGenerations;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Moves the devices of the user from the rollups of their previous last event to the ones of their new last event.
+     * The previous events are keyed by unit id like the new ones, a device without previous event having no entry.
+     * While a rebuild is pending, the moves to events received from its start date are also counted into the pending
+     * generation, which the rebuild completes with the devices as they were before that date.
+     */
+    public void recordLastEvents(String userId, Map<String, DeviceEvent> previousEvents, Map<String, DeviceEvent> lastEvents) {
+        if (!enabled) {
+            return;
+        }
+        final StatsRollupGenerations current = getGenerations();
+        final Map<String, Long> versionIncrements = new HashMap<>();
+        final Map<Long, Long> bucketIncrements = new HashMap<>();
+        final Map<String, Long> pendingVersionIncrements = new HashMap<>();
+        final Map<Long, Long> pendingBucketIncrements = new HashMap<>();
+        lastEvents.forEach((unitId, event) -> {
+            final DeviceEvent previous = previousEvents.get(unitId);
+            move(previous, event, versionIncrements, bucketIncrements);
+            if (current.getPending() != null && event.getReceptionDate() != null && !event.getReceptionDate().before(current.getPendingFrom())) {
+                move(previous, event, pendingVersionIncrements, pendingBucketIncrements);
+            }
+        });
+        final List<StatsRollup> increments = toRollups(userId, current.getCurrent(), versionIncrements, bucketIncrements);
+        if (current.getPending() != null) {
+            increments.addAll(toRollups(userId, current.getPending(), pendingVersionIncrements, pendingBucketIncrements));
+        }
+        try {
+            statsRollupRepository.incrementCounts(increments);
+        } catch (DataAccessException e) {
+            // The rollups are only derived data, the next reconciliation fixes them
+            logger.warn("Failed to update the statistics rollups of " + userId, e);
+        }
+    }
+
+    private void move(@Nullable DeviceEvent previous, DeviceEvent event, Map<String, Long> versionIncrements, Map<Long, Long> bucketIncrements) {
+        if (previous == null || !Objects.equals(previous.getVersionId(), event.getVersionId())) {
+            versionIncrements.merge(event.getVersionId(), 1L, Long::sum);
+            if (previous != null) {
+                versionIncrements.merge(previous.getVersionId(), -1L, Long::sum);
+            }
+        }
+        final Long bucket = getBucket(event.getReceptionDate());
+        final Long previousBucket = previous == null ? null : getBucket(previous.getReceptionDate());
+        if (bucket != null && !bucket.equals(previousBucket)) {
+            bucketIncrements.merge(bucket, 1L, Long::sum);
+            if (previousBucket != null) {
+                bucketIncrements.merge(previousBucket, -1L, Long::sum);
+            }
+        }
+    }
+
+    public DataSet getDeviceCountPerVersionId(String userId) {
+        final DataSet.Builder builder = DataSet.builder();
+        long total = 0;
+        final Long generation = getGenerations().getCurrent();
+        for (StatsRollup rollup : statsRollupRepository.findByUserIdAndGenerationAndDimension(userId, generation, StatsRollup.VERSION_ID_DIMENSION)) {
+            if (rollup.getKey() != null && rollup.getCount() > 0) {
+                builder.value(rollup.getKey(), BigDecimal.valueOf(rollup.getCount()));
+                total += rollup.getCount();
+            }
+        }
+        return builder.total(BigDecimal.valueOf(total)).build();
+    }
+
+    /**
+     * Sums the buckets lying within the range, the parts of the range not covering a whole bucket being counted on the
+     * devices themselves.
+     */
+    public DataSet getLastSeenDeviceCount(String userId, OffsetDateTime start, OffsetDateTime end) {
+        final Long from = start.equals(OffsetDateTime.MIN) ? null : start.toInstant().toEpochMilli();
+        final Long to = end.equals(OffsetDateTime.MAX) ? null : end.toInstant().toEpochMilli() + 1;
+        final Long bucketsFrom = from == null ? null : -Math.floorDiv(-from, bucketMillis) * bucketMillis;
+        final Long bucketsTo = to == null ? null : Math.floorDiv(to, bucketMillis) * bucketMillis;
+        if (bucketsFrom != null && bucketsTo != null && bucketsFrom >= bucketsTo) {
+            return deviceRepository.getLastSeenDeviceCount(userId, start, end);
+        }
+        long total = statsRollupRepository.sumBucketCounts(
+                userId,
+                getGenerations().getCurrent(),
+                StatsRollup.LAST_SEEN_DIMENSION,
+                bucketsFrom == null ? null : new Date(bucketsFrom),
+                bucketsTo == null ? null : new Date(bucketsTo)
+        );
+        if (from != null && from < bucketsFrom) {
+            total += deviceRepository.getLastSeenDeviceCount(userId, start, toDateTime(bucketsFrom - 1)).getTotal().longValue();
+        }
+        if (to != null && bucketsTo < to) {
+            total += deviceRepository.getLastSeenDeviceCount(userId, toDateTime(bucketsTo), end).getTotal().longValue();
+        }
+        return DataSet.builder().total(BigDecimal.valueOf(total)).build();
+    }
+
+    /**
+     * Rebuilds the rollups of every user from their devices, on the instance holding the lease of the reconciliation.
+     * A run first starts a pending generation, counting the moves to events received from a start date far enough for
+     * every instance to have seen the generation. A later run then adds the devices as they were before that date and
+     * swaps the generation in, so that the increments received during the rebuild are neither lost nor counted twice.
+     * Only the events received before the start date but recorded after their device was scanned are missed, which the
+     * next rebuild fixes.
+     */
+    @Scheduled(
+            initialDelayString = "${io.barracks.deviceservice.stats.rollups.reconciliationInitialDelay:60000}",
+            fixedDelayString = "${io.barracks.deviceservice.stats.rollups.reconciliationDelay:3600000}"
+    )
+    public void reconcile() {
+        if (!enabled || !leases.tryAcquire(RECONCILIATION_LEASE)) {
+            return;
+        }
+        try {
+            final StatsRollupGenerations current = statsRollupRepository.getGenerations();
+            if (current.getPending() == null) {
+                statsRollupRepository.removeGenerations(current.getCurrent());
+                statsRollupRepository.startGeneration(new Date(System.currentTimeMillis() + 2 * generationsTtlMillis));
+                return;
+            }
+            final long pending = current.getPending();
+            // Events received just before the start date may still be being recorded
+            if (System.currentTimeMillis() < current.getPendingFrom().getTime() + generationsTtlMillis) {
+                return;
+            }
+            if (!statsRollupRepository.startScan(pending)) {
+                // A previous rebuild of the generation did not complete, the next run starts a new one
+                statsRollupRepository.abandonGeneration(pending);
+                return;
+            }
+            if (countDevices(pending, current.getPendingFrom())) {
+                statsRollupRepository.swapGeneration(pending);
+            } else {
+                statsRollupRepository.abandonGeneration(pending);
+            }
+        } finally {
+            leases.release(RECONCILIATION_LEASE);
+        }
+    }
+
+    /**
+     * Counts the devices as they were before the date into the generation, user per user, and returns false if the
+     * lease was lost in the meantime.
+     */
+    private boolean countDevices(long generation, Date before) {
+        String userId = null;
+        final Map<String, Long> versionCounts = new HashMap<>();
+        final Map<Long, Long> bucketCounts = new HashMap<>();
+        try (CloseableIterator<Device> devices = deviceRepository.streamAllByUserId(RECONCILIATION_FIELDS)) {
+            while (devices.hasNext()) {
+                final Device device = devices.next();
+                if (!device.getUserId().equals(userId)) {
+                    if (userId != null) {
+                        statsRollupRepository.incrementCounts(toRollups(userId, generation, versionCounts, bucketCounts));
+                        if (!leases.tryAcquire(RECONCILIATION_LEASE)) {
+                            return false;
+                        }
+                    }
+                    userId = device.getUserId();
+                    versionCounts.clear();
+                    bucketCounts.clear();
+                }
+                DeviceEvent event = device.getLastEvent();
+                if (event != null && event.getReceptionDate() != null && !event.getReceptionDate().before(before)) {
+                    event = deviceEventRepository.findLastEventBefore(device.getUserId(), device.getUnitId(), before);
+                }
+                if (event != null) {
+                    versionCounts.merge(event.getVersionId(), 1L, Long::sum);
+                    final Long bucket = getBucket(event.getReceptionDate());
+                    if (bucket != null) {
+                        bucketCounts.merge(bucket, 1L, Long::sum);
+                    }
+                }
+            }
+        }
+        if (userId != null) {
+            statsRollupRepository.incrementCounts(toRollups(userId, generation, versionCounts, bucketCounts));
+        }
+        return true;
+    }
+
+    private StatsRollupGenerations getGenerations() {
+        final StatsRollupGenerations current = generations.get();
+        return current == null ? StatsRollupGenerations.builder().build() : current;
+    }
+
+    private List<StatsRollup> toRollups(String userId, @Nullable Long generation, Map<String, Long> versionCounts, Map<Long, Long> bucketCounts) {
+        final List<StatsRollup> rollups = new ArrayList<>(versionCounts.size() + bucketCounts.size());
+        versionCounts.forEach((versionId, count) -> {
+            if (versionId != null && count != 0) {
+                rollups.add(StatsRollup.builder()
+                        .userId(userId)
+                        .generation(generation)
+                        .dimension(StatsRollup.VERSION_ID_DIMENSION)
+                        .key(versionId)
+                        .count(count)
+                        .build());
+            }
+        });
+        bucketCounts.forEach((bucket, count) -> {
+            if (count != 0) {
+                rollups.add(StatsRollup.builder()
+                        .userId(userId)
+                        .generation(generation)
+                        .dimension(StatsRollup.LAST_SEEN_DIMENSION)
+                        .bucket(new Date(bucket))
+                        .count(count)
+                        .build());
+            }
+        });
+        return rollups;
+    }
+
+    @Nullable
+    private Long getBucket(@Nullable Date date) {
+        return date == null ? null : Math.floorDiv(date.getTime(), bucketMillis) * bucketMillis;
+    }
+
+    private static OffsetDateTime toDateTime(long millis) {
+        return Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC);
+    }
+}
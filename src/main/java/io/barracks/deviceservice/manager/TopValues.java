@@ -0,0 +1,252 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import io.barracks.deviceservice.manager.exception.InvalidStatsKeyException;
+import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.SpaceSaving;
+import io.barracks.deviceservice.model.TopValuesSketch;
+import io.barracks.deviceservice.repository.DeviceRepository;
+import io.barracks.deviceservice.repository.TopValuesSketchRepository;
+import io.barracks.deviceservice.repository.TrackedKeysRepository;
+import lombok.EqualsAndHashCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Tracks the most frequent values that the custom client data keys opted in by a user have on the user's devices, as
+ * {@link SpaceSaving} summaries. A device whose last event changes moves from its previous value to its new one; these
+ * moves are accumulated in memory and periodically applied to the stored summaries.
+ */
+@Service
+public class TopValues {
+    private static final Logger logger = LoggerFactory.getLogger(TopValues.class);
+    private static final String CUSTOM_CLIENT_DATA_KEY = "customClientData";
+    private static final Pattern KEY_PATTERN = Pattern.compile("^" + CUSTOM_CLIENT_DATA_KEY + "(\\.[\\w-]+)+$");
+
+    private final TopValuesSketchRepository topValuesSketchRepository;
+    private final TrackedKeysRepository trackedKeysRepository;
+    private final DeviceRepository deviceRepository;
+    private final boolean enabled;
+    private final int capacity;
+    private final LoadingCache<String, List<String>> trackedKeys;
+    private Map<SketchKey, Map<String, Long>> pendingCounts = new HashMap<>();
+
+    @Autowired
+    public TopValues(
+            TopValuesSketchRepository topValuesSketchRepository,
+            TrackedKeysRepository trackedKeysRepository,
+            DeviceRepository deviceRepository,
+            @Value("${io.barracks.deviceservice.stats.topValues.enabled:false}") boolean enabled,
+            @Value("${io.barracks.deviceservice.stats.topValues.capacity:200}") int capacity,
+            @Value("${io.barracks.deviceservice.stats.topValues.keysTtl:30}") long keysTtl) {
+        this.topValuesSketchRepository = topValuesSketchRepository;
+        this.trackedKeysRepository = trackedKeysRepository;
+        this.deviceRepository = deviceRepository;
+        this.enabled = enabled;
+        this.capacity = capacity;
+        this.trackedKeys = CacheBuilder.newBuilder()
+                .expireAfterWrite(keysTtl, TimeUnit.SECONDS)
+                .build(CacheLoader.from(trackedKeysRepository::getKeys));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Checks that the key designates a value inside the custom client data, like {@code customClientData.x}.
+     */
+    public static void checkKey(String key) {
+        if (key == null || !KEY_PATTERN.matcher(key).matches()) {
+            throw new InvalidStatsKeyException("Invalid custom client data key '" + key + "'");
+        }
+    }
+
+    public boolean isTracked(String userId, String key) {
+        return enabled && trackedKeys.getUnchecked(userId).contains(key);
+    }
+
+    public List<String> getTrackedKeys(String userId) {
+        return trackedKeysRepository.getKeys(userId);
+    }
+
+    /**
+     * Replaces the keys tracked for the user. The summaries of the newly tracked keys are first built from the
+     * current values of the devices, the moves received by other nodes before they reload the keys being missed.
+     */
+    public List<String> updateTrackedKeys(String userId, List<String> keys) {
+        keys.forEach(TopValues::checkKey);
+        if (enabled) {
+            final List<String> currentKeys = trackedKeysRepository.getKeys(userId);
+            keys.stream()
+                    .filter(key -> !currentKeys.contains(key))
+                    .forEach(key -> rebuild(userId, key));
+        }
+        final List<String> updated = trackedKeysRepository.updateKeys(userId, keys).getKeys();
+        trackedKeys.invalidate(userId);
+        return updated;
+    }
+
+    /**
+     * Moves the devices of the user from the values of their previous last event to the ones of their new last event,
+     * for each tracked key. The previous events are keyed by unit id like the new ones.
+     */
+    public void recordLastEvents(String userId, Map<String, DeviceEvent> previousEvents, Map<String, DeviceEvent> lastEvents) {
+        if (!enabled) {
+            return;
+        }
+        final List<String> keys;
+        try {
+            keys = trackedKeys.getUnchecked(userId);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to read the tracked keys of " + userId, e);
+            return;
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            for (String key : keys) {
+                final Map<String, Long> counts = pendingCounts.computeIfAbsent(new SketchKey(userId, key), sketchKey -> new HashMap<>());
+                lastEvents.forEach((unitId, event) -> {
+                    final String previousValue = getValue(previousEvents.get(unitId), key);
+                    final String value = getValue(event, key);
+                    if (!Objects.equals(previousValue, value)) {
+                        if (previousValue != null) {
+                            counts.merge(previousValue, -1L, Long::sum);
+                        }
+                        if (value != null) {
+                            counts.merge(value, 1L, Long::sum);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Applies the pending moves to the stored summaries. Moves failing to be applied are kept for the next flush.
+     */
+    @PreDestroy
+    @Scheduled(fixedDelayString = "${io.barracks.deviceservice.stats.topValues.flushDelay:10000}")
+    public void flush() {
+        final Map<SketchKey, Map<String, Long>> flushed;
+        synchronized (this) {
+            flushed = pendingCounts;
+            pendingCounts = new HashMap<>();
+        }
+        flushed.forEach((key, counts) -> {
+            counts.values().removeIf(count -> count == 0);
+            if (counts.isEmpty()) {
+                return;
+            }
+            try {
+                topValuesSketchRepository.applyCounts(key.userId, key.key, capacity, counts);
+            } catch (DataAccessException e) {
+                logger.warn("Failed to store the top values of " + key.key + " for " + key.userId, e);
+                synchronized (this) {
+                    final Map<String, Long> retried = pendingCounts.computeIfAbsent(key, retryKey -> new HashMap<>());
+                    counts.forEach((value, count) -> retried.merge(value, count, Long::sum));
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the most frequent values of the key with their estimated device counts. The error is the largest
+     * overestimation of a count relative to the total.
+     */
+    public DataSet getTopValues(String userId, String key, int limit) {
+        final TopValuesSketch stored = topValuesSketchRepository.findByUserIdAndKey(userId, key);
+        final SpaceSaving sketch = stored == null ? new SpaceSaving(capacity) : new SpaceSaving(capacity, stored.getCounters(), stored.getTotal());
+        synchronized (this) {
+            pendingCounts.getOrDefault(new SketchKey(userId, key), Collections.emptyMap()).forEach(sketch::offer);
+        }
+        final DataSet.Builder builder = DataSet.builder();
+        sketch.top(limit).forEach(counter -> builder.value(counter.getValue(), BigDecimal.valueOf(counter.getCount())));
+        return builder
+                .total(BigDecimal.valueOf(sketch.getTotal()))
+                .error(sketch.getTotal() > 0 ? (double) sketch.getMinCount() / sketch.getTotal() : 0.0)
+                .build();
+    }
+
+    void rebuild(String userId, String key) {
+        final DataSet counts = deviceRepository.getDeviceCountPerValue(userId, key, capacity);
+        final List<SpaceSaving.Counter> counters = counts.getValues().entrySet().stream()
+                .map(entry -> new SpaceSaving.Counter(entry.getKey(), entry.getValue().longValue(), 0))
+                .collect(Collectors.toList());
+        topValuesSketchRepository.replaceSketch(userId, key, new SpaceSaving(capacity, counters, counts.getTotal().longValue()));
+    }
+
+    @Nullable
+    static String getValue(@Nullable DeviceEvent event, String key) {
+        final Object value = getProperty(event, key);
+        return value == null ? null : String.valueOf(value);
+    }
+
+    /**
+     * Reads the custom client data of the event at a key checked with {@link #checkKey(String)}.
+     */
+    @Nullable
+    static Object getProperty(@Nullable DeviceEvent event, String key) {
+        if (event == null) {
+            return null;
+        }
+        Object value = event.getAdditionalProperties();
+        for (String token : key.substring(CUSTOM_CLIENT_DATA_KEY.length() + 1).split("\\.")) {
+            value = value instanceof Map ? ((Map) value).get(token) : null;
+        }
+        return value;
+    }
+
+    @EqualsAndHashCode
+    private static final class SketchKey {
+        private final String userId;
+        private final String key;
+
+        private SketchKey(String userId, String key) {
+            this.userId = userId;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How the total number of elements of a page is obtained.
+ */
+public enum CountStrategy {
+    /**
+     * Counts the matching documents for every page.
+     */
+    EXACT("exact"),
+    /**
+     * Capped count: reuses a recently computed count of the same query, or counts the matching documents up to a bound,
+     * the page having no total when the bound is reached. Only an unfiltered listing gets an actual estimate, from the
+     * collection metadata, so a listing of a user's documents costs a count scanning up to the bound.
+     */
+    ESTIMATE("estimate"),
+    /**
+     * Does not count, the page only tells whether there is a next one.
+     */
+    NONE("none");
+
+    private static final Map<String, CountStrategy> mapping;
+
+    static {
+        final Map<String, CountStrategy> strategies = new HashMap<>();
+        for (CountStrategy strategy : values()) {
+            strategies.put(strategy.name, strategy);
+        }
+        mapping = Collections.unmodifiableMap(strategies);
+    }
+
+    private final String name;
+
+    CountStrategy(String name) {
+        this.name = name;
+    }
+
+    public static CountStrategy fromName(String name) {
+        if (mapping.containsKey(name)) {
+            return mapping.get(name);
+        } else {
+            throw new IllegalArgumentException("No count strategy matching '" + name + "'");
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+
+import java.util.List;
+
+/**
+ * Page telling how its total was obtained, an estimated or absent count not being the real number of elements.
+ */
+public class CountedPage<T> extends PageImpl<T> {
+    private final CountStrategy count;
+    private final Long minimumTotal;
+
+    public CountedPage(List<T> content, Pageable pageable, long total, CountStrategy count) {
+        this(content, pageable, total, count, null);
+    }
+
+    public CountedPage(List<T> content, Pageable pageable, long total, CountStrategy count, Long minimumTotal) {
+        super(content, pageable, total);
+        this.count = count;
+        this.minimumTotal = minimumTotal;
+    }
+
+    public CountStrategy getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of elements counted before counting stopped at a limit, the real total being at least this
+     * number, or null if counting did not stop.
+     */
+    public Long getMinimumTotal() {
+        return minimumTotal;
+    }
+}
@@ -24,7 +24,9 @@
 
 package io.barracks.deviceservice.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.*;
+import org.springframework.data.annotation.PersistenceConstructor;
 
 import java.math.BigDecimal;
 import java.util.HashMap;
@@ -38,10 +40,21 @@ public class DataSet {
     private final BigDecimal total;
     @Singular
     private final Map<String, BigDecimal> values;
+    /**
+     * Relative error of the estimated total or values, depending on the estimation.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final Double error;
 
+    @PersistenceConstructor
     public DataSet(BigDecimal total, Map<String, BigDecimal> values) {
+        this(total, values, null);
+    }
+
+    public DataSet(BigDecimal total, Map<String, BigDecimal> values, Double error) {
         this.total = total;
         this.values = values == null ? new HashMap<>() : new HashMap<>(values);
+        this.error = error;
     }
 
     public Map<String, BigDecimal> getValues() {
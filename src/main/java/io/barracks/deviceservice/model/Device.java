@@ -40,12 +40,20 @@ import java.util.Date;
 @Getter
 @ToString
 @EqualsAndHashCode
-@AllArgsConstructor
 @Document(collection = "units")
 @CompoundIndexes({
+        // Every ping rewrites the last event, so its reception date is left out of the indexes, as are the indexes
+        // prefixing another one
+        // Device lookups and the optimistic upserts of the pings, also serving the per user device counts
         @CompoundIndex(name = "userId_unitId_idx", def = "{'userId' : 1, 'unitId' : 1}", unique = true),
-        @CompoundIndex(name = "segmentId_idx", def = "{'event.segmentId' : 1}"),
-        @CompoundIndex(name = "userId_idx", def = "{'userId' : 1}")
+        // Device listings of a user, paged by cursor
+        @CompoundIndex(name = "userId_id_idx", def = "{'userId' : 1, '_id' : 1}"),
+        // Device listings of a segment, alone or with a version, paged by cursor
+        @CompoundIndex(name = "segmentId_id_idx", def = "{'event.segmentId' : 1, '_id' : 1}"),
+        // Per version counts and listings of the devices of a version outside of the segments
+        @CompoundIndex(name = "userId_versionId_idx", def = "{'userId' : 1, 'event.versionId' : 1}"),
+        // Per segment and version counts
+        @CompoundIndex(name = "userId_segmentId_versionId_idx", def = "{'userId' : 1, 'event.segmentId' : 1, 'event.versionId' : 1}")
 })
 public class Device {
     public static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSX";
@@ -58,6 +66,22 @@ public class Device {
     @Field(value = "event")
     private final DeviceEvent lastEvent;
     private final DeviceConfiguration configuration;
+    /**
+     * Number of events applied to the device, each update of the last event expecting the revision it was computed
+     * from so concurrent pings of the same device are applied one after the other.
+     */
+    @JsonIgnore
+    private final Long revision;
+
+    public Device(String id, String userId, String unitId, Date firstSeen, DeviceEvent lastEvent, DeviceConfiguration configuration, Long revision) {
+        this.id = id;
+        this.userId = userId;
+        this.unitId = unitId;
+        this.firstSeen = firstSeen == null ? null : new Date(firstSeen.getTime());
+        this.lastEvent = lastEvent;
+        this.configuration = configuration;
+        this.revision = revision;
+    }
 
     @JsonGetter("firstSeen")
     @JsonFormat(pattern = DATE_FORMAT)
@@ -67,6 +91,6 @@ public class Device {
 
     @JsonIgnore
     public boolean hasPinged() {
-        return getFirstSeen() == null;
+        return firstSeen == null;
     }
 }
@@ -37,9 +37,7 @@ import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.hateoas.core.Relation;
 
 import javax.validation.constraints.NotNull;
-import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
 
 @Builder(toBuilder = true)
@@ -80,21 +78,41 @@ public class DeviceEvent extends DeviceEventDocument {
 
     private final String deviceIP;
 
+    @JsonIgnore
+    private final Long fingerprint;
+
+    @JsonIgnore
+    private final Date lastReceptionDate;
+
+    @JsonIgnore
+    private final Integer count;
+
+    @JsonIgnore
+    private final Integer snapshotDistance;
+
+    @JsonIgnore
+    private final PropertiesDelta propertiesDelta;
+
     @PersistenceConstructor
-    private DeviceEvent(String id, String unitId, String userId, String versionId, Date receptionDate, Map<String, Object> additionalProperties, Boolean changed, String segmentId, String deviceIP) {
+    private DeviceEvent(String id, String unitId, String userId, String versionId, Date receptionDate, Map<String, Object> additionalProperties, Boolean changed, String segmentId, String deviceIP, Long fingerprint, Date lastReceptionDate, Integer count, Integer snapshotDistance, PropertiesDelta propertiesDelta) {
         this.id = id;
         this.unitId = unitId;
         this.userId = userId;
         this.versionId = versionId;
-        this.receptionDate = receptionDate;
-        this.additionalProperties = additionalProperties == null ? Collections.emptyMap() : new HashMap<>(additionalProperties);
+        this.receptionDate = receptionDate == null ? null : new Date(receptionDate.getTime());
+        this.additionalProperties = UnmodifiableProperties.of(additionalProperties);
         this.changed = changed != null && changed;
         this.segmentId = segmentId;
         this.deviceIP = deviceIP;
+        this.fingerprint = fingerprint;
+        this.lastReceptionDate = lastReceptionDate == null ? null : new Date(lastReceptionDate.getTime());
+        this.count = count;
+        this.snapshotDistance = snapshotDistance;
+        this.propertiesDelta = propertiesDelta;
     }
 
     public static DeviceEvent create(String id, String unitId, String userId, String versionId, Date receptionDate, Map<String, Object> additionalProperties, Boolean changed, String segmentId, String deviceIP) {
-        return new DeviceEvent(id, unitId, userId, versionId, receptionDate, additionalProperties, changed, segmentId, deviceIP);
+        return new DeviceEvent(id, unitId, userId, versionId, receptionDate, additionalProperties, changed, segmentId, deviceIP, null, null, null, null, null);
     }
 
     @JsonCreator
@@ -104,7 +122,7 @@ public class DeviceEvent extends DeviceEventDocument {
             @JsonProperty("versionId") String versionId,
             @JsonProperty("additionalProperties") Map<String, Object> additionalProperties,
             @JsonProperty("deviceIP") String deviceIP){
-        return new DeviceEvent(null, unitId, userId, versionId, null, additionalProperties, Boolean.FALSE, null, deviceIP);
+        return new DeviceEvent(null, unitId, userId, versionId, null, additionalProperties, Boolean.FALSE, null, deviceIP, null, null, null, null, null);
     }
 
     @JsonGetter("id")
@@ -118,6 +136,38 @@ public class DeviceEvent extends DeviceEventDocument {
         return receptionDate == null ? null : new Date(receptionDate.getTime());
     }
 
+    /**
+     * Reception date of the last ping folded into this event, only set on heartbeat records.
+     */
+    @JsonGetter("lastReceptionDate")
+    @JsonFormat(pattern = DATE_FORMAT)
+    public Date getLastReceptionDate() {
+        return lastReceptionDate == null ? null : new Date(lastReceptionDate.getTime());
+    }
+
+    /**
+     * Number of pings folded into this event, only set on heartbeat records.
+     */
+    @JsonGetter("count")
+    public Integer getCount() {
+        return count;
+    }
+
+    /**
+     * Number of stored events to read back from this one to find a full copy of the additional properties of the
+     * device, zero if this event holds one. Only set on events written with delta-encoded properties.
+     */
+    public Integer getSnapshotDistance() {
+        return snapshotDistance;
+    }
+
+    /**
+     * Difference with the properties of the previous event of the device, stored instead of the full properties.
+     */
+    public PropertiesDelta getPropertiesDelta() {
+        return propertiesDelta;
+    }
+
     @JsonGetter("changed")
     public boolean isChanged() {
         return changed;
@@ -129,6 +179,6 @@ public class DeviceEvent extends DeviceEventDocument {
     }
 
     public Map<String, Object> getAdditionalProperties() {
-        return new HashMap<>(additionalProperties);
+        return additionalProperties;
     }
 }
\ No newline at end of file
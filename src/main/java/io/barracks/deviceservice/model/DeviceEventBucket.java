@@ -0,0 +1,90 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Events of a device received during a time bucket, stored together so the history costs one index entry per bucket
+ * instead of one per event. The embedded events do not repeat the user and unit ids, and a bucket holding the maximum
+ * number of events is continued in another document for the same bucket.
+ */
+@Builder(toBuilder = true)
+@Getter
+@EqualsAndHashCode
+@ToString
+@AllArgsConstructor
+@Document(collection = "deviceEventBuckets")
+@CompoundIndexes({
+        @CompoundIndex(name = "userId_unitId_bucket_idx", def = "{'userId' : 1, 'unitId' : 1, 'bucket' : -1}"),
+        @CompoundIndex(name = "userId_last_idx", def = "{'userId' : 1, 'last' : 1}")
+})
+public class DeviceEventBucket {
+    @Id
+    private final String id;
+
+    private final String userId;
+
+    private final String unitId;
+
+    private final Date bucket;
+
+    /**
+     * First reception date of the events.
+     */
+    private final Date first;
+
+    /**
+     * Last reception date of the events, including the pings folded into heartbeat records.
+     */
+    private final Date last;
+
+    private final int size;
+
+    private final int changedSize;
+
+    private final List<DeviceEvent> events;
+
+    /**
+     * Returns the events with the user and unit ids of the bucket.
+     */
+    public List<DeviceEvent> getEvents() {
+        if (events == null) {
+            return Collections.emptyList();
+        }
+        final List<DeviceEvent> result = new ArrayList<>(events.size());
+        events.forEach(event -> result.add(event.toBuilder().userId(userId).unitId(unitId).build()));
+        return result;
+    }
+}
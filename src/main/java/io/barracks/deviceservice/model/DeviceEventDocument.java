@@ -30,8 +30,10 @@ import org.springframework.data.mongodb.core.mapping.Document;
 
 @Document(collection = "devices")
 @CompoundIndexes({
+        // History of a device, read from its last event, which also makes its events unique per reception date
         @CompoundIndex(name = "userId_unitId_receptionDate_idx", def = "{'unitId' : 1, 'userId' : 1, 'receptionDate': -1}", unique = true),
-        @CompoundIndex(name = "userId_unitId_idx", def = "{'unitId' : 1, 'userId' : 1}")
+        // Seen device counts of a user over a period, covering every field they read, and the retention purge
+        @CompoundIndex(name = "userId_receptionDate_unitId_idx", def = "{'userId' : 1, 'receptionDate' : 1, 'lastReceptionDate' : 1, 'unitId' : 1}")
 })
 public class DeviceEventDocument {
 }
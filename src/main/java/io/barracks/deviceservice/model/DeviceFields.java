@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import com.google.common.collect.ImmutableSet;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import org.springframework.util.StringUtils;
+
+import java.util.*;
+
+/**
+ * Device properties selected for a listing, as paths in the JSON representation of the device such as {@code unitId},
+ * {@code lastEvent.versionId} or {@code lastEvent.additionalProperties.key}. No path selects the whole device.
+ */
+@ToString
+@EqualsAndHashCode
+public final class DeviceFields {
+    public static final DeviceFields ALL = new DeviceFields(Collections.emptyList());
+    public static final String LAST_EVENT = "lastEvent";
+    public static final String ADDITIONAL_PROPERTIES = "additionalProperties";
+    private static final String SEPARATOR = ".";
+    private static final Set<String> DEVICE_FIELDS = ImmutableSet.of("userId", "unitId", "firstSeen", LAST_EVENT, "configuration");
+    private static final Set<String> EVENT_FIELDS = ImmutableSet.of(
+            "id", "unitId", "userId", "versionId", "receptionDate", ADDITIONAL_PROPERTIES, "changed", "segmentId", "deviceIP", "lastReceptionDate", "count"
+    );
+
+    private final List<String> paths;
+
+    private DeviceFields(List<String> paths) {
+        this.paths = Collections.unmodifiableList(paths);
+    }
+
+    /**
+     * Parses a comma separated list of paths, a path being dropped when one of its parents is also selected.
+     */
+    public static DeviceFields parse(String fields) {
+        final SortedSet<String> selected = new TreeSet<>();
+        for (String field : StringUtils.commaDelimitedListToStringArray(fields)) {
+            final String path = field.trim();
+            if (!path.isEmpty()) {
+                validate(path);
+                selected.add(path);
+            }
+        }
+        final List<String> paths = new ArrayList<>();
+        for (String path : selected) {
+            if (paths.stream().noneMatch(parent -> path.startsWith(parent + SEPARATOR))) {
+                paths.add(path);
+            }
+        }
+        return paths.isEmpty() ? ALL : new DeviceFields(paths);
+    }
+
+    private static void validate(String path) {
+        final String[] keys = StringUtils.delimitedListToStringArray(path, SEPARATOR);
+        final boolean valid = DEVICE_FIELDS.contains(keys[0])
+                && (keys.length == 1 || LAST_EVENT.equals(keys[0]) && EVENT_FIELDS.contains(keys[1]))
+                && (keys.length <= 2 || ADDITIONAL_PROPERTIES.equals(keys[1]))
+                && Arrays.stream(keys).noneMatch(String::isEmpty);
+        if (!valid) {
+            throw new IllegalArgumentException("No device field matching '" + path + "'");
+        }
+    }
+
+    public boolean isAll() {
+        return paths.isEmpty();
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+}
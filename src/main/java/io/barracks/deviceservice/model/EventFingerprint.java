@@ -0,0 +1,120 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stable 64-bit fingerprint of the content of an event, two consecutive events of a device with the same fingerprint
+ * are considered identical. The value is stored with the events, so the algorithm must not change between releases.
+ * Map entries are combined regardless of their order and integral numbers are hashed by value, whatever their type.
+ */
+public final class EventFingerprint {
+    private static final long SEED = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private static final long NULL_TAG = 0x6e756c6cL;
+    private static final long STRING_TAG = 0x737472L;
+    private static final long TRUE_TAG = 0x74727565L;
+    private static final long FALSE_TAG = 0x66616c7365L;
+    private static final long INTEGER_TAG = 0x696e74L;
+    private static final long DECIMAL_TAG = 0x646563L;
+    private static final long MAP_TAG = 0x6d6170L;
+    private static final long LIST_TAG = 0x6c697374L;
+    private static final long OTHER_TAG = 0x6f7468L;
+
+    private EventFingerprint() {
+    }
+
+    public static long of(
+            @Nullable String versionId,
+            @Nullable Map<String, ?> additionalProperties,
+            @Nullable String segmentId,
+            @Nullable String deviceIP) {
+        long hash = SEED;
+        hash = combine(hash, hashValue(versionId));
+        hash = combine(hash, hashValue(additionalProperties));
+        hash = combine(hash, hashValue(segmentId));
+        hash = combine(hash, hashValue(deviceIP));
+        return hash;
+    }
+
+    static long hashValue(@Nullable Object value) {
+        if (value == null) {
+            return mix(NULL_TAG);
+        } else if (value instanceof CharSequence) {
+            return hashString(STRING_TAG, (CharSequence) value);
+        } else if (value instanceof Boolean) {
+            return mix((Boolean) value ? TRUE_TAG : FALSE_TAG);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return combine(INTEGER_TAG, ((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            return combine(DECIMAL_TAG, Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof BigInteger) {
+            final BigInteger integer = (BigInteger) value;
+            return integer.bitLength() < Long.SIZE ? combine(INTEGER_TAG, integer.longValue()) : hashString(INTEGER_TAG, integer.toString());
+        } else if (value instanceof BigDecimal) {
+            return hashString(DECIMAL_TAG, ((BigDecimal) value).toString());
+        } else if (value instanceof Map) {
+            long hash = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                hash += combine(hashValue(entry.getKey()), hashValue(entry.getValue()));
+            }
+            return combine(MAP_TAG, hash);
+        } else if (value instanceof List) {
+            long hash = mix(LIST_TAG);
+            for (Object item : (List<?>) value) {
+                hash = combine(hash, hashValue(item));
+            }
+            return hash;
+        }
+        return hashString(OTHER_TAG, value.toString());
+    }
+
+    private static long hashString(long tag, CharSequence value) {
+        long hash = SEED ^ tag;
+        for (int charIdx = 0; charIdx < value.length(); charIdx++) {
+            hash = (hash ^ value.charAt(charIdx)) * PRIME;
+        }
+        return combine(hash, value.length());
+    }
+
+    private static long combine(long hash, long value) {
+        return mix(hash * PRIME ^ value);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
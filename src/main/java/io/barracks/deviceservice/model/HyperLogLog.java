@@ -0,0 +1,154 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Mergeable HyperLogLog sketch estimating the number of distinct strings added to it with 4096 registers. The
+ * serialized form is stored, so the hash function and the precision must not change between releases. Sketches with
+ * few registers set are serialized sparsely.
+ */
+public final class HyperLogLog {
+    private static final int PRECISION = 12;
+    private static final int REGISTER_COUNT = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTER_COUNT);
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    private static final byte DENSE_FORMAT = 0;
+    private static final byte SPARSE_FORMAT = 1;
+    private static final int SPARSE_ENTRY_SIZE = 3;
+
+    private final byte[] registers;
+
+    private HyperLogLog(byte[] registers) {
+        this.registers = registers;
+    }
+
+    public static HyperLogLog empty() {
+        return new HyperLogLog(new byte[REGISTER_COUNT]);
+    }
+
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        final byte[] registers = new byte[REGISTER_COUNT];
+        if (bytes.length == REGISTER_COUNT + 1 && bytes[0] == DENSE_FORMAT) {
+            System.arraycopy(bytes, 1, registers, 0, REGISTER_COUNT);
+        } else if (bytes.length % SPARSE_ENTRY_SIZE == 1 && bytes[0] == SPARSE_FORMAT) {
+            for (int offset = 1; offset < bytes.length; offset += SPARSE_ENTRY_SIZE) {
+                final int index = (bytes[offset] & 0xff) << 8 | bytes[offset + 1] & 0xff;
+                registers[index] = bytes[offset + 2];
+            }
+        } else {
+            throw new IllegalArgumentException("Invalid HyperLogLog sketch of " + bytes.length + " bytes");
+        }
+        return new HyperLogLog(registers);
+    }
+
+    /**
+     * Relative standard error of the estimates.
+     */
+    public static double getRelativeError() {
+        return 1.04 / Math.sqrt(REGISTER_COUNT);
+    }
+
+    /**
+     * Adds a value to the sketch, returning whether the sketch changed.
+     */
+    public boolean add(String value) {
+        final long hash = HASH_FUNCTION.hashString(value, StandardCharsets.UTF_8).asLong();
+        final int index = (int) (hash >>> (Long.SIZE - PRECISION));
+        final byte rank = (byte) (Long.numberOfLeadingZeros(hash << PRECISION | 1L << (PRECISION - 1)) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+            return true;
+        }
+        return false;
+    }
+
+    public void merge(HyperLogLog other) {
+        for (int index = 0; index < REGISTER_COUNT; index++) {
+            if (other.registers[index] > registers[index]) {
+                registers[index] = other.registers[index];
+            }
+        }
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        final double estimate = ALPHA * REGISTER_COUNT * REGISTER_COUNT / sum;
+        if (estimate <= 2.5 * REGISTER_COUNT && zeros > 0) {
+            // Linear counting is more accurate for small cardinalities
+            return Math.round(REGISTER_COUNT * Math.log((double) REGISTER_COUNT / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    public byte[] toBytes() {
+        int setCount = 0;
+        for (byte register : registers) {
+            if (register != 0) {
+                setCount++;
+            }
+        }
+        if (setCount * SPARSE_ENTRY_SIZE >= REGISTER_COUNT) {
+            final byte[] bytes = new byte[REGISTER_COUNT + 1];
+            bytes[0] = DENSE_FORMAT;
+            System.arraycopy(registers, 0, bytes, 1, REGISTER_COUNT);
+            return bytes;
+        }
+        final byte[] bytes = new byte[setCount * SPARSE_ENTRY_SIZE + 1];
+        bytes[0] = SPARSE_FORMAT;
+        int offset = 1;
+        for (int index = 0; index < REGISTER_COUNT; index++) {
+            if (registers[index] != 0) {
+                bytes[offset] = (byte) (index >>> 8);
+                bytes[offset + 1] = (byte) index;
+                bytes[offset + 2] = registers[index];
+                offset += SPARSE_ENTRY_SIZE;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof HyperLogLog && Arrays.equals(registers, ((HyperLogLog) obj).registers);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(registers);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Key-level difference between the additional properties of two consecutive events of a device: the keys added or
+ * given another value, and the keys removed. Empty parts are left null so they are not stored.
+ */
+@EqualsAndHashCode
+@ToString
+@AllArgsConstructor
+public class PropertiesDelta {
+    @Nullable
+    private final Map<String, Object> set;
+
+    @Nullable
+    private final List<String> unset;
+
+    public static PropertiesDelta between(Map<String, Object> previous, Map<String, Object> current) {
+        final Map<String, Object> set = new HashMap<>();
+        current.forEach((key, value) -> {
+            if (!previous.containsKey(key) || !Objects.equals(previous.get(key), value)) {
+                set.put(key, value);
+            }
+        });
+        final List<String> unset = new ArrayList<>();
+        previous.keySet().forEach(key -> {
+            if (!current.containsKey(key)) {
+                unset.add(key);
+            }
+        });
+        return new PropertiesDelta(set.isEmpty() ? null : set, unset.isEmpty() ? null : unset);
+    }
+
+    public Map<String, Object> getSet() {
+        return set == null ? Collections.emptyMap() : Collections.unmodifiableMap(set);
+    }
+
+    public List<String> getUnset() {
+        return unset == null ? Collections.emptyList() : Collections.unmodifiableList(unset);
+    }
+
+    /**
+     * Applies the difference to the properties of the previous event, which become the properties of the next one.
+     */
+    public void applyTo(Map<String, Object> properties) {
+        if (unset != null) {
+            unset.forEach(properties::remove);
+        }
+        if (set != null) {
+            properties.putAll(set);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stored {@link QuantileSketch} of the numbers a custom client data key had in the events received from the devices of
+ * a segment during a time bucket. The bins are keyed by their index.
+ */
+@Builder(toBuilder = true)
+@Getter
+@EqualsAndHashCode
+@ToString
+@AllArgsConstructor
+@Document(collection = "quantileBuckets")
+@CompoundIndexes({
+        @CompoundIndex(name = "userId_key_bucket_segmentId_idx", def = "{'userId' : 1, 'key' : 1, 'bucket' : 1, 'segmentId' : 1}", unique = true)
+})
+public class QuantileBucket {
+    @Id
+    private final String id;
+
+    private final String userId;
+
+    private final String key;
+
+    private final String segmentId;
+
+    private final Date bucket;
+
+    private final Map<String, Long> positiveBins;
+
+    private final Map<String, Long> negativeBins;
+
+    private final long zeroCount;
+
+    public static QuantileBucket from(String userId, String key, String segmentId, Date bucket, QuantileSketch sketch) {
+        return QuantileBucket.builder()
+                .userId(userId)
+                .key(key)
+                .segmentId(segmentId)
+                .bucket(bucket)
+                .positiveBins(toStoredBins(sketch.getPositiveBins()))
+                .negativeBins(toStoredBins(sketch.getNegativeBins()))
+                .zeroCount(sketch.getZeroCount())
+                .build();
+    }
+
+    public QuantileSketch toSketch() {
+        return QuantileSketch.of(toBins(positiveBins), toBins(negativeBins), zeroCount);
+    }
+
+    private static Map<String, Long> toStoredBins(Map<Integer, Long> bins) {
+        final Map<String, Long> stored = new HashMap<>();
+        bins.forEach((index, count) -> stored.put(index.toString(), count));
+        return stored;
+    }
+
+    private static Map<Integer, Long> toBins(Map<String, Long> stored) {
+        if (stored == null) {
+            return Collections.emptyMap();
+        }
+        final Map<Integer, Long> bins = new HashMap<>();
+        stored.forEach((index, count) -> bins.put(Integer.valueOf(index), count));
+        return bins;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Mergeable sketch of a distribution of numbers, answering quantiles within a relative accuracy of 1%. Values are
+ * counted in bins of exponentially growing width, a positive value v falling in the bin ceil(log(v) / log(gamma)), so
+ * that all the values of a bin are within the relative accuracy of its middle. Sketches are merged by adding the counts
+ * of their bins, which is exact and lets stored bins be merged with plain increments. The bins are stored, so the
+ * accuracy must not change between releases.
+ */
+@EqualsAndHashCode
+@ToString
+public final class QuantileSketch {
+    public static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final double MIN_INDEXABLE_VALUE = 1e-9;
+
+    private final NavigableMap<Integer, Long> positiveBins;
+    private final NavigableMap<Integer, Long> negativeBins;
+    private long zeroCount;
+
+    private QuantileSketch(Map<Integer, Long> positiveBins, Map<Integer, Long> negativeBins, long zeroCount) {
+        this.positiveBins = new TreeMap<>(positiveBins);
+        this.negativeBins = new TreeMap<>(negativeBins);
+        this.zeroCount = zeroCount;
+    }
+
+    public static QuantileSketch empty() {
+        return new QuantileSketch(new TreeMap<>(), new TreeMap<>(), 0);
+    }
+
+    public static QuantileSketch of(Map<Integer, Long> positiveBins, Map<Integer, Long> negativeBins, long zeroCount) {
+        return new QuantileSketch(positiveBins, negativeBins, zeroCount);
+    }
+
+    /**
+     * Adds a value to the sketch, values which are not finite being ignored. Values closer to zero than 1e-9 are
+     * counted as zero.
+     */
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    /**
+     * Removes a value previously added to this sketch or to a sketch it is merged with, so that bins may hold negative
+     * counts until the sketches are merged.
+     */
+    public void remove(double value) {
+        add(value, -1);
+    }
+
+    private void add(double value, long count) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        if (Math.abs(value) < MIN_INDEXABLE_VALUE) {
+            zeroCount += count;
+        } else if (value > 0) {
+            positiveBins.merge(getIndex(value), count, Long::sum);
+        } else {
+            negativeBins.merge(getIndex(-value), count, Long::sum);
+        }
+    }
+
+    public void merge(QuantileSketch other) {
+        other.positiveBins.forEach((index, count) -> positiveBins.merge(index, count, Long::sum));
+        other.negativeBins.forEach((index, count) -> negativeBins.merge(index, count, Long::sum));
+        zeroCount += other.zeroCount;
+    }
+
+    public long getCount() {
+        return zeroCount
+                + positiveBins.values().stream().mapToLong(Long::longValue).sum()
+                + negativeBins.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    public Map<Integer, Long> getPositiveBins() {
+        return new TreeMap<>(positiveBins);
+    }
+
+    public Map<Integer, Long> getNegativeBins() {
+        return new TreeMap<>(negativeBins);
+    }
+
+    public long getZeroCount() {
+        return zeroCount;
+    }
+
+    /**
+     * Returns the value at the given quantile, between 0 and 1, or NaN if the sketch is empty.
+     */
+    public double getQuantile(double quantile) {
+        final long count = getCount();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        final long rank = (long) (quantile * (count - 1));
+        long seen = 0;
+        // Negative values come first, the largest bins holding the smallest values
+        for (Map.Entry<Integer, Long> bin : negativeBins.descendingMap().entrySet()) {
+            seen += bin.getValue();
+            if (seen > rank) {
+                return -getValue(bin.getKey());
+            }
+        }
+        seen += zeroCount;
+        if (seen > rank) {
+            return 0;
+        }
+        for (Map.Entry<Integer, Long> bin : positiveBins.entrySet()) {
+            seen += bin.getValue();
+            if (seen > rank) {
+                return getValue(bin.getKey());
+            }
+        }
+        return getValue(positiveBins.lastKey());
+    }
+
+    private static int getIndex(double value) {
+        return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    private static double getValue(int index) {
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import javax.validation.constraints.Min;
+
+/**
+ * Number of days the event history of a user is kept, for changed and unchanged events. Missing durations fall back to
+ * the service defaults, and a duration of 0 keeps the events forever.
+ */
+@Builder(toBuilder = true)
+@Getter
+@EqualsAndHashCode
+@ToString
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@Document(collection = "retentionPolicies")
+@CompoundIndexes({@CompoundIndex(name = "unique_userId", unique = true, def = "{'userId' : 1}")})
+public class RetentionPolicy {
+    @Id
+    @JsonIgnore
+    private final String id;
+
+    @JsonIgnore
+    private final String userId;
+
+    @Min(0)
+    private final Integer unchangedEventsDays;
+
+    @Min(0)
+    private final Integer changedEventsDays;
+
+    @JsonCreator
+    public static RetentionPolicy fromJson(
+            @JsonProperty("unchangedEventsDays") Integer unchangedEventsDays,
+            @JsonProperty("changedEventsDays") Integer changedEventsDays) {
+        return RetentionPolicy.builder()
+                .unchangedEventsDays(unchangedEventsDays)
+                .changedEventsDays(changedEventsDays)
+                .build();
+    }
+}
@@ -47,6 +47,11 @@ import java.util.Date;
 @Document(collection = "segments")
 @CompoundIndex(name = "userId_name_idx", def = "{'userId' : 1, 'name' : 1}", unique = true)
 public class Segment {
+    /**
+     * Identifier standing for the devices of a user that do not belong to any of the user's active segments.
+     */
+    public static final String OTHER_ID = "other";
+
     @Id
     @JsonIgnore
     private final String id;
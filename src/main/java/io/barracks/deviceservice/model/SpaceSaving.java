@@ -0,0 +1,129 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Space-Saving summary of the most frequent values of a stream, monitoring at most a fixed number of values. The count
+ * of a monitored value overestimates its true count by at most its error, and any value more frequent than the smallest
+ * monitored count is monitored.
+ * <p>
+ * Counts can also be decreased: a monitored value loses its count, while the decrease of a value which is not
+ * monitored is only reflected in the total.
+ */
+@EqualsAndHashCode
+@ToString
+public class SpaceSaving {
+    private final int capacity;
+    private final Map<String, Counter> counters;
+    private long total;
+
+    public SpaceSaving(int capacity) {
+        this(capacity, Collections.emptyList(), 0);
+    }
+
+    public SpaceSaving(int capacity, Collection<Counter> counters, long total) {
+        this.capacity = capacity;
+        this.counters = new HashMap<>();
+        for (Counter counter : counters) {
+            this.counters.put(counter.getValue(), counter);
+        }
+        this.total = total;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sum of all the counts offered to the summary, including the ones of values which are not monitored.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Smallest count a value can have and still not be monitored, zero while the summary is not full.
+     */
+    public long getMinCount() {
+        if (counters.size() < capacity) {
+            return 0;
+        }
+        return counters.values().stream().mapToLong(Counter::getCount).min().orElse(0);
+    }
+
+    public void offer(String value, long delta) {
+        total += delta;
+        final Counter counter = counters.get(value);
+        if (counter != null) {
+            final long count = counter.getCount() + delta;
+            if (count > 0) {
+                counters.put(value, new Counter(value, count, Math.min(counter.getError(), count)));
+            } else {
+                counters.remove(value);
+            }
+        } else if (delta > 0) {
+            if (counters.size() < capacity) {
+                counters.put(value, new Counter(value, delta, 0));
+            } else {
+                // The evicted value may have been seen up to its count times, which the new value inherits as error
+                final Counter evicted = Collections.min(counters.values(), Comparator.comparingLong(Counter::getCount));
+                counters.remove(evicted.getValue());
+                counters.put(value, new Counter(value, evicted.getCount() + delta, evicted.getCount()));
+            }
+        }
+    }
+
+    /**
+     * Returns the monitored values, most frequent first.
+     */
+    public List<Counter> getCounters() {
+        return top(counters.size());
+    }
+
+    public List<Counter> top(int limit) {
+        return counters.values().stream()
+                .sorted(Comparator.comparingLong(Counter::getCount).reversed().thenComparing(Counter::getValue))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    @Getter
+    @EqualsAndHashCode
+    @ToString
+    @AllArgsConstructor
+    public static class Counter {
+        private final String value;
+        private final long count;
+        private final long error;
+    }
+}
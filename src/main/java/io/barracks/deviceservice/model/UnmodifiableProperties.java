@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Read-only copy of the additional properties of an event.
+ * Events built from another event share the same instance instead of copying it again.
+ */
+final class UnmodifiableProperties extends AbstractMap<String, Object> {
+    private static final UnmodifiableProperties EMPTY = new UnmodifiableProperties(Collections.emptyMap());
+
+    private final Map<String, Object> properties;
+
+    private UnmodifiableProperties(Map<String, Object> properties) {
+        this.properties = Collections.unmodifiableMap(properties);
+    }
+
+    static Map<String, Object> of(@Nullable Map<String, Object> properties) {
+        if (properties instanceof UnmodifiableProperties) {
+            return properties;
+        }
+        if (properties == null || properties.isEmpty()) {
+            return EMPTY;
+        }
+        return new UnmodifiableProperties(new HashMap<>(properties));
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return properties.entrySet();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return properties.keySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        return properties.values();
+    }
+
+    @Override
+    public int size() {
+        return properties.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return properties.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return properties.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return properties.containsValue(value);
+    }
+
+    @Override
+    public Object get(Object key) {
+        return properties.get(key);
+    }
+}
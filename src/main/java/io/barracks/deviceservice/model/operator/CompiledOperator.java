@@ -0,0 +1,200 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model.operator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.barracks.deviceservice.model.operator.comparison.ComparisonOperator;
+import io.barracks.deviceservice.model.operator.logical.LogicalOperator;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Immutable, pre-resolved form of an {@link Operator} tree, meant to be built once and evaluated many times.
+ * Key paths are resolved, regular expressions compiled and IN/NIN values hashed at compilation time.
+ * Equality and serialization are those of the source operator.
+ */
+public final class CompiledOperator implements Operator {
+    private final Operator source;
+    private final Predicate<DeviceView> predicate;
+
+    private CompiledOperator(Operator source, Predicate<DeviceView> predicate) {
+        this.source = source;
+        this.predicate = predicate;
+    }
+
+    public static CompiledOperator compile(Operator operator) {
+        if (operator instanceof CompiledOperator) {
+            return (CompiledOperator) operator;
+        }
+        return new CompiledOperator(operator, compileOperator(operator));
+    }
+
+    public Operator getSource() {
+        return source;
+    }
+
+    @Override
+    public boolean matches(JsonNode device) {
+        return predicate.test(DeviceView.of(device));
+    }
+
+    @Override
+    public boolean matches(DeviceView device) {
+        return predicate.test(device);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o instanceof CompiledOperator) {
+            return source.equals(((CompiledOperator) o).source);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return source.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledOperator(" + source + ")";
+    }
+
+    private static Predicate<DeviceView> compileOperator(Operator operator) {
+        if (operator instanceof CompiledOperator) {
+            return ((CompiledOperator) operator).predicate;
+        } else if (operator instanceof LogicalOperator) {
+            return compileLogicalOperator((LogicalOperator) operator);
+        } else if (operator instanceof ComparisonOperator) {
+            return compileComparisonOperator((ComparisonOperator) operator);
+        }
+        return operator::matches;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Predicate<DeviceView> compileLogicalOperator(LogicalOperator operator) {
+        final List<Operator> operands = operator.getOperands();
+        final Predicate<DeviceView>[] children = new Predicate[operands.size()];
+        for (int operandIdx = 0; operandIdx < children.length; operandIdx++) {
+            children[operandIdx] = compileOperator(operands.get(operandIdx));
+        }
+        switch (operator.getType()) {
+            case AND:
+                return device -> {
+                    for (Predicate<DeviceView> child : children) {
+                        if (!child.test(device)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                };
+            case OR:
+                return device -> {
+                    for (Predicate<DeviceView> child : children) {
+                        if (child.test(device)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+            default:
+                return operator::matches;
+        }
+    }
+
+    private static Predicate<DeviceView> compileComparisonOperator(ComparisonOperator operator) {
+        final String[] path = operator.resolvePath();
+        final Predicate<Object> comparison = compileComparison(operator);
+        return device -> comparison.test(device.get(path));
+    }
+
+    private static Predicate<Object> compileComparison(ComparisonOperator operator) {
+        final Object value = operator.getValue();
+        switch (operator.getType()) {
+            case EQUAL:
+                return value == null ? Objects::isNull : value::equals;
+            case NOT_EQUAL:
+                return value == null ? Objects::nonNull : object -> !value.equals(object);
+            case IN:
+                return compileIn(value);
+            case NIN:
+                return compileIn(value).negate();
+            case GREATER_THAN:
+                return compileComparable(value, result -> result > 0);
+            case GREATER_THAN_OR_EQUAL:
+                return compileComparable(value, result -> result >= 0);
+            case LESS_THAN:
+                return compileComparable(value, result -> result < 0);
+            case LESS_THAN_OR_EQUAL:
+                return compileComparable(value, result -> result <= 0);
+            case REGEX:
+                return compileRegex(value);
+            default:
+                return operator::compare;
+        }
+    }
+
+    private static Predicate<Object> compileIn(Object value) {
+        if (!(value instanceof Collection)) {
+            return object -> false;
+        }
+        final HashSet<Object> values = new HashSet<>((Collection<?>) value);
+        return values::contains;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Predicate<Object> compileComparable(Object value, IntPredicate result) {
+        if (!(value instanceof Comparable)) {
+            return object -> false;
+        }
+        // Values parsed from JSON are of final types, comparing objects of different classes would fail
+        final Class<?> type = value.getClass();
+        return object -> object != null && object.getClass() == type && result.test(((Comparable<Object>) object).compareTo(value));
+    }
+
+    private static Predicate<Object> compileRegex(Object value) {
+        if (!(value instanceof String)) {
+            return object -> false;
+        }
+        final Pattern pattern;
+        try {
+            pattern = Pattern.compile((String) value);
+        } catch (PatternSyntaxException e) {
+            return object -> false;
+        }
+        return object -> object instanceof CharSequence && pattern.matcher((CharSequence) object).matches();
+    }
+}
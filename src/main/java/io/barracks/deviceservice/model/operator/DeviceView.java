@@ -0,0 +1,80 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model.operator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceComponentRequest;
+import io.barracks.deviceservice.model.DeviceEvent;
+
+import javax.annotation.Nullable;
+import java.util.function.Supplier;
+
+/**
+ * Read access to the device fields an {@link Operator} can be evaluated against.
+ * Values are returned as {@link OperatorDeserializer#parseValue(JsonNode)} would return them from the device JSON tree.
+ */
+public interface DeviceView {
+
+    @Nullable
+    Object get(String[] path);
+
+    static DeviceView of(JsonNode device) {
+        return new JsonDeviceView(device);
+    }
+
+    static DeviceView of(Device device) {
+        return of(device, device.getLastEvent());
+    }
+
+    /**
+     * View of the device as if {@code lastEvent} was its last event, without building the updated device.
+     */
+    static DeviceView of(Device device, @Nullable DeviceEvent lastEvent) {
+        return new ObjectDeviceView(
+                device.getUserId(),
+                device.getUnitId(),
+                device.getFirstSeen(),
+                lastEvent == null ? null : lastEvent.getVersionId(),
+                lastEvent == null ? null : lastEvent.getReceptionDate(),
+                lastEvent == null ? null : lastEvent.getAdditionalProperties(),
+                lastEvent != null,
+                () -> ObjectDeviceView.MAPPER.valueToTree(lastEvent == device.getLastEvent() ? device : device.toBuilder().lastEvent(lastEvent).build())
+        );
+    }
+
+    static DeviceView of(DeviceComponentRequest request, Supplier<JsonNode> json) {
+        return new ObjectDeviceView(
+                request.getUserId(),
+                request.getUnitId(),
+                null,
+                null,
+                null,
+                request.getAdditionalProperties(),
+                true,
+                json
+        );
+    }
+}
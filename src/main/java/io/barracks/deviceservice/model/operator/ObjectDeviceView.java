@@ -0,0 +1,120 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model.operator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.deviceservice.model.Device;
+
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Reads the fields segments and filters are usually written against straight from the model objects.
+ * Any other path is resolved against the JSON tree of the device, which is only built when needed.
+ */
+final class ObjectDeviceView implements DeviceView {
+    static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern(Device.DATE_FORMAT).withZone(ZoneOffset.UTC);
+    private static final String LAST_EVENT = "lastEvent";
+
+    private final String userId;
+    private final String unitId;
+    private final Date firstSeen;
+    private final String versionId;
+    private final Date receptionDate;
+    private final Map<String, Object> additionalProperties;
+    private final boolean hasLastEvent;
+    private final Supplier<JsonNode> json;
+    private JsonNode tree;
+
+    ObjectDeviceView(String userId, String unitId, Date firstSeen, String versionId, Date receptionDate, Map<String, Object> additionalProperties, boolean hasLastEvent, Supplier<JsonNode> json) {
+        this.userId = userId;
+        this.unitId = unitId;
+        this.firstSeen = firstSeen;
+        this.versionId = versionId;
+        this.receptionDate = receptionDate;
+        this.additionalProperties = additionalProperties;
+        this.hasLastEvent = hasLastEvent;
+        this.json = json;
+    }
+
+    @Override
+    public Object get(String[] path) {
+        if (path.length == 1) {
+            switch (path[0]) {
+                case "userId":
+                    return userId;
+                case "unitId":
+                    return unitId;
+                case "firstSeen":
+                    return format(firstSeen);
+            }
+        } else if (path.length >= 2 && LAST_EVENT.equals(path[0])) {
+            if (!hasLastEvent) {
+                return null;
+            }
+            switch (path[1]) {
+                case "versionId":
+                    return path.length == 2 ? versionId : null;
+                case "receptionDate":
+                    return path.length == 2 ? format(receptionDate) : null;
+                case "additionalProperties":
+                    return getAdditionalProperty(path);
+            }
+        }
+        return OperatorDeserializer.parseValue(JsonDeviceView.getNode(getTree(), path));
+    }
+
+    private Object getAdditionalProperty(String[] path) {
+        Object value = additionalProperties;
+        for (int tokenIdx = 2; tokenIdx < path.length && value != null; tokenIdx++) {
+            value = value instanceof Map ? ((Map) value).get(path[tokenIdx]) : null;
+        }
+        return normalize(value);
+    }
+
+    private JsonNode getTree() {
+        if (tree == null) {
+            tree = json.get();
+        }
+        return tree;
+    }
+
+    private static String format(Date date) {
+        return date == null ? null : DATE_FORMATTER.format(date.toInstant());
+    }
+
+    private static Object normalize(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof Integer || value instanceof Long || value instanceof Double) {
+            return value;
+        }
+        // Maps, lists and less common types get exactly the representation a JSON round trip would give
+        return OperatorDeserializer.parseValue(MAPPER.valueToTree(value));
+    }
+}
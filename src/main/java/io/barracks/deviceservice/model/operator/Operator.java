@@ -33,4 +33,6 @@ import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 public interface Operator {
 
     boolean matches(JsonNode device);
+
+    boolean matches(DeviceView device);
 }
\ No newline at end of file
@@ -82,7 +82,9 @@ public class OperatorConverter {
     }
 
     public static Criteria toMongoCriteria(Operator operator) {
-        if (operator instanceof LogicalOperator) {
+        if (operator instanceof CompiledOperator) {
+            return toMongoCriteria(((CompiledOperator) operator).getSource());
+        } else if (operator instanceof LogicalOperator) {
             List<Criteria> criteria = ((LogicalOperator) operator).getOperands()
                     .stream()
                     .map(OperatorConverter::toMongoCriteria)
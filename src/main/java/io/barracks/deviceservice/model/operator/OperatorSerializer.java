@@ -40,7 +40,9 @@ public class OperatorSerializer extends JsonSerializer<Operator> {
     }
 
     private void writeOperator(Operator operator, JsonGenerator gen, SerializerProvider serializers) throws IOException {
-        if (operator instanceof LogicalOperator) {
+        if (operator instanceof CompiledOperator) {
+            writeOperator(((CompiledOperator) operator).getSource(), gen, serializers);
+        } else if (operator instanceof LogicalOperator) {
             writeLogicalOperator((LogicalOperator) operator, gen, serializers);
         } else {
             writeComparisonOperator((ComparisonOperator) operator, gen, serializers);
@@ -25,6 +25,7 @@
 package io.barracks.deviceservice.model.operator.comparison;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import io.barracks.deviceservice.model.operator.DeviceView;
 import io.barracks.deviceservice.model.operator.Operator;
 import io.barracks.deviceservice.model.operator.OperatorDeserializer;
 import lombok.*;
@@ -39,10 +40,10 @@ import java.util.regex.Matcher;
 @AllArgsConstructor(access = AccessLevel.PROTECTED)
 public abstract class ComparisonOperator implements Operator {
     static final String KEY_PATTERN = "^(unitId|firstSeen|lastSeen|versionId|customClientData(\\..+)?)$";
-    private static final String[] patterns = new String[]{
-            "^(customClientData)(\\..+)?$",
-            "^lastSeen$",
-            "^versionId$"
+    private static final java.util.regex.Pattern[] patterns = new java.util.regex.Pattern[]{
+            java.util.regex.Pattern.compile("^(customClientData)(\\..+)?$"),
+            java.util.regex.Pattern.compile("^lastSeen$"),
+            java.util.regex.Pattern.compile("^versionId$")
     };
     private static final String[] replacements = new String[]{
             "lastEvent.additionalProperties$2",
@@ -90,10 +91,23 @@ public abstract class ComparisonOperator implements Operator {
         return compare(value);
     }
 
+    @Override
+    public boolean matches(DeviceView device) {
+        return compare(device.get(resolvePath()));
+    }
+
+    public String[] resolvePath() {
+        final StringTokenizer tokenizer = new StringTokenizer(prepareKey(), ".");
+        final String[] path = new String[tokenizer.countTokens()];
+        for (int tokenIdx = 0; tokenIdx < path.length; tokenIdx++) {
+            path[tokenIdx] = tokenizer.nextToken();
+        }
+        return path;
+    }
+
     String prepareKey() {
         for (int patternIdx = 0; patternIdx < patterns.length; patternIdx++) {
-            java.util.regex.Pattern pattern = java.util.regex.Pattern.compile(patterns[patternIdx]);
-            Matcher matcher = pattern.matcher(getKey());
+            Matcher matcher = patterns[patternIdx].matcher(getKey());
             if (matcher.matches()) {
                 return matcher.replaceFirst(replacements[patternIdx]);
             }
@@ -25,6 +25,7 @@
 package io.barracks.deviceservice.model.operator.logical;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import io.barracks.deviceservice.model.operator.DeviceView;
 import io.barracks.deviceservice.model.operator.Operator;
 
 import java.util.List;
@@ -50,4 +51,14 @@ public class AndOperator extends LogicalOperator {
         }
         return true;
     }
+
+    @Override
+    public boolean matches(DeviceView device) {
+        for (Operator operator : getOperands()) {
+            if (!operator.matches(device)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
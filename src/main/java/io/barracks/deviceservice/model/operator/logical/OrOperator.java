@@ -25,6 +25,7 @@
 package io.barracks.deviceservice.model.operator.logical;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import io.barracks.deviceservice.model.operator.DeviceView;
 import io.barracks.deviceservice.model.operator.Operator;
 
 import java.util.List;
@@ -49,4 +50,14 @@ public class OrOperator extends LogicalOperator {
         }
         return false;
     }
+
+    @Override
+    public boolean matches(DeviceView device) {
+        for (Operator operator : getOperands()) {
+            if (operator.matches(device)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+final class BulkWrites {
+    static final int DUPLICATE_KEY_ERROR = 11000;
+
+    private BulkWrites() {
+    }
+
+    /**
+     * Executes an unordered bulk operation and returns the error message of every failed request, keyed by the index
+     * of the request in the bulk.
+     */
+    static Map<Integer, String> execute(BulkWriteOperation bulk) {
+        final Map<Integer, String> failures = new HashMap<>();
+        executeForErrors(bulk).forEach((index, error) -> failures.put(index, error.getMessage()));
+        return failures;
+    }
+
+    /**
+     * Executes an unordered bulk operation and returns the error of every failed request, keyed by the index of the
+     * request in the bulk.
+     */
+    static Map<Integer, BulkWriteError> executeForErrors(BulkWriteOperation bulk) {
+        try {
+            bulk.execute();
+            return Collections.emptyMap();
+        } catch (BulkWriteException e) {
+            if (e.getWriteConcernError() != null) {
+                throw e;
+            }
+            final Map<Integer, BulkWriteError> failures = new HashMap<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                failures.put(error.getIndex(), error);
+            }
+            return failures;
+        }
+    }
+}
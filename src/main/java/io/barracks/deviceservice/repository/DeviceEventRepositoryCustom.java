@@ -24,15 +24,56 @@
 
 package io.barracks.deviceservice.repository;
 
+import io.barracks.deviceservice.model.CursorPage;
 import io.barracks.deviceservice.model.DataSet;
 import io.barracks.deviceservice.model.DeviceEvent;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 
+import javax.annotation.Nullable;
 import java.time.OffsetDateTime;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 public interface DeviceEventRepositoryCustom {
     DataSet getSeenDeviceCount(String userId, OffsetDateTime start, OffsetDateTime end);
 
     Page<DeviceEvent> findByUserIdAndUnitId(String userId, String unitId, boolean onlyChanged, Pageable pageable);
+
+    CursorPage<DeviceEvent> findByUserIdAndUnitId(String userId, String unitId, boolean onlyChanged, @Nullable String cursor, int limit);
+
+    /**
+     * Returns the last event of the device received before the date, or null if there is none.
+     */
+    @Nullable
+    DeviceEvent findLastEventBefore(String userId, String unitId, Date before);
+
+    DeviceEvent insertDeviceEvent(DeviceEvent event);
+
+    /**
+     * Inserts the events, heartbeat records (events with a count) being folded into the record with the same id.
+     */
+    Map<Integer, String> insertDeviceEvents(List<DeviceEvent> events);
+
+    /**
+     * Folds the pings of a heartbeat record into the record with the same id, creating it if necessary.
+     */
+    DeviceEvent foldHeartbeat(DeviceEvent heartbeat);
+
+    List<String> getUserIds();
+
+    /**
+     * Deletes a batch of at most {@code limit} changed or unchanged events of the user last received before the date,
+     * and returns the ids of the deleted events. The last event of each kind of a unit is never deleted, so that the
+     * history of a unit that stopped changing or reporting keeps its last state. The batches are read unit by unit
+     * from the cursor of the previous one, a batch can delete no event while expired events remain, and the deletion
+     * is complete when a batch has no next cursor.
+     */
+    CursorPage<String> deleteEventsReceivedBefore(String userId, boolean changed, Date before, @Nullable String cursor, int limit);
+
+    /**
+     * Returns the average size in bytes of the stored events.
+     */
+    long getAverageEventSize();
 }
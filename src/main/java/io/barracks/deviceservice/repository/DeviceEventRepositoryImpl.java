@@ -24,44 +24,88 @@
 
 package io.barracks.deviceservice.repository;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
+import io.barracks.deviceservice.model.CursorPage;
 import io.barracks.deviceservice.model.DataSet;
 import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceEventDocument;
+import io.barracks.deviceservice.repository.exception.InvalidCursorException;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.aggregation.Aggregation;
 import org.springframework.data.mongodb.core.aggregation.AggregationResults;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.util.StringUtils;
 
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+import java.math.BigDecimal;
 import java.time.OffsetDateTime;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
+import java.util.stream.Collectors;
 
 import static org.springframework.data.mongodb.core.query.Criteria.where;
 import static org.springframework.data.mongodb.core.query.Query.query;
 
 public class DeviceEventRepositoryImpl implements DeviceEventRepositoryCustom {
+    private static final Logger logger = LoggerFactory.getLogger(DeviceEventRepositoryImpl.class);
+    private static final String LEGACY_INDEX = "userId_unitId_idx";
     private static final String USER_ID_KEY = "userId";
     private static final String RECEPTION_DATE_KEY = "receptionDate";
     private static final String UNIT_ID_KEY = "unitId";
     private static final String CHANGED_KEY = "changed";
+    private static final String ID_KEY = "_id";
+    private static final String LAST_RECEPTION_DATE_KEY = "lastReceptionDate";
+    private static final String COUNT_KEY = "count";
+    private static final String EVENT_CURSOR_TYPE = "event";
+    private static final String PURGE_CURSOR_TYPE = "purge";
     private final MongoOperations operations;
+    private final EventBuckets eventBuckets;
 
     @Autowired
-    public DeviceEventRepositoryImpl(MongoOperations operations) {
+    public DeviceEventRepositoryImpl(MongoOperations operations, EventBuckets eventBuckets) {
         this.operations = operations;
+        this.eventBuckets = eventBuckets;
+    }
+
+    /**
+     * Drops the index on the unit and user ids of the events, a prefix of the one on their reception date.
+     */
+    @PostConstruct
+    public void dropLegacyIndex() {
+        try {
+            operations.indexOps(DeviceEventDocument.class).dropIndex(LEGACY_INDEX);
+        } catch (DataAccessException e) {
+            logger.debug("No index " + LEGACY_INDEX + " to drop", e);
+        }
     }
 
     @Override
     public DataSet getSeenDeviceCount(String userId, OffsetDateTime start, OffsetDateTime end) {
+        if (eventBuckets.isEnabled()) {
+            return eventBuckets.getSeenDeviceCount(userId, start, end);
+        }
         ArrayList<Criteria> criterias = new ArrayList<>();
         criterias.add(where(USER_ID_KEY).is(userId));
         if (!start.equals(OffsetDateTime.MIN)) {
-            criterias.add(where(RECEPTION_DATE_KEY).gte(Date.from(start.toInstant())));
+            final Date startDate = Date.from(start.toInstant());
+            criterias.add(new Criteria().orOperator(
+                    where(RECEPTION_DATE_KEY).gte(startDate),
+                    where(LAST_RECEPTION_DATE_KEY).gte(startDate)
+            ));
         }
         if (!end.equals(OffsetDateTime.MAX)) {
             criterias.add(where(RECEPTION_DATE_KEY).lte(Date.from(end.toInstant())));
@@ -69,21 +113,243 @@ public class DeviceEventRepositoryImpl implements DeviceEventRepositoryCustom {
         Aggregation aggregation = Aggregation.newAggregation(
                 Aggregation.match(new Criteria().andOperator(criterias.toArray(new Criteria[0]))),
                 Aggregation.group(UNIT_ID_KEY),
-                Aggregation.group("_id").count().as("total"),
-                Aggregation.group("total").count().as("total")
+                Aggregation.group().count().as("total")
         );
         AggregationResults<DataSet> result = operations.aggregate(aggregation, DeviceEvent.class, DataSet.class);
-        return result.getUniqueMappedResult();
+        // No group is output when no event matches
+        return Optional.ofNullable(result.getUniqueMappedResult()).orElseGet(() -> DataSet.builder().total(BigDecimal.ZERO).build());
     }
 
     @Override
     public Page<DeviceEvent> findByUserIdAndUnitId(String userId, String unitId, boolean onlyChanged, Pageable pageable) {
-        Query query = query(where(USER_ID_KEY).is(userId).and(UNIT_ID_KEY).is(unitId));
-        if (onlyChanged) {
-            query.addCriteria(new Criteria().andOperator(where(CHANGED_KEY).exists(true), where(CHANGED_KEY).is(true)));
+        if (eventBuckets.isEnabled()) {
+            // Bucketed events are always listed newest first
+            return new PageImpl<>(
+                    restoreProperties(userId, unitId, eventBuckets.findEvents(userId, unitId, onlyChanged, null, pageable.getOffset(), pageable.getPageSize())),
+                    pageable,
+                    eventBuckets.countEvents(userId, unitId, onlyChanged)
+            );
         }
+        Query query = getUnitQuery(userId, unitId, onlyChanged);
         long count = operations.count(query, DeviceEvent.class);
-        List<DeviceEvent> deviceEvents = operations.find(query.with(pageable), DeviceEvent.class);
+        List<DeviceEvent> deviceEvents = restoreProperties(userId, unitId, operations.find(query.with(pageable), DeviceEvent.class));
         return new PageImpl<>(deviceEvents, pageable, count);
     }
+
+    @Override
+    public CursorPage<DeviceEvent> findByUserIdAndUnitId(String userId, String unitId, boolean onlyChanged, @Nullable String cursor, int limit) {
+        Date before = null;
+        if (!StringUtils.isEmpty(cursor)) {
+            final String position = PageCursors.decode(EVENT_CURSOR_TYPE, cursor);
+            try {
+                before = new Date(Long.parseLong(position));
+            } catch (NumberFormatException e) {
+                throw new InvalidCursorException(cursor, e);
+            }
+        }
+        final List<DeviceEvent> events;
+        if (eventBuckets.isEnabled()) {
+            events = eventBuckets.findEvents(userId, unitId, onlyChanged, before, 0, limit + 1);
+        } else {
+            final Query query = getUnitQuery(userId, unitId, onlyChanged);
+            if (before != null) {
+                query.addCriteria(where(RECEPTION_DATE_KEY).lt(before));
+            }
+            // Events of a unit have distinct reception dates, the newest ones come first
+            query.with(new Sort(Sort.Direction.DESC, RECEPTION_DATE_KEY)).limit(limit + 1);
+            events = operations.find(query, DeviceEvent.class);
+        }
+        return PageCursors.toPage(restoreProperties(userId, unitId, events), limit, EVENT_CURSOR_TYPE, event -> String.valueOf(event.getReceptionDate().getTime()));
+    }
+
+    @Override
+    @Nullable
+    public DeviceEvent findLastEventBefore(String userId, String unitId, Date before) {
+        final List<DeviceEvent> events = eventBuckets.isEnabled()
+                ? eventBuckets.findEvents(userId, unitId, false, before, 0, 1)
+                : findEvents(userId, unitId, where(RECEPTION_DATE_KEY).lt(before), Sort.Direction.DESC, 1);
+        return restoreProperties(userId, unitId, events).stream().findFirst().orElse(null);
+    }
+
+    private List<DeviceEvent> restoreProperties(String userId, String unitId, List<DeviceEvent> events) {
+        return PropertyDeltas.restore(events, (before, limit) -> {
+            if (eventBuckets.isEnabled()) {
+                return eventBuckets.findEvents(userId, unitId, false, before, 0, limit);
+            }
+            return findEvents(userId, unitId, where(RECEPTION_DATE_KEY).lt(before), Sort.Direction.DESC, limit);
+        });
+    }
+
+    private List<DeviceEvent> findEvents(String userId, String unitId, Criteria receptionDate, Sort.Direction direction, int limit) {
+        final Query query = query(where(USER_ID_KEY).is(userId).and(UNIT_ID_KEY).is(unitId))
+                .addCriteria(receptionDate)
+                .with(new Sort(direction, RECEPTION_DATE_KEY))
+                .limit(limit);
+        return operations.find(query, DeviceEvent.class);
+    }
+
+    private Query getUnitQuery(String userId, String unitId, boolean onlyChanged) {
+        final Query query = query(where(USER_ID_KEY).is(userId).and(UNIT_ID_KEY).is(unitId));
+        if (onlyChanged) {
+            query.addCriteria(new Criteria().andOperator(where(CHANGED_KEY).exists(true), where(CHANGED_KEY).is(true)));
+        }
+        return query;
+    }
+
+    @Override
+    public DeviceEvent insertDeviceEvent(DeviceEvent event) {
+        if (eventBuckets.isEnabled()) {
+            return eventBuckets.insertDeviceEvent(event);
+        }
+        final DeviceEvent toInsert = event.getId() == null ? event.toBuilder().id(new ObjectId().toString()).build() : event;
+        if (eventBuckets.isDualWrite()) {
+            // The buckets are written first, so that the migration finds there the events it reads from this layout
+            eventBuckets.insertDeviceEvent(toInsert);
+        }
+        final DBObject document = PropertyDeltas.write(operations.getConverter(), toInsert);
+        operations.execute(DeviceEvent.class, collection -> collection.insert(document));
+        return toInsert;
+    }
+
+    @Override
+    public Map<Integer, String> insertDeviceEvents(List<DeviceEvent> events) {
+        if (events.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        if (eventBuckets.isEnabled()) {
+            return eventBuckets.insertDeviceEvents(events);
+        }
+        final Map<Integer, String> failures = eventBuckets.isDualWrite() ? new HashMap<>(eventBuckets.insertDeviceEvents(events)) : new HashMap<>();
+        final BulkWriteOperation bulk = operations.getCollection(operations.getCollectionName(DeviceEvent.class))
+                .initializeUnorderedBulkOperation();
+        final List<Integer> bulkIndexes = new ArrayList<>(events.size());
+        for (int eventIdx = 0; eventIdx < events.size(); eventIdx++) {
+            final DeviceEvent event = events.get(eventIdx);
+            if (failures.containsKey(eventIdx)) {
+                continue;
+            }
+            if (event.getCount() != null) {
+                bulk.find(new BasicDBObject(ID_KEY, event.getId())).upsert().updateOne(getHeartbeatUpdate(event));
+            } else {
+                bulk.insert(PropertyDeltas.write(operations.getConverter(), event));
+            }
+            bulkIndexes.add(eventIdx);
+        }
+        if (!bulkIndexes.isEmpty()) {
+            BulkWrites.execute(bulk).forEach((bulkIdx, error) -> failures.put(bulkIndexes.get(bulkIdx), error));
+        }
+        return failures;
+    }
+
+    @Override
+    public DeviceEvent foldHeartbeat(DeviceEvent heartbeat) {
+        if (eventBuckets.isEnabled()) {
+            return eventBuckets.foldHeartbeat(heartbeat);
+        }
+        if (eventBuckets.isDualWrite()) {
+            eventBuckets.foldHeartbeat(heartbeat);
+        }
+        final Query query = query(where(ID_KEY).is(heartbeat.getId()));
+        final Update update = Update.fromDBObject(getHeartbeatUpdate(heartbeat));
+        try {
+            operations.upsert(query, update, DeviceEvent.class);
+        } catch (DuplicateKeyException e) {
+            // Another ping created the record concurrently, it now exists and the upsert only updates it
+            operations.upsert(query, update, DeviceEvent.class);
+        }
+        return heartbeat;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<String> getUserIds() {
+        if (eventBuckets.isEnabled()) {
+            return eventBuckets.getUserIds();
+        }
+        return operations.getCollection(operations.getCollectionName(DeviceEventDocument.class)).distinct(USER_ID_KEY);
+    }
+
+    @Override
+    public CursorPage<String> deleteEventsReceivedBefore(String userId, boolean changed, Date before, @Nullable String cursor, int limit) {
+        if (eventBuckets.isEnabled()) {
+            return eventBuckets.deleteEventsReceivedBefore(userId, changed, before, cursor, limit);
+        }
+        // Heartbeat records are kept as long as their last ping is recent
+        final Criteria criteria = where(USER_ID_KEY).is(userId)
+                .and(RECEPTION_DATE_KEY).lt(before)
+                .and(LAST_RECEPTION_DATE_KEY).not().gte(before);
+        if (cursor != null) {
+            criteria.and(UNIT_ID_KEY).gte(PageCursors.decode(PURGE_CURSOR_TYPE, cursor));
+        }
+        final Query query = query(criteria).addCriteria(getKindCriteria(changed));
+        query.fields().include(ID_KEY).include(UNIT_ID_KEY).include(RECEPTION_DATE_KEY);
+        // Expired events are read unit by unit, a batch of at least two events always deleting one of them
+        final int batchLimit = Math.max(2, limit);
+        query.with(new Sort(Sort.Direction.ASC, UNIT_ID_KEY, RECEPTION_DATE_KEY)).limit(batchLimit + 1);
+        final CursorPage<DeviceEvent> batch = PageCursors.toUnitPage(
+                operations.find(query, DeviceEvent.class, operations.getCollectionName(DeviceEventDocument.class)),
+                batchLimit,
+                PURGE_CURSOR_TYPE,
+                DeviceEvent::getUnitId
+        );
+        // The last event of each kind is kept so that the history of a long stable unit is never empty
+        final List<DeviceEvent> expired = new ArrayList<>();
+        batch.getContent().stream().collect(Collectors.groupingBy(DeviceEvent::getUnitId)).forEach((unitId, unitCandidates) -> {
+            final String lastId = findLastEventId(userId, unitId, changed);
+            unitCandidates.stream().filter(event -> !event.getId().equals(lastId)).forEach(expired::add);
+        });
+        if (expired.isEmpty()) {
+            return new CursorPage<>(Collections.emptyList(), batch.getNextCursor());
+        }
+        // The events whose chain of differences starts with an expired event become full copies first
+        expired.stream().collect(Collectors.groupingBy(DeviceEvent::getUnitId)).forEach((unitId, unitExpired) ->
+                PropertyDeltas.rebase(
+                        unitExpired,
+                        (from, batchSize) -> findEvents(userId, unitId, where(RECEPTION_DATE_KEY).gte(from), Sort.Direction.ASC, batchSize),
+                        (eventsBefore, batchSize) -> findEvents(userId, unitId, where(RECEPTION_DATE_KEY).lt(eventsBefore), Sort.Direction.DESC, batchSize)
+                ).forEach(event -> operations.updateFirst(
+                        query(where(ID_KEY).is(event.getId())),
+                        PropertyDeltas.getFullCopyUpdate("", event),
+                        DeviceEventDocument.class
+                ))
+        );
+        final List<String> ids = expired.stream().map(DeviceEvent::getId).collect(Collectors.toList());
+        operations.remove(query(where(ID_KEY).in(ids)), DeviceEventDocument.class);
+        return new CursorPage<>(ids, batch.getNextCursor());
+    }
+
+    @Nullable
+    private String findLastEventId(String userId, String unitId, boolean changed) {
+        final Query query = query(where(USER_ID_KEY).is(userId).and(UNIT_ID_KEY).is(unitId))
+                .addCriteria(getKindCriteria(changed))
+                .with(new Sort(Sort.Direction.DESC, RECEPTION_DATE_KEY))
+                .limit(1);
+        query.fields().include(ID_KEY);
+        final DeviceEvent last = operations.findOne(query, DeviceEvent.class, operations.getCollectionName(DeviceEventDocument.class));
+        return last == null ? null : last.getId();
+    }
+
+    private Criteria getKindCriteria(boolean changed) {
+        return changed ? where(CHANGED_KEY).is(true) : where(CHANGED_KEY).ne(true);
+    }
+
+    @Override
+    public long getAverageEventSize() {
+        if (eventBuckets.isEnabled()) {
+            return eventBuckets.getAverageEventSize();
+        }
+        final Object size = operations.executeCommand(new BasicDBObject("collStats", operations.getCollectionName(DeviceEventDocument.class)))
+                .get("avgObjSize");
+        return size instanceof Number ? ((Number) size).longValue() : 0;
+    }
+
+    private DBObject getHeartbeatUpdate(DeviceEvent heartbeat) {
+        final DBObject document = PropertyDeltas.write(operations.getConverter(), heartbeat);
+        document.removeField(ID_KEY);
+        document.removeField(LAST_RECEPTION_DATE_KEY);
+        document.removeField(COUNT_KEY);
+        return new BasicDBObject("$setOnInsert", document)
+                .append("$max", new BasicDBObject(LAST_RECEPTION_DATE_KEY, heartbeat.getLastReceptionDate()))
+                .append("$inc", new BasicDBObject(COUNT_KEY, heartbeat.getCount()));
+    }
 }
@@ -24,18 +24,24 @@
 
 package io.barracks.deviceservice.repository;
 
+import io.barracks.deviceservice.model.CountStrategy;
+import io.barracks.deviceservice.model.CountedPage;
+import io.barracks.deviceservice.model.CursorPage;
 import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DataSetMatrix;
 import io.barracks.deviceservice.model.Device;
 import io.barracks.deviceservice.model.DeviceConfiguration;
 import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceFields;
+import io.barracks.deviceservice.model.Segment;
 import io.barracks.deviceservice.model.operator.Operator;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.util.CloseableIterator;
 
+import javax.annotation.Nullable;
 import java.time.OffsetDateTime;
-import java.util.Date;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
 
 public interface DeviceRepositoryCustom {
     Device updateConfiguration(String userId, String unitId, DeviceConfiguration configuration);
@@ -44,19 +50,93 @@ public interface DeviceRepositoryCustom {
 
     Device updateFirstSeen(String userId, String unitId, Date creationDate);
 
+    String CONCURRENT_UPDATE_ERROR = "The device was updated concurrently";
+
+    /**
+     * Replaces the last event of the device if it is still at the given revision, or has none, and returns the revision
+     * and first seen date of the device before the update, or null if the device was created.
+     *
+     * @throws org.springframework.dao.OptimisticLockingFailureException if the device was updated since the revision
+     */
+    @Nullable
+    Device upsertDeviceEvent(String userId, String unitId, DeviceEvent event, @Nullable Long revision, @Nullable DeviceConfiguration defaultConfiguration);
+
+    /**
+     * Updates the devices, each one only if it is still at the revision it holds. A device updated concurrently fails
+     * with {@link #CONCURRENT_UPDATE_ERROR}.
+     */
+    Map<Integer, String> updateDevices(List<Device> devices);
+
+    /**
+     * Puts the device back in the given state after it was claimed from it, when the events of the claim could not be
+     * stored, removing it if the claim created it. The device is left alone if it was updated since the claim.
+     */
+    void revertDevice(Device previous, boolean created);
+
+    List<Device> findByUserIdAndUnitIdIn(String userId, Collection<String> unitIds);
+
     DataSet getDevicesCountPerVersionId(String userId);
 
     DataSet getLastSeenDeviceCount(String userId, OffsetDateTime start, OffsetDateTime end);
 
     DataSet getDeviceCountPerUserId();
 
+    /**
+     * Counts the devices of the user for each segment and version. The devices that are not in one of the given
+     * segments are counted under {@link Segment#OTHER_ID}.
+     */
+    DataSetMatrix getDeviceCountPerSegmentIdAndVersionId(String userId, List<String> segmentIds);
+
+    /**
+     * Counts the devices of the user for the most frequent values of a custom client data key, the total being the
+     * number of devices having the key.
+     */
+    DataSet getDeviceCountPerValue(String userId, String key, int limit);
+
     Page<Device> findByUserId(String userId, Optional<Operator> searchFilter, Pageable pageable);
 
+    CountedPage<Device> findByUserId(String userId, Optional<Operator> searchFilter, Pageable pageable, CountStrategy count, DeviceFields fields);
+
+    CursorPage<Device> findByUserId(String userId, Optional<Operator> searchFilter, @Nullable String cursor, int limit, DeviceFields fields);
+
     Page<Device> findBySegmentId(String segmentId, Pageable pageable);
 
+    CountedPage<Device> findBySegmentId(String segmentId, Pageable pageable, CountStrategy count, DeviceFields fields);
+
+    CursorPage<Device> findBySegmentId(String segmentId, @Nullable String cursor, int limit, DeviceFields fields);
+
     Page<Device> findDevicesNotIn(String userId, List<String> segmentIds, Pageable pageable);
 
+    CountedPage<Device> findDevicesNotIn(String userId, List<String> segmentIds, Pageable pageable, CountStrategy count, DeviceFields fields);
+
+    CursorPage<Device> findDevicesNotIn(String userId, List<String> segmentIds, @Nullable String cursor, int limit, DeviceFields fields);
+
     Page<Device> findBySegmentIdAndVersionId(String segmentId, String versionId, Pageable pageable);
 
+    CountedPage<Device> findBySegmentIdAndVersionId(String segmentId, String versionId, Pageable pageable, CountStrategy count, DeviceFields fields);
+
+    CursorPage<Device> findBySegmentIdAndVersionId(String segmentId, String versionId, @Nullable String cursor, int limit, DeviceFields fields);
+
     Page<Device> findForUserIdAndVersionIdAndNotSegmentIds(String userId, String versionId, List<String> segmentIds, Pageable pageable);
+
+    CountedPage<Device> findForUserIdAndVersionIdAndNotSegmentIds(String userId, String versionId, List<String> segmentIds, Pageable pageable, CountStrategy count, DeviceFields fields);
+
+    CursorPage<Device> findForUserIdAndVersionIdAndNotSegmentIds(String userId, String versionId, List<String> segmentIds, @Nullable String cursor, int limit, DeviceFields fields);
+
+    /**
+     * Returns every {@code rangeSize}-th id of the devices of the user in ascending order, the first id of each range
+     * of {@code rangeSize} devices, probing one boundary after the other rather than reading every id.
+     */
+    List<String> findIdBoundariesByUserId(String userId, int rangeSize);
+
+    /**
+     * Streams the devices of the user matching the filter with an id in {@code [fromId, toId)}, a null bound leaving
+     * the range open on this side.
+     */
+    CloseableIterator<Device> streamByUserId(String userId, Optional<Operator> searchFilter, DeviceFields fields, @Nullable String fromId, @Nullable String toId);
+
+    /**
+     * Streams the devices of all the users, the devices of a user coming one after the other.
+     */
+    CloseableIterator<Device> streamAllByUserId(DeviceFields fields);
 }
\ No newline at end of file
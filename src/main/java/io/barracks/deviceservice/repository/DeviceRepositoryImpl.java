@@ -24,32 +24,54 @@
 
 package io.barracks.deviceservice.repository;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
+import io.barracks.deviceservice.model.CountStrategy;
+import io.barracks.deviceservice.model.CountedPage;
+import io.barracks.deviceservice.model.CursorPage;
 import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DataSetMatrix;
 import io.barracks.deviceservice.model.Device;
 import io.barracks.deviceservice.model.DeviceConfiguration;
 import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceFields;
+import io.barracks.deviceservice.model.Segment;
 import io.barracks.deviceservice.model.operator.Operator;
 import io.barracks.deviceservice.model.operator.OperatorConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoOperations;
-import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.aggregation.Fields;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.ClassTypeInformation;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.util.StringUtils;
 
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
 import java.math.BigDecimal;
 import java.time.OffsetDateTime;
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static org.springframework.data.mongodb.core.query.Criteria.where;
 import static org.springframework.data.mongodb.core.query.Query.query;
 
 public class DeviceRepositoryImpl implements DeviceRepositoryCustom {
+    private static final Logger logger = LoggerFactory.getLogger(DeviceRepositoryImpl.class);
+    private static final List<String> LEGACY_INDEXES = Arrays.asList("userId_idx", "segmentId_idx", "userId_receptionDate_idx");
     private static final String EVENT_KEY = "event";
     private static final String UNIT_ID_KEY = "unitId";
     private static final String USER_ID_KEY = "userId";
@@ -58,11 +80,36 @@ public class DeviceRepositoryImpl implements DeviceRepositoryCustom {
     private static final String RECEPTION_DATE_KEY = "receptionDate";
     private static final String FIRST_SEEN_KEY = "firstSeen";
     private static final String SEGMENT_ID_KEY = "event.segmentId";
+    private static final String ID_KEY = "_id";
+    private static final String COUNT_KEY = "count";
+    private static final String SEGMENT_GROUP_KEY = "segmentId";
+    private static final String VERSION_GROUP_KEY = "versionId";
+    private static final String CUSTOM_CLIENT_DATA_KEY = "customClientData";
+    private static final String ADDITIONAL_PROPERTIES_KEY = "event.additionalProperties";
+    private static final String DEVICE_CURSOR_TYPE = "device";
+    private static final String REVISION_KEY = "revision";
     private final MongoOperations operations;
+    private final PageCounter pageCounter;
 
     @Autowired
-    public DeviceRepositoryImpl(MongoOperations operations) {
+    public DeviceRepositoryImpl(MongoOperations operations, PageCounter pageCounter) {
         this.operations = operations;
+        this.pageCounter = pageCounter;
+    }
+
+    /**
+     * Drops the indexes prefixing another one and the one on the reception date of the last event, which every ping
+     * rewrote.
+     */
+    @PostConstruct
+    public void dropLegacyIndexes() {
+        for (String index : LEGACY_INDEXES) {
+            try {
+                operations.indexOps(Device.class).dropIndex(index);
+            } catch (DataAccessException e) {
+                logger.debug("No index " + index + " to drop", e);
+            }
+        }
     }
 
     @Override
@@ -80,10 +127,99 @@ public class DeviceRepositoryImpl implements DeviceRepositoryCustom {
         return updateDocument(userId, unitId, FIRST_SEEN_KEY, creationDate);
     }
 
+    @Override
+    @Nullable
+    public Device upsertDeviceEvent(String userId, String unitId, DeviceEvent event, @Nullable Long revision, @Nullable DeviceConfiguration defaultConfiguration) {
+        final Update update = Update.fromDBObject(new BasicDBObject("$min", new BasicDBObject(FIRST_SEEN_KEY, event.getReceptionDate())))
+                .set(EVENT_KEY, event)
+                .inc(REVISION_KEY, 1L);
+        if (defaultConfiguration != null) {
+            update.setOnInsert(CONFIGURATION_KEY, defaultConfiguration);
+        }
+        // The previous document tells whether the device was created without reading it first
+        final Query query = new Query(getRevisionCriteria(userId, unitId, revision));
+        query.fields().include(REVISION_KEY).include(FIRST_SEEN_KEY);
+        try {
+            return operations.findAndModify(query, update, new FindAndModifyOptions().upsert(true).returnNew(false), Device.class);
+        } catch (DuplicateKeyException e) {
+            // The device is no longer at the expected revision, so the upsert tried to insert it again
+            throw new OptimisticLockingFailureException(CONCURRENT_UPDATE_ERROR, e);
+        }
+    }
+
+    @Override
+    public Map<Integer, String> updateDevices(List<Device> devices) {
+        if (devices.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final BulkWriteOperation bulk = operations.getCollection(operations.getCollectionName(Device.class))
+                .initializeUnorderedBulkOperation();
+        for (Device device : devices) {
+            final BasicDBObject update = new BasicDBObject();
+            if (device.getLastEvent() != null) {
+                update.append("$set", new BasicDBObject(EVENT_KEY, toMongoType(device.getLastEvent(), DeviceEvent.class)));
+            }
+            if (device.getFirstSeen() != null) {
+                update.append("$min", new BasicDBObject(FIRST_SEEN_KEY, device.getFirstSeen()));
+            }
+            if (device.getConfiguration() != null) {
+                update.append("$setOnInsert", new BasicDBObject(CONFIGURATION_KEY, toMongoType(device.getConfiguration(), DeviceConfiguration.class)));
+            }
+            update.append("$inc", new BasicDBObject(REVISION_KEY, 1L));
+            bulk.find(getRevisionCriteria(device.getUserId(), device.getUnitId(), device.getRevision()).getCriteriaObject())
+                    .upsert()
+                    .updateOne(update);
+        }
+        final Map<Integer, String> failures = new HashMap<>();
+        BulkWrites.executeForErrors(bulk).forEach((updateIdx, error) -> failures.put(
+                updateIdx,
+                error.getCode() == BulkWrites.DUPLICATE_KEY_ERROR ? CONCURRENT_UPDATE_ERROR : error.getMessage()
+        ));
+        return failures;
+    }
+
+    @Override
+    public void revertDevice(Device previous, boolean created) {
+        final long claimedRevision = previous.getRevision() == null ? 1L : previous.getRevision() + 1;
+        final Query query = new Query(getRevisionCriteria(previous.getUserId(), previous.getUnitId(), claimedRevision));
+        if (created) {
+            operations.remove(query, Device.class);
+            return;
+        }
+        // The revision keeps growing so that the instances which know the claimed state read the device again
+        final Update update = new Update().inc(REVISION_KEY, 1L);
+        if (previous.getLastEvent() == null) {
+            update.unset(EVENT_KEY);
+        } else {
+            update.set(EVENT_KEY, previous.getLastEvent());
+        }
+        if (previous.getFirstSeen() == null) {
+            update.unset(FIRST_SEEN_KEY);
+        } else {
+            update.set(FIRST_SEEN_KEY, previous.getFirstSeen());
+        }
+        operations.updateFirst(query, update, Device.class);
+    }
+
+    private Criteria getRevisionCriteria(String userId, String unitId, @Nullable Long revision) {
+        final Criteria criteria = where(USER_ID_KEY).is(userId).and(UNIT_ID_KEY).is(unitId);
+        return revision == null ? criteria.and(REVISION_KEY).exists(false) : criteria.and(REVISION_KEY).is(revision);
+    }
+
+    private Object toMongoType(Object value, Class<?> type) {
+        return operations.getConverter().convertToMongoType(value, ClassTypeInformation.from(type));
+    }
+
+    @Override
+    public List<Device> findByUserIdAndUnitIdIn(String userId, Collection<String> unitIds) {
+        return operations.find(query(where(USER_ID_KEY).is(userId).and(UNIT_ID_KEY).in(unitIds)), Device.class);
+    }
+
     <T> Device updateDocument(String userId, String unitId, String documentKey, T value) {
+        // A new revision makes the instances which know the previous state of the device read it again
         return operations.findAndModify(
                 Query.query(where(USER_ID_KEY).is(userId).and(UNIT_ID_KEY).is(unitId)),
-                Update.update(documentKey, value),
+                Update.update(documentKey, value).inc(REVISION_KEY, 1L),
                 new FindAndModifyOptions().upsert(true).returnNew(true),
                 Device.class
         );
@@ -91,108 +227,285 @@ public class DeviceRepositoryImpl implements DeviceRepositoryCustom {
 
     @Override
     public DataSet getDevicesCountPerVersionId(String userId) {
-        Criteria criteria = where(USER_ID_KEY).is(userId).and(EVENT_KEY).exists(true);
-        Query query = Query.query(criteria);
-        List versionIds = operations.getCollection(Device.class.getDeclaredAnnotation(Document.class).collection())
-                .distinct(VERSION_ID_KEY, query.getQueryObject());
-        DataSet.Builder builder = DataSet.builder();
-        long total = 0;
-        for (Object version : versionIds) {
-            Criteria countCriteria = where(USER_ID_KEY).is(userId).and(EVENT_KEY).exists(true).and(VERSION_ID_KEY).is(version);
-            Query countQuery = Query.query(countCriteria);
-            long count = operations.count(countQuery, Device.class);
-            total += count;
-            builder.value((String) version, BigDecimal.valueOf(count));
-        }
-        return builder.total(BigDecimal.valueOf(total)).build();
+        // Devices without event have no version and are grouped under a null key
+        return countPerValue(Aggregation.newAggregation(
+                Aggregation.match(where(USER_ID_KEY).is(userId)),
+                Aggregation.sort(Sort.Direction.ASC, VERSION_ID_KEY),
+                Aggregation.group(VERSION_ID_KEY).count().as(COUNT_KEY)
+        ));
     }
 
     @Override
     public DataSet getLastSeenDeviceCount(String userId, OffsetDateTime start, OffsetDateTime end) {
-        ArrayList<Criteria> criteria = new ArrayList<>();
-        criteria.add(where(USER_ID_KEY).is(userId));
-        criteria.add(where(EVENT_KEY).exists(true));
-        if (!start.equals(OffsetDateTime.MIN)) {
-            criteria.add(where(EVENT_KEY + "." + RECEPTION_DATE_KEY).gte(Date.from(start.toInstant())));
-        }
-        if (!end.equals(OffsetDateTime.MAX)) {
-            criteria.add(where(EVENT_KEY + "." + RECEPTION_DATE_KEY).lte(Date.from(end.toInstant())));
+        final Criteria criteria = where(USER_ID_KEY).is(userId);
+        if (start.equals(OffsetDateTime.MIN) && end.equals(OffsetDateTime.MAX)) {
+            criteria.and(EVENT_KEY).exists(true);
+        } else {
+            // A bound on the reception date already excludes the devices without event
+            final Criteria receptionDate = criteria.and(EVENT_KEY + "." + RECEPTION_DATE_KEY);
+            if (!start.equals(OffsetDateTime.MIN)) {
+                receptionDate.gte(Date.from(start.toInstant()));
+            }
+            if (!end.equals(OffsetDateTime.MAX)) {
+                receptionDate.lte(Date.from(end.toInstant()));
+            }
         }
-        Query query = Query.query(new Criteria().andOperator(criteria.toArray(new Criteria[0])));
-        return DataSet.builder().total(BigDecimal.valueOf(operations.count(query, Device.class))).build();
+        return DataSet.builder().total(BigDecimal.valueOf(operations.count(query(criteria), Device.class))).build();
     }
 
     @Override
     public DataSet getDeviceCountPerUserId() {
-        final List<?> userIds = operations.getCollection(operations.getCollectionName(Device.class)).distinct(USER_ID_KEY);
-        final Map<String, BigDecimal> values = userIds.stream()
-                .collect(Collectors.toMap(
-                        id -> (String) id,
-                        id -> BigDecimal.valueOf(operations.count(query(where(USER_ID_KEY).is(id)), Device.class))
-                ));
-        final BigDecimal total = values.values().stream().reduce(BigDecimal.ZERO, BigDecimal::add);
-        return DataSet.builder().values(values).total(total).build();
+        return countPerValue(Aggregation.newAggregation(
+                Aggregation.sort(Sort.Direction.ASC, USER_ID_KEY),
+                Aggregation.group(USER_ID_KEY).count().as(COUNT_KEY)
+        ));
     }
 
     @Override
-    public Page<Device> findByUserId(String userId, Optional<Operator> searchFilter, Pageable pageable) {
-        final Query query = query(where(USER_ID_KEY).is(userId));
-        if (searchFilter.isPresent()) {
-            query.addCriteria(OperatorConverter.toMongoCriteria(searchFilter.get()));
+    public DataSetMatrix getDeviceCountPerSegmentIdAndVersionId(String userId, List<String> segmentIds) {
+        final Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(where(USER_ID_KEY).is(userId)),
+                Aggregation.sort(Sort.Direction.ASC, SEGMENT_ID_KEY, VERSION_ID_KEY),
+                Aggregation.group(Fields.from(
+                        Fields.field(SEGMENT_GROUP_KEY, SEGMENT_ID_KEY),
+                        Fields.field(VERSION_GROUP_KEY, VERSION_ID_KEY)
+                )).count().as(COUNT_KEY)
+        );
+        final AggregationResults<DBObject> results = operations.aggregate(aggregation, operations.getCollectionName(Device.class), DBObject.class);
+
+        // Every active segment is listed, in order, even when it has no device
+        final Map<String, Map<String, Long>> counts = new LinkedHashMap<>();
+        for (String segmentId : segmentIds) {
+            counts.put(segmentId, new TreeMap<>());
         }
-        final long count = operations.count(query, Device.class);
-        final List<Device> devices = operations.find(query.with(pageable), Device.class);
-        return new PageImpl<>(devices, pageable, count);
+        counts.put(Segment.OTHER_ID, new TreeMap<>());
+        for (DBObject result : results) {
+            final DBObject group = (DBObject) result.get(ID_KEY);
+            final Object versionId = group.get(VERSION_GROUP_KEY);
+            if (versionId != null) {
+                final Object segmentId = group.get(SEGMENT_GROUP_KEY);
+                final String row = segmentId != null && counts.containsKey(segmentId.toString()) ? segmentId.toString() : Segment.OTHER_ID;
+                counts.get(row).merge(versionId.toString(), ((Number) result.get(COUNT_KEY)).longValue(), Long::sum);
+            }
+        }
+
+        final DataSetMatrix.Builder matrix = DataSetMatrix.builder();
+        long total = 0;
+        for (Map.Entry<String, Map<String, Long>> row : counts.entrySet()) {
+            final DataSet.Builder dataSet = DataSet.builder();
+            long rowTotal = 0;
+            for (Map.Entry<String, Long> count : row.getValue().entrySet()) {
+                dataSet.value(count.getKey(), BigDecimal.valueOf(count.getValue()));
+                rowTotal += count.getValue();
+            }
+            matrix.value(row.getKey(), dataSet.total(BigDecimal.valueOf(rowTotal)).build());
+            total += rowTotal;
+        }
+        return matrix.total(BigDecimal.valueOf(total)).build();
+    }
+
+    @Override
+    public DataSet getDeviceCountPerValue(String userId, String key, int limit) {
+        final String path = ADDITIONAL_PROPERTIES_KEY + key.substring(CUSTOM_CLIENT_DATA_KEY.length());
+        final Criteria criteria = where(USER_ID_KEY).is(userId).and(path).exists(true);
+        final Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(criteria),
+                Aggregation.group(path).count().as(COUNT_KEY),
+                Aggregation.sort(Sort.Direction.DESC, COUNT_KEY),
+                Aggregation.limit(limit)
+        );
+        final AggregationResults<DBObject> results = operations.aggregate(aggregation, operations.getCollectionName(Device.class), DBObject.class);
+        final DataSet.Builder builder = DataSet.builder();
+        for (DBObject result : results) {
+            builder.value(String.valueOf(result.get(ID_KEY)), BigDecimal.valueOf(((Number) result.get(COUNT_KEY)).longValue()));
+        }
+        return builder.total(BigDecimal.valueOf(operations.count(query(criteria), Device.class))).build();
+    }
+
+    /**
+     * Sums the counts of the groups of the aggregation, each group with a key becoming a value of the data set. The
+     * aggregations sort on their group key first so that they are read from an index holding every field they use.
+     */
+    private DataSet countPerValue(Aggregation aggregation) {
+        final AggregationResults<DBObject> results = operations.aggregate(aggregation, operations.getCollectionName(Device.class), DBObject.class);
+        final DataSet.Builder builder = DataSet.builder();
+        long total = 0;
+        for (DBObject result : results) {
+            final Object value = result.get(ID_KEY);
+            if (value != null) {
+                final long count = ((Number) result.get(COUNT_KEY)).longValue();
+                builder.value(value.toString(), BigDecimal.valueOf(count));
+                total += count;
+            }
+        }
+        return builder.total(BigDecimal.valueOf(total)).build();
+    }
+
+    @Override
+    public Page<Device> findByUserId(String userId, Optional<Operator> searchFilter, Pageable pageable) {
+        return findByUserId(userId, searchFilter, pageable, CountStrategy.EXACT, DeviceFields.ALL);
+    }
+
+    @Override
+    public CountedPage<Device> findByUserId(String userId, Optional<Operator> searchFilter, Pageable pageable, CountStrategy count, DeviceFields fields) {
+        return pageCounter.findPage(project(getUserQuery(userId, searchFilter), fields), Device.class, pageable, count);
+    }
+
+    @Override
+    public CursorPage<Device> findByUserId(String userId, Optional<Operator> searchFilter, @Nullable String cursor, int limit, DeviceFields fields) {
+        return findPageAfter(project(getUserQuery(userId, searchFilter), fields), cursor, limit);
     }
 
     @Override
     public Page<Device> findBySegmentId(String segmentId, Pageable pageable) {
-        final Query query = query(where(SEGMENT_ID_KEY).is(segmentId));
-        final long count = operations.count(query, Device.class);
-        final List<Device> devices = operations.find(query.with(pageable), Device.class);
-        return new PageImpl<>(devices, pageable, count);
+        return findBySegmentId(segmentId, pageable, CountStrategy.EXACT, DeviceFields.ALL);
+    }
+
+    @Override
+    public CountedPage<Device> findBySegmentId(String segmentId, Pageable pageable, CountStrategy count, DeviceFields fields) {
+        return pageCounter.findPage(project(query(where(SEGMENT_ID_KEY).is(segmentId)), fields), Device.class, pageable, count);
+    }
+
+    @Override
+    public CursorPage<Device> findBySegmentId(String segmentId, @Nullable String cursor, int limit, DeviceFields fields) {
+        return findPageAfter(project(query(where(SEGMENT_ID_KEY).is(segmentId)), fields), cursor, limit);
     }
 
     @Override
     public Page<Device> findDevicesNotIn(String userId, List<String> segmentIds, Pageable pageable) {
-        final Query query = query(
-                new Criteria().andOperator(
-                        where(USER_ID_KEY).is(userId),
-                        where(EVENT_KEY).exists(true),
-                        new Criteria().orOperator(
-                                where(SEGMENT_ID_KEY).nin(segmentIds),
-                                where(SEGMENT_ID_KEY).exists(false)
-                        )
-                )
-        );
-        final long count = operations.count(query, Device.class);
-        final List<Device> configurations = operations.find(query.with(pageable), Device.class);
-        return new PageImpl<>(configurations, pageable, count);
+        return findDevicesNotIn(userId, segmentIds, pageable, CountStrategy.EXACT, DeviceFields.ALL);
+    }
+
+    @Override
+    public CountedPage<Device> findDevicesNotIn(String userId, List<String> segmentIds, Pageable pageable, CountStrategy count, DeviceFields fields) {
+        return pageCounter.findPage(project(query(getNotInSegmentsCriteria(userId, segmentIds)), fields), Device.class, pageable, count);
+    }
+
+    @Override
+    public CursorPage<Device> findDevicesNotIn(String userId, List<String> segmentIds, @Nullable String cursor, int limit, DeviceFields fields) {
+        return findPageAfter(project(query(getNotInSegmentsCriteria(userId, segmentIds)), fields), cursor, limit);
     }
 
     @Override
     public Page<Device> findBySegmentIdAndVersionId(String segmentId, String versionId, Pageable pageable) {
-        final Query query = query(where(SEGMENT_ID_KEY).is(segmentId).and(VERSION_ID_KEY).is(versionId));
-        final long count = operations.count(query, Device.class);
-        final List<Device> devices = operations.find(query.with(pageable), Device.class);
-        return new PageImpl<>(devices, pageable, count);
+        return findBySegmentIdAndVersionId(segmentId, versionId, pageable, CountStrategy.EXACT, DeviceFields.ALL);
+    }
+
+    @Override
+    public CountedPage<Device> findBySegmentIdAndVersionId(String segmentId, String versionId, Pageable pageable, CountStrategy count, DeviceFields fields) {
+        return pageCounter.findPage(project(query(where(SEGMENT_ID_KEY).is(segmentId).and(VERSION_ID_KEY).is(versionId)), fields), Device.class, pageable, count);
+    }
+
+    @Override
+    public CursorPage<Device> findBySegmentIdAndVersionId(String segmentId, String versionId, @Nullable String cursor, int limit, DeviceFields fields) {
+        return findPageAfter(project(query(where(SEGMENT_ID_KEY).is(segmentId).and(VERSION_ID_KEY).is(versionId)), fields), cursor, limit);
     }
 
     @Override
     public Page<Device> findForUserIdAndVersionIdAndNotSegmentIds(String userId, String versionId, List<String> segmentIds, Pageable pageable) {
-        final Query query = query(
-                new Criteria().andOperator(
-                        where(USER_ID_KEY).is(userId),
-                        where(EVENT_KEY).exists(true),
-                        where(VERSION_ID_KEY).is(versionId),
-                        new Criteria().orOperator(
-                                where(SEGMENT_ID_KEY).nin(segmentIds),
-                                where(SEGMENT_ID_KEY).exists(false)
-                        )
-                )
-        );
-        final long count = operations.count(query, Device.class);
-        final List<Device> configurations = operations.find(query.with(pageable), Device.class);
-        return new PageImpl<>(configurations, pageable, count);
+        return findForUserIdAndVersionIdAndNotSegmentIds(userId, versionId, segmentIds, pageable, CountStrategy.EXACT, DeviceFields.ALL);
+    }
+
+    @Override
+    public CountedPage<Device> findForUserIdAndVersionIdAndNotSegmentIds(String userId, String versionId, List<String> segmentIds, Pageable pageable, CountStrategy count, DeviceFields fields) {
+        return pageCounter.findPage(project(query(getNotInSegmentsCriteria(userId, segmentIds, where(VERSION_ID_KEY).is(versionId))), fields), Device.class, pageable, count);
+    }
+
+    @Override
+    public CursorPage<Device> findForUserIdAndVersionIdAndNotSegmentIds(String userId, String versionId, List<String> segmentIds, @Nullable String cursor, int limit, DeviceFields fields) {
+        return findPageAfter(project(query(getNotInSegmentsCriteria(userId, segmentIds, where(VERSION_ID_KEY).is(versionId))), fields), cursor, limit);
+    }
+
+    @Override
+    public List<String> findIdBoundariesByUserId(String userId, int rangeSize) {
+        // Each probe skips one range of ids from the previous boundary, only walking the keys of the userId_id_idx index
+        final List<String> boundaries = new ArrayList<>();
+        String boundary = findIdAfter(userId, null, 0);
+        while (boundary != null) {
+            boundaries.add(boundary);
+            boundary = findIdAfter(userId, boundary, rangeSize);
+        }
+        return boundaries;
+    }
+
+    @Nullable
+    private String findIdAfter(String userId, @Nullable String fromId, int skip) {
+        final Criteria criteria = where(USER_ID_KEY).is(userId);
+        if (fromId != null) {
+            criteria.and(ID_KEY).gte(fromId);
+        }
+        final Query query = query(criteria).with(new Sort(Sort.Direction.ASC, ID_KEY)).skip(skip).limit(1);
+        query.fields().include(ID_KEY);
+        final List<Device> devices = operations.find(query, Device.class);
+        return devices.isEmpty() ? null : devices.get(0).getId();
+    }
+
+    @Override
+    public CloseableIterator<Device> streamByUserId(String userId, Optional<Operator> searchFilter, DeviceFields fields, @Nullable String fromId, @Nullable String toId) {
+        final Query query = project(getUserQuery(userId, searchFilter), fields);
+        if (fromId != null || toId != null) {
+            final Criteria range = where(ID_KEY);
+            if (fromId != null) {
+                range.gte(fromId);
+            }
+            if (toId != null) {
+                range.lt(toId);
+            }
+            query.addCriteria(range);
+        }
+        return operations.stream(query.with(new Sort(Sort.Direction.ASC, ID_KEY)), Device.class);
+    }
+
+    @Override
+    public CloseableIterator<Device> streamAllByUserId(DeviceFields fields) {
+        return operations.stream(project(new Query(), fields).with(new Sort(Sort.Direction.ASC, USER_ID_KEY)), Device.class);
+    }
+
+    private Query getUserQuery(String userId, Optional<Operator> searchFilter) {
+        final Query query = query(where(USER_ID_KEY).is(userId));
+        if (searchFilter.isPresent()) {
+            query.addCriteria(OperatorConverter.toMongoCriteria(searchFilter.get()));
+        }
+        return query;
+    }
+
+    private Criteria getNotInSegmentsCriteria(String userId, List<String> segmentIds, Criteria... criteria) {
+        final List<Criteria> allCriteria = new ArrayList<>(Arrays.asList(
+                where(USER_ID_KEY).is(userId),
+                where(EVENT_KEY).exists(true)
+        ));
+        allCriteria.addAll(Arrays.asList(criteria));
+        allCriteria.add(new Criteria().orOperator(
+                where(SEGMENT_ID_KEY).nin(segmentIds),
+                where(SEGMENT_ID_KEY).exists(false)
+        ));
+        return new Criteria().andOperator(allCriteria.toArray(new Criteria[0]));
+    }
+
+    private Query project(Query query, DeviceFields fields) {
+        for (String path : fields.getPaths()) {
+            query.fields().include(getDocumentPath(path));
+        }
+        return query;
+    }
+
+    private String getDocumentPath(String path) {
+        final String eventPrefix = DeviceFields.LAST_EVENT + ".";
+        if (DeviceFields.LAST_EVENT.equals(path)) {
+            return EVENT_KEY;
+        } else if (path.equals(eventPrefix + "id")) {
+            return EVENT_KEY + "." + ID_KEY;
+        } else if (path.startsWith(eventPrefix)) {
+            return EVENT_KEY + "." + path.substring(eventPrefix.length());
+        }
+        return path;
+    }
+
+    private CursorPage<Device> findPageAfter(Query query, @Nullable String cursor, int limit) {
+        if (!StringUtils.isEmpty(cursor)) {
+            query.addCriteria(where(ID_KEY).gt(PageCursors.decode(DEVICE_CURSOR_TYPE, cursor)));
+        }
+        query.with(new Sort(Sort.Direction.ASC, ID_KEY)).limit(limit + 1);
+        return PageCursors.toPage(operations.find(query, Device.class), limit, DEVICE_CURSOR_TYPE, Device::getId);
     }
 }
@@ -0,0 +1,542 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
+import io.barracks.deviceservice.model.CursorPage;
+import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceEventBucket;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Stores the device events in {@link DeviceEventBucket} documents, one per device and time bucket holding at most a
+ * given number of events, instead of one document per event. When enabled, {@link DeviceEventRepositoryImpl} reads and
+ * writes the events through this layout, and {@link #migrate()} merges the events of the per-event layout into it.
+ * Driver calls go through {@link MongoOperations#execute}, so their failures surface as {@link DataAccessException}.
+ */
+@Component
+public class EventBuckets {
+    private static final Logger logger = LoggerFactory.getLogger(EventBuckets.class);
+    private static final String ID_KEY = "_id";
+    private static final String CLASS_KEY = "_class";
+    private static final String USER_ID_KEY = "userId";
+    private static final String UNIT_ID_KEY = "unitId";
+    private static final String BUCKET_KEY = "bucket";
+    private static final String FIRST_KEY = "first";
+    private static final String LAST_KEY = "last";
+    private static final String SIZE_KEY = "size";
+    private static final String CHANGED_SIZE_KEY = "changedSize";
+    private static final String EVENTS_KEY = "events";
+    private static final String RECEPTION_DATE_KEY = "receptionDate";
+    private static final String LAST_RECEPTION_DATE_KEY = "lastReceptionDate";
+    private static final String CHANGED_KEY = "changed";
+    private static final String COUNT_KEY = "count";
+    private static final String HEARTBEATS_ID_SUFFIX = ":heartbeats";
+    private static final String PURGE_CURSOR_TYPE = "purge";
+    private static final int MIGRATION_BATCH_SIZE = 500;
+
+    private final MongoOperations operations;
+    private final boolean enabled;
+    private final boolean dualWrite;
+    private final long bucketMillis;
+    private final int maxEvents;
+
+    @Autowired
+    public EventBuckets(
+            MongoOperations operations,
+            @Value("${io.barracks.deviceservice.events.buckets.enabled:false}") boolean enabled,
+            @Value("${io.barracks.deviceservice.events.buckets.dualWrite:false}") boolean dualWrite,
+            @Value("${io.barracks.deviceservice.events.buckets.bucket:86400}") long bucket,
+            @Value("${io.barracks.deviceservice.events.buckets.maxEvents:200}") int maxEvents,
+            @Value("${io.barracks.deviceservice.events.heartbeatBucket:3600}") long heartbeatBucket) {
+        // A heartbeat record and all the pings folded into it must fall into the same bucket
+        if (bucket % heartbeatBucket != 0) {
+            throw new IllegalArgumentException("The event bucket (" + bucket + "s) must be a multiple of the heartbeat bucket (" + heartbeatBucket + "s)");
+        }
+        this.operations = operations;
+        this.enabled = enabled;
+        this.dualWrite = dualWrite;
+        this.bucketMillis = TimeUnit.SECONDS.toMillis(bucket);
+        this.maxEvents = maxEvents;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns whether the events written to the per-event layout are also written to this one, to migrate the events
+     * without missing the ones written until this layout is enabled.
+     */
+    public boolean isDualWrite() {
+        return dualWrite;
+    }
+
+    /**
+     * Appends the event to the bucket of its device, an id being generated if it has none.
+     */
+    DeviceEvent insertDeviceEvent(DeviceEvent event) {
+        final DeviceEvent toInsert = event.getId() == null ? event.toBuilder().id(new ObjectId().toString()).build() : event;
+        operations.execute(DeviceEventBucket.class, collection -> collection.update(getAppendQuery(toInsert), getAppendUpdate(toInsert), true, false));
+        return toInsert;
+    }
+
+    /**
+     * Appends the events to the buckets of their devices, heartbeat records (events with a count) being folded into
+     * the record with the same id.
+     */
+    Map<Integer, String> insertDeviceEvents(List<DeviceEvent> events) {
+        final Map<Integer, String> failures = new HashMap<>();
+        final List<Integer> bulkIndexes = new ArrayList<>(events.size());
+        for (int eventIdx = 0; eventIdx < events.size(); eventIdx++) {
+            if (events.get(eventIdx).getCount() != null) {
+                try {
+                    foldHeartbeat(events.get(eventIdx));
+                } catch (DataAccessException e) {
+                    failures.put(eventIdx, e.getMessage());
+                }
+            } else {
+                bulkIndexes.add(eventIdx);
+            }
+        }
+        if (!bulkIndexes.isEmpty()) {
+            operations.execute(DeviceEventBucket.class, collection -> {
+                final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+                bulkIndexes.forEach(eventIdx -> bulk.find(getAppendQuery(events.get(eventIdx))).upsert().updateOne(getAppendUpdate(events.get(eventIdx))));
+                return BulkWrites.execute(bulk);
+            }).forEach((bulkIdx, error) -> failures.put(bulkIndexes.get(bulkIdx), error));
+        }
+        return failures;
+    }
+
+    /**
+     * Folds the pings of a heartbeat record into the record with the same id, appending it if it does not exist yet.
+     * Records are appended to a document of their own per device and time bucket, with an upsert that only matches
+     * while the record is missing: of two pings appending the same record, the second one fails on the document id
+     * and folds its pings into the record appended by the first one.
+     */
+    DeviceEvent foldHeartbeat(DeviceEvent heartbeat) {
+        mergeHeartbeat(heartbeat, "$inc");
+        return heartbeat;
+    }
+
+    /**
+     * Merges the count of the heartbeat record into the record with the same id with the given update operator.
+     */
+    private void mergeHeartbeat(DeviceEvent heartbeat, String countOperator) {
+        final Object id = toEmbedded(heartbeat).get(ID_KEY);
+        final Date bucket = getBucket(heartbeat.getReceptionDate());
+        final DBObject foldQuery = new BasicDBObject(USER_ID_KEY, heartbeat.getUserId())
+                .append(UNIT_ID_KEY, heartbeat.getUnitId())
+                .append(BUCKET_KEY, bucket)
+                .append(EVENTS_KEY + "." + ID_KEY, id);
+        final DBObject foldUpdate = new BasicDBObject("$max", new BasicDBObject(EVENTS_KEY + ".$." + LAST_RECEPTION_DATE_KEY, heartbeat.getLastReceptionDate())
+                .append(LAST_KEY, heartbeat.getLastReceptionDate()))
+                .append(countOperator, new BasicDBObject(EVENTS_KEY + ".$." + COUNT_KEY, heartbeat.getCount()));
+        final DBObject appendQuery = new BasicDBObject(ID_KEY, getHeartbeatsId(heartbeat))
+                .append(EVENTS_KEY + "." + ID_KEY, new BasicDBObject("$ne", id));
+        final DBObject appendUpdate = getAppendUpdate(heartbeat)
+                .append("$setOnInsert", new BasicDBObject(USER_ID_KEY, heartbeat.getUserId())
+                        .append(UNIT_ID_KEY, heartbeat.getUnitId())
+                        .append(BUCKET_KEY, bucket));
+        if (operations.execute(DeviceEventBucket.class, collection -> collection.update(foldQuery, foldUpdate).getN()) == 0) {
+            try {
+                operations.execute(DeviceEventBucket.class, collection -> collection.update(appendQuery, appendUpdate, true, false));
+            } catch (DuplicateKeyException e) {
+                // Another ping appended the record concurrently, its pings are folded into it instead
+                operations.execute(DeviceEventBucket.class, collection -> collection.update(foldQuery, foldUpdate));
+            }
+        }
+    }
+
+    /**
+     * Returns the events of a device newest first, skipping the first ones, and only the events received before the
+     * given date if any.
+     */
+    List<DeviceEvent> findEvents(String userId, String unitId, boolean onlyChanged, @Nullable Date before, int skip, int limit) {
+        final Criteria criteria = where(USER_ID_KEY).is(userId).and(UNIT_ID_KEY).is(unitId);
+        if (before != null) {
+            criteria.and(BUCKET_KEY).lte(getBucket(new Date(before.getTime() - 1)));
+        }
+        if (onlyChanged) {
+            criteria.and(CHANGED_SIZE_KEY).gt(0);
+        }
+        final Query query = query(criteria).with(new Sort(Sort.Direction.DESC, BUCKET_KEY));
+        final Predicate<DeviceEvent> filter = event -> (!onlyChanged || event.isChanged())
+                && (before == null || event.getReceptionDate().before(before));
+        return readEvents(query, Comparator.comparing(DeviceEvent::getReceptionDate).reversed(), filter, skip, limit);
+    }
+
+    /**
+     * Returns the events of a device received at or after the given date, oldest first.
+     */
+    List<DeviceEvent> findEventsFrom(String userId, String unitId, Date from, int limit) {
+        final Query query = query(where(USER_ID_KEY).is(userId).and(UNIT_ID_KEY).is(unitId).and(BUCKET_KEY).gte(getBucket(from)))
+                .with(new Sort(Sort.Direction.ASC, BUCKET_KEY));
+        return readEvents(query, Comparator.comparing(DeviceEvent::getReceptionDate), event -> !event.getReceptionDate().before(from), 0, limit);
+    }
+
+    private List<DeviceEvent> readEvents(Query query, Comparator<DeviceEvent> order, Predicate<DeviceEvent> filter, int skip, int limit) {
+        final List<DeviceEvent> results = new ArrayList<>(limit);
+        final List<DeviceEvent> bucketEvents = new ArrayList<>();
+        Date bucket = null;
+        int skipped = 0;
+        try (CloseableIterator<DeviceEventBucket> buckets = operations.stream(query, DeviceEventBucket.class)) {
+            while (results.size() < limit && (buckets.hasNext() || !bucketEvents.isEmpty())) {
+                final DeviceEventBucket next = buckets.hasNext() ? buckets.next() : null;
+                // Documents continuing the same bucket are read together, their events being sorted at once
+                if (next == null || !next.getBucket().equals(bucket)) {
+                    bucketEvents.sort(order);
+                    for (DeviceEvent event : bucketEvents) {
+                        if (results.size() == limit) {
+                            break;
+                        }
+                        if (filter.test(event) && skipped++ >= skip) {
+                            results.add(event);
+                        }
+                    }
+                    bucketEvents.clear();
+                }
+                if (next != null) {
+                    bucket = next.getBucket();
+                    bucketEvents.addAll(next.getEvents());
+                }
+            }
+        }
+        return results;
+    }
+
+    long countEvents(String userId, String unitId, boolean onlyChanged) {
+        final Query query = query(where(USER_ID_KEY).is(userId).and(UNIT_ID_KEY).is(unitId));
+        query.fields().include(SIZE_KEY).include(CHANGED_SIZE_KEY);
+        return operations.find(query, DeviceEventBucket.class).stream()
+                .mapToLong(bucket -> onlyChanged ? bucket.getChangedSize() : bucket.getSize())
+                .sum();
+    }
+
+    DataSet getSeenDeviceCount(String userId, OffsetDateTime start, OffsetDateTime end) {
+        // Buckets overlapping the range are selected first, then their events
+        final Criteria bucketCriteria = where(USER_ID_KEY).is(userId);
+        final List<Criteria> eventCriteria = new ArrayList<>();
+        if (!start.equals(OffsetDateTime.MIN)) {
+            final Date startDate = Date.from(start.toInstant());
+            bucketCriteria.and(LAST_KEY).gte(startDate);
+            eventCriteria.add(new Criteria().orOperator(
+                    where(EVENTS_KEY + "." + RECEPTION_DATE_KEY).gte(startDate),
+                    where(EVENTS_KEY + "." + LAST_RECEPTION_DATE_KEY).gte(startDate)
+            ));
+        }
+        if (!end.equals(OffsetDateTime.MAX)) {
+            final Date endDate = Date.from(end.toInstant());
+            bucketCriteria.and(FIRST_KEY).lte(endDate);
+            eventCriteria.add(where(EVENTS_KEY + "." + RECEPTION_DATE_KEY).lte(endDate));
+        }
+        final Aggregation aggregation = eventCriteria.isEmpty()
+                ? Aggregation.newAggregation(
+                Aggregation.match(bucketCriteria),
+                Aggregation.group(UNIT_ID_KEY),
+                Aggregation.group().count().as("total"))
+                : Aggregation.newAggregation(
+                Aggregation.match(bucketCriteria),
+                Aggregation.unwind(EVENTS_KEY),
+                Aggregation.match(new Criteria().andOperator(eventCriteria.toArray(new Criteria[0]))),
+                Aggregation.group(UNIT_ID_KEY),
+                Aggregation.group().count().as("total"));
+        return Optional.ofNullable(operations.aggregate(aggregation, DeviceEventBucket.class, DataSet.class).getUniqueMappedResult())
+                .orElseGet(() -> DataSet.builder().total(BigDecimal.ZERO).build());
+    }
+
+    @SuppressWarnings("unchecked")
+    List<String> getUserIds() {
+        return operations.execute(DeviceEventBucket.class, collection -> collection.distinct(USER_ID_KEY));
+    }
+
+    /**
+     * Deletes the changed or unchanged events of the user last received before the date from at most enough buckets
+     * to hold {@code limit} events, keeping the last event of the kind of each unit. The buckets are read unit by unit
+     * from the cursor, and buckets left empty are removed.
+     */
+    CursorPage<String> deleteEventsReceivedBefore(String userId, boolean changed, Date before, @Nullable String cursor, int limit) {
+        final Criteria expired = where(RECEPTION_DATE_KEY).lt(before).and(LAST_RECEPTION_DATE_KEY).not().gte(before);
+        if (changed) {
+            expired.and(CHANGED_KEY).is(true);
+        } else {
+            expired.and(CHANGED_KEY).ne(true);
+        }
+        final Predicate<DeviceEvent> isExpired = event -> event.isChanged() == changed
+                && event.getReceptionDate().before(before)
+                && (event.getLastReceptionDate() == null || event.getLastReceptionDate().before(before));
+        final Criteria criteria = where(USER_ID_KEY).is(userId).and(FIRST_KEY).lt(before).and(EVENTS_KEY).elemMatch(expired);
+        if (cursor != null) {
+            criteria.and(UNIT_ID_KEY).gte(PageCursors.decode(PURGE_CURSOR_TYPE, cursor));
+        }
+        // A batch of at least two buckets always deletes an event
+        final int batchLimit = Math.max(2, limit / maxEvents);
+        final CursorPage<DeviceEventBucket> batch = PageCursors.toUnitPage(
+                operations.find(query(criteria).with(new Sort(Sort.Direction.ASC, UNIT_ID_KEY, BUCKET_KEY)).limit(batchLimit + 1), DeviceEventBucket.class),
+                batchLimit,
+                PURGE_CURSOR_TYPE,
+                DeviceEventBucket::getUnitId
+        );
+        // The last event of each kind is kept so that the history of a long stable unit is never empty
+        final Map<String, DeviceEvent> lastEvents = new HashMap<>();
+        final Map<String, Predicate<DeviceEvent>> isDeletable = new HashMap<>();
+        batch.getContent().forEach(bucket -> isDeletable.computeIfAbsent(bucket.getUnitId(), unitId -> {
+            final DeviceEvent last = findLastEvent(userId, unitId, changed);
+            if (last == null) {
+                return isExpired;
+            }
+            lastEvents.put(unitId, last);
+            return isExpired.and(event -> !event.getId().equals(last.getId()));
+        }));
+        // The events whose chain of differences starts with an expired event become full copies first
+        final Map<String, List<DeviceEvent>> expiredPerUnit = new HashMap<>();
+        batch.getContent().forEach(bucket -> bucket.getEvents().stream()
+                .filter(isDeletable.get(bucket.getUnitId()))
+                .forEach(event -> expiredPerUnit.computeIfAbsent(bucket.getUnitId(), unitId -> new ArrayList<>()).add(event)));
+        expiredPerUnit.forEach((unitId, expiredEvents) -> PropertyDeltas.rebase(
+                expiredEvents,
+                (from, batchSize) -> findEventsFrom(userId, unitId, from, batchSize),
+                (eventsBefore, batchSize) -> findEvents(userId, unitId, false, eventsBefore, 0, batchSize)
+        ).forEach(event -> {
+            final DBObject eventQuery = new BasicDBObject(USER_ID_KEY, userId)
+                    .append(UNIT_ID_KEY, unitId)
+                    .append(BUCKET_KEY, getBucket(event.getReceptionDate()))
+                    .append(EVENTS_KEY + "." + ID_KEY, toEmbedded(event).get(ID_KEY));
+            operations.execute(DeviceEventBucket.class, collection -> collection.update(
+                    eventQuery,
+                    PropertyDeltas.getFullCopyUpdate(EVENTS_KEY + ".$.", event).getUpdateObject()
+            ));
+        }));
+        final List<String> deletedIds = new ArrayList<>();
+        final List<String> ids = new ArrayList<>();
+        for (DeviceEventBucket bucket : batch.getContent()) {
+            final List<String> deleted = bucket.getEvents().stream()
+                    .filter(isDeletable.get(bucket.getUnitId()))
+                    .map(DeviceEvent::getId)
+                    .collect(Collectors.toList());
+            if (deleted.isEmpty()) {
+                continue;
+            }
+            final DBObject pulled = expired.getCriteriaObject();
+            if (lastEvents.containsKey(bucket.getUnitId())) {
+                pulled.put(ID_KEY, new BasicDBObject("$ne", toEmbedded(lastEvents.get(bucket.getUnitId())).get(ID_KEY)));
+            }
+            operations.updateFirst(
+                    query(where(ID_KEY).is(bucket.getId())),
+                    new Update().pull(EVENTS_KEY, pulled)
+                            .inc(SIZE_KEY, -deleted.size())
+                            .inc(CHANGED_SIZE_KEY, changed ? -deleted.size() : 0),
+                    DeviceEventBucket.class
+            );
+            deletedIds.addAll(deleted);
+            ids.add(bucket.getId());
+        }
+        if (!ids.isEmpty()) {
+            operations.remove(query(where(ID_KEY).in(ids).and(SIZE_KEY).lte(0)), DeviceEventBucket.class);
+        }
+        return new CursorPage<>(deletedIds, batch.getNextCursor());
+    }
+
+    /**
+     * Returns the last changed or unchanged event of the device.
+     */
+    @Nullable
+    private DeviceEvent findLastEvent(String userId, String unitId, boolean changed) {
+        final Criteria criteria = where(USER_ID_KEY).is(userId).and(UNIT_ID_KEY).is(unitId);
+        if (changed) {
+            criteria.and(CHANGED_SIZE_KEY).gt(0);
+        }
+        final Query query = query(criteria).with(new Sort(Sort.Direction.DESC, BUCKET_KEY));
+        final List<DeviceEvent> events = readEvents(query, Comparator.comparing(DeviceEvent::getReceptionDate).reversed(), event -> event.isChanged() == changed, 0, 1);
+        return events.isEmpty() ? null : events.get(0);
+    }
+
+    long getAverageEventSize() {
+        final Object size = operations.executeCommand(new BasicDBObject("collStats", operations.getCollectionName(DeviceEventBucket.class))).get("size");
+        final DBObject events = operations.aggregate(
+                Aggregation.newAggregation(Aggregation.group().sum(SIZE_KEY).as("total")),
+                DeviceEventBucket.class,
+                DBObject.class
+        ).getUniqueMappedResult();
+        if (!(size instanceof Number) || events == null || ((Number) events.get("total")).longValue() == 0) {
+            return 0;
+        }
+        return ((Number) size).longValue() / ((Number) events.get("total")).longValue();
+    }
+
+    /**
+     * Merges the events of the per-event layout into buckets, reading them device by device in index order. Events
+     * already in a bucket are skipped and heartbeat records keep their highest count, so the migration can run again
+     * and merges with the events written meanwhile. It runs while every instance writes both layouts (see
+     * {@link #isDualWrite()}): their writes reach the buckets before the per-event layout, so any event read here from
+     * the per-event layout and written by them is found in a bucket. Returns the number of copied events.
+     */
+    public long migrate() {
+        final Query query = new Query().with(new Sort(
+                new Sort.Order(Sort.Direction.ASC, UNIT_ID_KEY),
+                new Sort.Order(Sort.Direction.ASC, USER_ID_KEY),
+                new Sort.Order(Sort.Direction.DESC, RECEPTION_DATE_KEY)
+        ));
+        final List<DeviceEvent> pending = new ArrayList<>(MIGRATION_BATCH_SIZE);
+        final List<DeviceEvent> chunk = new ArrayList<>(maxEvents);
+        long migrated = 0;
+        try (CloseableIterator<DeviceEvent> events = operations.stream(query, DeviceEvent.class)) {
+            while (events.hasNext()) {
+                final DeviceEvent event = events.next();
+                if (!chunk.isEmpty() && (chunk.size() == maxEvents || !isSameBucket(chunk.get(0), event))) {
+                    migrated += mergeChunk(chunk, pending);
+                }
+                chunk.add(event);
+                if (pending.size() >= MIGRATION_BATCH_SIZE) {
+                    appendEvents(pending);
+                    logger.info("Migrated " + migrated + " events to buckets");
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            migrated += mergeChunk(chunk, pending);
+        }
+        appendEvents(pending);
+        logger.info("Migrated " + migrated + " events to buckets");
+        return migrated;
+    }
+
+    /**
+     * Queues the events of the chunk, all of the same device and time bucket, that are not in a bucket yet, and merges
+     * the heartbeat records right away. Returns the number of events missing from the buckets.
+     */
+    private int mergeChunk(List<DeviceEvent> chunk, List<DeviceEvent> pending) {
+        final DeviceEvent newest = chunk.get(0);
+        final List<Object> ids = new ArrayList<>(chunk.size());
+        chunk.forEach(event -> ids.add(toEmbedded(event).get(ID_KEY)));
+        final Query query = query(where(USER_ID_KEY).is(newest.getUserId())
+                .and(UNIT_ID_KEY).is(newest.getUnitId())
+                .and(BUCKET_KEY).is(getBucket(newest.getReceptionDate()))
+                .and(EVENTS_KEY + "." + ID_KEY).in(ids));
+        query.fields().include(EVENTS_KEY + "." + ID_KEY);
+        final Set<String> existing = new HashSet<>();
+        operations.find(query, DeviceEventBucket.class).forEach(bucket -> bucket.getEvents().forEach(event -> existing.add(event.getId())));
+        int missing = 0;
+        for (DeviceEvent event : chunk) {
+            missing += existing.contains(event.getId()) ? 0 : 1;
+            if (event.getCount() != null) {
+                mergeHeartbeat(event, "$max");
+            } else if (!existing.contains(event.getId())) {
+                pending.add(event);
+            }
+        }
+        chunk.clear();
+        return missing;
+    }
+
+    private void appendEvents(List<DeviceEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        operations.execute(DeviceEventBucket.class, collection -> {
+            final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+            events.forEach(event -> bulk.find(getAppendQuery(event)).upsert().updateOne(getAppendUpdate(event)));
+            return bulk.execute();
+        });
+        events.clear();
+    }
+
+    private boolean isSameBucket(DeviceEvent event, DeviceEvent other) {
+        return event.getUnitId().equals(other.getUnitId())
+                && event.getUserId().equals(other.getUserId())
+                && getBucket(event.getReceptionDate()).equals(getBucket(other.getReceptionDate()));
+    }
+
+    private DBObject getAppendQuery(DeviceEvent event) {
+        return new BasicDBObject(ID_KEY, new BasicDBObject("$ne", getHeartbeatsId(event)))
+                .append(USER_ID_KEY, event.getUserId())
+                .append(UNIT_ID_KEY, event.getUnitId())
+                .append(BUCKET_KEY, getBucket(event.getReceptionDate()))
+                .append(SIZE_KEY, new BasicDBObject("$lt", maxEvents));
+    }
+
+    /**
+     * Returns the id of the document holding the heartbeat records of the device for the time bucket of the event. It
+     * holds at most one record per heartbeat bucket, so it is not bounded by the maximum number of events.
+     */
+    private String getHeartbeatsId(DeviceEvent event) {
+        return event.getUnitId() + ":" + event.getUserId() + ":" + getBucket(event.getReceptionDate()).getTime() + HEARTBEATS_ID_SUFFIX;
+    }
+
+    private BasicDBObject getAppendUpdate(DeviceEvent event) {
+        return new BasicDBObject("$push", new BasicDBObject(EVENTS_KEY, toEmbedded(event)))
+                .append("$inc", new BasicDBObject(SIZE_KEY, 1).append(CHANGED_SIZE_KEY, event.isChanged() ? 1 : 0))
+                .append("$min", new BasicDBObject(FIRST_KEY, event.getReceptionDate()))
+                .append("$max", new BasicDBObject(LAST_KEY, getLastReceptionDate(event)));
+    }
+
+    /**
+     * Converts the event to the document stored in a bucket, without the ids held by the bucket itself.
+     */
+    private DBObject toEmbedded(DeviceEvent event) {
+        final DBObject document = PropertyDeltas.write(operations.getConverter(), event);
+        document.removeField(CLASS_KEY);
+        document.removeField(USER_ID_KEY);
+        document.removeField(UNIT_ID_KEY);
+        return document;
+    }
+
+    private Date getBucket(Date receptionDate) {
+        return new Date(Math.floorDiv(receptionDate.getTime(), bucketMillis) * bucketMillis);
+    }
+
+    private static Date getLastReceptionDate(DeviceEvent event) {
+        return event.getLastReceptionDate() != null ? event.getLastReceptionDate() : event.getReceptionDate();
+    }
+}
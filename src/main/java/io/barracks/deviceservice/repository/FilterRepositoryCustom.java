@@ -24,6 +24,8 @@
 
 package io.barracks.deviceservice.repository;
 
+import io.barracks.deviceservice.model.CountStrategy;
+import io.barracks.deviceservice.model.CountedPage;
 import io.barracks.deviceservice.model.Filter;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
@@ -35,6 +37,8 @@ public interface FilterRepositoryCustom {
 
     Page<Filter> getFiltersByUserId(String userId, Pageable pageable);
 
+    CountedPage<Filter> getFiltersByUserId(String userId, Pageable pageable, CountStrategy count);
+
     Optional<Filter> getFilterByUserIdAndName(String userId, String name);
 
     void deleteFilterByUserIdAndName(String userId, String name);
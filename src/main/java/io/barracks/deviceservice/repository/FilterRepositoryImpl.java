@@ -25,17 +25,17 @@
 package io.barracks.deviceservice.repository;
 
 import com.mongodb.WriteResult;
+import io.barracks.deviceservice.model.CountStrategy;
+import io.barracks.deviceservice.model.CountedPage;
 import io.barracks.deviceservice.model.Filter;
 import io.barracks.deviceservice.repository.exception.FilterCreationFailedException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.query.Query;
 
-import java.util.List;
 import java.util.Optional;
 
 import static org.springframework.data.mongodb.core.query.Criteria.where;
@@ -45,10 +45,12 @@ public class FilterRepositoryImpl implements FilterRepositoryCustom {
     private static final String USER_ID_KEY = "userId";
     private static final String NAME_KEY = "name";
     private final MongoOperations operations;
+    private final PageCounter pageCounter;
 
     @Autowired
-    public FilterRepositoryImpl(MongoOperations operations) {
+    public FilterRepositoryImpl(MongoOperations operations, PageCounter pageCounter) {
         this.operations = operations;
+        this.pageCounter = pageCounter;
     }
 
     @Override
@@ -63,11 +65,12 @@ public class FilterRepositoryImpl implements FilterRepositoryCustom {
 
     @Override
     public Page<Filter> getFiltersByUserId(String userId, Pageable pageable) {
-        final Query query = query(where(USER_ID_KEY).is(userId));
+        return getFiltersByUserId(userId, pageable, CountStrategy.EXACT);
+    }
 
-        final long count = operations.count(query, Filter.class);
-        final List<Filter> filters = operations.find(query.with(pageable), Filter.class);
-        return new PageImpl<>(filters, pageable, count);
+    @Override
+    public CountedPage<Filter> getFiltersByUserId(String userId, Pageable pageable, CountStrategy count) {
+        return pageCounter.findPage(query(where(USER_ID_KEY).is(userId)), Filter.class, pageable, count);
     }
 
     @Override
@@ -0,0 +1,68 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.deviceservice.model.Lease;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Date;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class LeaseRepositoryImpl implements LeaseRepositoryCustom {
+    private static final String ID_KEY = "id";
+    private static final String OWNER_KEY = "owner";
+    private static final String EXPIRATION_DATE_KEY = "expirationDate";
+    private final MongoOperations operations;
+
+    @Autowired
+    public LeaseRepositoryImpl(MongoOperations operations) {
+        this.operations = operations;
+    }
+
+    @Override
+    public boolean tryAcquire(String name, String owner, Date expirationDate) {
+        final Query query = query(where(ID_KEY).is(name))
+                .addCriteria(new Criteria().orOperator(where(OWNER_KEY).is(owner), where(EXPIRATION_DATE_KEY).lt(new Date())));
+        try {
+            operations.upsert(query, Update.update(OWNER_KEY, owner).set(EXPIRATION_DATE_KEY, expirationDate), Lease.class);
+            return true;
+        } catch (DuplicateKeyException e) {
+            // The lease exists but is held by another owner, so the upsert tried to create it again
+            return false;
+        }
+    }
+
+    @Override
+    public void release(String name, String owner) {
+        operations.remove(query(where(ID_KEY).is(name).and(OWNER_KEY).is(owner)), Lease.class);
+    }
+}
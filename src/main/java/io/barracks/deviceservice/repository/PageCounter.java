@@ -0,0 +1,135 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import io.barracks.deviceservice.model.CountStrategy;
+import io.barracks.deviceservice.model.CountedPage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads pages of a query, counting the matching documents according to the requested {@link CountStrategy}.
+ * Counts are kept for a short time, keyed by collection and query criteria, so that walking through the pages of a
+ * listing with estimated counts only counts once.
+ * <p>
+ * {@link CountStrategy#ESTIMATE} is a capped count rather than an estimate for filtered queries, which every listing
+ * of a user is: the matching documents are counted up to {@code estimateLimit}, an exact count being returned below
+ * it and no total at all once it is reached. The cost of such a count is therefore bounded by the limit, not by the
+ * size of the collection.
+ */
+@Component
+public class PageCounter {
+    private final MongoOperations operations;
+    private final QueryMapper queryMapper;
+    private final Cache<String, Long> counts;
+    private final long estimateLimit;
+
+    @Autowired
+    public PageCounter(
+            MongoOperations operations,
+            @Value("${io.barracks.deviceservice.pages.count.cache.maxSize:10000}") long maxSize,
+            @Value("${io.barracks.deviceservice.pages.count.cache.ttl:10}") long ttl,
+            @Value("${io.barracks.deviceservice.pages.count.estimateLimit:10000}") long estimateLimit) {
+        this.operations = operations;
+        this.queryMapper = new QueryMapper(operations.getConverter());
+        this.counts = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                .build();
+        this.estimateLimit = estimateLimit;
+    }
+
+    public <T> CountedPage<T> findPage(Query query, Class<T> type, Pageable pageable, CountStrategy strategy) {
+        switch (strategy) {
+            case NONE:
+                return findPageWithoutCount(query, type, pageable);
+            case ESTIMATE:
+                return findPageWithEstimate(query, type, pageable);
+            default:
+                return findPageWithExactCount(query, type, pageable);
+        }
+    }
+
+    private <T> CountedPage<T> findPageWithExactCount(Query query, Class<T> type, Pageable pageable) {
+        final String key = getKey(query, type);
+        final long count = operations.count(query, type);
+        counts.put(key, count);
+        return new CountedPage<>(operations.find(query.with(pageable), type), pageable, count, CountStrategy.EXACT);
+    }
+
+    private <T> CountedPage<T> findPageWithEstimate(Query query, Class<T> type, Pageable pageable) {
+        final String key = getKey(query, type);
+        final Long cached = counts.getIfPresent(key);
+        if (cached != null) {
+            return new CountedPage<>(operations.find(query.with(pageable), type), pageable, cached, CountStrategy.ESTIMATE);
+        }
+        final DBCollection collection = operations.getCollection(operations.getCollectionName(type));
+        final DBObject criteria = queryMapper.getMappedObject(
+                query.getQueryObject(),
+                operations.getConverter().getMappingContext().getPersistentEntity(type)
+        );
+        final long count;
+        final CountStrategy result;
+        if (criteria.keySet().isEmpty()) {
+            // Unfiltered listings use the document count from the collection metadata
+            count = collection.getCount();
+            result = CountStrategy.ESTIMATE;
+        } else {
+            // Filtered listings are only counted up to the limit, there is no cheaper source for a per user count
+            count = collection.getCount(criteria, null, estimateLimit, 0);
+            if (count >= estimateLimit) {
+                // Counting stopped at the limit, the count is only a lower bound and is neither cached nor returned as the total
+                final CountedPage<T> page = findPageWithoutCount(query, type, pageable);
+                return new CountedPage<>(page.getContent(), pageable, page.getTotalElements(), CountStrategy.NONE, count);
+            }
+            result = CountStrategy.EXACT;
+        }
+        counts.put(key, count);
+        return new CountedPage<>(operations.find(query.with(pageable), type), pageable, count, result);
+    }
+
+    private <T> CountedPage<T> findPageWithoutCount(Query query, Class<T> type, Pageable pageable) {
+        // The extra document only tells whether there is a next page
+        final List<T> results = operations.find(query.with(pageable).limit(pageable.getPageSize() + 1), type);
+        final List<T> content = results.size() > pageable.getPageSize() ? results.subList(0, pageable.getPageSize()) : results;
+        return new CountedPage<>(content, pageable, pageable.getOffset() + results.size(), CountStrategy.NONE);
+    }
+
+    private String getKey(Query query, Class<?> type) {
+        return operations.getCollectionName(type) + query.getQueryObject();
+    }
+}
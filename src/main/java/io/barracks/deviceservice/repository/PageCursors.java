@@ -0,0 +1,90 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.deviceservice.model.CursorPage;
+import io.barracks.deviceservice.repository.exception.InvalidCursorException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Keyset pagination helpers. A cursor is an opaque token holding the sort key of the last returned document, the next
+ * slice being read from the index after this key instead of skipping the previous documents.
+ */
+final class PageCursors {
+    private static final String SEPARATOR = ":";
+
+    private PageCursors() {
+    }
+
+    /**
+     * Builds the page from the results of a query limited to {@code limit + 1} documents, the extra document only
+     * telling whether there is a next page.
+     */
+    static <T> CursorPage<T> toPage(List<T> results, int limit, String type, Function<T, String> position) {
+        if (results.size() <= limit) {
+            return new CursorPage<>(results, null);
+        }
+        final List<T> content = results.subList(0, limit);
+        return new CursorPage<>(content, encode(type, position.apply(content.get(limit - 1))));
+    }
+
+    /**
+     * Builds a batch of whole units from the results of a query sorted by unit and limited to {@code limit + 1}
+     * documents. The documents of the last unit are left to the next batch, whose cursor holds the unit, unless this
+     * unit fills the whole batch on its own.
+     */
+    static <T> CursorPage<T> toUnitPage(List<T> results, int limit, String type, Function<T, String> unitId) {
+        if (results.size() <= limit) {
+            return new CursorPage<>(results, null);
+        }
+        final String nextUnitId = unitId.apply(results.get(limit));
+        final List<T> content = results.subList(0, limit).stream()
+                .filter(result -> !unitId.apply(result).equals(nextUnitId))
+                .collect(Collectors.toList());
+        return new CursorPage<>(content.isEmpty() ? results.subList(0, limit) : content, encode(type, nextUnitId));
+    }
+
+    static String encode(String type, String position) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((type + SEPARATOR + position).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String decode(String type, String cursor) {
+        final String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidCursorException(cursor, e);
+        }
+        if (!decoded.startsWith(type + SEPARATOR) || decoded.length() == type.length() + SEPARATOR.length()) {
+            throw new InvalidCursorException(cursor);
+        }
+        return decoded.substring(type.length() + SEPARATOR.length());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.PropertiesDelta;
+import io.barracks.deviceservice.repository.exception.BrokenEventHistoryException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Delta encoding of the additional properties of stored events. When enabled, an event only stores the keys changed
+ * since the previous event of its device, and a full copy of the properties every {@code snapshotInterval} events.
+ * Events are always restored when read, so the encoding can be turned off without rewriting the history. Before events
+ * are deleted, the events whose chain depends on them are rewritten as full copies with {@link #rebase}.
+ */
+@Component
+public class PropertyDeltas {
+    private static final String ADDITIONAL_PROPERTIES_KEY = "additionalProperties";
+    private static final String SNAPSHOT_DISTANCE_KEY = "snapshotDistance";
+    private static final String PROPERTIES_DELTA_KEY = "propertiesDelta";
+    private static final int REBASE_BATCH_SIZE = 100;
+
+    private final boolean enabled;
+    private final int snapshotInterval;
+
+    @Autowired
+    public PropertyDeltas(
+            @Value("${io.barracks.deviceservice.events.deltas.enabled:false}") boolean enabled,
+            @Value("${io.barracks.deviceservice.events.deltas.snapshotInterval:10}") int snapshotInterval) {
+        this.enabled = enabled;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Encodes the properties of the event against the previous event of its device, as stored in the device. The
+     * returned event keeps its full properties, only the stored document holds the difference.
+     */
+    public DeviceEvent encode(DeviceEvent event, @Nullable DeviceEvent previous) {
+        if (!enabled) {
+            return event;
+        }
+        // Events stored without encoding carry no distance, the chain starts again from a full copy
+        if (previous == null || previous.getSnapshotDistance() == null || previous.getSnapshotDistance() + 1 >= snapshotInterval) {
+            return event.toBuilder().snapshotDistance(0).propertiesDelta(null).build();
+        }
+        return event.toBuilder()
+                .snapshotDistance(previous.getSnapshotDistance() + 1)
+                .propertiesDelta(PropertiesDelta.between(previous.getAdditionalProperties(), event.getAdditionalProperties()))
+                .build();
+    }
+
+    /**
+     * Converts the event to its stored document, which holds either the full properties or their difference.
+     */
+    static DBObject write(MongoConverter converter, DeviceEvent event) {
+        final DBObject document = new BasicDBObject();
+        converter.write(event, document);
+        if (event.getPropertiesDelta() != null) {
+            document.removeField(ADDITIONAL_PROPERTIES_KEY);
+        }
+        return document;
+    }
+
+    /**
+     * Restores the full properties of the delta-encoded events of a device, read in any order. For each chain of
+     * differences, the history of the device is read newest first with {@code findEventsBefore}, given an exclusive
+     * reception date and a maximum number of events. The full copy starting a chain is never further back than the
+     * snapshot distance of its newest event, so a single bounded read per chain is enough, whatever the number of
+     * events stored between the events of a filtered or cursor page.
+     *
+     * @throws BrokenEventHistoryException if the full copy of a chain is not found within its snapshot distance
+     */
+    static List<DeviceEvent> restore(List<DeviceEvent> events, BiFunction<Date, Integer, List<DeviceEvent>> findEventsBefore) {
+        final List<DeviceEvent> encoded = events.stream()
+                .filter(event -> event.getPropertiesDelta() != null)
+                .sorted(Comparator.comparing(DeviceEvent::getReceptionDate).reversed())
+                .collect(Collectors.toList());
+        if (encoded.isEmpty()) {
+            return events;
+        }
+        final Set<String> pendingIds = encoded.stream().map(DeviceEvent::getId).collect(Collectors.toSet());
+        final Map<String, Map<String, Object>> restored = new HashMap<>();
+        for (DeviceEvent event : encoded) {
+            // Older events of the same chain are restored by the read of the newest one
+            if (restored.containsKey(event.getId())) {
+                continue;
+            }
+            final List<DeviceEvent> chain = new ArrayList<>(event.getSnapshotDistance() + 1);
+            chain.add(event);
+            chain.addAll(findEventsBefore.apply(event.getReceptionDate(), event.getSnapshotDistance()));
+            int snapshotIdx = 0;
+            while (snapshotIdx < chain.size() && chain.get(snapshotIdx).getPropertiesDelta() != null) {
+                snapshotIdx++;
+            }
+            if (snapshotIdx == chain.size()) {
+                throw new BrokenEventHistoryException(event.getUserId(), event.getUnitId(), event.getId(), event.getSnapshotDistance());
+            }
+            final Map<String, Object> properties = new HashMap<>(chain.get(snapshotIdx).getAdditionalProperties());
+            for (int chainIdx = snapshotIdx - 1; chainIdx >= 0; chainIdx--) {
+                final DeviceEvent chained = chain.get(chainIdx);
+                chained.getPropertiesDelta().applyTo(properties);
+                if (pendingIds.contains(chained.getId())) {
+                    restored.put(chained.getId(), new HashMap<>(properties));
+                }
+            }
+        }
+        return events.stream()
+                .map(event -> restored.containsKey(event.getId())
+                        ? event.toBuilder().additionalProperties(restored.get(event.getId())).build()
+                        : event)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the events to rewrite as full copies before deleting events of a device, so that no chain of differences
+     * depends on a deleted event: the first event kept after each deleted one, when it is delta-encoded, with its
+     * properties restored. The events following the deleted ones are read oldest first with {@code findEventsFrom},
+     * given an inclusive reception date and a maximum number of events, and their history with
+     * {@code findEventsBefore} as in {@link #restore}.
+     */
+    static List<DeviceEvent> rebase(
+            List<DeviceEvent> deleted,
+            BiFunction<Date, Integer, List<DeviceEvent>> findEventsFrom,
+            BiFunction<Date, Integer, List<DeviceEvent>> findEventsBefore) {
+        if (deleted.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final Set<String> deletedIds = deleted.stream().map(DeviceEvent::getId).collect(Collectors.toSet());
+        final List<DeviceEvent> toRebase = new ArrayList<>();
+        Date from = deleted.stream().map(DeviceEvent::getReceptionDate).min(Comparator.naturalOrder()).get();
+        int remaining = deletedIds.size();
+        boolean afterDeleted = false;
+        while (remaining > 0 || afterDeleted) {
+            final List<DeviceEvent> batch = findEventsFrom.apply(from, REBASE_BATCH_SIZE);
+            for (DeviceEvent event : batch) {
+                if (deletedIds.contains(event.getId())) {
+                    remaining--;
+                    afterDeleted = true;
+                } else if (afterDeleted) {
+                    if (event.getPropertiesDelta() != null) {
+                        toRebase.add(event);
+                    }
+                    afterDeleted = false;
+                }
+                if (remaining == 0 && !afterDeleted) {
+                    break;
+                }
+            }
+            if (batch.size() < REBASE_BATCH_SIZE) {
+                break;
+            }
+            // Events of a device have distinct reception dates
+            from = new Date(batch.get(batch.size() - 1).getReceptionDate().getTime() + 1);
+        }
+        return restore(toRebase, findEventsBefore);
+    }
+
+    /**
+     * Returns the update storing the restored properties of the event as a full copy, the event document being found
+     * under the given path prefix.
+     */
+    static Update getFullCopyUpdate(String prefix, DeviceEvent event) {
+        return new Update()
+                .set(prefix + ADDITIONAL_PROPERTIES_KEY, event.getAdditionalProperties())
+                .set(prefix + SNAPSHOT_DISTANCE_KEY, 0)
+                .unset(prefix + PROPERTIES_DELTA_KEY);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.deviceservice.model.QuantileBucket;
+import io.barracks.deviceservice.model.QuantileSketch;
+
+import javax.annotation.Nullable;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+public interface QuantileBucketRepositoryCustom {
+    /**
+     * Adds the bins of each given bucket to the stored bucket with the same user, key, segment and date, creating it
+     * if needed.
+     *
+     * @return the error message of every failed increment, keyed by its index in the list
+     * @throws org.springframework.dao.DataAccessException if the whole write failed, in which case some increments
+     *                                                     may have been applied anyway
+     */
+    Map<Integer, String> incrementBuckets(List<QuantileBucket> increments);
+
+    /**
+     * Merges the sketches of the key for the buckets starting within the given bounds, both included. All the
+     * segments of the user are merged when no segment is given.
+     */
+    QuantileSketch findMergedSketch(String userId, String key, @Nullable String segmentId, @Nullable Date from, @Nullable Date to);
+}
@@ -0,0 +1,112 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import io.barracks.deviceservice.model.QuantileBucket;
+import io.barracks.deviceservice.model.QuantileSketch;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class QuantileBucketRepositoryImpl implements QuantileBucketRepositoryCustom {
+    private static final String USER_ID_KEY = "userId";
+    private static final String KEY_KEY = "key";
+    private static final String SEGMENT_ID_KEY = "segmentId";
+    private static final String BUCKET_KEY = "bucket";
+    private static final String POSITIVE_BINS_KEY = "positiveBins";
+    private static final String NEGATIVE_BINS_KEY = "negativeBins";
+    private static final String ZERO_COUNT_KEY = "zeroCount";
+    private final MongoOperations operations;
+
+    @Autowired
+    public QuantileBucketRepositoryImpl(MongoOperations operations) {
+        this.operations = operations;
+    }
+
+    @Override
+    public Map<Integer, String> incrementBuckets(List<QuantileBucket> increments) {
+        if (increments.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return operations.execute(QuantileBucket.class, collection -> {
+            final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+            for (QuantileBucket increment : increments) {
+                final BasicDBObject counts = new BasicDBObject(ZERO_COUNT_KEY, increment.getZeroCount());
+                appendBins(counts, POSITIVE_BINS_KEY, increment.getPositiveBins());
+                appendBins(counts, NEGATIVE_BINS_KEY, increment.getNegativeBins());
+                bulk.find(new BasicDBObject(USER_ID_KEY, increment.getUserId())
+                        .append(KEY_KEY, increment.getKey())
+                        .append(BUCKET_KEY, increment.getBucket())
+                        .append(SEGMENT_ID_KEY, increment.getSegmentId()))
+                        .upsert()
+                        .updateOne(new BasicDBObject("$inc", counts));
+            }
+            return BulkWrites.execute(bulk);
+        });
+    }
+
+    @Override
+    public QuantileSketch findMergedSketch(String userId, String key, @Nullable String segmentId, @Nullable Date from, @Nullable Date to) {
+        final Criteria criteria = where(USER_ID_KEY).is(userId).and(KEY_KEY).is(key);
+        if (from != null || to != null) {
+            final Criteria bucket = criteria.and(BUCKET_KEY);
+            if (from != null) {
+                bucket.gte(from);
+            }
+            if (to != null) {
+                bucket.lte(to);
+            }
+        }
+        if (segmentId != null) {
+            criteria.and(SEGMENT_ID_KEY).is(segmentId);
+        }
+        final Query query = query(criteria);
+        query.fields().include(POSITIVE_BINS_KEY).include(NEGATIVE_BINS_KEY).include(ZERO_COUNT_KEY);
+        final QuantileSketch merged = QuantileSketch.empty();
+        try (CloseableIterator<QuantileBucket> buckets = operations.stream(query, QuantileBucket.class)) {
+            buckets.forEachRemaining(bucket -> merged.merge(bucket.toSketch()));
+        }
+        return merged;
+    }
+
+    private static void appendBins(BasicDBObject counts, String binsKey, @Nullable Map<String, Long> bins) {
+        if (bins != null) {
+            bins.forEach((index, count) -> counts.append(binsKey + "." + index, count));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.deviceservice.model.RetentionPolicy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+public class RetentionPolicyRepositoryImpl implements RetentionPolicyRepositoryCustom {
+    public static final String USER_ID_KEY = "userId";
+    public static final String UNCHANGED_EVENTS_DAYS_KEY = "unchangedEventsDays";
+    public static final String CHANGED_EVENTS_DAYS_KEY = "changedEventsDays";
+    private final MongoOperations operations;
+
+    @Autowired
+    public RetentionPolicyRepositoryImpl(MongoOperations operations) {
+        this.operations = operations;
+    }
+
+    @Override
+    public RetentionPolicy updatePolicy(String userId, RetentionPolicy policy) {
+        return operations.findAndModify(
+                Query.query(Criteria.where(USER_ID_KEY).is(userId)),
+                Update.update(UNCHANGED_EVENTS_DAYS_KEY, policy.getUnchangedEventsDays())
+                        .set(CHANGED_EVENTS_DAYS_KEY, policy.getChangedEventsDays())
+                        .setOnInsert(USER_ID_KEY, userId),
+                FindAndModifyOptions.options().upsert(true).returnNew(true),
+                RetentionPolicy.class
+        );
+    }
+
+    @Override
+    public Optional<RetentionPolicy> getPolicy(String userId) {
+        return Optional.ofNullable(operations.findOne(Query.query(Criteria.where(USER_ID_KEY).is(userId)), RetentionPolicy.class));
+    }
+
+    @Override
+    public Map<String, RetentionPolicy> getPolicies() {
+        final Map<String, RetentionPolicy> policies = new HashMap<>();
+        operations.findAll(RetentionPolicy.class).forEach(policy -> policies.put(policy.getUserId(), policy));
+        return policies;
+    }
+}
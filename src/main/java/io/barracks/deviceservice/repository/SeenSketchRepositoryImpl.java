@@ -0,0 +1,106 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.deviceservice.model.HyperLogLog;
+import io.barracks.deviceservice.model.SeenSketch;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+
+import javax.annotation.Nullable;
+import java.util.Date;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class SeenSketchRepositoryImpl implements SeenSketchRepositoryCustom {
+    private static final String USER_ID_KEY = "userId";
+    private static final String BUCKET_KEY = "bucket";
+    private static final String REGISTERS_KEY = "registers";
+    private static final String VERSION_KEY = "version";
+    private final MongoOperations operations;
+
+    @Autowired
+    public SeenSketchRepositoryImpl(MongoOperations operations) {
+        this.operations = operations;
+    }
+
+    @Override
+    public void mergeSketch(String userId, Date bucket, HyperLogLog sketch) {
+        // Merging is idempotent, so a write lost to a concurrent merge is simply merged again into the newer state
+        final Query bucketQuery = query(where(USER_ID_KEY).is(userId).and(BUCKET_KEY).is(bucket));
+        while (true) {
+            final SeenSketch stored = operations.findOne(bucketQuery, SeenSketch.class);
+            if (stored == null) {
+                try {
+                    operations.insert(SeenSketch.builder().userId(userId).bucket(bucket).registers(sketch.toBytes()).build());
+                    return;
+                } catch (DuplicateKeyException e) {
+                    continue;
+                }
+            }
+            final HyperLogLog current = HyperLogLog.fromBytes(stored.getRegisters());
+            final HyperLogLog merged = HyperLogLog.fromBytes(stored.getRegisters());
+            merged.merge(sketch);
+            if (merged.equals(current)) {
+                return;
+            }
+            final boolean updated = operations.updateFirst(
+                    query(where("_id").is(stored.getId()).and(VERSION_KEY).is(stored.getVersion())),
+                    Update.update(REGISTERS_KEY, merged.toBytes()).inc(VERSION_KEY, 1),
+                    SeenSketch.class
+            ).getN() > 0;
+            if (updated) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public HyperLogLog findMergedSketch(String userId, @Nullable Date from, @Nullable Date to) {
+        final Criteria criteria = where(USER_ID_KEY).is(userId);
+        if (from != null || to != null) {
+            final Criteria bucket = criteria.and(BUCKET_KEY);
+            if (from != null) {
+                bucket.gte(from);
+            }
+            if (to != null) {
+                bucket.lte(to);
+            }
+        }
+        final Query query = query(criteria);
+        query.fields().include(REGISTERS_KEY).include(VERSION_KEY);
+        final HyperLogLog merged = HyperLogLog.empty();
+        try (CloseableIterator<SeenSketch> sketches = operations.stream(query, SeenSketch.class)) {
+            sketches.forEachRemaining(sketch -> merged.merge(HyperLogLog.fromBytes(sketch.getRegisters())));
+        }
+        return merged;
+    }
+}
@@ -31,4 +31,5 @@ import java.util.List;
 public interface SegmentOrderRepositoryCustom {
     SegmentOrder updateOrder(String userId, List<String> order);
     SegmentOrder findByUserId(String userId);
+    List<String> getSegmentIds(String userId);
 }
@@ -33,7 +33,9 @@ import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 
 public class SegmentOrderRepositoryImpl implements SegmentOrderRepositoryCustom {
     public static final String USER_ID_KEY = "userId";
@@ -64,4 +66,13 @@ public class SegmentOrderRepositoryImpl implements SegmentOrderRepositoryCustom
                 SegmentOrder.class
         );
     }
+
+    @Override
+    public List<String> getSegmentIds(String userId) {
+        final Query query = Query.query(Criteria.where(USER_ID_KEY).is(userId));
+        query.fields().include(SEGMENTS_KEY);
+        return Optional.ofNullable(operations.findOne(query, SegmentOrder.class))
+                .map(SegmentOrder::getSegmentIds)
+                .orElse(Collections.emptyList());
+    }
 }
@@ -31,8 +31,7 @@ import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 
 public class SegmentRepositoryImpl implements SegmentRepositoryCustom {
     public static final String USER_ID_KEY = "userId";
@@ -66,11 +65,11 @@ public class SegmentRepositoryImpl implements SegmentRepositoryCustom {
         }
         List<Segment> results = operations.find(query, Segment.class);
         if (matchIds) {
-            Segment[] sorted = new Segment[results.size()];
-            for (Segment segment : results) {
-                sorted[ids.indexOf(segment.getId())] = segment;
+            Map<String, Integer> positions = new HashMap<>(ids.size() * 2);
+            for (int idx = 0; idx < ids.size(); idx++) {
+                positions.put(ids.get(idx), idx);
             }
-            results = Arrays.asList(sorted);
+            results.sort(Comparator.comparingInt(segment -> positions.get(segment.getId())));
         }
         return results;
     }
@@ -0,0 +1,73 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.deviceservice.model.StatsRollup;
+import io.barracks.deviceservice.model.StatsRollupGenerations;
+
+import javax.annotation.Nullable;
+import java.util.Date;
+import java.util.List;
+
+public interface StatsRollupRepositoryCustom {
+    /**
+     * Adds the count of each given rollup to the stored rollup with the same user, generation, dimension, key and
+     * bucket, creating it if needed.
+     */
+    void incrementCounts(List<StatsRollup> increments);
+
+    /**
+     * Sums the counts of the buckets of a dimension starting within the given bounds, the upper one being excluded.
+     */
+    long sumBucketCounts(String userId, @Nullable Long generation, String dimension, @Nullable Date from, @Nullable Date to);
+
+    StatsRollupGenerations getGenerations();
+
+    /**
+     * Allocates a new pending generation counting the last events received from the given date.
+     */
+    StatsRollupGenerations startGeneration(Date from);
+
+    /**
+     * Marks the rebuild of the pending generation as started, and returns false if it was already started: a rebuild
+     * that did not complete left partial counts in the generation, which must then be abandoned.
+     */
+    boolean startScan(long generation);
+
+    /**
+     * Makes the pending generation the current one, unless it was abandoned in the meantime.
+     */
+    boolean swapGeneration(long generation);
+
+    /**
+     * Abandons the pending generation and removes its rollups.
+     */
+    void abandonGeneration(long generation);
+
+    /**
+     * Removes the rollups of every generation other than the given one, and of no generation if it is null.
+     */
+    void removeGenerations(@Nullable Long current);
+}
@@ -0,0 +1,189 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import io.barracks.deviceservice.model.StatsRollup;
+import io.barracks.deviceservice.model.StatsRollupGenerations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class StatsRollupRepositoryImpl implements StatsRollupRepositoryCustom {
+    private static final Logger logger = LoggerFactory.getLogger(StatsRollupRepositoryImpl.class);
+    private static final String LEGACY_INDEX = "userId_dimension_key_bucket_idx";
+    private static final String USER_ID_KEY = "userId";
+    private static final String GENERATION_KEY = "generation";
+    private static final String DIMENSION_KEY = "dimension";
+    private static final String KEY_KEY = "key";
+    private static final String BUCKET_KEY = "bucket";
+    private static final String COUNT_KEY = "count";
+    private static final String ID_KEY = "id";
+    private static final String CURRENT_KEY = "current";
+    private static final String LATEST_KEY = "latest";
+    private static final String PENDING_KEY = "pending";
+    private static final String PENDING_FROM_KEY = "pendingFrom";
+    private static final String SCANNING_KEY = "scanning";
+    private final MongoOperations operations;
+
+    @Autowired
+    public StatsRollupRepositoryImpl(MongoOperations operations) {
+        this.operations = operations;
+    }
+
+    /**
+     * Drops the unique index of the rollups without generation, which would reject the rollups of a new generation.
+     */
+    @PostConstruct
+    public void dropLegacyIndex() {
+        try {
+            operations.indexOps(StatsRollup.class).dropIndex(LEGACY_INDEX);
+        } catch (DataAccessException e) {
+            logger.debug("No index " + LEGACY_INDEX + " to drop", e);
+        }
+    }
+
+    @Override
+    public void incrementCounts(List<StatsRollup> increments) {
+        if (increments.isEmpty()) {
+            return;
+        }
+        execute(bulk -> {
+            for (StatsRollup increment : increments) {
+                bulk.find(getRollupQuery(increment))
+                        .upsert()
+                        .updateOne(new BasicDBObject("$inc", new BasicDBObject(COUNT_KEY, increment.getCount())));
+            }
+        });
+    }
+
+    @Override
+    public long sumBucketCounts(String userId, @Nullable Long generation, String dimension, @Nullable Date from, @Nullable Date to) {
+        final Criteria criteria = where(USER_ID_KEY).is(userId)
+                .and(GENERATION_KEY).is(generation)
+                .and(DIMENSION_KEY).is(dimension)
+                .and(KEY_KEY).is(null);
+        if (from != null || to != null) {
+            final Criteria bucket = criteria.and(BUCKET_KEY);
+            if (from != null) {
+                bucket.gte(from);
+            }
+            if (to != null) {
+                bucket.lt(to);
+            }
+        }
+        final Query query = query(criteria);
+        query.fields().include(COUNT_KEY);
+        return operations.find(query, StatsRollup.class).stream()
+                .mapToLong(StatsRollup::getCount)
+                .sum();
+    }
+
+    @Override
+    public StatsRollupGenerations getGenerations() {
+        final StatsRollupGenerations generations = operations.findById(StatsRollupGenerations.ID, StatsRollupGenerations.class);
+        return generations == null ? StatsRollupGenerations.builder().id(StatsRollupGenerations.ID).build() : generations;
+    }
+
+    @Override
+    public StatsRollupGenerations startGeneration(Date from) {
+        final StatsRollupGenerations allocated = operations.findAndModify(
+                getGenerationsQuery(),
+                new Update().inc(LATEST_KEY, 1).set(PENDING_FROM_KEY, from).set(SCANNING_KEY, false),
+                FindAndModifyOptions.options().upsert(true).returnNew(true),
+                StatsRollupGenerations.class
+        );
+        // The pending generation is the allocated one, only known once the counter is incremented
+        operations.updateFirst(getGenerationsQuery(), Update.update(PENDING_KEY, allocated.getLatest()), StatsRollupGenerations.class);
+        return allocated.toBuilder().pending(allocated.getLatest()).build();
+    }
+
+    @Override
+    public boolean startScan(long generation) {
+        final Query query = getGenerationsQuery().addCriteria(where(PENDING_KEY).is(generation).and(SCANNING_KEY).is(false));
+        return operations.updateFirst(query, Update.update(SCANNING_KEY, true), StatsRollupGenerations.class).getN() > 0;
+    }
+
+    @Override
+    public boolean swapGeneration(long generation) {
+        final Query query = getGenerationsQuery().addCriteria(where(PENDING_KEY).is(generation));
+        final Update update = Update.update(CURRENT_KEY, generation)
+                .unset(PENDING_KEY)
+                .unset(PENDING_FROM_KEY)
+                .unset(SCANNING_KEY);
+        return operations.updateFirst(query, update, StatsRollupGenerations.class).getN() > 0;
+    }
+
+    @Override
+    public void abandonGeneration(long generation) {
+        final Update update = new Update().unset(PENDING_KEY).unset(PENDING_FROM_KEY).unset(SCANNING_KEY);
+        operations.updateFirst(getGenerationsQuery().addCriteria(where(PENDING_KEY).is(generation)), update, StatsRollupGenerations.class);
+        operations.remove(query(where(GENERATION_KEY).is(generation)), StatsRollup.class);
+    }
+
+    @Override
+    public void removeGenerations(@Nullable Long current) {
+        operations.remove(query(where(GENERATION_KEY).ne(current)), StatsRollup.class);
+    }
+
+    /**
+     * Executes an unordered bulk on the rollups, driver exceptions being translated like those of the template.
+     */
+    private void execute(Consumer<BulkWriteOperation> requests) {
+        operations.execute(StatsRollup.class, collection -> {
+            final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+            requests.accept(bulk);
+            return bulk.execute();
+        });
+    }
+
+    private BasicDBObject getRollupQuery(StatsRollup rollup) {
+        return new BasicDBObject(USER_ID_KEY, rollup.getUserId())
+                .append(GENERATION_KEY, rollup.getGeneration())
+                .append(DIMENSION_KEY, rollup.getDimension())
+                .append(KEY_KEY, rollup.getKey())
+                .append(BUCKET_KEY, rollup.getBucket());
+    }
+
+    private Query getGenerationsQuery() {
+        return query(where(ID_KEY).is(StatsRollupGenerations.ID));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.deviceservice.model.SpaceSaving;
+import io.barracks.deviceservice.model.TopValuesSketch;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class TopValuesSketchRepositoryImpl implements TopValuesSketchRepositoryCustom {
+    private static final String USER_ID_KEY = "userId";
+    private static final String KEY_KEY = "key";
+    private static final String COUNTERS_KEY = "counters";
+    private static final String TOTAL_KEY = "total";
+    private static final String VERSION_KEY = "version";
+    private final MongoOperations operations;
+
+    @Autowired
+    public TopValuesSketchRepositoryImpl(MongoOperations operations) {
+        this.operations = operations;
+    }
+
+    @Override
+    public void applyCounts(String userId, String key, int capacity, Map<String, Long> deltas) {
+        // Decreases free counters before the increases are offered, the largest increases first
+        final List<Map.Entry<String, Long>> changes = new ArrayList<>(deltas.entrySet());
+        changes.sort(Map.Entry.comparingByValue());
+        final int firstIncrease = (int) changes.stream().filter(change -> change.getValue() < 0).count();
+        changes.subList(firstIncrease, changes.size()).sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        final Query sketchQuery = query(where(USER_ID_KEY).is(userId).and(KEY_KEY).is(key));
+        while (true) {
+            final TopValuesSketch stored = operations.findOne(sketchQuery, TopValuesSketch.class);
+            final SpaceSaving sketch = stored == null ? new SpaceSaving(capacity) : new SpaceSaving(capacity, stored.getCounters(), stored.getTotal());
+            changes.forEach(change -> sketch.offer(change.getKey(), change.getValue()));
+            if (stored == null) {
+                try {
+                    operations.insert(TopValuesSketch.builder().userId(userId).key(key).counters(sketch.getCounters()).total(sketch.getTotal()).build());
+                    return;
+                } catch (DuplicateKeyException e) {
+                    continue;
+                }
+            }
+            // Changes are not idempotent, a write lost to a concurrent update is applied again to the newer state
+            final boolean updated = operations.updateFirst(
+                    query(where("_id").is(stored.getId()).and(VERSION_KEY).is(stored.getVersion())),
+                    Update.update(COUNTERS_KEY, sketch.getCounters()).set(TOTAL_KEY, sketch.getTotal()).inc(VERSION_KEY, 1),
+                    TopValuesSketch.class
+            ).getN() > 0;
+            if (updated) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void replaceSketch(String userId, String key, SpaceSaving sketch) {
+        operations.upsert(
+                query(where(USER_ID_KEY).is(userId).and(KEY_KEY).is(key)),
+                Update.update(COUNTERS_KEY, sketch.getCounters()).set(TOTAL_KEY, sketch.getTotal()).inc(VERSION_KEY, 1),
+                TopValuesSketch.class
+        );
+    }
+}
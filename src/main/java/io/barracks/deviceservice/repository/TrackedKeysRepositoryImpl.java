@@ -0,0 +1,84 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.deviceservice.model.TrackedKeys;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+public class TrackedKeysRepositoryImpl implements TrackedKeysRepositoryCustom {
+    public static final String USER_ID_KEY = "userId";
+    public static final String KEYS_KEY = "keys";
+    public static final String QUANTILE_KEYS_KEY = "quantileKeys";
+    private final MongoOperations operations;
+
+    @Autowired
+    public TrackedKeysRepositoryImpl(MongoOperations operations) {
+        this.operations = operations;
+    }
+
+    @Override
+    public TrackedKeys updateKeys(String userId, List<String> keys) {
+        return update(userId, KEYS_KEY, keys);
+    }
+
+    @Override
+    public List<String> getKeys(String userId) {
+        return find(userId, KEYS_KEY).map(TrackedKeys::getKeys).orElse(Collections.emptyList());
+    }
+
+    @Override
+    public TrackedKeys updateQuantileKeys(String userId, List<String> keys) {
+        return update(userId, QUANTILE_KEYS_KEY, keys);
+    }
+
+    @Override
+    public List<String> getQuantileKeys(String userId) {
+        return find(userId, QUANTILE_KEYS_KEY).map(TrackedKeys::getQuantileKeys).orElse(Collections.emptyList());
+    }
+
+    private TrackedKeys update(String userId, String field, List<String> keys) {
+        return operations.findAndModify(
+                Query.query(Criteria.where(USER_ID_KEY).is(userId)),
+                Update.update(field, keys).setOnInsert(USER_ID_KEY, userId),
+                FindAndModifyOptions.options().upsert(true).returnNew(true),
+                TrackedKeys.class
+        );
+    }
+
+    private Optional<TrackedKeys> find(String userId, String field) {
+        final Query query = Query.query(Criteria.where(USER_ID_KEY).is(userId));
+        query.fields().include(field);
+        return Optional.ofNullable(operations.findOne(query, TrackedKeys.class));
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.rest;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves each {@link TrafficClass} within its own budget of concurrent requests, the requests over budget being
+ * suspended with the asynchronous servlet processing until a slot is released. A suspended request does not hold a
+ * container thread, and is rejected with {@code 503 Service Unavailable} when the queue of its class is full or when it
+ * waited for longer than the queue timeout.
+ * <p>
+ * Only the requests are bounded: the connections of the Mongo pool are shared with the work running outside of them,
+ * such as device exports, asynchronous ingestion and statistics refreshes.
+ */
+public class BulkheadFilter implements Filter, PublicMetrics {
+    static final String ADMITTED_ATTRIBUTE = BulkheadFilter.class.getName() + ".ADMITTED";
+    static final String ENQUEUED_ATTRIBUTE = BulkheadFilter.class.getName() + ".ENQUEUED";
+
+    private final Map<TrafficClass, Bulkhead> bulkheads;
+    private final GaugeService gaugeService;
+    private final long queueTimeoutMillis;
+    private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+    public BulkheadFilter(Collection<Bulkhead> bulkheads, GaugeService gaugeService, long queueTimeoutMillis) {
+        this.bulkheads = new EnumMap<>(TrafficClass.class);
+        bulkheads.forEach(bulkhead -> this.bulkheads.put(bulkhead.getTrafficClass(), bulkhead));
+        this.gaugeService = gaugeService;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain) throws IOException, ServletException {
+        final HttpServletRequest request = (HttpServletRequest) servletRequest;
+        final HttpServletResponse response = (HttpServletResponse) servletResponse;
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            // Either a queued request dispatched once admitted, or the result of an asynchronous handler
+            final TrafficClass admitted = (TrafficClass) request.getAttribute(ADMITTED_ATTRIBUTE);
+            if (admitted == null) {
+                chain.doFilter(request, response);
+            } else {
+                request.removeAttribute(ADMITTED_ATTRIBUTE);
+                process(bulkheads.get(admitted), request, response, chain);
+            }
+            return;
+        }
+
+        final Optional<Bulkhead> bulkhead = TrafficClass.of(request.getMethod(), urlPathHelper.getPathWithinApplication(request))
+                .map(bulkheads::get);
+        if (!bulkhead.isPresent()) {
+            chain.doFilter(request, response);
+        } else if (bulkhead.get().tryAcquire()) {
+            bulkhead.get().admitted.incrementAndGet();
+            process(bulkhead.get(), request, response, chain);
+        } else if (request.isAsyncSupported()) {
+            final AsyncContext context = request.startAsync(request, response);
+            final Waiter waiter = new Waiter(context);
+            context.setTimeout(queueTimeoutMillis);
+            context.addListener(new Waiting(bulkhead.get(), waiter));
+            request.setAttribute(ENQUEUED_ATTRIBUTE, System.nanoTime());
+            if (bulkhead.get().waiting.offer(waiter)) {
+                admitWaiting(bulkhead.get());
+            } else if (waiter.settle()) {
+                bulkhead.get().rejected.incrementAndGet();
+                reject(response);
+                context.complete();
+            }
+        } else {
+            bulkhead.get().rejected.incrementAndGet();
+            reject(response);
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>(bulkheads.size() * 5);
+        bulkheads.forEach((trafficClass, bulkhead) -> {
+            final String prefix = "bulkhead." + trafficClass.getName();
+            metrics.add(new Metric<>(prefix + ".active", bulkhead.getActive()));
+            metrics.add(new Metric<>(prefix + ".queued", bulkhead.waiting.size()));
+            metrics.add(new Metric<>(prefix + ".admitted", bulkhead.admitted.get()));
+            metrics.add(new Metric<>(prefix + ".rejected", bulkhead.rejected.get()));
+            metrics.add(new Metric<>(prefix + ".timedOut", bulkhead.timedOut.get()));
+        });
+        return metrics;
+    }
+
+    private void process(Bulkhead bulkhead, HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws IOException, ServletException {
+        final Release release = new Release(bulkhead);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            // Streamed responses keep their slot until they are complete
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(release);
+            } else {
+                release.run();
+            }
+        }
+    }
+
+    private void admitWaiting(Bulkhead bulkhead) {
+        Waiter waiter;
+        while ((waiter = bulkhead.pollWaiting()) != null) {
+            if (!waiter.settle()) {
+                // The request timed out and was rejected since it was polled
+                bulkhead.permits.release();
+                continue;
+            }
+            final AsyncContext context = waiter.context;
+            final ServletRequest request = context.getRequest();
+            final Long enqueued = (Long) request.getAttribute(ENQUEUED_ATTRIBUTE);
+            if (enqueued != null) {
+                gaugeService.submit("timer.bulkhead." + bulkhead.trafficClass.getName() + ".wait", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - enqueued));
+            }
+            request.setAttribute(ADMITTED_ATTRIBUTE, bulkhead.trafficClass);
+            try {
+                context.dispatch();
+                bulkhead.admitted.incrementAndGet();
+            } catch (IllegalStateException e) {
+                // The request timed out while being admitted, its timeout leaving it to be completed here
+                bulkhead.permits.release();
+                bulkhead.timedOut.incrementAndGet();
+                rejectTimedOut(context);
+            }
+        }
+    }
+
+    private void reject(HttpServletResponse response) {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    private void rejectTimedOut(AsyncContext context) {
+        try {
+            reject((HttpServletResponse) context.getResponse());
+            context.complete();
+        } catch (IllegalStateException e) {
+            // The container already completed the request
+        }
+    }
+
+    /**
+     * Concurrency and queue budgets of a traffic class.
+     */
+    public static final class Bulkhead {
+        private final TrafficClass trafficClass;
+        private final int concurrency;
+        private final Semaphore permits;
+        private final BlockingQueue<Waiter> waiting;
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong timedOut = new AtomicLong();
+
+        public Bulkhead(TrafficClass trafficClass, int concurrency, int queueLength) {
+            if (concurrency < 1 || queueLength < 1) {
+                throw new IllegalArgumentException("The bulkhead of " + trafficClass.getName() + " needs a positive concurrency and queue length");
+            }
+            this.trafficClass = trafficClass;
+            this.concurrency = concurrency;
+            this.permits = new Semaphore(concurrency);
+            this.waiting = new LinkedBlockingQueue<>(queueLength);
+        }
+
+        public TrafficClass getTrafficClass() {
+            return trafficClass;
+        }
+
+        int getActive() {
+            return concurrency - permits.availablePermits();
+        }
+
+        private boolean tryAcquire() {
+            // Requests do not overtake the queued ones
+            return waiting.isEmpty() && permits.tryAcquire();
+        }
+
+        private Waiter pollWaiting() {
+            if (waiting.isEmpty() || !permits.tryAcquire()) {
+                return null;
+            }
+            final Waiter waiter = waiting.poll();
+            if (waiter == null) {
+                permits.release();
+            }
+            return waiter;
+        }
+    }
+
+    private final class Release implements AsyncListener, Runnable {
+        private final Bulkhead bulkhead;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Release(Bulkhead bulkhead) {
+            this.bulkhead = bulkhead;
+        }
+
+        @Override
+        public void run() {
+            if (released.compareAndSet(false, true)) {
+                bulkhead.permits.release();
+                admitWaiting(bulkhead);
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    /**
+     * Queued request, settled exactly once by either its admission or its timeout, whichever comes first.
+     */
+    private static final class Waiter {
+        private final AsyncContext context;
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        private Waiter(AsyncContext context) {
+            this.context = context;
+        }
+
+        private boolean settle() {
+            return settled.compareAndSet(false, true);
+        }
+    }
+
+    private final class Waiting implements AsyncListener {
+        private final Bulkhead bulkhead;
+        private final Waiter waiter;
+
+        private Waiting(Bulkhead bulkhead, Waiter waiter) {
+            this.bulkhead = bulkhead;
+            this.waiter = waiter;
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // A request already being admitted is dispatched, or rejected if the dispatch comes too late
+            if (waiter.settle()) {
+                bulkhead.waiting.remove(waiter);
+                bulkhead.timedOut.incrementAndGet();
+                rejectTimedOut(event.getAsyncContext());
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
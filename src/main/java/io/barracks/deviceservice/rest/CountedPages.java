@@ -0,0 +1,90 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.rest;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.barracks.deviceservice.model.CountStrategy;
+import io.barracks.deviceservice.model.CountedPage;
+import org.springframework.data.web.PagedResourcesAssembler;
+import org.springframework.hateoas.PagedResources;
+import org.springframework.hateoas.Resource;
+import org.springframework.web.bind.WebDataBinder;
+
+import java.beans.PropertyEditorSupport;
+
+/**
+ * Renders pages requested with a {@code count} parameter ({@code exact}, {@code estimate} for a capped count, or
+ * {@code none}), the page metadata telling which kind of count was returned and, when counting stopped at a limit,
+ * the lower bound reached.
+ */
+final class CountedPages {
+    static final String COUNT_PARAMETER = "count";
+    static final String NO_CURSOR = "!" + CursorResources.CURSOR_PARAMETER;
+
+    private CountedPages() {
+    }
+
+    static void registerEditor(WebDataBinder binder) {
+        binder.registerCustomEditor(CountStrategy.class, new PropertyEditorSupport() {
+            @Override
+            public void setAsText(String text) throws IllegalArgumentException {
+                setValue(CountStrategy.fromName(text));
+            }
+        });
+    }
+
+    static <T> PagedResources<Resource<T>> toResource(PagedResourcesAssembler<T> assembler, CountedPage<T> page) {
+        final PagedResources<Resource<T>> resources = assembler.toResource(page);
+        final PagedResources.PageMetadata metadata = resources.getMetadata();
+        return new PagedResources<>(
+                resources.getContent(),
+                new CountedPageMetadata(metadata.getSize(), metadata.getNumber(), metadata.getTotalElements(), metadata.getTotalPages(), page.getCount(), page.getMinimumTotal()),
+                resources.getLinks()
+        );
+    }
+
+    static final class CountedPageMetadata extends PagedResources.PageMetadata {
+        private final CountStrategy count;
+        private final Long minTotalElements;
+
+        CountedPageMetadata(long size, long number, long totalElements, long totalPages, CountStrategy count, Long minTotalElements) {
+            super(size, number, totalElements, totalPages);
+            this.count = count;
+            this.minTotalElements = minTotalElements;
+        }
+
+        @JsonProperty("count")
+        public String getCount() {
+            return count.getName();
+        }
+
+        @JsonProperty("minTotalElements")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Long getMinTotalElements() {
+            return minTotalElements;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.rest;
+
+import io.barracks.deviceservice.model.CursorPage;
+import org.springframework.hateoas.Link;
+import org.springframework.hateoas.Resource;
+import org.springframework.hateoas.Resources;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Renders cursor pages, listings requested with a {@code cursor} parameter (empty for the first page) instead of a
+ * page number. The next page is linked with the continuation cursor.
+ */
+final class CursorResources {
+    static final String CURSOR_PARAMETER = "cursor";
+    static final String SIZE_PARAMETER = "size";
+    static final String DEFAULT_SIZE = "20";
+    private static final int MAX_SIZE = 2000;
+
+    private CursorResources() {
+    }
+
+    static int getLimit(int size) {
+        return Math.max(1, Math.min(size, MAX_SIZE));
+    }
+
+    static <T> Resources<Resource<T>> toResource(CursorPage<T> page) {
+        final List<Resource<T>> content = page.getContent().stream()
+                .map(item -> new Resource<>(item))
+                .collect(Collectors.toList());
+        final List<Link> links = new ArrayList<>();
+        links.add(new Link(ServletUriComponentsBuilder.fromCurrentRequest().build().toUriString()));
+        if (page.hasNext()) {
+            links.add(new Link(
+                    ServletUriComponentsBuilder.fromCurrentRequest()
+                            .replaceQueryParam(CURSOR_PARAMETER, page.getNextCursor())
+                            .build()
+                            .toUriString(),
+                    Link.REL_NEXT
+            ));
+        }
+        return new Resources<>(content, links);
+    }
+}
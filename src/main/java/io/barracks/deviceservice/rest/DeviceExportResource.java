@@ -0,0 +1,93 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.deviceservice.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.deviceservice.manager.DeviceExporter;
+import io.barracks.deviceservice.model.DeviceFields;
+import io.barracks.deviceservice.model.operator.Operator;
+import org.hibernate.validator.constraints.NotBlank;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.WebDataBinder;
+import org.springframework.web.bind.annotation.InitBinder;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Optional;
+
+/**
+ * Streams the devices of a user as newline delimited JSON. The export lives at {@code /devices:export} rather than
+ * under {@code /devices/} so that it does not shadow the device whose unit id would be {@code export}.
+ */
+@RestController
+@RequestMapping("/devices:export")
+public class DeviceExportResource {
+    static final String NDJSON_VALUE = "application/x-ndjson";
+
+    private final DeviceExporter deviceExporter;
+    private final ObjectMapper objectMapper;
+
+    @Autowired
+    public DeviceExportResource(ObjectMapper objectMapper, DeviceExporter deviceExporter) {
+        this.objectMapper = objectMapper;
+        this.deviceExporter = deviceExporter;
+    }
+
+    @InitBinder
+    public void initBinder(WebDataBinder binder) {
+        ProjectedDevices.registerEditor(binder);
+    }
+
+    @RequestMapping(method = RequestMethod.GET, produces = NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportDevices(
+            @NotBlank @RequestParam(value = "userId") String userId,
+            @RequestParam(value = OperatorQueries.QUERY_PARAMETER, defaultValue = "") String query,
+            @RequestParam(value = ProjectedDevices.FIELDS_PARAMETER, defaultValue = "") DeviceFields fields) {
+        final Optional<Operator> operator = OperatorQueries.parse(objectMapper, query);
+        final StreamingResponseBody body = out -> {
+            try {
+                deviceExporter.exportDevices(userId, operator, fields, device -> {
+                    try {
+                        out.write(objectMapper.writeValueAsBytes(ProjectedDevices.toJson(objectMapper, device, fields)));
+                        out.write('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON_VALUE)).body(body);
+    }
+}
@@ -25,22 +25,29 @@
 package io.barracks.deviceservice.rest;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.deviceservice.manager.DeviceEventIngester;
 import io.barracks.deviceservice.manager.DeviceManager;
+import io.barracks.deviceservice.model.CountStrategy;
 import io.barracks.deviceservice.model.Device;
 import io.barracks.deviceservice.model.DeviceConfiguration;
 import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceEventBatchItem;
+import io.barracks.deviceservice.model.DeviceFields;
 import io.barracks.deviceservice.model.operator.Operator;
-import io.barracks.deviceservice.rest.exception.BarracksQueryFormatException;
 import org.hibernate.validator.constraints.NotBlank;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.web.PagedResourcesAssembler;
 import org.springframework.hateoas.PagedResources;
 import org.springframework.hateoas.Resource;
-import org.springframework.util.StringUtils;
+import org.springframework.hateoas.Resources;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.WebDataBinder;
 import org.springframework.web.bind.annotation.*;
 
-import java.io.IOException;
+import java.util.List;
 import java.util.Optional;
 
 @RestController
@@ -49,37 +56,87 @@ public class DeviceResource {
     private final PagedResourcesAssembler<Device> deviceAssembler;
     private final PagedResourcesAssembler<DeviceEvent> deviceEventAssembler;
     private final DeviceManager deviceManager;
+    private final DeviceEventIngester deviceEventIngester;
     private final ObjectMapper objectMapper;
 
     @Autowired
-    public DeviceResource(ObjectMapper objectMapper, DeviceManager deviceManager, PagedResourcesAssembler<Device> deviceAssembler, PagedResourcesAssembler<DeviceEvent> deviceEventAssembler) {
+    public DeviceResource(ObjectMapper objectMapper, DeviceManager deviceManager, DeviceEventIngester deviceEventIngester, PagedResourcesAssembler<Device> deviceAssembler, PagedResourcesAssembler<DeviceEvent> deviceEventAssembler) {
         this.objectMapper = objectMapper;
         this.deviceManager = deviceManager;
+        this.deviceEventIngester = deviceEventIngester;
         this.deviceAssembler = deviceAssembler;
         this.deviceEventAssembler = deviceEventAssembler;
     }
 
+    @InitBinder
+    public void initBinder(WebDataBinder binder) {
+        CountedPages.registerEditor(binder);
+        ProjectedDevices.registerEditor(binder);
+    }
+
     @ResponseBody
     @RequestMapping(method = RequestMethod.GET)
     public PagedResources<Resource<Device>> getDevices(
             @NotBlank @RequestParam(value = "userId") String userId,
-            @RequestParam(value = "query", defaultValue = "") String query,
+            @RequestParam(value = OperatorQueries.QUERY_PARAMETER, defaultValue = "") String query,
+            @RequestParam(value = ProjectedDevices.FIELDS_PARAMETER, defaultValue = "") DeviceFields fields,
             Pageable pageable) {
-        try {
-            Optional<Operator> operator = Optional.empty();
-            if (!StringUtils.isEmpty(query)) {
-                operator = Optional.of(objectMapper.readValue(query, Operator.class));
-            }
-            return deviceAssembler.toResource(deviceManager.getDevicesByUserId(userId, operator, pageable));
-        } catch (IOException e) {
-            throw new BarracksQueryFormatException(query, e);
+        if (!fields.isAll()) {
+            return getDevices(userId, query, CountStrategy.EXACT, fields, pageable);
         }
+        return deviceAssembler.toResource(deviceManager.getDevicesByUserId(userId, OperatorQueries.parse(objectMapper, query), pageable));
+    }
+
+    @ResponseBody
+    @RequestMapping(method = RequestMethod.GET, params = {CountedPages.COUNT_PARAMETER, CountedPages.NO_CURSOR})
+    public PagedResources<Resource<Device>> getDevices(
+            @NotBlank @RequestParam(value = "userId") String userId,
+            @RequestParam(value = OperatorQueries.QUERY_PARAMETER, defaultValue = "") String query,
+            @RequestParam(value = CountedPages.COUNT_PARAMETER) CountStrategy count,
+            @RequestParam(value = ProjectedDevices.FIELDS_PARAMETER, defaultValue = "") DeviceFields fields,
+            Pageable pageable) {
+        final Optional<Operator> operator = OperatorQueries.parse(objectMapper, query);
+        return ProjectedDevices.toResource(
+                objectMapper,
+                CountedPages.toResource(deviceAssembler, deviceManager.getDevicesByUserId(userId, operator, pageable, count, fields)),
+                fields
+        );
+    }
+
+    @ResponseBody
+    @RequestMapping(method = RequestMethod.GET, params = CursorResources.CURSOR_PARAMETER)
+    public Resources<Resource<Device>> getDevices(
+            @NotBlank @RequestParam(value = "userId") String userId,
+            @RequestParam(value = OperatorQueries.QUERY_PARAMETER, defaultValue = "") String query,
+            @RequestParam(value = CursorResources.CURSOR_PARAMETER) String cursor,
+            @RequestParam(value = CursorResources.SIZE_PARAMETER, defaultValue = CursorResources.DEFAULT_SIZE) int size,
+            @RequestParam(value = ProjectedDevices.FIELDS_PARAMETER, defaultValue = "") DeviceFields fields) {
+        final Optional<Operator> operator = OperatorQueries.parse(objectMapper, query);
+        return ProjectedDevices.toResource(
+                objectMapper,
+                CursorResources.toResource(deviceManager.getDevicesByUserId(userId, operator, cursor, CursorResources.getLimit(size), fields)),
+                fields
+        );
     }
 
     @ResponseBody
     @RequestMapping(method = RequestMethod.POST)
-    public DeviceEvent addDeviceEvent(@RequestBody DeviceEvent source) {
-        return deviceManager.saveDeviceEvent(source);
+    public ResponseEntity<DeviceEvent> addDeviceEvent(@RequestBody DeviceEvent source) {
+        if (!deviceEventIngester.isAsynchronous()) {
+            return ResponseEntity.ok(deviceManager.saveDeviceEvent(source));
+        }
+        if (!deviceEventIngester.enqueue(source)) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(deviceEventIngester.getRetryAfter()))
+                    .body(null);
+        }
+        return ResponseEntity.accepted().body(source);
+    }
+
+    @ResponseBody
+    @RequestMapping(method = RequestMethod.POST, path = "/events:batch")
+    public List<DeviceEventBatchItem> addDeviceEvents(@RequestBody List<DeviceEvent> sources) {
+        return deviceManager.saveDeviceEvents(sources);
     }
 
     @ResponseBody
@@ -100,6 +157,17 @@ public class DeviceResource {
         return deviceEventAssembler.toResource(deviceManager.getDeviceEventsByUnitId(userId, unitId, onlyChanged, pageable));
     }
 
+    @ResponseBody
+    @RequestMapping(method = RequestMethod.GET, path = "/{unitId}/events", params = CursorResources.CURSOR_PARAMETER)
+    public Resources<Resource<DeviceEvent>> getDeviceEventsByUnitId(
+            @PathVariable("unitId") String unitId,
+            @NotBlank @RequestParam(value = "userId") String userId,
+            @RequestParam(value = "onlyChanged", required = false, defaultValue = "true") boolean onlyChanged,
+            @RequestParam(value = CursorResources.CURSOR_PARAMETER) String cursor,
+            @RequestParam(value = CursorResources.SIZE_PARAMETER, defaultValue = CursorResources.DEFAULT_SIZE) int size) {
+        return CursorResources.toResource(deviceManager.getDeviceEventsByUnitId(userId, unitId, onlyChanged, cursor, CursorResources.getLimit(size)));
+    }
+
     @ResponseBody
     @RequestMapping(method = RequestMethod.GET, path = "/{unitId}/configuration")
     public DeviceConfiguration getDeviceConfiguration(
@@ -25,6 +25,7 @@
 package io.barracks.deviceservice.rest;
 
 import io.barracks.deviceservice.manager.FilterManager;
+import io.barracks.deviceservice.model.CountStrategy;
 import io.barracks.deviceservice.model.Filter;
 import org.hibernate.validator.constraints.NotBlank;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -33,6 +34,7 @@ import org.springframework.data.web.PagedResourcesAssembler;
 import org.springframework.hateoas.PagedResources;
 import org.springframework.hateoas.Resource;
 import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.WebDataBinder;
 import org.springframework.web.bind.annotation.*;
 
 import javax.validation.Valid;
@@ -50,6 +52,11 @@ public class FilterResource {
         this.assembler = assembler;
     }
 
+    @InitBinder
+    public void initBinder(WebDataBinder binder) {
+        CountedPages.registerEditor(binder);
+    }
+
     @ResponseBody
     @RequestMapping(method = RequestMethod.POST)
     @ResponseStatus(HttpStatus.CREATED)
@@ -70,6 +77,16 @@ public class FilterResource {
         return assembler.toResource(filterManager.getFiltersByUserId(userId, pageable));
     }
 
+    @ResponseBody
+    @RequestMapping(method = RequestMethod.GET, params = CountedPages.COUNT_PARAMETER)
+    public PagedResources<Resource<Filter>> getFilters(
+            @NotBlank @PathVariable(value = "userId") String userId,
+            @RequestParam(value = CountedPages.COUNT_PARAMETER) CountStrategy count,
+            Pageable pageable
+    ) {
+        return CountedPages.toResource(assembler, filterManager.getFiltersByUserId(userId, pageable, count));
+    }
+
     @ResponseBody
     @RequestMapping("/{name}")
     public Filter getFilter(
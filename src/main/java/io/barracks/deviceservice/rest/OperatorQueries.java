@@ -0,0 +1,59 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.deviceservice.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.deviceservice.model.operator.Operator;
+import io.barracks.deviceservice.rest.exception.BarracksQueryFormatException;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Reads the JSON {@code query} parameter of device listings and exports.
+ */
+final class OperatorQueries {
+    static final String QUERY_PARAMETER = "query";
+
+    private OperatorQueries() {
+    }
+
+    /**
+     * @return the operator described by the query, or an empty optional if the query is empty
+     * @throws BarracksQueryFormatException if the query is not a valid operator
+     */
+    static Optional<Operator> parse(ObjectMapper objectMapper, String query) {
+        if (StringUtils.isEmpty(query)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(objectMapper.readValue(query, Operator.class));
+        } catch (IOException e) {
+            throw new BarracksQueryFormatException(query, e);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.rest;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceFields;
+import org.springframework.hateoas.PagedResources;
+import org.springframework.hateoas.Resource;
+import org.springframework.hateoas.Resources;
+import org.springframework.web.bind.WebDataBinder;
+
+import java.beans.PropertyEditorSupport;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Renders device listings requested with a {@code fields} parameter, each device only holding the selected
+ * properties.
+ */
+final class ProjectedDevices {
+    static final String FIELDS_PARAMETER = "fields";
+
+    private ProjectedDevices() {
+    }
+
+    static void registerEditor(WebDataBinder binder) {
+        binder.registerCustomEditor(DeviceFields.class, new PropertyEditorSupport() {
+            @Override
+            public void setAsText(String text) throws IllegalArgumentException {
+                setValue(DeviceFields.parse(text));
+            }
+        });
+    }
+
+    static PagedResources<Resource<Device>> toResource(ObjectMapper objectMapper, PagedResources<Resource<Device>> resources, DeviceFields fields) {
+        if (fields.isAll()) {
+            return resources;
+        }
+        return new PagedResources<>(project(objectMapper, resources.getContent(), fields), resources.getMetadata(), resources.getLinks());
+    }
+
+    static Resources<Resource<Device>> toResource(ObjectMapper objectMapper, Resources<Resource<Device>> resources, DeviceFields fields) {
+        if (fields.isAll()) {
+            return resources;
+        }
+        return new Resources<>(project(objectMapper, resources.getContent(), fields), resources.getLinks());
+    }
+
+    static JsonNode toJson(ObjectMapper objectMapper, Device device, DeviceFields fields) {
+        final ObjectNode tree = objectMapper.valueToTree(device);
+        return fields.isAll() ? tree : select(tree, fields);
+    }
+
+    private static List<Resource<Device>> project(ObjectMapper objectMapper, Collection<Resource<Device>> resources, DeviceFields fields) {
+        return resources.stream()
+                .map(resource -> new PartialDeviceResource(resource, toProperties(select(objectMapper.valueToTree(resource.getContent()), fields))))
+                .collect(Collectors.toList());
+    }
+
+    private static Map<String, JsonNode> toProperties(ObjectNode node) {
+        final Map<String, JsonNode> properties = new LinkedHashMap<>();
+        node.fields().forEachRemaining(entry -> properties.put(entry.getKey(), entry.getValue()));
+        return properties;
+    }
+
+    private static ObjectNode select(ObjectNode device, DeviceFields fields) {
+        final ObjectNode selected = device.objectNode();
+        for (String path : fields.getPaths()) {
+            final String[] keys = path.split("\\.");
+            JsonNode value = device;
+            for (String key : keys) {
+                value = value.path(key);
+            }
+            if (!value.isMissingNode()) {
+                ObjectNode parent = selected;
+                for (int idx = 0; idx < keys.length - 1; idx++) {
+                    parent = parent.with(keys[idx]);
+                }
+                parent.set(keys[keys.length - 1], value);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Device resource rendered with the selected properties only, the device itself being kept for the relation
+     * names.
+     */
+    static final class PartialDeviceResource extends Resource<Device> {
+        private final Map<String, JsonNode> properties;
+
+        PartialDeviceResource(Resource<Device> resource, Map<String, JsonNode> properties) {
+            super(resource.getContent(), resource.getLinks());
+            this.properties = Collections.unmodifiableMap(properties);
+        }
+
+        @Override
+        @JsonIgnore
+        public Device getContent() {
+            return super.getContent();
+        }
+
+        @JsonAnyGetter
+        public Map<String, JsonNode> getProperties() {
+            return properties;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return super.equals(obj) && properties.equals(((PartialDeviceResource) obj).properties);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * super.hashCode() + properties.hashCode();
+        }
+    }
+}
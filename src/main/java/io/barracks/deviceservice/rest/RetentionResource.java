@@ -0,0 +1,58 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.rest;
+
+import io.barracks.deviceservice.manager.EventRetention;
+import io.barracks.deviceservice.model.RetentionPolicy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.validation.Valid;
+
+@RestController
+@RequestMapping("/retention")
+public class RetentionResource {
+
+    private final EventRetention eventRetention;
+
+    @Autowired
+    public RetentionResource(EventRetention eventRetention) {
+        this.eventRetention = eventRetention;
+    }
+
+    @RequestMapping(method = RequestMethod.GET, path = "/{userId}")
+    public RetentionPolicy getPolicy(@PathVariable("userId") String userId) {
+        return eventRetention.getPolicy(userId);
+    }
+
+    @RequestMapping(method = RequestMethod.PUT, path = "/{userId}")
+    public RetentionPolicy updatePolicy(@PathVariable("userId") String userId, @Valid @RequestBody RetentionPolicy policy) {
+        return eventRetention.updatePolicy(userId, policy);
+    }
+}
@@ -24,8 +24,11 @@
 
 package io.barracks.deviceservice.rest;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.barracks.deviceservice.manager.SegmentManager;
+import io.barracks.deviceservice.model.CountStrategy;
 import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceFields;
 import io.barracks.deviceservice.model.Segment;
 import io.barracks.deviceservice.rest.entity.SegmentStatus;
 import org.hibernate.validator.constraints.NotBlank;
@@ -34,6 +37,7 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.data.web.PagedResourcesAssembler;
 import org.springframework.hateoas.PagedResources;
 import org.springframework.hateoas.Resource;
+import org.springframework.hateoas.Resources;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.WebDataBinder;
 import org.springframework.web.bind.annotation.*;
@@ -48,16 +52,19 @@ public class SegmentResource {
     private final PagedResourcesAssembler<Segment> segmentAssembler;
     private final PagedResourcesAssembler<Device> deviceAssembler;
     private final SegmentManager segmentManager;
+    private final ObjectMapper objectMapper;
 
     @Autowired
     public SegmentResource(
             PagedResourcesAssembler<Segment> assembler,
             PagedResourcesAssembler<Device> deviceAssembler,
-            SegmentManager segmentManager
+            SegmentManager segmentManager,
+            ObjectMapper objectMapper
     ) {
         this.segmentAssembler = assembler;
         this.deviceAssembler = deviceAssembler;
         this.segmentManager = segmentManager;
+        this.objectMapper = objectMapper;
     }
 
     @InitBinder
@@ -68,6 +75,8 @@ public class SegmentResource {
                 setValue(SegmentStatus.fromName(text));
             }
         });
+        CountedPages.registerEditor(binder);
+        ProjectedDevices.registerEditor(binder);
     }
 
     @RequestMapping(method = RequestMethod.POST)
@@ -86,7 +95,14 @@ public class SegmentResource {
     }
 
     @RequestMapping(method = RequestMethod.GET, path = "/{segmentId}/devices")
-    public PagedResources<Resource<Device>> getDevicesForSegment(@PathVariable("segmentId") String segmentId, @RequestParam(value = "versionId", required = false) String versionId, Pageable pageable) {
+    public PagedResources<Resource<Device>> getDevicesForSegment(
+            @PathVariable("segmentId") String segmentId,
+            @RequestParam(value = "versionId", required = false) String versionId,
+            @RequestParam(value = ProjectedDevices.FIELDS_PARAMETER, defaultValue = "") DeviceFields fields,
+            Pageable pageable) {
+        if (!fields.isAll()) {
+            return getDevicesForSegment(segmentId, versionId, CountStrategy.EXACT, fields, pageable);
+        }
         if (StringUtils.isEmpty(versionId)) {
             return deviceAssembler.toResource(segmentManager.getDevicesBySegmentId(segmentId, pageable));
         } else {
@@ -94,8 +110,43 @@ public class SegmentResource {
         }
     }
 
+    @RequestMapping(method = RequestMethod.GET, path = "/{segmentId}/devices", params = {CountedPages.COUNT_PARAMETER, CountedPages.NO_CURSOR})
+    public PagedResources<Resource<Device>> getDevicesForSegment(
+            @PathVariable("segmentId") String segmentId,
+            @RequestParam(value = "versionId", required = false) String versionId,
+            @RequestParam(value = CountedPages.COUNT_PARAMETER) CountStrategy count,
+            @RequestParam(value = ProjectedDevices.FIELDS_PARAMETER, defaultValue = "") DeviceFields fields,
+            Pageable pageable) {
+        if (StringUtils.isEmpty(versionId)) {
+            return ProjectedDevices.toResource(objectMapper, CountedPages.toResource(deviceAssembler, segmentManager.getDevicesBySegmentId(segmentId, pageable, count, fields)), fields);
+        } else {
+            return ProjectedDevices.toResource(objectMapper, CountedPages.toResource(deviceAssembler, segmentManager.getDevicesBySegmentIdAndVersionId(segmentId, versionId, pageable, count, fields)), fields);
+        }
+    }
+
+    @RequestMapping(method = RequestMethod.GET, path = "/{segmentId}/devices", params = CursorResources.CURSOR_PARAMETER)
+    public Resources<Resource<Device>> getDevicesForSegment(
+            @PathVariable("segmentId") String segmentId,
+            @RequestParam(value = "versionId", required = false) String versionId,
+            @RequestParam(value = CursorResources.CURSOR_PARAMETER) String cursor,
+            @RequestParam(value = CursorResources.SIZE_PARAMETER, defaultValue = CursorResources.DEFAULT_SIZE) int size,
+            @RequestParam(value = ProjectedDevices.FIELDS_PARAMETER, defaultValue = "") DeviceFields fields) {
+        if (StringUtils.isEmpty(versionId)) {
+            return ProjectedDevices.toResource(objectMapper, CursorResources.toResource(segmentManager.getDevicesBySegmentId(segmentId, cursor, CursorResources.getLimit(size), fields)), fields);
+        } else {
+            return ProjectedDevices.toResource(objectMapper, CursorResources.toResource(segmentManager.getDevicesBySegmentIdAndVersionId(segmentId, versionId, cursor, CursorResources.getLimit(size), fields)), fields);
+        }
+    }
+
     @RequestMapping(method = RequestMethod.GET, path = "/other/devices")
-    public PagedResources<Resource<Device>> getOtherDevicesForUser(@RequestParam("userId") String userId, @RequestParam(value = "versionId", required = false) String versionId, Pageable pageable) {
+    public PagedResources<Resource<Device>> getOtherDevicesForUser(
+            @RequestParam("userId") String userId,
+            @RequestParam(value = "versionId", required = false) String versionId,
+            @RequestParam(value = ProjectedDevices.FIELDS_PARAMETER, defaultValue = "") DeviceFields fields,
+            Pageable pageable) {
+        if (!fields.isAll()) {
+            return getOtherDevicesForUser(userId, versionId, CountStrategy.EXACT, fields, pageable);
+        }
         if (StringUtils.isEmpty(versionId)) {
             return deviceAssembler.toResource(segmentManager.getOtherDevicesForUser(userId, pageable));
         } else {
@@ -103,6 +154,34 @@ public class SegmentResource {
         }
     }
 
+    @RequestMapping(method = RequestMethod.GET, path = "/other/devices", params = {CountedPages.COUNT_PARAMETER, CountedPages.NO_CURSOR})
+    public PagedResources<Resource<Device>> getOtherDevicesForUser(
+            @RequestParam("userId") String userId,
+            @RequestParam(value = "versionId", required = false) String versionId,
+            @RequestParam(value = CountedPages.COUNT_PARAMETER) CountStrategy count,
+            @RequestParam(value = ProjectedDevices.FIELDS_PARAMETER, defaultValue = "") DeviceFields fields,
+            Pageable pageable) {
+        if (StringUtils.isEmpty(versionId)) {
+            return ProjectedDevices.toResource(objectMapper, CountedPages.toResource(deviceAssembler, segmentManager.getOtherDevicesForUser(userId, pageable, count, fields)), fields);
+        } else {
+            return ProjectedDevices.toResource(objectMapper, CountedPages.toResource(deviceAssembler, segmentManager.getOtherDevicesForUserAndVersionId(userId, versionId, pageable, count, fields)), fields);
+        }
+    }
+
+    @RequestMapping(method = RequestMethod.GET, path = "/other/devices", params = CursorResources.CURSOR_PARAMETER)
+    public Resources<Resource<Device>> getOtherDevicesForUser(
+            @RequestParam("userId") String userId,
+            @RequestParam(value = "versionId", required = false) String versionId,
+            @RequestParam(value = CursorResources.CURSOR_PARAMETER) String cursor,
+            @RequestParam(value = CursorResources.SIZE_PARAMETER, defaultValue = CursorResources.DEFAULT_SIZE) int size,
+            @RequestParam(value = ProjectedDevices.FIELDS_PARAMETER, defaultValue = "") DeviceFields fields) {
+        if (StringUtils.isEmpty(versionId)) {
+            return ProjectedDevices.toResource(objectMapper, CursorResources.toResource(segmentManager.getOtherDevicesForUser(userId, cursor, CursorResources.getLimit(size), fields)), fields);
+        } else {
+            return ProjectedDevices.toResource(objectMapper, CursorResources.toResource(segmentManager.getOtherDevicesForUserAndVersionId(userId, versionId, cursor, CursorResources.getLimit(size), fields)), fields);
+        }
+    }
+
     @RequestMapping(method = RequestMethod.GET)
     public List<Segment> getSegmentsByUserIdAndStatus(
             @NotBlank @RequestParam(value = "userId") String userId,
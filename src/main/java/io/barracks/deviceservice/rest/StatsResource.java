@@ -26,17 +26,30 @@ package io.barracks.deviceservice.rest;
 
 import io.barracks.deviceservice.manager.StatsManager;
 import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DataSetMatrix;
 import io.barracks.deviceservice.rest.entity.DateRange;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import java.util.List;
+
 @RestController
 @RequestMapping("/stats")
+@Validated
 public class StatsResource {
+    /**
+     * Largest number of top values a request can ask for, any value above the capacity of the sketches returning them all.
+     */
+    static final int MAX_TOP_VALUES_LIMIT = 1000;
 
     private final StatsManager statsManager;
 
@@ -62,11 +75,59 @@ public class StatsResource {
     @RequestMapping("/{userId}/devices/seen")
     public DataSet getUniqueDevicesCount(
             @PathVariable("userId") String userId,
-            @Validated() @ModelAttribute DateRange dateRange
+            @Validated() @ModelAttribute DateRange dateRange,
+            @RequestParam(value = "exact", defaultValue = "false") boolean exact
     ) {
+        if (exact) {
+            return statsManager.getExactSeenDeviceCount(userId, dateRange.getStart(), dateRange.getEnd());
+        }
         return statsManager.getSeenDeviceCount(userId, dateRange.getStart(), dateRange.getEnd());
     }
 
+    @RequestMapping("/{userId}/devices/perSegmentAndVersion")
+    public DataSetMatrix getDeviceCountPerSegmentAndVersionId(@PathVariable("userId") String userId) {
+        return statsManager.getDeviceCountPerSegmentIdAndVersionId(userId);
+    }
+
+    @RequestMapping("/{userId}/devices/topValues")
+    public DataSet getTopValues(
+            @PathVariable("userId") String userId,
+            @RequestParam("key") String key,
+            @RequestParam(value = "limit", defaultValue = "10") @Min(1) @Max(MAX_TOP_VALUES_LIMIT) int limit
+    ) {
+        return statsManager.getTopValues(userId, key, limit);
+    }
+
+    @RequestMapping(method = RequestMethod.GET, path = "/{userId}/devices/topValues/keys")
+    public List<String> getTrackedKeys(@PathVariable("userId") String userId) {
+        return statsManager.getTrackedKeys(userId);
+    }
+
+    @RequestMapping(method = RequestMethod.PUT, path = "/{userId}/devices/topValues/keys")
+    public List<String> updateTrackedKeys(@PathVariable("userId") String userId, @RequestBody List<String> keys) {
+        return statsManager.updateTrackedKeys(userId, keys);
+    }
+
+    @RequestMapping("/{userId}/devices/quantiles")
+    public DataSet getQuantiles(
+            @PathVariable("userId") String userId,
+            @RequestParam("key") String key,
+            @RequestParam(value = "segmentId", required = false) String segmentId,
+            @Validated() @ModelAttribute DateRange dateRange
+    ) {
+        return statsManager.getQuantiles(userId, key, segmentId, dateRange.getStart(), dateRange.getEnd());
+    }
+
+    @RequestMapping(method = RequestMethod.GET, path = "/{userId}/devices/quantiles/keys")
+    public List<String> getQuantileKeys(@PathVariable("userId") String userId) {
+        return statsManager.getQuantileKeys(userId);
+    }
+
+    @RequestMapping(method = RequestMethod.PUT, path = "/{userId}/devices/quantiles/keys")
+    public List<String> updateQuantileKeys(@PathVariable("userId") String userId, @RequestBody List<String> keys) {
+        return statsManager.updateQuantileKeys(userId, keys);
+    }
+
     @RequestMapping("/devices/perUserId")
     public DataSet getDeviceCountPerUserId() {
         return statsManager.getDeviceCountPerUserId();
@@ -0,0 +1,91 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.rest;
+
+import org.springframework.http.HttpMethod;
+
+import java.util.Optional;
+
+/**
+ * Classes of requests served with separate concurrency and queue budgets by the {@link BulkheadFilter}, so that slow
+ * reporting queries cannot starve the ingestion of device events.
+ */
+public enum TrafficClass {
+    /**
+     * Events sent by the devices, one by one or in batches.
+     */
+    INGESTION("ingestion"),
+    /**
+     * The other device requests, mostly listings, exports and history reads.
+     */
+    DEVICE_READS("deviceReads"),
+    /**
+     * Segments and the devices they contain.
+     */
+    SEGMENT_LISTINGS("segmentListings"),
+    /**
+     * Aggregated statistics.
+     */
+    STATS("stats"),
+    /**
+     * Matching of events against the filters.
+     */
+    MATCH("match");
+
+    private final String name;
+
+    TrafficClass(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Classifies a request from its method and its path within the application.
+     *
+     * @return the class of the request, or an empty optional if it is not subject to a bulkhead
+     */
+    public static Optional<TrafficClass> of(String method, String path) {
+        if (HttpMethod.POST.matches(method) && ("/devices".equals(path) || "/devices/events:batch".equals(path))) {
+            return Optional.of(INGESTION);
+        } else if (isUnder(path, "/devices")) {
+            return Optional.of(DEVICE_READS);
+        } else if (isUnder(path, "/segments")) {
+            return Optional.of(SEGMENT_LISTINGS);
+        } else if (isUnder(path, "/stats")) {
+            return Optional.of(STATS);
+        } else if (isUnder(path, "/match")) {
+            return Optional.of(MATCH);
+        }
+        return Optional.empty();
+    }
+
+    private static boolean isUnder(String path, String prefix) {
+        // Custom methods such as /devices:export belong to the collection they act on
+        return path.equals(prefix) || path.startsWith(prefix + "/") || path.startsWith(prefix + ":");
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import io.barracks.deviceservice.manager.exception.InvalidDeviceEventException;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceEventBatchItem;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static io.barracks.deviceservice.utils.DeviceEventUtils.getDeviceEvent;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeviceEventIngesterTest {
+    @Mock
+    private DeviceManager deviceManager;
+    private DeviceEventIngester deviceEventIngester;
+    private final Date acceptanceDate = new Date(123456789000L);
+
+    @Before
+    public void setUp() throws Exception {
+        deviceEventIngester = new DeviceEventIngester(deviceManager, true, 2, 1, 10, 5, 1);
+        reset(deviceManager);
+        doReturn(acceptanceDate).when(deviceManager).createReceptionDate();
+    }
+
+    @Test
+    public void enqueue_whenEventIsValid_shouldQueueEvent() {
+        // Given
+        final DeviceEvent event = getDeviceEvent();
+
+        // When
+        final boolean result = deviceEventIngester.enqueue(event);
+
+        // Then
+        assertThat(result).isTrue();
+        assertThat(deviceEventIngester.getQueueSize()).isEqualTo(1);
+        verify(deviceManager).createReceptionDate();
+        verifyNoMoreInteractions(deviceManager);
+    }
+
+    @Test
+    public void enqueue_whenEventIsInvalid_shouldThrowException() {
+        // Given
+        final DeviceEvent event = getDeviceEvent().toBuilder().unitId("").build();
+
+        // Then When
+        assertThatExceptionOfType(InvalidDeviceEventException.class)
+                .isThrownBy(() -> deviceEventIngester.enqueue(event))
+                .withMessageContaining("unitId");
+        assertThat(deviceEventIngester.getQueueSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void enqueue_whenQueueIsFull_shouldReturnFalse() {
+        // Given
+        deviceEventIngester.enqueue(getDeviceEvent());
+        deviceEventIngester.enqueue(getDeviceEvent());
+
+        // When
+        final boolean result = deviceEventIngester.enqueue(getDeviceEvent());
+
+        // Then
+        assertThat(result).isFalse();
+        assertThat(deviceEventIngester.getQueueSize()).isEqualTo(2);
+    }
+
+    @Test
+    public void flush_shouldSaveQueuedEventsAsOneBatch() {
+        // Given
+        final DeviceEvent received1 = getDeviceEvent().toBuilder().receptionDate(null).build();
+        final DeviceEvent received2 = getDeviceEvent().toBuilder().receptionDate(null).build();
+        final DeviceEvent event1 = received1.toBuilder().receptionDate(acceptanceDate).build();
+        final DeviceEvent event2 = received2.toBuilder().receptionDate(acceptanceDate).build();
+        deviceEventIngester.enqueue(received1);
+        deviceEventIngester.enqueue(received2);
+        doReturn(Arrays.asList(DeviceEventBatchItem.created(0, event1), DeviceEventBatchItem.created(1, event2)))
+                .when(deviceManager).saveDeviceEvents(Arrays.asList(event1, event2));
+
+        // When
+        final int result = deviceEventIngester.flush();
+
+        // Then
+        assertThat(result).isEqualTo(2);
+        assertThat(deviceEventIngester.getQueueSize()).isEqualTo(0);
+        verify(deviceManager).saveDeviceEvents(Arrays.asList(event1, event2));
+    }
+
+    @Test
+    public void flush_whenManagerFails_shouldDropBatchAndNotThrow() {
+        // Given
+        deviceEventIngester.enqueue(getDeviceEvent());
+        doThrow(new RuntimeException()).when(deviceManager).saveDeviceEvents(any());
+
+        // When
+        final int result = deviceEventIngester.flush();
+
+        // Then
+        assertThat(result).isEqualTo(1);
+        assertThat(deviceEventIngester.getQueueSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void stop_shouldFlushPendingEventsAndRejectNewOnes() throws Exception {
+        // Given
+        final DeviceEvent received = getDeviceEvent();
+        final DeviceEvent event = received.toBuilder().receptionDate(acceptanceDate).build();
+        deviceEventIngester.enqueue(received);
+        doReturn(Collections.singletonList(DeviceEventBatchItem.created(0, event)))
+                .when(deviceManager).saveDeviceEvents(Collections.singletonList(event));
+
+        // When
+        deviceEventIngester.stop();
+
+        // Then
+        verify(deviceManager).saveDeviceEvents(Collections.singletonList(event));
+        assertThat(deviceEventIngester.getQueueSize()).isEqualTo(0);
+        assertThat(deviceEventIngester.enqueue(getDeviceEvent())).isFalse();
+    }
+
+    @Test
+    public void start_whenAsynchronous_shouldDrainQueueInBackground() throws Exception {
+        // Given
+        final DeviceEvent received = getDeviceEvent();
+        final DeviceEvent event = received.toBuilder().receptionDate(acceptanceDate).build();
+        doReturn(Collections.singletonList(DeviceEventBatchItem.created(0, event)))
+                .when(deviceManager).saveDeviceEvents(Collections.singletonList(event));
+        deviceEventIngester.start();
+
+        // When
+        deviceEventIngester.enqueue(received);
+
+        // Then
+        verify(deviceManager, timeout(1000)).saveDeviceEvents(Collections.singletonList(event));
+        deviceEventIngester.stop();
+    }
+}
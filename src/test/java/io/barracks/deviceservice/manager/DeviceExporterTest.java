@@ -0,0 +1,167 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceFields;
+import io.barracks.deviceservice.repository.DeviceRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeviceExporterTest {
+    private static final String USER_ID = "userId";
+
+    @Mock
+    private DeviceRepository deviceRepository;
+    private DeviceExporter deviceExporter;
+
+    @Before
+    public void setUp() throws Exception {
+        deviceExporter = new DeviceExporter(deviceRepository, 2, 10, 1);
+        deviceExporter.start();
+        reset(deviceRepository);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deviceExporter.stop();
+    }
+
+    @Test
+    public void exportDevices_whenSingleRange_shouldStreamWholeUser() {
+        // Given
+        final Device device = Device.builder().userId(USER_ID).unitId("unit").build();
+        final DeviceIterator devices = iterator(device);
+        doReturn(Collections.singletonList("id0")).when(deviceRepository).findIdBoundariesByUserId(USER_ID, 10);
+        doReturn(devices).when(deviceRepository).streamByUserId(eq(USER_ID), eq(Optional.empty()), eq(DeviceFields.ALL), (String) isNull(), (String) isNull());
+        final List<Device> exported = new ArrayList<>();
+
+        // When
+        deviceExporter.exportDevices(USER_ID, Optional.empty(), DeviceFields.ALL, exported::add);
+
+        // Then
+        assertThat(exported).containsExactly(device);
+        assertThat(devices.closed).isTrue();
+    }
+
+    @Test
+    public void exportDevices_whenSeveralRanges_shouldStreamEachRangeInOrderFromCallingThread() {
+        // Given
+        final Device device1 = Device.builder().userId(USER_ID).unitId("unit1").build();
+        final Device device2 = Device.builder().userId(USER_ID).unitId("unit2").build();
+        final Device device3 = Device.builder().userId(USER_ID).unitId("unit3").build();
+        doReturn(Arrays.asList("id0", "id10", "id20")).when(deviceRepository).findIdBoundariesByUserId(USER_ID, 10);
+        doReturn(iterator(device1)).when(deviceRepository).streamByUserId(eq(USER_ID), eq(Optional.empty()), eq(DeviceFields.ALL), (String) isNull(), eq("id10"));
+        doReturn(iterator(device2)).when(deviceRepository).streamByUserId(USER_ID, Optional.empty(), DeviceFields.ALL, "id10", "id20");
+        doReturn(iterator(device3)).when(deviceRepository).streamByUserId(eq(USER_ID), eq(Optional.empty()), eq(DeviceFields.ALL), eq("id20"), (String) isNull());
+        final List<Device> exported = new ArrayList<>();
+        final Thread caller = Thread.currentThread();
+
+        // When
+        deviceExporter.exportDevices(USER_ID, Optional.empty(), DeviceFields.ALL, device -> {
+            assertThat(Thread.currentThread()).isSameAs(caller);
+            exported.add(device);
+        });
+
+        // Then
+        assertThat(exported).containsExactly(device1, device2, device3);
+    }
+
+    @Test
+    public void exportDevices_whenConsumerFails_shouldRethrowException() {
+        // Given
+        doReturn(Arrays.asList("id0", "id10")).when(deviceRepository).findIdBoundariesByUserId(USER_ID, 10);
+        doReturn(iterator(Device.builder().build())).when(deviceRepository).streamByUserId(eq(USER_ID), eq(Optional.empty()), eq(DeviceFields.ALL), (String) isNull(), eq("id10"));
+        doReturn(iterator()).when(deviceRepository).streamByUserId(eq(USER_ID), eq(Optional.empty()), eq(DeviceFields.ALL), eq("id10"), (String) isNull());
+
+        // Then When
+        assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() ->
+                deviceExporter.exportDevices(USER_ID, Optional.empty(), DeviceFields.ALL, device -> {
+                    throw new IllegalArgumentException();
+                })
+        );
+    }
+
+    @Test
+    public void exportDevices_whenRangeFails_shouldRethrowExceptionAfterItsDevices() {
+        // Given
+        final Device device = Device.builder().userId(USER_ID).unitId("unit").build();
+        doReturn(Arrays.asList("id0", "id10")).when(deviceRepository).findIdBoundariesByUserId(USER_ID, 10);
+        doReturn(iterator(device)).when(deviceRepository).streamByUserId(eq(USER_ID), eq(Optional.empty()), eq(DeviceFields.ALL), (String) isNull(), eq("id10"));
+        doThrow(new IllegalStateException()).when(deviceRepository).streamByUserId(eq(USER_ID), eq(Optional.empty()), eq(DeviceFields.ALL), eq("id10"), (String) isNull());
+        final List<Device> exported = new ArrayList<>();
+
+        // Then When
+        assertThatExceptionOfType(IllegalStateException.class).isThrownBy(() ->
+                deviceExporter.exportDevices(USER_ID, Optional.empty(), DeviceFields.ALL, exported::add)
+        );
+        assertThat(exported).containsExactly(device);
+    }
+
+    private static DeviceIterator iterator(Device... devices) {
+        return new DeviceIterator(Arrays.asList(devices).iterator());
+    }
+
+    private static final class DeviceIterator implements CloseableIterator<Device> {
+        private final Iterator<Device> delegate;
+        private boolean closed;
+
+        private DeviceIterator(Iterator<Device> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public Device next() {
+            return delegate.next();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import com.google.common.collect.ImmutableMap;
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.Segment;
+import io.barracks.deviceservice.model.operator.CompiledOperator;
+import io.barracks.deviceservice.model.operator.comparison.ComparisonOperator;
+import io.barracks.deviceservice.model.operator.logical.AndOperator;
+import io.barracks.deviceservice.repository.DeviceConfigurationRepository;
+import io.barracks.deviceservice.repository.DeviceEventRepository;
+import io.barracks.deviceservice.repository.DeviceRepository;
+import io.barracks.deviceservice.repository.PropertyDeltas;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Guards the number of bytes allocated while processing a ping, young collections being the main source of latency
+ * jitter at high ping rates. The budget is about twice the measured allocation and should only be raised deliberately.
+ */
+public class DeviceManagerAllocationTest {
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int MEASURED_ITERATIONS = 20000;
+    // Measured at about 230 bytes per ping, it used to be about 2200 bytes
+    private static final long BYTES_PER_PING_BUDGET = 512L;
+
+    private DeviceManager deviceManager;
+    private List<Segment> segments;
+    private DeviceEvent receivedEvent;
+    private Device knownDevice;
+    private Device newDevice;
+
+    @Before
+    public void setUp() throws Exception {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        Assume.assumeTrue(((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported());
+
+        deviceManager = new DeviceManager(
+                mock(DeviceEventRepository.class),
+                mock(DeviceConfigurationRepository.class),
+                mock(DeviceRepository.class),
+                mock(SegmentCatalog.class),
+                mock(StatsRollups.class),
+                mock(SeenSketches.class),
+                mock(TopValues.class),
+                mock(QuantileSketches.class),
+                new PropertyDeltas(false, 10),
+                false,
+                3600,
+                3,
+                0
+        );
+        segments = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            segments.add(Segment.builder()
+                    .id("segment" + i)
+                    .query(CompiledOperator.compile(new AndOperator(Arrays.asList(
+                            ComparisonOperator.from("eq", "versionId", i == 9 ? "v1" : "v" + (i + 2)),
+                            ComparisonOperator.from("in", "customClientData.country", Arrays.asList("DE", "FR"))
+                    ))))
+                    .build());
+        }
+        receivedEvent = DeviceEvent.fromJson("unit", "user", "v1", ImmutableMap.of("country", "FR", "battery", 42, "model", "m1"), "127.0.0.1");
+        newDevice = Device.builder().userId("user").unitId("unit").firstSeen(new Date(1L)).build();
+        knownDevice = newDevice.toBuilder()
+                .lastEvent(deviceManager.processDeviceEvent(segments, newDevice, receivedEvent, "event", new Date(2L)))
+                .build();
+    }
+
+    @Test
+    public void processDeviceEvent_whenDeviceIsKnown_shouldStayWithinAllocationBudget() {
+        // When
+        final long allocated = measureAllocatedBytesPerPing(knownDevice);
+
+        // Then
+        assertThat(allocated).isLessThanOrEqualTo(BYTES_PER_PING_BUDGET);
+    }
+
+    @Test
+    public void processDeviceEvent_whenDeviceIsNew_shouldStayWithinAllocationBudget() {
+        // When
+        final long allocated = measureAllocatedBytesPerPing(newDevice);
+
+        // Then
+        assertThat(allocated).isLessThanOrEqualTo(BYTES_PER_PING_BUDGET);
+    }
+
+    private long measureAllocatedBytesPerPing(Device device) {
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final Date receptionDate = new Date(3L);
+        DeviceEvent event = null;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            event = deviceManager.processDeviceEvent(segments, device, receivedEvent, null, receptionDate);
+        }
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            event = deviceManager.processDeviceEvent(segments, device, receivedEvent, null, receptionDate);
+        }
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+        assertThat(event.getSegmentId()).isEqualTo("segment9");
+        return allocated / MEASURED_ITERATIONS;
+    }
+}
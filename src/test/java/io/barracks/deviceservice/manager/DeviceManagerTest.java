@@ -30,16 +30,20 @@ import com.google.common.collect.ImmutableMap;
 import io.barracks.commons.test.JsonResourceLoader;
 import io.barracks.deviceservice.manager.exception.DeviceNotFoundException;
 import io.barracks.deviceservice.model.*;
+import io.barracks.deviceservice.model.operator.DeviceView;
 import io.barracks.deviceservice.model.operator.Operator;
 import io.barracks.deviceservice.repository.*;
 import io.barracks.deviceservice.utils.DeviceEventUtils;
 import net.minidev.json.JSONObject;
+import org.bson.types.ObjectId;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
@@ -62,33 +66,105 @@ public class DeviceManagerTest {
     @Mock
     private DeviceRepository deviceRepository;
     @Mock
-    private SegmentRepository segmentRepository;
+    private SegmentCatalog segmentCatalog;
     @Mock
-    private SegmentOrderRepository segmentOrderRepository;
+    private StatsRollups statsRollups;
+    @Mock
+    private SeenSketches seenSketches;
+    @Mock
+    private TopValues topValues;
+    @Mock
+    private QuantileSketches quantileSketches;
     private DeviceManager deviceManager;
 
     @Before
     public void setUp() throws Exception {
-        final DeviceManager manager = new DeviceManager(deviceEventRepository, deviceConfigurationRepository, deviceRepository, segmentRepository, segmentOrderRepository);
+        final DeviceManager manager = new DeviceManager(deviceEventRepository, deviceConfigurationRepository, deviceRepository, segmentCatalog, statsRollups, seenSketches, topValues, quantileSketches, new PropertyDeltas(false, 10), false, 3600, 3, 0);
         deviceManager = spy(manager);
-        reset(deviceManager, deviceEventRepository, deviceConfigurationRepository, deviceRepository, segmentRepository, segmentOrderRepository);
+        reset(deviceManager, deviceEventRepository, deviceConfigurationRepository, deviceRepository, segmentCatalog, statsRollups, seenSketches, topValues, quantileSketches);
+    }
+
+    @Test
+    public void saveDeviceEvent_whenDeviceDoesNotExist_shouldUpsertDeviceWithDefaultConfiguration() {
+        // Given
+        final String segmentId = UUID.randomUUID().toString();
+        final List<Segment> segments = Collections.singletonList(Segment.builder().id(segmentId).build());
+        final Date receptionDate = new Date(123456789000L);
+        final String eventId = new ObjectId().toString();
+        final DeviceEvent source = getReceivedDeviceEvent();
+        final DeviceConfiguration defaultConfiguration = DeviceConfiguration.builder()
+                .id(UUID.randomUUID().toString())
+                .build();
+        final Device expectedDevice = Device.builder() // Device used for segments should include firstSeen
+                .userId(source.getUserId())
+                .unitId(source.getUnitId())
+                .firstSeen(receptionDate)
+                .build();
+        final DeviceEvent processedEvent = DeviceEvent.builder() // Source request should be assigned date and id
+                .id(eventId)
+                .userId(source.getUserId())
+                .unitId(source.getUnitId())
+                .versionId(source.getVersionId())
+                .deviceIP(source.getDeviceIP())
+                .receptionDate(receptionDate)
+                .additionalProperties(source.getAdditionalProperties())
+                .build();
+        final long fingerprint = EventFingerprint.of(source.getVersionId(), source.getAdditionalProperties(), segmentId, source.getDeviceIP());
+        final DeviceEvent toSave = processedEvent.toBuilder() // Final version should have changed, operator and fingerprint correctly set
+                .changed(true)
+                .segmentId(segmentId)
+                .fingerprint(fingerprint)
+                .build();
+        final DeviceEvent saved = getDeviceEvent();
+
+        doReturn(receptionDate).when(deviceManager).createReceptionDate();
+        doReturn(eventId).when(deviceManager).createEventId();
+        doReturn(Optional.empty()).when(deviceRepository).findByUserIdAndUnitId(source.getUserId(), source.getUnitId());
+        doReturn(defaultConfiguration).when(deviceManager).createDefaultConfiguration(source.getUserId(), source.getUnitId());
+        doReturn(segments).when(deviceManager).getActiveSegments(source.getUserId());
+        doReturn(Optional.of(segmentId)).when(deviceManager).getExclusiveSegmentId(segments, expectedDevice, processedEvent);
+        doReturn(true).when(deviceManager).hasChanged(source, segmentId, fingerprint, null);
+        doReturn(saved).when(deviceEventRepository).insertDeviceEvent(toSave);
+        doReturn(null).when(deviceRepository).upsertDeviceEvent(source.getUserId(), source.getUnitId(), toSave, null, defaultConfiguration);
+
+        // When
+        final DeviceEvent result = deviceManager.saveDeviceEvent(source);
+
+        // Then
+        verify(deviceManager).createReceptionDate();
+        verify(deviceRepository).findByUserIdAndUnitId(source.getUserId(), source.getUnitId());
+        verify(deviceManager).getExclusiveSegmentId(segments, expectedDevice, processedEvent);
+        verify(deviceManager).hasChanged(source, segmentId, fingerprint, null);
+        verify(deviceEventRepository).insertDeviceEvent(toSave);
+        verify(deviceRepository).upsertDeviceEvent(source.getUserId(), source.getUnitId(), toSave, null, defaultConfiguration);
+        verify(deviceConfigurationRepository).insert(defaultConfiguration);
+        verify(statsRollups).recordLastEvents(source.getUserId(), Collections.emptyMap(), Collections.singletonMap(source.getUnitId(), saved));
+        verify(topValues).recordLastEvents(source.getUserId(), Collections.emptyMap(), Collections.singletonMap(source.getUnitId(), saved));
+        verify(seenSketches).recordSeen(source.getUserId(), Collections.singletonList(saved));
+        verify(quantileSketches).recordLastEvents(source.getUserId(), Collections.emptyMap(), Collections.singletonMap(source.getUnitId(), saved));
+        assertThat(result).isEqualTo(saved);
     }
 
     @Test
-    public void saveDeviceEvent_whenFirstSeen_shouldUpdateFirstSeen() {
+    public void saveDeviceEvent_whenFirstSeen_shouldEvaluateSegmentsWithFirstSeenAndNotCreateConfiguration() {
         // Given
         final String segmentId = UUID.randomUUID().toString();
+        final List<Segment> segments = Collections.singletonList(Segment.builder().id(segmentId).build());
         final Date receptionDate = new Date(123456789000L);
-        final DeviceEvent source = getDeviceEvent();
+        final String eventId = new ObjectId().toString();
+        final DeviceEvent source = getReceivedDeviceEvent();
         final DeviceConfiguration configuration = DeviceConfiguration.builder() // Simple configuration
                 .build();
         final Device originalDevice = Device.builder() // Device with a simple configuration
+                .userId(source.getUserId())
+                .unitId(source.getUnitId())
                 .configuration(configuration)
                 .build();
         final Device updatedDevice = originalDevice.toBuilder() // Updated device should include firstSeen
                 .firstSeen(receptionDate)
                 .build();
-        final DeviceEvent processedEvent = DeviceEvent.builder() // Source request should be assigned date
+        final DeviceEvent processedEvent = DeviceEvent.builder() // Source request should be assigned date and id
+                .id(eventId)
                 .userId(source.getUserId())
                 .unitId(source.getUnitId())
                 .versionId(source.getVersionId())
@@ -96,29 +172,33 @@ public class DeviceManagerTest {
                 .receptionDate(receptionDate)
                 .additionalProperties(source.getAdditionalProperties())
                 .build();
-        final DeviceEvent toSave = processedEvent.toBuilder() // Final version should have changed and operator correctly set
+        final long fingerprint = EventFingerprint.of(source.getVersionId(), source.getAdditionalProperties(), segmentId, source.getDeviceIP());
+        final DeviceEvent toSave = processedEvent.toBuilder() // Final version should have changed, operator and fingerprint correctly set
                 .changed(true)
                 .segmentId(segmentId)
+                .fingerprint(fingerprint)
                 .build();
         final DeviceEvent saved = getDeviceEvent();
 
         doReturn(receptionDate).when(deviceManager).createReceptionDate();
-        doReturn(originalDevice).when(deviceManager).getOrCreateDevice(source.getUserId(), source.getUnitId());
-        doReturn(updatedDevice).when(deviceRepository).updateFirstSeen(source.getUserId(), source.getUnitId(), receptionDate);
-        doReturn(Optional.of(segmentId)).when(deviceManager).getExclusiveSegmentId(updatedDevice, processedEvent);
-        doReturn(true).when(deviceManager).hasChanged(source, segmentId, null);
-        doReturn(saved).when(deviceEventRepository).save(toSave);
+        doReturn(eventId).when(deviceManager).createEventId();
+        doReturn(Optional.of(originalDevice)).when(deviceRepository).findByUserIdAndUnitId(source.getUserId(), source.getUnitId());
+        doReturn(segments).when(deviceManager).getActiveSegments(source.getUserId());
+        doReturn(Optional.of(segmentId)).when(deviceManager).getExclusiveSegmentId(segments, updatedDevice, processedEvent);
+        doReturn(true).when(deviceManager).hasChanged(source, segmentId, fingerprint, null);
+        doReturn(saved).when(deviceEventRepository).insertDeviceEvent(toSave);
+        doReturn(originalDevice).when(deviceRepository).upsertDeviceEvent(source.getUserId(), source.getUnitId(), toSave, null, null);
 
         // When
         final DeviceEvent result = deviceManager.saveDeviceEvent(source);
 
         // Then
         verify(deviceManager).createReceptionDate();
-        verify(deviceManager).getOrCreateDevice(source.getUserId(), source.getUnitId());
-        verify(deviceRepository).updateFirstSeen(source.getUserId(), source.getUnitId(), receptionDate);
-        verify(deviceManager).getExclusiveSegmentId(updatedDevice, processedEvent);
-        verify(deviceManager).hasChanged(source, segmentId, null);
-        verify(deviceEventRepository).save(toSave);
+        verify(deviceManager).getExclusiveSegmentId(segments, updatedDevice, processedEvent);
+        verify(deviceManager).hasChanged(source, segmentId, fingerprint, null);
+        verify(deviceEventRepository).insertDeviceEvent(toSave);
+        verify(deviceRepository).upsertDeviceEvent(source.getUserId(), source.getUnitId(), toSave, null, null);
+        verifyZeroInteractions(deviceConfigurationRepository);
         assertThat(result).isEqualTo(saved);
     }
 
@@ -126,15 +206,20 @@ public class DeviceManagerTest {
     public void saveDeviceEvent_whenNotFirstSeen_shouldNotUpdateFirstSeen() {
         // Given
         final String segmentId = UUID.randomUUID().toString();
+        final List<Segment> segments = Collections.singletonList(Segment.builder().id(segmentId).build());
         final Date receptionDate = new Date(123456789000L);
-        final DeviceEvent source = getDeviceEvent();
+        final String eventId = new ObjectId().toString();
+        final DeviceEvent source = getReceivedDeviceEvent();
         final DeviceConfiguration configuration = DeviceConfiguration.builder() // Simple configuration
                 .build();
         final Device originalDevice = Device.builder() // Device with a simple configuration
+                .userId(source.getUserId())
+                .unitId(source.getUnitId())
                 .configuration(configuration)
                 .firstSeen(new Date(1L))
                 .build();
-        final DeviceEvent processedEvent = DeviceEvent.builder() // Source request should be assigned date
+        final DeviceEvent processedEvent = DeviceEvent.builder() // Source request should be assigned date and id
+                .id(eventId)
                 .userId(source.getUserId())
                 .unitId(source.getUnitId())
                 .versionId(source.getVersionId())
@@ -142,32 +227,595 @@ public class DeviceManagerTest {
                 .receptionDate(receptionDate)
                 .additionalProperties(source.getAdditionalProperties())
                 .build();
-        final DeviceEvent toSave = processedEvent.toBuilder() // Final version should have changed and operator correctly set
+        final long fingerprint = EventFingerprint.of(source.getVersionId(), source.getAdditionalProperties(), segmentId, source.getDeviceIP());
+        final DeviceEvent toSave = processedEvent.toBuilder() // Final version should have changed, operator and fingerprint correctly set
                 .changed(true)
                 .segmentId(segmentId)
+                .fingerprint(fingerprint)
                 .build();
         final DeviceEvent saved = toSave.toBuilder() // Saved event will get and ID
                 .id(UUID.randomUUID().toString())
                 .build();
 
         doReturn(receptionDate).when(deviceManager).createReceptionDate();
-        doReturn(originalDevice).when(deviceManager).getOrCreateDevice(source.getUserId(), source.getUnitId());
-        doReturn(Optional.of(segmentId)).when(deviceManager).getExclusiveSegmentId(originalDevice, processedEvent);
-        doReturn(true).when(deviceManager).hasChanged(source, segmentId, null);
-        doReturn(saved).when(deviceEventRepository).save(toSave);
+        doReturn(eventId).when(deviceManager).createEventId();
+        doReturn(Optional.of(originalDevice)).when(deviceRepository).findByUserIdAndUnitId(source.getUserId(), source.getUnitId());
+        doReturn(segments).when(deviceManager).getActiveSegments(source.getUserId());
+        doReturn(Optional.of(segmentId)).when(deviceManager).getExclusiveSegmentId(segments, originalDevice, processedEvent);
+        doReturn(true).when(deviceManager).hasChanged(source, segmentId, fingerprint, null);
+        doReturn(saved).when(deviceEventRepository).insertDeviceEvent(toSave);
 
         // When
         final DeviceEvent result = deviceManager.saveDeviceEvent(source);
 
         // Then
         verify(deviceManager).createReceptionDate();
-        verify(deviceManager).getOrCreateDevice(source.getUserId(), source.getUnitId());
-        verify(deviceManager).getExclusiveSegmentId(originalDevice, processedEvent);
-        verify(deviceManager).hasChanged(source, segmentId, null);
-        verify(deviceEventRepository).save(toSave);
+        verify(deviceManager).getExclusiveSegmentId(segments, originalDevice, processedEvent);
+        verify(deviceManager).hasChanged(source, segmentId, fingerprint, null);
+        verify(deviceEventRepository).insertDeviceEvent(toSave);
+        verify(deviceRepository).upsertDeviceEvent(source.getUserId(), source.getUnitId(), toSave, null, null);
         assertThat(result).isEqualTo(saved);
     }
 
+    @Test
+    public void saveDeviceEvents_whenEventHasNoUnitId_shouldReportBadRequestForThisEventOnly() {
+        // Given
+        final DeviceEvent invalid = getReceivedDeviceEvent().toBuilder().unitId(null).build();
+
+        // When
+        final List<DeviceEventBatchItem> result = deviceManager.saveDeviceEvents(Collections.singletonList(invalid));
+
+        // Then
+        verify(deviceManager, never()).saveUserDeviceEvents(any(), any(), any(), any());
+        assertThat(result).hasSize(1);
+        assertThat(result.get(0).getIndex()).isEqualTo(0);
+        assertThat(result.get(0).getStatus()).isEqualTo(400);
+    }
+
+    @Test
+    public void saveDeviceEvents_whenEventsForManyUsers_shouldSaveEventsGroupedByUser() {
+        // Given
+        final DeviceEvent event1 = getReceivedDeviceEvent();
+        final DeviceEvent event2 = getReceivedDeviceEvent();
+        final DeviceEvent event3 = event1.toBuilder().unitId(UUID.randomUUID().toString()).build();
+        final List<DeviceEvent> events = Arrays.asList(event1, event2, event3);
+        doNothing().when(deviceManager).saveUserDeviceEvents(any(), any(), any(), any());
+
+        // When
+        deviceManager.saveDeviceEvents(events);
+
+        // Then
+        verify(deviceManager).saveUserDeviceEvents(eq(event1.getUserId()), eq(events), eq(Arrays.asList(0, 2)), any());
+        verify(deviceManager).saveUserDeviceEvents(eq(event2.getUserId()), eq(events), eq(Collections.singletonList(1)), any());
+    }
+
+    @Test
+    public void saveUserDeviceEvents_shouldLookupDevicesOnceAndBulkWriteEventsAndDevices() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final Date receptionDate = new Date(123456789000L);
+        final Device existing = Device.builder()
+                .id(UUID.randomUUID().toString())
+                .userId(userId)
+                .unitId(UUID.randomUUID().toString())
+                .firstSeen(new Date(1L))
+                .configuration(DeviceConfiguration.builder().build())
+                .build();
+        final String newUnitId = UUID.randomUUID().toString();
+        final DeviceConfiguration newConfiguration = DeviceConfiguration.builder()
+                .id(UUID.randomUUID().toString())
+                .userId(userId)
+                .unitId(newUnitId)
+                .creationDate(receptionDate)
+                .build();
+        final List<DeviceEvent> events = Arrays.asList(
+                getReceivedDeviceEvent().toBuilder().userId(userId).unitId(existing.getUnitId()).build(),
+                getReceivedDeviceEvent().toBuilder().userId(userId).unitId(newUnitId).build()
+        );
+        final DeviceEventBatchItem[] results = new DeviceEventBatchItem[events.size()];
+        doReturn(receptionDate).when(deviceManager).createReceptionDate();
+        doReturn(newConfiguration).when(deviceManager).createDefaultConfiguration(userId, newUnitId);
+        doReturn(Collections.emptyList()).when(deviceManager).getActiveSegments(userId);
+        doReturn(Collections.singletonList(existing)).when(deviceRepository).findByUserIdAndUnitIdIn(eq(userId), any());
+        doReturn(Collections.emptyMap()).when(deviceEventRepository).insertDeviceEvents(any());
+        doReturn(Collections.singletonMap(1, "error")).when(deviceRepository).updateDevices(any());
+
+        // When
+        deviceManager.saveUserDeviceEvents(userId, events, Arrays.asList(0, 1), results);
+
+        // Then
+        verify(deviceRepository).findByUserIdAndUnitIdIn(userId, new LinkedHashSet<>(Arrays.asList(existing.getUnitId(), newUnitId)));
+        verify(deviceConfigurationRepository, never()).insert(anyListOf(DeviceConfiguration.class));
+        verify(deviceEventRepository).insertDeviceEvents(any());
+        verify(deviceRepository).updateDevices(argThat(new ArgumentMatcher<List<Device>>() {
+            @Override
+            public boolean matches(Object argument) {
+                final List<Device> devices = (List<Device>) argument;
+                return devices.size() == 2
+                        && devices.get(0).getConfiguration() == null
+                        && devices.get(1).getConfiguration().equals(newConfiguration)
+                        && devices.get(1).getFirstSeen().equals(receptionDate)
+                        && devices.get(1).getLastEvent().isChanged();
+            }
+        }));
+        assertThat(results[0].getStatus()).isEqualTo(201);
+        assertThat(results[0].getEvent().getUnitId()).isEqualTo(existing.getUnitId());
+        assertThat(results[0].getEvent().getReceptionDate()).isEqualTo(receptionDate);
+        assertThat(results[1].getStatus()).isEqualTo(500);
+        assertThat(results[1].getError()).isEqualTo("error");
+    }
+
+    @Test
+    public void saveDeviceEvent_whenEventIsAHeartbeat_shouldFoldItInsteadOfSavingIt() {
+        // Given
+        final Date receptionDate = new Date(123456789000L);
+        final String eventId = new ObjectId().toString();
+        final DeviceEvent source = getReceivedDeviceEvent();
+        final Device device = Device.builder()
+                .userId(source.getUserId())
+                .unitId(source.getUnitId())
+                .firstSeen(new Date(1L))
+                .lastEvent(getDeviceEvent())
+                .build();
+        final DeviceEvent processedEvent = getDeviceEvent().toBuilder().changed(false).build();
+        final DeviceEvent heartbeat = processedEvent.toBuilder().id(UUID.randomUUID().toString()).count(1).build();
+        doReturn(receptionDate).when(deviceManager).createReceptionDate();
+        doReturn(eventId).when(deviceManager).createEventId();
+        doReturn(Optional.of(device)).when(deviceRepository).findByUserIdAndUnitId(source.getUserId(), source.getUnitId());
+        doReturn(Collections.emptyList()).when(deviceManager).getActiveSegments(source.getUserId());
+        doReturn(processedEvent).when(deviceManager).processDeviceEvent(Collections.emptyList(), device, source, eventId, receptionDate);
+        doReturn(Optional.of(heartbeat)).when(deviceManager).toHeartbeat(processedEvent, device.getLastEvent());
+        doReturn(heartbeat).when(deviceEventRepository).foldHeartbeat(heartbeat);
+
+        // When
+        final DeviceEvent result = deviceManager.saveDeviceEvent(source);
+
+        // Then
+        verify(deviceEventRepository).foldHeartbeat(heartbeat);
+        verify(deviceEventRepository, never()).insertDeviceEvent(any(DeviceEvent.class));
+        verify(deviceRepository).upsertDeviceEvent(source.getUserId(), source.getUnitId(), heartbeat, null, null);
+        assertThat(result).isEqualTo(heartbeat);
+    }
+
+    @Test
+    public void saveUserDeviceEvents_whenCoalescingHeartbeats_shouldWriteConsecutiveHeartbeatsOnce() {
+        // Given
+        final DeviceManager coalescingManager = spy(new DeviceManager(deviceEventRepository, deviceConfigurationRepository, deviceRepository, segmentCatalog, statsRollups, seenSketches, topValues, quantileSketches, new PropertyDeltas(false, 10), true, 3600, 3, 0));
+        final String userId = UUID.randomUUID().toString();
+        final Date receptionDate = new Date(123454800000L);
+        final DeviceEvent source = getReceivedDeviceEvent().toBuilder().userId(userId).build();
+        final DeviceEvent lastEvent = source.toBuilder()
+                .id(new ObjectId().toString())
+                .segmentId(null)
+                .fingerprint(EventFingerprint.of(source.getVersionId(), source.getAdditionalProperties(), null, source.getDeviceIP()))
+                .changed(true)
+                .receptionDate(new Date(1L))
+                .lastReceptionDate(null)
+                .count(null)
+                .build();
+        final Device existing = Device.builder()
+                .userId(userId)
+                .unitId(source.getUnitId())
+                .firstSeen(new Date(1L))
+                .lastEvent(lastEvent)
+                .build();
+        final List<DeviceEvent> events = Arrays.asList(source, source, source.toBuilder().versionId(UUID.randomUUID().toString()).build());
+        final DeviceEventBatchItem[] results = new DeviceEventBatchItem[events.size()];
+        doReturn(receptionDate).when(coalescingManager).createReceptionDate();
+        doReturn(Collections.emptyList()).when(coalescingManager).getActiveSegments(userId);
+        doReturn(Collections.singletonList(existing)).when(deviceRepository).findByUserIdAndUnitIdIn(eq(userId), any());
+        doReturn(Collections.emptyMap()).when(deviceEventRepository).insertDeviceEvents(any());
+        doReturn(Collections.emptyMap()).when(deviceRepository).updateDevices(any());
+
+        // When
+        coalescingManager.saveUserDeviceEvents(userId, events, Arrays.asList(0, 1, 2), results);
+
+        // Then
+        final String heartbeatId = lastEvent.getId() + ":" + receptionDate.getTime();
+        verify(deviceEventRepository).insertDeviceEvents(argThat(new ArgumentMatcher<List<DeviceEvent>>() {
+            @Override
+            public boolean matches(Object argument) {
+                final List<DeviceEvent> toSave = (List<DeviceEvent>) argument;
+                return toSave.size() == 2
+                        && toSave.get(0).getId().equals(heartbeatId)
+                        && toSave.get(0).getCount() == 2
+                        && toSave.get(0).getReceptionDate().equals(receptionDate)
+                        && toSave.get(0).getLastReceptionDate().equals(new Date(receptionDate.getTime() + 1))
+                        && toSave.get(1).isChanged()
+                        && toSave.get(1).getCount() == null;
+            }
+        }));
+        assertThat(results[0].getEvent().getId()).isEqualTo(heartbeatId);
+        assertThat(results[1].getEvent().getId()).isEqualTo(heartbeatId);
+        assertThat(results[1].getEvent().getReceptionDate()).isEqualTo(new Date(receptionDate.getTime() + 1));
+        assertThat(results[2].getEvent().isChanged()).isTrue();
+    }
+
+    @Test
+    public void saveDeviceEvent_whenDeviceIsUpdatedConcurrently_shouldProcessTheEventAgain() {
+        // Given
+        final DeviceEvent source = getReceivedDeviceEvent();
+        final Device device = Device.builder()
+                .userId(source.getUserId())
+                .unitId(source.getUnitId())
+                .firstSeen(new Date(1L))
+                .revision(3L)
+                .build();
+        final Device updated = device.toBuilder()
+                .lastEvent(getDeviceEvent().toBuilder().id(new ObjectId().toString()).build())
+                .revision(4L)
+                .build();
+        doReturn(Collections.emptyList()).when(deviceManager).getActiveSegments(source.getUserId());
+        when(deviceRepository.findByUserIdAndUnitId(source.getUserId(), source.getUnitId())).thenReturn(Optional.of(device), Optional.of(updated));
+        doThrow(new OptimisticLockingFailureException(DeviceRepositoryCustom.CONCURRENT_UPDATE_ERROR)).when(deviceRepository)
+                .upsertDeviceEvent(eq(source.getUserId()), eq(source.getUnitId()), any(DeviceEvent.class), eq(3L), (DeviceConfiguration) isNull());
+        doAnswer(invocation -> invocation.getArguments()[0]).when(deviceEventRepository).insertDeviceEvent(any(DeviceEvent.class));
+
+        // When
+        final DeviceEvent result = deviceManager.saveDeviceEvent(source);
+
+        // Then
+        verify(deviceRepository, times(2)).findByUserIdAndUnitId(source.getUserId(), source.getUnitId());
+        verify(deviceRepository).upsertDeviceEvent(source.getUserId(), source.getUnitId(), result, 4L, null);
+        verify(deviceEventRepository).insertDeviceEvent(result);
+        verify(statsRollups).recordLastEvents(source.getUserId(), Collections.singletonMap(source.getUnitId(), updated.getLastEvent()), Collections.singletonMap(source.getUnitId(), result));
+    }
+
+    @Test
+    public void saveDeviceEvent_whenDeviceKeepsBeingUpdatedConcurrently_shouldGiveUpWithoutStoringTheEvent() {
+        // Given
+        final DeviceEvent source = getReceivedDeviceEvent();
+        final Device device = Device.builder()
+                .userId(source.getUserId())
+                .unitId(source.getUnitId())
+                .firstSeen(new Date(1L))
+                .revision(3L)
+                .build();
+        doReturn(Collections.emptyList()).when(deviceManager).getActiveSegments(source.getUserId());
+        doReturn(Optional.of(device)).when(deviceRepository).findByUserIdAndUnitId(source.getUserId(), source.getUnitId());
+        doThrow(new OptimisticLockingFailureException(DeviceRepositoryCustom.CONCURRENT_UPDATE_ERROR)).when(deviceRepository)
+                .upsertDeviceEvent(eq(source.getUserId()), eq(source.getUnitId()), any(DeviceEvent.class), eq(3L), (DeviceConfiguration) isNull());
+
+        // Then When
+        assertThatExceptionOfType(OptimisticLockingFailureException.class).isThrownBy(() -> deviceManager.saveDeviceEvent(source));
+        verify(deviceRepository, times(3)).upsertDeviceEvent(eq(source.getUserId()), eq(source.getUnitId()), any(DeviceEvent.class), eq(3L), (DeviceConfiguration) isNull());
+        verifyZeroInteractions(deviceEventRepository, statsRollups);
+    }
+
+    @Test
+    public void saveDeviceEvent_whenDeviceStateIsKnown_shouldClaimItWithoutReadingIt() {
+        // Given
+        final DeviceManager cachingManager = spy(new DeviceManager(deviceEventRepository, deviceConfigurationRepository, deviceRepository, segmentCatalog, statsRollups, seenSketches, topValues, quantileSketches, new PropertyDeltas(false, 10), false, 3600, 3, 10));
+        final DeviceEvent source = getReceivedDeviceEvent();
+        final Device device = Device.builder()
+                .userId(source.getUserId())
+                .unitId(source.getUnitId())
+                .firstSeen(new Date(1L))
+                .revision(3L)
+                .build();
+        doReturn(Collections.emptyList()).when(cachingManager).getActiveSegments(source.getUserId());
+        doReturn(Optional.of(device)).when(deviceRepository).findByUserIdAndUnitId(source.getUserId(), source.getUnitId());
+        doReturn(device).when(deviceRepository)
+                .upsertDeviceEvent(eq(source.getUserId()), eq(source.getUnitId()), any(DeviceEvent.class), eq(3L), (DeviceConfiguration) isNull());
+        doAnswer(invocation -> invocation.getArguments()[0]).when(deviceEventRepository).insertDeviceEvent(any(DeviceEvent.class));
+        final DeviceEvent first = cachingManager.saveDeviceEvent(source);
+
+        // When
+        final DeviceEvent result = cachingManager.saveDeviceEvent(source);
+
+        // Then
+        verify(deviceRepository).findByUserIdAndUnitId(source.getUserId(), source.getUnitId());
+        verify(deviceRepository).upsertDeviceEvent(source.getUserId(), source.getUnitId(), result, 4L, null);
+        verify(statsRollups).recordLastEvents(source.getUserId(), Collections.singletonMap(source.getUnitId(), first), Collections.singletonMap(source.getUnitId(), result));
+    }
+
+    @Test
+    public void saveDeviceEvent_whenKnownDeviceStateIsStale_shouldReadTheDeviceAgain() {
+        // Given
+        final DeviceManager cachingManager = spy(new DeviceManager(deviceEventRepository, deviceConfigurationRepository, deviceRepository, segmentCatalog, statsRollups, seenSketches, topValues, quantileSketches, new PropertyDeltas(false, 10), false, 3600, 3, 10));
+        final DeviceEvent source = getReceivedDeviceEvent();
+        final Device device = Device.builder()
+                .userId(source.getUserId())
+                .unitId(source.getUnitId())
+                .firstSeen(new Date(1L))
+                .revision(3L)
+                .build();
+        final Device updated = device.toBuilder()
+                .lastEvent(getDeviceEvent().toBuilder().id(new ObjectId().toString()).build())
+                .revision(7L)
+                .build();
+        doReturn(Collections.emptyList()).when(cachingManager).getActiveSegments(source.getUserId());
+        when(deviceRepository.findByUserIdAndUnitId(source.getUserId(), source.getUnitId())).thenReturn(Optional.of(device), Optional.of(updated));
+        doReturn(device).when(deviceRepository)
+                .upsertDeviceEvent(eq(source.getUserId()), eq(source.getUnitId()), any(DeviceEvent.class), eq(3L), (DeviceConfiguration) isNull());
+        doThrow(new OptimisticLockingFailureException(DeviceRepositoryCustom.CONCURRENT_UPDATE_ERROR)).when(deviceRepository)
+                .upsertDeviceEvent(eq(source.getUserId()), eq(source.getUnitId()), any(DeviceEvent.class), eq(4L), (DeviceConfiguration) isNull());
+        doAnswer(invocation -> invocation.getArguments()[0]).when(deviceEventRepository).insertDeviceEvent(any(DeviceEvent.class));
+        cachingManager.saveDeviceEvent(source);
+
+        // When
+        final DeviceEvent result = cachingManager.saveDeviceEvent(source);
+
+        // Then
+        verify(deviceRepository, times(2)).findByUserIdAndUnitId(source.getUserId(), source.getUnitId());
+        verify(deviceRepository).upsertDeviceEvent(source.getUserId(), source.getUnitId(), result, 7L, null);
+        verify(statsRollups).recordLastEvents(source.getUserId(), Collections.singletonMap(source.getUnitId(), updated.getLastEvent()), Collections.singletonMap(source.getUnitId(), result));
+    }
+
+    @Test
+    public void saveUserDeviceEvents_whenDeviceIsUpdatedConcurrently_shouldProcessItsEventsAgain() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DeviceEvent source = getReceivedDeviceEvent().toBuilder().userId(userId).build();
+        final Device existing = Device.builder()
+                .userId(userId)
+                .unitId(source.getUnitId())
+                .firstSeen(new Date(1L))
+                .revision(3L)
+                .build();
+        final Device updated = existing.toBuilder()
+                .lastEvent(source.toBuilder().id(new ObjectId().toString()).build())
+                .revision(4L)
+                .build();
+        final DeviceEventBatchItem[] results = new DeviceEventBatchItem[1];
+        doReturn(Collections.emptyList()).when(deviceManager).getActiveSegments(userId);
+        when(deviceRepository.findByUserIdAndUnitIdIn(eq(userId), any())).thenReturn(Collections.singletonList(existing), Collections.singletonList(updated));
+        when(deviceRepository.updateDevices(any())).thenReturn(Collections.singletonMap(0, DeviceRepositoryCustom.CONCURRENT_UPDATE_ERROR), Collections.emptyMap());
+        doReturn(Collections.emptyMap()).when(deviceEventRepository).insertDeviceEvents(any());
+
+        // When
+        deviceManager.saveUserDeviceEvents(userId, Collections.singletonList(source), Collections.singletonList(0), results);
+
+        // Then
+        verify(deviceRepository, times(2)).findByUserIdAndUnitIdIn(eq(userId), any());
+        verify(deviceRepository).updateDevices(argThat(new ArgumentMatcher<List<Device>>() {
+            @Override
+            public boolean matches(Object argument) {
+                final List<Device> devices = (List<Device>) argument;
+                return devices.size() == 1 && Long.valueOf(4L).equals(devices.get(0).getRevision());
+            }
+        }));
+        verify(deviceEventRepository).insertDeviceEvents(any());
+        verify(statsRollups).recordLastEvents(eq(userId), eq(Collections.singletonMap(source.getUnitId(), updated.getLastEvent())), any());
+        assertThat(results[0].getStatus()).isEqualTo(201);
+        assertThat(results[0].getEvent().isChanged()).isFalse();
+    }
+
+    @Test
+    public void saveUserDeviceEvents_whenDeviceIsCreated_shouldInsertItsDefaultConfiguration() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DeviceEvent source = getReceivedDeviceEvent().toBuilder().userId(userId).build();
+        final DeviceConfiguration newConfiguration = DeviceConfiguration.builder().userId(userId).unitId(source.getUnitId()).build();
+        final DeviceEventBatchItem[] results = new DeviceEventBatchItem[1];
+        doReturn(newConfiguration).when(deviceManager).createDefaultConfiguration(userId, source.getUnitId());
+        doReturn(Collections.emptyList()).when(deviceManager).getActiveSegments(userId);
+        doReturn(Collections.emptyList()).when(deviceRepository).findByUserIdAndUnitIdIn(eq(userId), any());
+        doReturn(Collections.emptyMap()).when(deviceRepository).updateDevices(any());
+        doReturn(Collections.emptyMap()).when(deviceEventRepository).insertDeviceEvents(any());
+
+        // When
+        deviceManager.saveUserDeviceEvents(userId, Collections.singletonList(source), Collections.singletonList(0), results);
+
+        // Then
+        verify(deviceConfigurationRepository).insert(Collections.singletonList(newConfiguration));
+        assertThat(results[0].getStatus()).isEqualTo(201);
+    }
+
+    @Test
+    public void saveUserDeviceEvents_whenDeviceIsCreatedConcurrently_shouldNotInsertDefaultConfiguration() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DeviceEvent source = getReceivedDeviceEvent().toBuilder().userId(userId).build();
+        final Device created = Device.builder()
+                .userId(userId)
+                .unitId(source.getUnitId())
+                .firstSeen(new Date(1L))
+                .configuration(DeviceConfiguration.builder().userId(userId).unitId(source.getUnitId()).build())
+                .revision(1L)
+                .build();
+        final DeviceEventBatchItem[] results = new DeviceEventBatchItem[1];
+        doReturn(DeviceConfiguration.builder().build()).when(deviceManager).createDefaultConfiguration(userId, source.getUnitId());
+        doReturn(Collections.emptyList()).when(deviceManager).getActiveSegments(userId);
+        when(deviceRepository.findByUserIdAndUnitIdIn(eq(userId), any())).thenReturn(Collections.emptyList(), Collections.singletonList(created));
+        when(deviceRepository.updateDevices(any())).thenReturn(Collections.singletonMap(0, DeviceRepositoryCustom.CONCURRENT_UPDATE_ERROR), Collections.emptyMap());
+        doReturn(Collections.emptyMap()).when(deviceEventRepository).insertDeviceEvents(any());
+
+        // When
+        deviceManager.saveUserDeviceEvents(userId, Collections.singletonList(source), Collections.singletonList(0), results);
+
+        // Then
+        verify(deviceRepository, times(2)).updateDevices(any());
+        verify(deviceConfigurationRepository, never()).insert(anyListOf(DeviceConfiguration.class));
+        assertThat(results[0].getStatus()).isEqualTo(201);
+    }
+
+    @Test
+    public void saveUserDeviceEvents_whenEventIsNotStored_shouldNotRecordItsDeviceStatistics() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final Device existing = Device.builder()
+                .userId(userId)
+                .unitId(UUID.randomUUID().toString())
+                .firstSeen(new Date(1L))
+                .revision(1L)
+                .build();
+        final Device other = existing.toBuilder().unitId(UUID.randomUUID().toString()).build();
+        final List<DeviceEvent> events = Arrays.asList(
+                getReceivedDeviceEvent().toBuilder().userId(userId).unitId(existing.getUnitId()).build(),
+                getReceivedDeviceEvent().toBuilder().userId(userId).unitId(other.getUnitId()).build()
+        );
+        final DeviceEventBatchItem[] results = new DeviceEventBatchItem[events.size()];
+        doReturn(Collections.emptyList()).when(deviceManager).getActiveSegments(userId);
+        doReturn(Arrays.asList(existing, other)).when(deviceRepository).findByUserIdAndUnitIdIn(eq(userId), any());
+        doReturn(Collections.emptyMap()).when(deviceRepository).updateDevices(any());
+        doReturn(Collections.singletonMap(0, "error")).when(deviceEventRepository).insertDeviceEvents(any());
+
+        // When
+        deviceManager.saveUserDeviceEvents(userId, events, Arrays.asList(0, 1), results);
+
+        // Then
+        verify(statsRollups).recordLastEvents(eq(userId), any(), eq(Collections.singletonMap(other.getUnitId(), results[1].getEvent())));
+        verify(topValues).recordLastEvents(eq(userId), any(), eq(Collections.singletonMap(other.getUnitId(), results[1].getEvent())));
+        verify(deviceRepository).revertDevice(existing, false);
+        verify(deviceRepository, never()).revertDevice(other, false);
+        assertThat(results[0].getStatus()).isEqualTo(500);
+        assertThat(results[1].getStatus()).isEqualTo(201);
+    }
+
+    @Test
+    public void saveUserDeviceEvents_whenEventOfCreatedDeviceIsNotStored_shouldRemoveDeviceWithoutInsertingConfiguration() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DeviceEvent source = getReceivedDeviceEvent().toBuilder().userId(userId).build();
+        final DeviceConfiguration newConfiguration = DeviceConfiguration.builder().userId(userId).unitId(source.getUnitId()).build();
+        final Device created = Device.builder().userId(userId).unitId(source.getUnitId()).configuration(newConfiguration).build();
+        final DeviceEventBatchItem[] results = new DeviceEventBatchItem[1];
+        doReturn(newConfiguration).when(deviceManager).createDefaultConfiguration(userId, source.getUnitId());
+        doReturn(Collections.emptyList()).when(deviceManager).getActiveSegments(userId);
+        doReturn(Collections.emptyList()).when(deviceRepository).findByUserIdAndUnitIdIn(eq(userId), any());
+        doReturn(Collections.emptyMap()).when(deviceRepository).updateDevices(any());
+        doThrow(new RuntimeException("error")).when(deviceEventRepository).insertDeviceEvents(any());
+
+        // When
+        deviceManager.saveUserDeviceEvents(userId, Collections.singletonList(source), Collections.singletonList(0), results);
+
+        // Then
+        verify(deviceRepository).revertDevice(created, true);
+        verify(deviceConfigurationRepository, never()).insert(anyListOf(DeviceConfiguration.class));
+        verify(statsRollups).recordLastEvents(userId, Collections.emptyMap(), Collections.emptyMap());
+        assertThat(results[0].getStatus()).isEqualTo(500);
+    }
+
+    @Test
+    public void saveDeviceEvent_whenEventIsNotStored_shouldRevertDeviceAndThrow() {
+        // Given
+        final DeviceEvent source = getReceivedDeviceEvent();
+        final Device device = Device.builder()
+                .userId(source.getUserId())
+                .unitId(source.getUnitId())
+                .firstSeen(new Date(1L))
+                .revision(3L)
+                .build();
+        final RuntimeException failure = new RuntimeException("error");
+        doReturn(Collections.emptyList()).when(deviceManager).getActiveSegments(source.getUserId());
+        doReturn(Optional.of(device)).when(deviceRepository).findByUserIdAndUnitId(source.getUserId(), source.getUnitId());
+        doReturn(device).when(deviceRepository)
+                .upsertDeviceEvent(eq(source.getUserId()), eq(source.getUnitId()), any(DeviceEvent.class), eq(3L), (DeviceConfiguration) isNull());
+        doThrow(failure).when(deviceEventRepository).insertDeviceEvent(any(DeviceEvent.class));
+
+        // Then When
+        assertThatExceptionOfType(RuntimeException.class).isThrownBy(() -> deviceManager.saveDeviceEvent(source)).withMessageContaining(failure.getMessage());
+        verify(deviceRepository).revertDevice(device, false);
+        verifyZeroInteractions(statsRollups, deviceConfigurationRepository);
+    }
+
+    @Test
+    public void toHeartbeat_whenNotCoalescing_shouldReturnEmpty() {
+        // Given
+        final DeviceEvent previous = getDeviceEvent();
+        final DeviceEvent event = getDeviceEvent().toBuilder().changed(false).build();
+
+        // When
+        final Optional<DeviceEvent> result = deviceManager.toHeartbeat(event, previous);
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void toHeartbeat_whenEventChanged_shouldReturnEmpty() {
+        // Given
+        final DeviceManager coalescingManager = new DeviceManager(deviceEventRepository, deviceConfigurationRepository, deviceRepository, segmentCatalog, statsRollups, seenSketches, topValues, quantileSketches, new PropertyDeltas(false, 10), true, 3600, 3, 0);
+        final DeviceEvent previous = getDeviceEvent();
+        final DeviceEvent event = getDeviceEvent().toBuilder().changed(true).build();
+
+        // When
+        final Optional<DeviceEvent> result = coalescingManager.toHeartbeat(event, previous);
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void toHeartbeat_whenPreviousEventChanged_shouldStartHeartbeatRecordInCurrentBucket() {
+        // Given
+        final DeviceManager coalescingManager = new DeviceManager(deviceEventRepository, deviceConfigurationRepository, deviceRepository, segmentCatalog, statsRollups, seenSketches, topValues, quantileSketches, new PropertyDeltas(false, 10), true, 3600, 3, 0);
+        final DeviceEvent previous = getDeviceEvent().toBuilder().changed(true).count(null).build();
+        final DeviceEvent event = getDeviceEvent().toBuilder().changed(false).count(null).lastReceptionDate(null).receptionDate(new Date(7201234L)).build();
+
+        // When
+        final Optional<DeviceEvent> result = coalescingManager.toHeartbeat(event, previous);
+
+        // Then
+        assertThat(result).contains(event.toBuilder()
+                .id(previous.getId() + ":7200000")
+                .lastReceptionDate(event.getReceptionDate())
+                .count(1)
+                .build());
+    }
+
+    @Test
+    public void toHeartbeat_whenPreviousEventIsAHeartbeat_shouldKeepTheStateOfTheDevice() {
+        // Given
+        final DeviceManager coalescingManager = new DeviceManager(deviceEventRepository, deviceConfigurationRepository, deviceRepository, segmentCatalog, statsRollups, seenSketches, topValues, quantileSketches, new PropertyDeltas(false, 10), true, 3600, 3, 0);
+        final String stateId = new ObjectId().toString();
+        final DeviceEvent previous = getDeviceEvent().toBuilder().id(stateId + ":3600000").changed(false).count(1).build();
+        final DeviceEvent sameBucket = getDeviceEvent().toBuilder().changed(false).receptionDate(new Date(3700000L)).build();
+        final DeviceEvent nextBucket = getDeviceEvent().toBuilder().changed(false).receptionDate(new Date(7300000L)).build();
+
+        // When
+        final Optional<DeviceEvent> sameBucketResult = coalescingManager.toHeartbeat(sameBucket, previous);
+        final Optional<DeviceEvent> nextBucketResult = coalescingManager.toHeartbeat(nextBucket, previous);
+
+        // Then
+        assertThat(sameBucketResult.map(DeviceEvent::getId)).contains(stateId + ":3600000");
+        assertThat(nextBucketResult.map(DeviceEvent::getId)).contains(stateId + ":7200000");
+    }
+
+    @Test
+    public void createReceptionDate_whenPreviousEventIsNotOlder_shouldReturnDateAfterPreviousOne() {
+        // Given
+        final Date now = new Date(123456789000L);
+        final DeviceEvent previous = DeviceEvent.builder().receptionDate(now).build();
+        doReturn(now).when(deviceManager).createReceptionDate();
+
+        // When
+        final Date result = deviceManager.createReceptionDate(getReceivedDeviceEvent(), previous);
+
+        // Then
+        assertThat(result).isEqualTo(new Date(now.getTime() + 1));
+    }
+
+    @Test
+    public void createReceptionDate_whenEventWasStampedWhenQueued_shouldReturnAcceptanceDate() {
+        // Given
+        final Date acceptanceDate = new Date(123456789000L);
+        final DeviceEvent received = getReceivedDeviceEvent().toBuilder().receptionDate(acceptanceDate).build();
+        final DeviceEvent previous = DeviceEvent.builder().receptionDate(new Date(123456788000L)).build();
+
+        // When
+        final Date result = deviceManager.createReceptionDate(received, previous);
+
+        // Then
+        assertThat(result).isEqualTo(acceptanceDate);
+        verify(deviceManager, never()).createReceptionDate();
+    }
+
+    @Test
+    public void createReceptionDate_whenStampedEventIsOlderThanPreviousOne_shouldReturnDateAfterPreviousOne() {
+        // Given
+        final Date previousDate = new Date(123456789000L);
+        final DeviceEvent received = getReceivedDeviceEvent().toBuilder().receptionDate(new Date(123456788000L)).build();
+        final DeviceEvent previous = DeviceEvent.builder().receptionDate(previousDate).build();
+
+        // When
+        final Date result = deviceManager.createReceptionDate(received, previous);
+
+        // Then
+        assertThat(result).isEqualTo(new Date(previousDate.getTime() + 1));
+    }
+
     @Test
     public void getExclusiveSegmentForDevice_whenMatches_shouldReturnIdForFirstMatchingSegment() {
         // Given
@@ -184,34 +832,29 @@ public class DeviceManagerTest {
                 .lastEvent(event)
                 .build());
 
-        final List<String> segmentIds = new LinkedList<>();
         final List<Segment> segments = new LinkedList<>();
         final Operator nonMatchingExpression = mock(Operator.class);
-        doReturn(false).when(nonMatchingExpression).matches(expectedDevice);
+        doReturn(false).when(nonMatchingExpression).matches(viewOf(expectedDevice));
         final Operator matchingExpression = mock(Operator.class);
-        doReturn(true).when(matchingExpression).matches(expectedDevice);
+        doReturn(true).when(matchingExpression).matches(viewOf(expectedDevice));
         for (int i = 0; i < 10; i++) {
             final String segmentId = UUID.randomUUID().toString();
             final Segment segment = mock(Segment.class);
             when(segment.getId()).thenReturn(segmentId);
             when(segment.getQuery()).thenReturn(i < 3 ? nonMatchingExpression : matchingExpression);
-            segmentIds.add(segmentId);
             segments.add(segment);
         }
 
         final String expectedUUID = segments.get(3).getId();
-        final SegmentOrder segmentOrder = SegmentOrder.builder().segmentIds(segmentIds).build();
-        doReturn(segmentOrder).when(segmentOrderRepository).findByUserId(userId);
-        doReturn(segments).when(segmentRepository).getSegmentsInIds(userId, segmentIds);
+        doReturn(segments).when(segmentCatalog).getActiveSegments(userId);
 
         // When
         final Optional<String> result = deviceManager.getExclusiveSegmentId(device, event);
 
         // Then
-        verify(segmentOrderRepository).findByUserId(userId);
-        verify(segmentRepository).getSegmentsInIds(userId, segmentIds);
-        verify(nonMatchingExpression, Mockito.times(3)).matches(expectedDevice);
-        verify(matchingExpression, Mockito.times(1)).matches(expectedDevice);
+        verify(segmentCatalog).getActiveSegments(userId);
+        verify(nonMatchingExpression, Mockito.times(3)).matches(viewOf(expectedDevice));
+        verify(matchingExpression, Mockito.times(1)).matches(viewOf(expectedDevice));
         assertThat(result).contains(expectedUUID);
     }
 
@@ -231,29 +874,24 @@ public class DeviceManagerTest {
                 .lastEvent(event)
                 .build());
 
-        final List<String> segmentIds = new LinkedList<>();
         final List<Segment> segments = new LinkedList<>();
         final Operator nonMatchingExpression = mock(Operator.class);
-        doReturn(false).when(nonMatchingExpression).matches(expectedDevice);
+        doReturn(false).when(nonMatchingExpression).matches(viewOf(expectedDevice));
         for (int i = 0; i < 10; i++) {
             final String segmentId = UUID.randomUUID().toString();
             final Segment segment = mock(Segment.class);
             when(segment.getId()).thenReturn(segmentId);
             when(segment.getQuery()).thenReturn(nonMatchingExpression);
-            segmentIds.add(segmentId);
             segments.add(segment);
         }
-        final SegmentOrder segmentOrder = SegmentOrder.builder().segmentIds(segmentIds).build();
-        doReturn(segmentOrder).when(segmentOrderRepository).findByUserId(userId);
-        doReturn(segments).when(segmentRepository).getSegmentsInIds(userId, segmentIds);
+        doReturn(segments).when(segmentCatalog).getActiveSegments(userId);
 
         // When
         final Optional<String> result = deviceManager.getExclusiveSegmentId(device, event);
 
         // Then
-        verify(segmentOrderRepository).findByUserId(userId);
-        verify(segmentRepository).getSegmentsInIds(userId, segmentIds);
-        verify(nonMatchingExpression, Mockito.times(segments.size())).matches(expectedDevice);
+        verify(segmentCatalog).getActiveSegments(userId);
+        verify(nonMatchingExpression, Mockito.times(segments.size())).matches(viewOf(expectedDevice));
         assertThat(result).isNotPresent();
     }
 
@@ -262,7 +900,7 @@ public class DeviceManagerTest {
         // Given
 
         // When
-        final boolean result = deviceManager.hasChanged(null, null, null);
+        final boolean result = deviceManager.hasChanged(null, null, 0L, null);
 
         // Then
         assertTrue(result);
@@ -282,7 +920,7 @@ public class DeviceManagerTest {
         final DeviceEvent source = DeviceEvent.fromJson(unitId, userId, versionId, properties, deviceIP);
 
         // When
-        final boolean result = deviceManager.hasChanged(source, segmentId, latest);
+        final boolean result = deviceManager.hasChanged(source, segmentId, 0L, latest);
 
         // Then
         assertFalse(result);
@@ -302,7 +940,7 @@ public class DeviceManagerTest {
         final DeviceEvent source = DeviceEvent.fromJson(unitId, userId, versionId, properties, deviceIP);
 
         // When
-        final boolean result = deviceManager.hasChanged(source, segmentId, latest);
+        final boolean result = deviceManager.hasChanged(source, segmentId, 0L, latest);
 
         // Then
         assertTrue(result);
@@ -322,7 +960,7 @@ public class DeviceManagerTest {
         final DeviceEvent source = DeviceEvent.fromJson(unitId, userId, versionId, properties, deviceIP);
 
         // When
-        final boolean result = deviceManager.hasChanged(source, segmentId, latest);
+        final boolean result = deviceManager.hasChanged(source, segmentId, 0L, latest);
 
         // Then
         assertTrue(result);
@@ -342,7 +980,34 @@ public class DeviceManagerTest {
         final DeviceEvent source = DeviceEvent.fromJson(unitId, userId, versionId, properties, deviceIP);
 
         // When
-        final boolean result = deviceManager.hasChanged(source, segmentId, latest);
+        final boolean result = deviceManager.hasChanged(source, segmentId, 0L, latest);
+
+        // Then
+        assertTrue(result);
+    }
+
+    @Test
+    public void hasChanged_whenLatestHasSameFingerprint_shouldReturnFalse() {
+        // Given
+        final long fingerprint = new Random().nextLong();
+        final DeviceEvent latest = getDeviceEvent().toBuilder().fingerprint(fingerprint).build();
+        final DeviceEvent source = getDeviceEvent().toBuilder().versionId(UUID.randomUUID().toString()).build();
+
+        // When
+        final boolean result = deviceManager.hasChanged(source, latest.getSegmentId(), fingerprint, latest);
+
+        // Then
+        assertFalse(result);
+    }
+
+    @Test
+    public void hasChanged_whenLatestHasDifferentFingerprint_shouldReturnTrue() {
+        // Given
+        final long fingerprint = new Random().nextLong();
+        final DeviceEvent latest = getDeviceEvent().toBuilder().fingerprint(fingerprint + 1).build();
+
+        // When
+        final boolean result = deviceManager.hasChanged(latest, latest.getSegmentId(), fingerprint, latest);
 
         // Then
         assertTrue(result);
@@ -520,4 +1185,29 @@ public class DeviceManagerTest {
         verify(deviceRepository).findByUserIdAndUnitId(userId, unitId);
     }
 
+    private static DeviceView viewOf(JsonNode expected) {
+        final DeviceView expectedView = DeviceView.of(expected);
+        final String[][] paths = {{"userId"}, {"unitId"}, {"firstSeen"}, {"lastEvent", "id"}, {"lastEvent", "receptionDate"}};
+        return argThat(new ArgumentMatcher<DeviceView>() {
+            @Override
+            public boolean matches(Object argument) {
+                if (!(argument instanceof DeviceView)) {
+                    return false;
+                }
+                for (String[] path : paths) {
+                    if (!Objects.equals(expectedView.get(path), ((DeviceView) argument).get(path))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Events received through the API have no reception date, only the queued ones being stamped when accepted.
+     */
+    private static DeviceEvent getReceivedDeviceEvent() {
+        return getDeviceEvent().toBuilder().receptionDate(null).build();
+    }
 }
@@ -0,0 +1,195 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import io.barracks.deviceservice.model.CursorPage;
+import io.barracks.deviceservice.model.RetentionPolicy;
+import io.barracks.deviceservice.repository.DeviceEventRepository;
+import io.barracks.deviceservice.repository.RetentionPolicyRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EventRetentionTest {
+    private static final String USER_ID = "userId";
+
+    @Mock
+    private DeviceEventRepository deviceEventRepository;
+    @Mock
+    private RetentionPolicyRepository retentionPolicyRepository;
+    @Mock
+    private GaugeService gaugeService;
+    @Mock
+    private Leases leases;
+
+    @Before
+    public void setUp() throws Exception {
+        doReturn(true).when(leases).tryAcquire(anyString());
+        doReturn(new CursorPage<>(Collections.emptyList(), null))
+                .when(deviceEventRepository).deleteEventsReceivedBefore(anyString(), anyBoolean(), any(Date.class), any(), anyInt());
+    }
+
+    @Test
+    public void purge_shouldDeleteInBatchesUntilNoExpiredEventIsLeft() {
+        // Given
+        final EventRetention eventRetention = getEventRetention(30, 0);
+        doReturn(Collections.emptyMap()).when(retentionPolicyRepository).getPolicies();
+        doReturn(Collections.singletonList(USER_ID)).when(deviceEventRepository).getUserIds();
+        doReturn(200L).when(deviceEventRepository).getAverageEventSize();
+        when(deviceEventRepository.deleteEventsReceivedBefore(eq(USER_ID), eq(false), any(Date.class), any(), eq(100))).thenReturn(
+                new CursorPage<>(getIds(100), "cursor1"),
+                new CursorPage<>(getIds(100), "cursor2"),
+                new CursorPage<>(Collections.emptyList(), "cursor3"),
+                new CursorPage<>(getIds(42), null)
+        );
+
+        // When
+        eventRetention.purge();
+
+        // Then
+        final ArgumentCaptor<Date> before = ArgumentCaptor.forClass(Date.class);
+        final ArgumentCaptor<String> cursors = ArgumentCaptor.forClass(String.class);
+        verify(deviceEventRepository, times(4)).deleteEventsReceivedBefore(eq(USER_ID), eq(false), before.capture(), cursors.capture(), eq(100));
+        verify(deviceEventRepository, never()).deleteEventsReceivedBefore(any(), eq(true), any(), any(), anyInt());
+        assertThat(cursors.getAllValues()).containsExactly(null, "cursor1", "cursor2", "cursor3");
+        assertThat((double) before.getValue().getTime()).isCloseTo(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30), within(60000.0));
+        verify(gaugeService).submit("retention.deletedEvents", 242);
+        verify(gaugeService).submit("retention.reclaimedBytes", 242 * 200);
+    }
+
+    @Test
+    public void purge_whenNoDefaultIsSet_shouldOnlyVisitUsersWithPolicy() {
+        // Given
+        final EventRetention eventRetention = getEventRetention(0, 0);
+        doReturn(Collections.singletonMap(USER_ID, RetentionPolicy.builder().userId(USER_ID).changedEventsDays(365).build()))
+                .when(retentionPolicyRepository).getPolicies();
+
+        // When
+        eventRetention.purge();
+
+        // Then
+        verify(deviceEventRepository, never()).getUserIds();
+        verify(deviceEventRepository).deleteEventsReceivedBefore(eq(USER_ID), eq(true), any(Date.class), any(), eq(100));
+        verify(deviceEventRepository, never()).deleteEventsReceivedBefore(any(), eq(false), any(), any(), anyInt());
+    }
+
+    @Test
+    public void purge_whenDeletionFailsForUser_shouldPurgeOtherUsers() {
+        // Given
+        final EventRetention eventRetention = getEventRetention(30, 0);
+        doReturn(Collections.emptyMap()).when(retentionPolicyRepository).getPolicies();
+        doReturn(Arrays.asList("failing", USER_ID)).when(deviceEventRepository).getUserIds();
+        doThrow(new DataAccessResourceFailureException("down"))
+                .when(deviceEventRepository).deleteEventsReceivedBefore(eq("failing"), anyBoolean(), any(Date.class), any(), anyInt());
+
+        // When
+        eventRetention.purge();
+
+        // Then
+        verify(deviceEventRepository).deleteEventsReceivedBefore(eq(USER_ID), eq(false), any(Date.class), any(), eq(100));
+    }
+
+    @Test
+    public void purge_whenDisabled_shouldNotDeleteAnything() {
+        // Given
+        final EventRetention eventRetention = new EventRetention(deviceEventRepository, retentionPolicyRepository, gaugeService, leases, false, 30, 30, 100, 1000000);
+
+        // When
+        eventRetention.purge();
+
+        // Then
+        verifyZeroInteractions(deviceEventRepository, retentionPolicyRepository);
+    }
+
+    @Test
+    public void purge_whenLeaseIsHeldElsewhere_shouldNotDeleteAnything() {
+        // Given
+        final EventRetention eventRetention = getEventRetention(30, 30);
+        doReturn(false).when(leases).tryAcquire(anyString());
+
+        // When
+        eventRetention.purge();
+
+        // Then
+        verifyZeroInteractions(deviceEventRepository, retentionPolicyRepository);
+    }
+
+    @Test
+    public void purge_whenLeaseIsLost_shouldStopBeforeNextUser() {
+        // Given
+        final EventRetention eventRetention = getEventRetention(30, 0);
+        doReturn(true).doReturn(true).doReturn(false).when(leases).tryAcquire(anyString());
+        doReturn(Collections.emptyMap()).when(retentionPolicyRepository).getPolicies();
+        doReturn(Arrays.asList(USER_ID, "other")).when(deviceEventRepository).getUserIds();
+
+        // When
+        eventRetention.purge();
+
+        // Then
+        verify(deviceEventRepository).deleteEventsReceivedBefore(eq(USER_ID), eq(false), any(Date.class), any(), eq(100));
+        verify(deviceEventRepository, never()).deleteEventsReceivedBefore(eq("other"), anyBoolean(), any(), any(), anyInt());
+        verify(leases).release(anyString());
+    }
+
+    @Test
+    public void getPolicy_whenDurationIsMissing_shouldUseDefault() {
+        // Given
+        final EventRetention eventRetention = getEventRetention(30, 365);
+        doReturn(Optional.of(RetentionPolicy.builder().userId(USER_ID).unchangedEventsDays(7).build()))
+                .when(retentionPolicyRepository).getPolicy(USER_ID);
+
+        // When
+        final RetentionPolicy result = eventRetention.getPolicy(USER_ID);
+
+        // Then
+        assertThat(result.getUnchangedEventsDays()).isEqualTo(7);
+        assertThat(result.getChangedEventsDays()).isEqualTo(365);
+    }
+
+    private EventRetention getEventRetention(int unchangedEventsDays, int changedEventsDays) {
+        return new EventRetention(deviceEventRepository, retentionPolicyRepository, gaugeService, leases, true, unchangedEventsDays, changedEventsDays, 100, 1000000);
+    }
+
+    private static List<String> getIds(int count) {
+        final List<String> ids = new ArrayList<>(count);
+        for (int idx = 0; idx < count; idx++) {
+            ids.add(String.valueOf(idx));
+        }
+        return ids;
+    }
+}
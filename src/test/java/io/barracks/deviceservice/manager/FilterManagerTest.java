@@ -24,15 +24,15 @@
 
 package io.barracks.deviceservice.manager;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.barracks.deviceservice.manager.exception.FilterNotFoundException;
 import io.barracks.deviceservice.manager.exception.MatchingFilterNotFoundException;
 import io.barracks.deviceservice.manager.exception.NoMatchingFilterFoundException;
 import io.barracks.deviceservice.model.DeviceComponentRequest;
 import io.barracks.deviceservice.model.Filter;
+import io.barracks.deviceservice.model.operator.CompiledOperator;
+import io.barracks.deviceservice.model.operator.DeviceView;
 import io.barracks.deviceservice.model.operator.Operator;
 import io.barracks.deviceservice.repository.FilterRepository;
 import io.barracks.deviceservice.utils.DeviceComponentRequestUtils;
@@ -62,7 +62,7 @@ public class FilterManagerTest {
 
     @Before
     public void setup() {
-        filterManager = spy(new FilterManager(filterRepository, objectMapper));
+        filterManager = spy(new FilterManager(filterRepository, objectMapper, 100, 30));
     }
 
     @Test
@@ -124,27 +124,27 @@ public class FilterManagerTest {
         // Given
         final DeviceComponentRequest deviceEvent = DeviceComponentRequestUtils.getDeviceComponentRequest();
         final String userId = deviceEvent.getUserId();
-        final JsonNode deviceJson = new ObjectNode(JsonNodeFactory.instance);
+        final DeviceView deviceView = mock(DeviceView.class);
         final List<String> name = Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString());
         final Operator query1 = mock(Operator.class);
         final Operator query2 = mock(Operator.class);
         final Filter filter1 = FilterUtils.getFilter().toBuilder().query(query1).build();
         final Filter filter2 = FilterUtils.getFilter().toBuilder().query(query2).build();
-        doReturn(deviceJson).when(filterManager).getDeviceJson(deviceEvent);
+        doReturn(deviceView).when(filterManager).getDeviceView(deviceEvent);
         doReturn(Optional.of(filter1)).when(filterRepository).getFilterByUserIdAndName(userId, name.get(0));
         doReturn(Optional.of(filter2)).when(filterRepository).getFilterByUserIdAndName(userId, name.get(1));
-        doReturn(false).when(query1).matches(deviceJson);
-        doReturn(true).when(query2).matches(deviceJson);
+        doReturn(false).when(query1).matches(deviceView);
+        doReturn(true).when(query2).matches(deviceView);
 
         // When
         final List<Filter> results = filterManager.findMatchingFilters(name, deviceEvent);
 
         // Then
-        verify(filterManager).getDeviceJson(deviceEvent);
+        verify(filterManager).getDeviceView(deviceEvent);
         verify(filterRepository).getFilterByUserIdAndName(userId, name.get(0));
         verify(filterRepository).getFilterByUserIdAndName(userId, name.get(1));
-        verify(query1).matches(deviceJson);
-        verify(query2).matches(deviceJson);
+        verify(query1).matches(deviceView);
+        verify(query2).matches(deviceView);
         assertThat(results).containsOnly(filter2);
     }
 
@@ -153,15 +153,15 @@ public class FilterManagerTest {
         // Given
         final DeviceComponentRequest deviceEvent = DeviceComponentRequestUtils.getDeviceComponentRequest();
         final String userId = deviceEvent.getUserId();
-        final JsonNode deviceJson = new ObjectNode(JsonNodeFactory.instance);
+        final DeviceView deviceView = mock(DeviceView.class);
         final List<String> names = Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString());
-        doReturn(deviceJson).when(filterManager).getDeviceJson(deviceEvent);
+        doReturn(deviceView).when(filterManager).getDeviceView(deviceEvent);
         doReturn(Optional.empty()).when(filterRepository).getFilterByUserIdAndName(userId, names.get(0));
 
         // Then When
         assertThatExceptionOfType(MatchingFilterNotFoundException.class)
                 .isThrownBy(() -> filterManager.findMatchingFilters(names, deviceEvent));
-        verify(filterManager).getDeviceJson(deviceEvent);
+        verify(filterManager).getDeviceView(deviceEvent);
         verify(filterRepository).getFilterByUserIdAndName(userId, names.get(0));
         verify(filterRepository, times(0)).getFilterByUserIdAndName(userId, names.get(1));
     }
@@ -171,27 +171,27 @@ public class FilterManagerTest {
         // Given
         final DeviceComponentRequest deviceEvent = DeviceComponentRequestUtils.getDeviceComponentRequest();
         final String userId = deviceEvent.getUserId();
-        final JsonNode deviceJson = new ObjectNode(JsonNodeFactory.instance);
+        final DeviceView deviceView = mock(DeviceView.class);
         final List<String> names = Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString());
         final Operator query1 = mock(Operator.class);
         final Operator query2 = mock(Operator.class);
         final Filter filter1 = FilterUtils.getFilter().toBuilder().query(query1).build();
         final Filter filter2 = FilterUtils.getFilter().toBuilder().query(query2).build();
-        doReturn(deviceJson).when(filterManager).getDeviceJson(deviceEvent);
+        doReturn(deviceView).when(filterManager).getDeviceView(deviceEvent);
         doReturn(Optional.of(filter1)).when(filterRepository).getFilterByUserIdAndName(userId, names.get(0));
         doReturn(Optional.of(filter2)).when(filterRepository).getFilterByUserIdAndName(userId, names.get(1));
-        doReturn(false).when(query1).matches(deviceJson);
-        doReturn(true).when(query2).matches(deviceJson);
+        doReturn(false).when(query1).matches(deviceView);
+        doReturn(true).when(query2).matches(deviceView);
 
         // When
         final Filter results = filterManager.findFirstMatchingFilter(names, deviceEvent);
 
         // Then
-        verify(filterManager).getDeviceJson(deviceEvent);
+        verify(filterManager).getDeviceView(deviceEvent);
         verify(filterRepository).getFilterByUserIdAndName(userId, names.get(0));
         verify(filterRepository).getFilterByUserIdAndName(userId, names.get(1));
-        verify(query1).matches(deviceJson);
-        verify(query2).matches(deviceJson);
+        verify(query1).matches(deviceView);
+        verify(query2).matches(deviceView);
         assertThat(results).isEqualTo(filter2);
     }
 
@@ -200,23 +200,23 @@ public class FilterManagerTest {
         // Given
         final DeviceComponentRequest deviceEvent = DeviceComponentRequestUtils.getDeviceComponentRequest();
         final String userId = deviceEvent.getUserId();
-        final JsonNode deviceJson = new ObjectNode(JsonNodeFactory.instance);
+        final DeviceView deviceView = mock(DeviceView.class);
         final List<String> names = Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString());
         final Operator query = mock(Operator.class);
         final Filter filter1 = FilterUtils.getFilter().toBuilder().query(query).build();
         final Filter filter2 = FilterUtils.getFilter().toBuilder().query(query).build();
-        doReturn(deviceJson).when(filterManager).getDeviceJson(deviceEvent);
+        doReturn(deviceView).when(filterManager).getDeviceView(deviceEvent);
         doReturn(Optional.of(filter1)).when(filterRepository).getFilterByUserIdAndName(userId, names.get(0));
         doReturn(Optional.of(filter2)).when(filterRepository).getFilterByUserIdAndName(userId, names.get(1));
-        doReturn(false).when(query).matches(deviceJson);
+        doReturn(false).when(query).matches(deviceView);
 
         // Then When
         assertThatExceptionOfType(NoMatchingFilterFoundException.class)
                 .isThrownBy(() -> filterManager.findFirstMatchingFilter(names, deviceEvent));
-        verify(filterManager).getDeviceJson(deviceEvent);
+        verify(filterManager).getDeviceView(deviceEvent);
         verify(filterRepository).getFilterByUserIdAndName(userId, names.get(0));
         verify(filterRepository).getFilterByUserIdAndName(userId, names.get(1));
-        verify(query, times(2)).matches(deviceJson);
+        verify(query, times(2)).matches(deviceView);
     }
 
     @Test
@@ -224,16 +224,16 @@ public class FilterManagerTest {
         // Given
         final DeviceComponentRequest deviceEvent = DeviceComponentRequestUtils.getDeviceComponentRequest();
         final String userId = deviceEvent.getUserId();
-        final JsonNode deviceJson = new ObjectNode(JsonNodeFactory.instance);
+        final DeviceView deviceView = mock(DeviceView.class);
         final List<String> names = Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString());
-        doReturn(deviceJson).when(filterManager).getDeviceJson(deviceEvent);
+        doReturn(deviceView).when(filterManager).getDeviceView(deviceEvent);
         doReturn(Optional.empty()).when(filterRepository).getFilterByUserIdAndName(userId, names.get(0));
         doReturn(Optional.empty()).when(filterRepository).getFilterByUserIdAndName(userId, names.get(1));
 
         // Then When
         assertThatExceptionOfType(FilterNotFoundException.class)
                 .isThrownBy(() -> filterManager.findFirstMatchingFilter(names, deviceEvent));
-        verify(filterManager).getDeviceJson(deviceEvent);
+        verify(filterManager).getDeviceView(deviceEvent);
         verify(filterRepository).getFilterByUserIdAndName(userId, names.get(0));
         verify(filterRepository, times(0)).getFilterByUserIdAndName(userId, names.get(1));
     }
@@ -265,4 +265,44 @@ public class FilterManagerTest {
         // Then
         verify(filterRepository).deleteFilterByUserIdAndName(userId, filterName);
     }
+
+    @Test
+    public void getCompiledQuery_whenQueryIsUnchanged_shouldReuseCompiledQuery() {
+        // Given
+        final Filter filter = FilterUtils.getFilter();
+        final CompiledOperator compiled = filterManager.getCompiledQuery(filter);
+
+        // When
+        final CompiledOperator result = filterManager.getCompiledQuery(filter.toBuilder().build());
+
+        // Then
+        assertThat(result).isSameAs(compiled);
+    }
+
+    @Test
+    public void getCompiledQuery_whenQueryChanged_shouldCompileNewQuery() {
+        // Given
+        final Filter filter = FilterUtils.getFilter();
+        final Operator query = mock(Operator.class);
+        filterManager.getCompiledQuery(filter);
+
+        // When
+        final CompiledOperator result = filterManager.getCompiledQuery(filter.toBuilder().query(query).build());
+
+        // Then
+        assertThat(result.getSource()).isSameAs(query);
+    }
+
+    @Test
+    public void deleteFilter_shouldForgetCompiledQuery() {
+        // Given
+        final Filter filter = FilterUtils.getFilter();
+        final CompiledOperator compiled = filterManager.getCompiledQuery(filter);
+
+        // When
+        filterManager.deleteFilterByUserIdAndName(filter.getUserId(), filter.getName());
+
+        // Then
+        assertThat(filterManager.getCompiledQuery(filter)).isNotSameAs(compiled);
+    }
 }
@@ -0,0 +1,253 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import io.barracks.deviceservice.manager.exception.InvalidStatsKeyException;
+import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.QuantileBucket;
+import io.barracks.deviceservice.model.QuantileSketch;
+import io.barracks.deviceservice.model.Segment;
+import io.barracks.deviceservice.repository.QuantileBucketRepository;
+import io.barracks.deviceservice.repository.TrackedKeysRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QuantileSketchesTest {
+    private static final String USER_ID = "userId";
+    private static final String KEY = "customClientData.battery";
+
+    @Mock
+    private QuantileBucketRepository quantileBucketRepository;
+    @Mock
+    private TrackedKeysRepository trackedKeysRepository;
+    private QuantileSketches quantileSketches;
+
+    @Before
+    public void setUp() throws Exception {
+        quantileSketches = new QuantileSketches(quantileBucketRepository, trackedKeysRepository, true, 3600, 30);
+        reset(quantileBucketRepository, trackedKeysRepository);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void recordLastEvents_shouldIncrementBucketOfSegmentOnFlush() {
+        // Given
+        doReturn(Collections.singletonList(KEY)).when(trackedKeysRepository).getQuantileKeys(USER_ID);
+        final List<DeviceEvent> events = Arrays.asList(
+                getEvent("segment", 4000000L, 42),
+                getEvent("segment", 5000000L, 42.5),
+                getEvent(null, 5000000L, 10),
+                getEvent("segment", 5000000L, "not a number")
+        );
+
+        // When
+        quantileSketches.recordLastEvents(USER_ID, Collections.emptyMap(), getLastEvents(events));
+        quantileSketches.flush();
+
+        // Then
+        final ArgumentCaptor<List> increments = ArgumentCaptor.forClass(List.class);
+        verify(quantileBucketRepository).incrementBuckets(increments.capture());
+        final QuantileSketch segment = QuantileSketch.empty();
+        segment.add(42);
+        segment.add(42.5);
+        final QuantileSketch other = QuantileSketch.empty();
+        other.add(10);
+        assertThat((List<QuantileBucket>) increments.getValue()).containsOnly(
+                QuantileBucket.from(USER_ID, KEY, "segment", new Date(3600000L), segment),
+                QuantileBucket.from(USER_ID, KEY, Segment.OTHER_ID, new Date(3600000L), other)
+        );
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void recordLastEvents_whenValueChanges_shouldMoveDeviceBetweenBuckets() {
+        // Given
+        doReturn(Collections.singletonList(KEY)).when(trackedKeysRepository).getQuantileKeys(USER_ID);
+        final DeviceEvent previous = getEvent("segment", 0, 42);
+        final DeviceEvent last = getEvent("segment", 3600000L, 43).toBuilder().unitId(previous.getUnitId()).build();
+
+        // When
+        quantileSketches.recordLastEvents(USER_ID, Collections.singletonMap(previous.getUnitId(), previous), Collections.singletonMap(last.getUnitId(), last));
+        quantileSketches.flush();
+
+        // Then
+        final ArgumentCaptor<List> increments = ArgumentCaptor.forClass(List.class);
+        verify(quantileBucketRepository).incrementBuckets(increments.capture());
+        final QuantileSketch removed = QuantileSketch.empty();
+        removed.remove(42);
+        final QuantileSketch added = QuantileSketch.empty();
+        added.add(43);
+        assertThat((List<QuantileBucket>) increments.getValue()).containsOnly(
+                QuantileBucket.from(USER_ID, KEY, "segment", new Date(0), removed),
+                QuantileBucket.from(USER_ID, KEY, "segment", new Date(3600000L), added)
+        );
+    }
+
+    @Test
+    public void recordLastEvents_whenValueDoesNotChange_shouldNotRecordAnything() {
+        // Given
+        doReturn(Collections.singletonList(KEY)).when(trackedKeysRepository).getQuantileKeys(USER_ID);
+        final DeviceEvent previous = getEvent("segment", 0, 42);
+        final DeviceEvent last = getEvent("segment", 1000L, 42).toBuilder().unitId(previous.getUnitId()).build();
+
+        // When
+        quantileSketches.recordLastEvents(USER_ID, Collections.singletonMap(previous.getUnitId(), previous), Collections.singletonMap(last.getUnitId(), last));
+        quantileSketches.flush();
+
+        // Then
+        verifyZeroInteractions(quantileBucketRepository);
+    }
+
+    @Test
+    public void recordLastEvents_whenKeyIsNotTracked_shouldNotRecordAnything() {
+        // Given
+        doReturn(Collections.emptyList()).when(trackedKeysRepository).getQuantileKeys(USER_ID);
+
+        // When
+        quantileSketches.recordLastEvents(USER_ID, Collections.emptyMap(), getLastEvents(Collections.singletonList(getEvent("segment", 0, 42))));
+        quantileSketches.flush();
+
+        // Then
+        verifyZeroInteractions(quantileBucketRepository);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void flush_whenIncrementIsRejected_shouldRetryOnlyItOnNextFlush() {
+        // Given
+        doReturn(Collections.singletonList(KEY)).when(trackedKeysRepository).getQuantileKeys(USER_ID);
+        quantileSketches.recordLastEvents(USER_ID, Collections.emptyMap(), getLastEvents(Collections.singletonList(getEvent("segment", 0, 42))));
+        quantileSketches.recordLastEvents(USER_ID, Collections.emptyMap(), getLastEvents(Collections.singletonList(getEvent("segment", 3600000L, 43))));
+        final Map<Integer, String> failures = Collections.singletonMap(1, "error");
+        when(quantileBucketRepository.incrementBuckets(anyListOf(QuantileBucket.class))).thenReturn(failures, Collections.emptyMap());
+        quantileSketches.flush();
+        final ArgumentCaptor<List> increments = ArgumentCaptor.forClass(List.class);
+        verify(quantileBucketRepository).incrementBuckets(increments.capture());
+        final QuantileBucket rejected = (QuantileBucket) increments.getValue().get(1);
+
+        // When
+        quantileSketches.flush();
+
+        // Then
+        verify(quantileBucketRepository).incrementBuckets(Collections.singletonList(rejected));
+    }
+
+    @Test
+    public void flush_whenWriteFails_shouldDropSketches() {
+        // Given
+        doReturn(Collections.singletonList(KEY)).when(trackedKeysRepository).getQuantileKeys(USER_ID);
+        quantileSketches.recordLastEvents(USER_ID, Collections.emptyMap(), getLastEvents(Collections.singletonList(getEvent("segment", 0, 42))));
+        doThrow(new DataAccessResourceFailureException("down"))
+                .when(quantileBucketRepository).incrementBuckets(anyListOf(QuantileBucket.class));
+        quantileSketches.flush();
+
+        // When
+        quantileSketches.flush();
+
+        // Then
+        verify(quantileBucketRepository, times(1)).incrementBuckets(anyListOf(QuantileBucket.class));
+    }
+
+    @Test
+    public void getQuantiles_shouldMergeStoredAndPendingSketches() {
+        // Given
+        doReturn(Collections.singletonList(KEY)).when(trackedKeysRepository).getQuantileKeys(USER_ID);
+        final QuantileSketch stored = QuantileSketch.empty();
+        for (int value = 1; value <= 50; value++) {
+            stored.add(value);
+        }
+        doReturn(stored).when(quantileBucketRepository).findMergedSketch(USER_ID, KEY, "segment", null, null);
+        final List<DeviceEvent> events = new ArrayList<>();
+        for (int value = 51; value <= 100; value++) {
+            events.add(getEvent("segment", 0, value));
+        }
+        events.add(getEvent(null, 0, 1000));
+        quantileSketches.recordLastEvents(USER_ID, Collections.emptyMap(), getLastEvents(events));
+
+        // When
+        final DataSet result = quantileSketches.getQuantiles(USER_ID, KEY, "segment", OffsetDateTime.MIN, OffsetDateTime.MAX);
+
+        // Then
+        assertThat(result.getTotal()).isEqualByComparingTo(BigDecimal.valueOf(100));
+        assertThat(result.getValues()).containsOnlyKeys("p50", "p90", "p99");
+        assertThat(result.getValues().get("p50").doubleValue()).isCloseTo(50, within(50 * QuantileSketch.RELATIVE_ACCURACY));
+        assertThat(result.getValues().get("p99").doubleValue()).isCloseTo(99, within(99 * QuantileSketch.RELATIVE_ACCURACY));
+        assertThat(result.getError()).isEqualTo(QuantileSketch.RELATIVE_ACCURACY);
+    }
+
+    @Test
+    public void getQuantiles_whenNoValueWasReceived_shouldReturnEmptyDataSet() {
+        // Given
+        doReturn(QuantileSketch.empty()).when(quantileBucketRepository).findMergedSketch(eq(USER_ID), eq(KEY), (String) isNull(), any(Date.class), any(Date.class));
+
+        // When
+        final DataSet result = quantileSketches.getQuantiles(USER_ID, KEY, null, OffsetDateTime.now().minusDays(1), OffsetDateTime.now());
+
+        // Then
+        assertThat(result.getTotal()).isEqualByComparingTo(BigDecimal.ZERO);
+        assertThat(result.getValues()).isEmpty();
+    }
+
+    @Test
+    public void updateTrackedKeys_whenKeyIsInvalid_shouldThrowException() {
+        // Then When
+        assertThatExceptionOfType(InvalidStatsKeyException.class)
+                .isThrownBy(() -> quantileSketches.updateTrackedKeys(USER_ID, Collections.singletonList("versionId")));
+        verifyZeroInteractions(trackedKeysRepository);
+    }
+
+    private Map<String, DeviceEvent> getLastEvents(List<DeviceEvent> events) {
+        final Map<String, DeviceEvent> lastEvents = new HashMap<>();
+        events.forEach(event -> lastEvents.put(event.getUnitId(), event));
+        return lastEvents;
+    }
+
+    private DeviceEvent getEvent(String segmentId, long receptionTime, Object battery) {
+        return DeviceEvent.builder()
+                .userId(USER_ID)
+                .unitId(UUID.randomUUID().toString())
+                .versionId("v1")
+                .segmentId(segmentId)
+                .receptionDate(new Date(receptionTime))
+                .additionalProperties(Collections.singletonMap("battery", battery))
+                .build();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import io.barracks.deviceservice.model.Segment;
+import io.barracks.deviceservice.model.operator.CompiledOperator;
+import io.barracks.deviceservice.model.operator.comparison.ComparisonOperator;
+import io.barracks.deviceservice.repository.SegmentOrderRepository;
+import io.barracks.deviceservice.repository.SegmentRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SegmentCatalogTest {
+    @Mock
+    private SegmentRepository segmentRepository;
+    @Mock
+    private SegmentOrderRepository segmentOrderRepository;
+    private SegmentCatalog segmentCatalog;
+
+    @Before
+    public void setUp() throws Exception {
+        segmentCatalog = new SegmentCatalog(segmentRepository, segmentOrderRepository, 10, 60);
+        reset(segmentRepository, segmentOrderRepository);
+    }
+
+    @Test
+    public void getActiveSegments_whenCalledTwice_shouldLoadSegmentsOnce() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<String> segmentIds = Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+        final List<Segment> segments = Arrays.asList(
+                Segment.builder().id(segmentIds.get(0)).build(),
+                Segment.builder().id(segmentIds.get(1)).build()
+        );
+        doReturn(segmentIds).when(segmentOrderRepository).getSegmentIds(userId);
+        doReturn(segments).when(segmentRepository).getSegmentsInIds(userId, segmentIds);
+
+        // When
+        final List<Segment> first = segmentCatalog.getActiveSegments(userId);
+        final List<Segment> second = segmentCatalog.getActiveSegments(userId);
+
+        // Then
+        verify(segmentOrderRepository).getSegmentIds(userId);
+        verify(segmentRepository).getSegmentsInIds(userId, segmentIds);
+        assertThat(first).containsExactlyElementsOf(segments);
+        assertThat(second).isSameAs(first);
+    }
+
+    @Test
+    public void getActiveSegments_whenNoOrder_shouldNotQuerySegments() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        doReturn(Collections.emptyList()).when(segmentOrderRepository).getSegmentIds(userId);
+
+        // When
+        final List<Segment> result = segmentCatalog.getActiveSegments(userId);
+
+        // Then
+        verify(segmentOrderRepository).getSegmentIds(userId);
+        verifyZeroInteractions(segmentRepository);
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void getActiveSegments_whenInvalidated_shouldReloadSegments() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<String> segmentIds = Collections.singletonList(UUID.randomUUID().toString());
+        final List<Segment> segments = Collections.singletonList(Segment.builder().id(segmentIds.get(0)).build());
+        doReturn(segmentIds).when(segmentOrderRepository).getSegmentIds(userId);
+        doReturn(segments).when(segmentRepository).getSegmentsInIds(userId, segmentIds);
+        segmentCatalog.getActiveSegments(userId);
+
+        // When
+        segmentCatalog.invalidate(userId);
+        segmentCatalog.getActiveSegments(userId);
+
+        // Then
+        verify(segmentOrderRepository, times(2)).getSegmentIds(userId);
+        verify(segmentRepository, times(2)).getSegmentsInIds(userId, segmentIds);
+    }
+
+    @Test
+    public void getActiveSegments_whenOtherUserIsInvalidated_shouldKeepSegments() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        doReturn(Collections.emptyList()).when(segmentOrderRepository).getSegmentIds(userId);
+        segmentCatalog.getActiveSegments(userId);
+
+        // When
+        segmentCatalog.invalidate(UUID.randomUUID().toString());
+        segmentCatalog.getActiveSegments(userId);
+
+        // Then
+        verify(segmentOrderRepository).getSegmentIds(userId);
+    }
+
+    @Test
+    public void getActiveSegments_shouldCompileSegmentQueries() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<String> segmentIds = Collections.singletonList(UUID.randomUUID().toString());
+        final Segment segment = Segment.builder()
+                .id(segmentIds.get(0))
+                .query(ComparisonOperator.from("eq", "unitId", "unit"))
+                .build();
+        doReturn(segmentIds).when(segmentOrderRepository).getSegmentIds(userId);
+        doReturn(Collections.singletonList(segment)).when(segmentRepository).getSegmentsInIds(userId, segmentIds);
+
+        // When
+        final List<Segment> result = segmentCatalog.getActiveSegments(userId);
+
+        // Then
+        assertThat(result).hasSize(1);
+        assertThat(result.get(0).getId()).isEqualTo(segment.getId());
+        assertThat(result.get(0).getQuery()).isInstanceOf(CompiledOperator.class);
+        assertThat(((CompiledOperator) result.get(0).getQuery()).getSource()).isEqualTo(segment.getQuery());
+    }
+}
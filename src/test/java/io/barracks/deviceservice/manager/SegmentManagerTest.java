@@ -61,18 +61,20 @@ public class SegmentManagerTest {
     private DeviceRepository deviceRepository;
     @Mock
     private SegmentOrderRepository orderRepository;
+    @Mock
+    private SegmentCatalog segmentCatalog;
     private SegmentManager segmentManager;
 
 
     @Before
     public void setUp() throws Exception {
-        final SegmentManager manager = new SegmentManager(segmentRepository, deviceRepository, orderRepository);
+        final SegmentManager manager = new SegmentManager(segmentRepository, deviceRepository, orderRepository, segmentCatalog);
         segmentManager = spy(manager);
-        reset(segmentManager, segmentRepository, deviceRepository, orderRepository);
+        reset(segmentManager, segmentRepository, deviceRepository, orderRepository, segmentCatalog);
     }
 
     @Test
-    public void createSegment_shouldCallRepository_andReturnSegment() {
+    public void createSegment_shouldCallRepository_invalidateCatalog_andReturnSegment() {
         // Given
         Segment segment = Segment.builder().userId(UUID.randomUUID().toString()).build();
         Segment expected = segment.toBuilder().id(UUID.randomUUID().toString()).build();
@@ -83,6 +85,7 @@ public class SegmentManagerTest {
 
         // Then
         verify(segmentRepository).insert(segment);
+        verify(segmentCatalog).invalidate(segment.getUserId());
         assertThat(result).isEqualTo(expected);
     }
 
@@ -117,7 +120,7 @@ public class SegmentManagerTest {
     }
 
     @Test
-    public void updateSegment_shouldCallRepository_andReturnSegment() {
+    public void updateSegment_shouldCallRepository_invalidateCatalog_andReturnSegment() {
         // Given
         final String id = UUID.randomUUID().toString();
         final Segment update = Segment.builder()
@@ -135,6 +138,7 @@ public class SegmentManagerTest {
 
         // Then
         verify(segmentRepository).save(update.toBuilder().id(id).build());
+        verify(segmentCatalog).invalidate(update.getUserId());
         assertThat(result).isEqualTo(expected);
     }
 
@@ -245,7 +249,7 @@ public class SegmentManagerTest {
     }
 
     @Test
-    public void updateSegmentOrder_whenAllSegmentsBelongToUser_shouldUpdateOrder_andReturnOrder() {
+    public void updateSegmentOrder_whenAllSegmentsBelongToUser_shouldUpdateOrder_invalidateCatalog_andReturnOrder() {
         // Given
         final String userId = UUID.randomUUID().toString();
         final List<Segment> segments = Arrays.asList(Segment.builder().build(), Segment.builder().build());
@@ -261,6 +265,7 @@ public class SegmentManagerTest {
         // Then
         verify(segmentRepository).getSegmentsInIds(userId, order);
         verify(orderRepository).updateOrder(userId, order);
+        verify(segmentCatalog).invalidate(userId);
         assertThat(result).isEqualTo(expected);
     }
 
@@ -276,5 +281,6 @@ public class SegmentManagerTest {
         assertThatExceptionOfType(InvalidSegmentOrderException.class)
                 .isThrownBy(() -> segmentManager.updateSegmentOrder(userId, order));
         verify(segmentRepository).getSegmentsInIds(userId, order);
+        verifyZeroInteractions(segmentCatalog);
     }
 }
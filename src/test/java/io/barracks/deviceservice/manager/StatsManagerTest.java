@@ -24,20 +24,35 @@
 
 package io.barracks.deviceservice.manager;
 
+import com.google.common.base.Ticker;
+import io.barracks.deviceservice.manager.exception.InvalidStatsKeyException;
 import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DataSetMatrix;
 import io.barracks.deviceservice.repository.DeviceEventRepository;
 import io.barracks.deviceservice.repository.DeviceRepository;
+import io.barracks.deviceservice.repository.SegmentOrderRepository;
 import io.barracks.deviceservice.utils.DataSetUtils;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.actuate.metrics.Metric;
 
+import java.math.BigDecimal;
 import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -46,13 +61,37 @@ public class StatsManagerTest {
     private DeviceRepository deviceRepository;
     @Mock
     private DeviceEventRepository deviceEventRepository;
+    @Mock
+    private SegmentOrderRepository segmentOrderRepository;
+    @Mock
+    private StatsRollups statsRollups;
+    @Mock
+    private SeenSketches seenSketches;
+    @Mock
+    private TopValues topValues;
+    @Mock
+    private QuantileSketches quantileSketches;
+    @Mock
+    private GaugeService gaugeService;
 
+    private final AtomicLong nanos = new AtomicLong();
     private StatsManager statsManager;
 
     @Before
     public void setUp() {
-        statsManager = new StatsManager(deviceRepository, deviceEventRepository);
-        reset(deviceRepository);
+        final Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return nanos.get();
+            }
+        };
+        statsManager = new StatsManager(deviceRepository, deviceEventRepository, segmentOrderRepository, statsRollups, seenSketches, topValues, quantileSketches, gaugeService, 60, 15, 100, 10, 1, ticker);
+        reset(deviceRepository, statsRollups, seenSketches);
+    }
+
+    @After
+    public void tearDown() {
+        statsManager.stop();
     }
 
     @Test
@@ -87,6 +126,44 @@ public class StatsManagerTest {
         assertThat(result).isEqualTo(expected);
     }
 
+    @Test
+    public void getSeenDevices_whenSketchesAreEnabled_shouldEstimateFromSketches() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final OffsetDateTime start = OffsetDateTime.MIN;
+        final OffsetDateTime end = OffsetDateTime.MAX;
+        final DataSet expected = DataSetUtils.getDataSet();
+        doReturn(true).when(seenSketches).isEnabled();
+        doReturn(expected).when(seenSketches).getSeenDeviceCount(userId, start, end);
+
+        // When
+        final DataSet result = statsManager.getSeenDeviceCount(userId, start, end);
+
+        // Then
+        verify(seenSketches).getSeenDeviceCount(userId, start, end);
+        verifyZeroInteractions(deviceEventRepository);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void getExactSeenDevices_whenSketchesAreEnabled_shouldForwardCallToRepository() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final OffsetDateTime start = OffsetDateTime.MIN;
+        final OffsetDateTime end = OffsetDateTime.MAX;
+        final DataSet expected = DataSetUtils.getDataSet();
+        doReturn(true).when(seenSketches).isEnabled();
+        doReturn(expected).when(deviceEventRepository).getSeenDeviceCount(userId, start, end);
+
+        // When
+        final DataSet result = statsManager.getExactSeenDeviceCount(userId, start, end);
+
+        // Then
+        verify(deviceEventRepository).getSeenDeviceCount(userId, start, end);
+        verify(seenSketches, never()).getSeenDeviceCount(any(), any(), any());
+        assertThat(result).isEqualTo(expected);
+    }
+
     @Test
     public void getLastSeenDevices_shouldForwardCallToRepository() {
         // Given
@@ -104,6 +181,42 @@ public class StatsManagerTest {
         assertThat(result).isEqualTo(expected);
     }
 
+    @Test
+    public void getDeviceCountPerVersionId_whenRollupsAreEnabled_shouldReadRollups() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DataSet expected = DataSetUtils.getDataSet();
+        doReturn(true).when(statsRollups).isEnabled();
+        doReturn(expected).when(statsRollups).getDeviceCountPerVersionId(userId);
+
+        // When
+        final DataSet result = statsManager.getDeviceCountPerVersionId(userId);
+
+        // Then
+        verify(statsRollups).getDeviceCountPerVersionId(userId);
+        verifyZeroInteractions(deviceRepository);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void getLastSeenDevices_whenRollupsAreEnabled_shouldReadRollups() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final OffsetDateTime start = OffsetDateTime.MIN;
+        final OffsetDateTime end = OffsetDateTime.MAX;
+        final DataSet expected = DataSetUtils.getDataSet();
+        doReturn(true).when(statsRollups).isEnabled();
+        doReturn(expected).when(statsRollups).getLastSeenDeviceCount(userId, start, end);
+
+        // When
+        final DataSet result = statsManager.getLastSeenDeviceCount(userId, start, end);
+
+        // Then
+        verify(statsRollups).getLastSeenDeviceCount(userId, start, end);
+        verifyZeroInteractions(deviceRepository);
+        assertThat(result).isEqualTo(expected);
+    }
+
     @Test
     public void getDeviceCountPerUserId_shouldForwardCallToRepository() {
         // Given
@@ -117,4 +230,282 @@ public class StatsManagerTest {
         verify(deviceRepository).getDeviceCountPerUserId();
         assertThat(result).isEqualTo(expected);
     }
+
+    @Test
+    public void getDeviceCountPerSegmentIdAndVersionId_shouldUseActiveSegmentsOfUser() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<String> segmentIds = Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+        final DataSetMatrix expected = DataSetMatrix.builder()
+                .value(segmentIds.get(0), DataSetUtils.getDataSet())
+                .value(segmentIds.get(1), DataSetUtils.getDataSet())
+                .total(BigDecimal.ONE)
+                .build();
+        doReturn(segmentIds).when(segmentOrderRepository).getSegmentIds(userId);
+        doReturn(expected).when(deviceRepository).getDeviceCountPerSegmentIdAndVersionId(userId, segmentIds);
+
+        // When
+        final DataSetMatrix result = statsManager.getDeviceCountPerSegmentIdAndVersionId(userId);
+
+        // Then
+        verify(segmentOrderRepository).getSegmentIds(userId);
+        verify(deviceRepository).getDeviceCountPerSegmentIdAndVersionId(userId, segmentIds);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void getTopValues_whenKeyIsTracked_shouldReadSummary() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String key = "customClientData.country";
+        final DataSet expected = DataSetUtils.getDataSet();
+        doReturn(true).when(topValues).isTracked(userId, key);
+        doReturn(expected).when(topValues).getTopValues(userId, key, 10);
+
+        // When
+        final DataSet result = statsManager.getTopValues(userId, key, 10);
+
+        // Then
+        verify(topValues).getTopValues(userId, key, 10);
+        verifyZeroInteractions(deviceRepository);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void getTopValues_whenKeyIsNotTracked_shouldAggregateDevices() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String key = "customClientData.country";
+        final DataSet expected = DataSetUtils.getDataSet();
+        doReturn(false).when(topValues).isTracked(userId, key);
+        doReturn(expected).when(deviceRepository).getDeviceCountPerValue(userId, key, 10);
+
+        // When
+        final DataSet result = statsManager.getTopValues(userId, key, 10);
+
+        // Then
+        verify(deviceRepository).getDeviceCountPerValue(userId, key, 10);
+        verify(topValues, never()).getTopValues(any(), any(), anyInt());
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void getTopValues_whenKeyIsInvalid_shouldThrowException() {
+        // Then When
+        assertThatExceptionOfType(InvalidStatsKeyException.class)
+                .isThrownBy(() -> statsManager.getTopValues(UUID.randomUUID().toString(), "versionId", 10));
+        verifyZeroInteractions(deviceRepository, topValues);
+    }
+
+    @Test
+    public void getQuantiles_whenKeyIsTracked_shouldReadSketches() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String segmentId = UUID.randomUUID().toString();
+        final String key = "customClientData.battery";
+        final OffsetDateTime start = OffsetDateTime.now().minusDays(1);
+        final OffsetDateTime end = OffsetDateTime.now();
+        final DataSet expected = DataSetUtils.getDataSet();
+        doReturn(true).when(quantileSketches).isTracked(userId, key);
+        doReturn(expected).when(quantileSketches).getQuantiles(userId, key, segmentId, start, end);
+
+        // When
+        final DataSet result = statsManager.getQuantiles(userId, key, segmentId, start, end);
+
+        // Then
+        verify(quantileSketches).getQuantiles(userId, key, segmentId, start, end);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void getQuantiles_whenKeyIsNotTracked_shouldThrowException() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String key = "customClientData.battery";
+        doReturn(false).when(quantileSketches).isTracked(userId, key);
+
+        // Then When
+        assertThatExceptionOfType(InvalidStatsKeyException.class)
+                .isThrownBy(() -> statsManager.getQuantiles(userId, key, null, OffsetDateTime.MIN, OffsetDateTime.MAX));
+        verify(quantileSketches, never()).getQuantiles(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void getDeviceCountPerVersionId_whenCalledTwice_shouldComputeOnce() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DataSet expected = DataSetUtils.getDataSet();
+        doReturn(expected).when(deviceRepository).getDevicesCountPerVersionId(userId);
+        statsManager.getDeviceCountPerVersionId(userId);
+
+        // When
+        final DataSet result = statsManager.getDeviceCountPerVersionId(userId);
+
+        // Then
+        verify(deviceRepository, times(1)).getDevicesCountPerVersionId(userId);
+        verify(gaugeService).submit(eq("timer.stats.per_version_id"), anyLong());
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void getDeviceCountPerVersionId_whenCalledForAnotherUser_shouldComputeAgain() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String otherUserId = UUID.randomUUID().toString();
+        final DataSet expected = DataSetUtils.getDataSet();
+        doReturn(DataSetUtils.getDataSet()).when(deviceRepository).getDevicesCountPerVersionId(userId);
+        doReturn(expected).when(deviceRepository).getDevicesCountPerVersionId(otherUserId);
+        statsManager.getDeviceCountPerVersionId(userId);
+
+        // When
+        final DataSet result = statsManager.getDeviceCountPerVersionId(otherUserId);
+
+        // Then
+        verify(deviceRepository).getDevicesCountPerVersionId(userId);
+        verify(deviceRepository).getDevicesCountPerVersionId(otherUserId);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void getLastSeenDevices_whenRangesDifferWithinRefreshDelay_shouldComputeOnceWithWidenedRange() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final OffsetDateTime start = OffsetDateTime.parse("2017-01-01T00:00:01Z");
+        final OffsetDateTime end = OffsetDateTime.parse("2017-01-02T00:00:01Z");
+        final OffsetDateTime roundedStart = OffsetDateTime.parse("2017-01-01T00:00:00Z");
+        final OffsetDateTime roundedEnd = OffsetDateTime.parse("2017-01-02T00:00:15Z");
+        final DataSet expected = DataSetUtils.getDataSet();
+        doReturn(expected).when(deviceRepository).getLastSeenDeviceCount(userId, roundedStart, roundedEnd);
+        statsManager.getLastSeenDeviceCount(userId, start, end);
+
+        // When
+        final DataSet result = statsManager.getLastSeenDeviceCount(userId, start.plusSeconds(5), end.plusSeconds(5));
+
+        // Then
+        verify(deviceRepository, times(1)).getLastSeenDeviceCount(userId, roundedStart, roundedEnd);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void getDeviceCountPerVersionId_whenAnotherUserRequestsManyStatistics_shouldKeepResult() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String otherUserId = UUID.randomUUID().toString();
+        final String key = "customClientData.country";
+        final DataSet expected = DataSetUtils.getDataSet();
+        doReturn(expected).when(deviceRepository).getDevicesCountPerVersionId(userId);
+        doReturn(DataSetUtils.getDataSet()).when(deviceRepository).getDeviceCountPerValue(eq(otherUserId), eq(key), anyInt());
+        statsManager.getDeviceCountPerVersionId(userId);
+        for (int limit = 1; limit <= 200; limit++) {
+            statsManager.getTopValues(otherUserId, key, limit);
+        }
+
+        // When
+        final DataSet result = statsManager.getDeviceCountPerVersionId(userId);
+
+        // Then
+        verify(deviceRepository, times(1)).getDevicesCountPerVersionId(userId);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void getLastSeenDevices_whenRequestedConcurrently_shouldShareOneComputation() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final OffsetDateTime start = OffsetDateTime.MIN;
+        final OffsetDateTime end = OffsetDateTime.MAX;
+        final DataSet expected = DataSetUtils.getDataSet();
+        final CountDownLatch computing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            computing.countDown();
+            release.await();
+            return expected;
+        }).when(deviceRepository).getLastSeenDeviceCount(userId, start, end);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            // When
+            final Future<DataSet> first = executor.submit(() -> statsManager.getLastSeenDeviceCount(userId, start, end));
+            computing.await(5, TimeUnit.SECONDS);
+            final Future<DataSet> second = executor.submit(() -> statsManager.getLastSeenDeviceCount(userId, start, end));
+            Thread.sleep(100);
+            release.countDown();
+
+            // Then
+            assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo(expected);
+            assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo(expected);
+            verify(deviceRepository, times(1)).getLastSeenDeviceCount(userId, start, end);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void getDeviceCountPerUserId_whenResultIsStale_shouldServeItAndRefreshInBackground() {
+        // Given
+        final DataSet stale = DataSetUtils.getDataSet();
+        final DataSet fresh = DataSetUtils.getDataSet();
+        doReturn(stale).doReturn(fresh).when(deviceRepository).getDeviceCountPerUserId();
+        statsManager.getDeviceCountPerUserId();
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(30));
+
+        // When
+        final DataSet result = statsManager.getDeviceCountPerUserId();
+
+        // Then
+        assertThat(result).isEqualTo(stale);
+        verify(deviceRepository, timeout(5000).times(2)).getDeviceCountPerUserId();
+    }
+
+    @Test
+    public void getDeviceCountPerUserId_whenResultIsExpired_shouldComputeAgain() {
+        // Given
+        final DataSet expired = DataSetUtils.getDataSet();
+        final DataSet expected = DataSetUtils.getDataSet();
+        doReturn(expired).doReturn(expected).when(deviceRepository).getDeviceCountPerUserId();
+        statsManager.getDeviceCountPerUserId();
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(61));
+
+        // When
+        final DataSet result = statsManager.getDeviceCountPerUserId();
+
+        // Then
+        assertThat(result).isEqualTo(expected);
+        verify(deviceRepository, times(2)).getDeviceCountPerUserId();
+    }
+
+    @Test
+    public void getDeviceCountPerUserId_whenComputationFails_shouldRethrowAndNotCache() {
+        // Given
+        final IllegalStateException failure = new IllegalStateException();
+        final DataSet expected = DataSetUtils.getDataSet();
+        doThrow(failure).doReturn(expected).when(deviceRepository).getDeviceCountPerUserId();
+
+        // Then When
+        assertThatExceptionOfType(IllegalStateException.class).isThrownBy(() -> statsManager.getDeviceCountPerUserId());
+        assertThat(statsManager.getDeviceCountPerUserId()).isEqualTo(expected);
+    }
+
+    @Test
+    public void metrics_shouldExposeCacheHitsAndMisses() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        doReturn(DataSetUtils.getDataSet()).when(deviceRepository).getDevicesCountPerVersionId(userId);
+        statsManager.getDeviceCountPerVersionId(userId);
+        statsManager.getDeviceCountPerVersionId(userId);
+        statsManager.getDeviceCountPerVersionId(userId);
+
+        // When
+        final Collection<Metric<?>> metrics = statsManager.metrics();
+
+        // Then
+        assertThat(metrics)
+                .extracting(Metric::getName, metric -> metric.getValue().longValue())
+                .contains(
+                        tuple("stats.cache.hits", 2L),
+                        tuple("stats.cache.misses", 1L),
+                        tuple("stats.cache.loads", 1L)
+                );
+    }
 }
@@ -0,0 +1,349 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceFields;
+import io.barracks.deviceservice.model.StatsRollup;
+import io.barracks.deviceservice.model.StatsRollupGenerations;
+import io.barracks.deviceservice.repository.DeviceEventRepository;
+import io.barracks.deviceservice.repository.DeviceRepository;
+import io.barracks.deviceservice.repository.StatsRollupRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.util.CloseableIterator;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StatsRollupsTest {
+    private static final long HOUR = 3600000L;
+    private static final String USER_ID = "userId";
+
+    @Mock
+    private StatsRollupRepository statsRollupRepository;
+    @Mock
+    private DeviceRepository deviceRepository;
+    @Mock
+    private DeviceEventRepository deviceEventRepository;
+    @Mock
+    private Leases leases;
+    private StatsRollups statsRollups;
+
+    @Before
+    public void setUp() throws Exception {
+        statsRollups = new StatsRollups(statsRollupRepository, deviceRepository, deviceEventRepository, leases, true, 3600, 0);
+        reset(statsRollupRepository, deviceRepository, deviceEventRepository, leases);
+        doReturn(StatsRollupGenerations.builder().build()).when(statsRollupRepository).getGenerations();
+        doReturn(true).when(leases).tryAcquire(anyString());
+    }
+
+    @Test
+    public void recordLastEvents_whenDisabled_shouldNotWriteRollups() {
+        // Given
+        final StatsRollups disabled = new StatsRollups(statsRollupRepository, deviceRepository, deviceEventRepository, leases, false, 3600, 0);
+
+        // When
+        disabled.recordLastEvents(USER_ID, Collections.emptyMap(), Collections.singletonMap("unit", getEvent("v1", 10)));
+
+        // Then
+        verifyZeroInteractions(statsRollupRepository);
+    }
+
+    @Test
+    public void recordLastEvents_whenVersionAndBucketChange_shouldMoveDevice() {
+        // Given
+        final Map<String, DeviceEvent> previous = new HashMap<>();
+        previous.put("unit1", getEvent("v1", HOUR + 10));
+        previous.put("unit2", getEvent("v1", HOUR + 20));
+        final Map<String, DeviceEvent> latest = new HashMap<>();
+        latest.put("unit1", getEvent("v2", 2 * HOUR + 10));
+        latest.put("unit2", getEvent("v1", HOUR + 30));
+        latest.put("unit3", getEvent("v2", 2 * HOUR + 20));
+
+        // When
+        statsRollups.recordLastEvents(USER_ID, previous, latest);
+
+        // Then
+        assertThat(captureIncrements()).containsOnly(
+                getVersionRollup("v1", -1),
+                getVersionRollup("v2", 2),
+                getBucketRollup(HOUR, -1),
+                getBucketRollup(2 * HOUR, 2)
+        );
+    }
+
+    @Test
+    public void recordLastEvents_whenNothingMoves_shouldWriteNoIncrement() {
+        // Given
+        final Map<String, DeviceEvent> previous = Collections.singletonMap("unit", getEvent("v1", HOUR + 10));
+        final Map<String, DeviceEvent> latest = Collections.singletonMap("unit", getEvent("v1", HOUR + 20));
+
+        // When
+        statsRollups.recordLastEvents(USER_ID, previous, latest);
+
+        // Then
+        assertThat(captureIncrements()).isEmpty();
+    }
+
+    @Test
+    public void recordLastEvents_whenRebuildIsPending_shouldAlsoMoveDevicesReceivedSinceItsStart() {
+        // Given
+        doReturn(StatsRollupGenerations.builder().current(1L).pending(2L).pendingFrom(new Date(2 * HOUR)).build())
+                .when(statsRollupRepository).getGenerations();
+        final Map<String, DeviceEvent> previous = Collections.singletonMap("unit1", getEvent("v1", HOUR + 10));
+        final Map<String, DeviceEvent> latest = new HashMap<>();
+        latest.put("unit1", getEvent("v2", 2 * HOUR + 10));
+        latest.put("unit2", getEvent("v2", HOUR + 20));
+
+        // When
+        statsRollups.recordLastEvents(USER_ID, previous, latest);
+
+        // Then
+        assertThat(captureIncrements()).containsOnly(
+                getVersionRollup("v1", -1).toBuilder().generation(1L).build(),
+                getVersionRollup("v2", 2).toBuilder().generation(1L).build(),
+                getBucketRollup(2 * HOUR, 1).toBuilder().generation(1L).build(),
+                getVersionRollup("v1", -1).toBuilder().generation(2L).build(),
+                getVersionRollup("v2", 1).toBuilder().generation(2L).build(),
+                getBucketRollup(HOUR, -1).toBuilder().generation(2L).build(),
+                getBucketRollup(2 * HOUR, 1).toBuilder().generation(2L).build()
+        );
+    }
+
+    @Test
+    public void getDeviceCountPerVersionId_shouldSkipEmptyVersions() {
+        // Given
+        doReturn(StatsRollupGenerations.builder().current(3L).build()).when(statsRollupRepository).getGenerations();
+        doReturn(Arrays.asList(getVersionRollup("v1", 3), getVersionRollup("v2", 0), getVersionRollup("v3", 2)))
+                .when(statsRollupRepository).findByUserIdAndGenerationAndDimension(USER_ID, 3L, StatsRollup.VERSION_ID_DIMENSION);
+
+        // When
+        final DataSet result = statsRollups.getDeviceCountPerVersionId(USER_ID);
+
+        // Then
+        assertThat(result).isEqualTo(DataSet.builder()
+                .value("v1", BigDecimal.valueOf(3))
+                .value("v3", BigDecimal.valueOf(2))
+                .total(BigDecimal.valueOf(5))
+                .build());
+    }
+
+    @Test
+    public void getLastSeenDeviceCount_shouldSumWholeBucketsAndCountDevicesAtTheEdges() {
+        // Given
+        final OffsetDateTime start = toDateTime(HOUR + 10);
+        final OffsetDateTime end = toDateTime(4 * HOUR + 10);
+        doReturn(7L).when(statsRollupRepository).sumBucketCounts(USER_ID, null, StatsRollup.LAST_SEEN_DIMENSION, new Date(2 * HOUR), new Date(4 * HOUR));
+        doReturn(DataSet.builder().total(BigDecimal.valueOf(2)).build())
+                .when(deviceRepository).getLastSeenDeviceCount(USER_ID, start, toDateTime(2 * HOUR - 1));
+        doReturn(DataSet.builder().total(BigDecimal.valueOf(3)).build())
+                .when(deviceRepository).getLastSeenDeviceCount(USER_ID, toDateTime(4 * HOUR), end);
+
+        // When
+        final DataSet result = statsRollups.getLastSeenDeviceCount(USER_ID, start, end);
+
+        // Then
+        assertThat(result.getTotal()).isEqualTo(BigDecimal.valueOf(12));
+    }
+
+    @Test
+    public void getLastSeenDeviceCount_whenUnbounded_shouldSumAllBuckets() {
+        // Given
+        doReturn(7L).when(statsRollupRepository).sumBucketCounts(USER_ID, null, StatsRollup.LAST_SEEN_DIMENSION, null, null);
+
+        // When
+        final DataSet result = statsRollups.getLastSeenDeviceCount(USER_ID, OffsetDateTime.MIN, OffsetDateTime.MAX);
+
+        // Then
+        assertThat(result.getTotal()).isEqualTo(BigDecimal.valueOf(7));
+        verifyZeroInteractions(deviceRepository);
+    }
+
+    @Test
+    public void getLastSeenDeviceCount_whenRangeIsWithinABucket_shouldCountDevices() {
+        // Given
+        final OffsetDateTime start = toDateTime(HOUR + 10);
+        final OffsetDateTime end = toDateTime(HOUR + 20);
+        final DataSet expected = DataSet.builder().total(BigDecimal.ONE).build();
+        doReturn(expected).when(deviceRepository).getLastSeenDeviceCount(USER_ID, start, end);
+
+        // When
+        final DataSet result = statsRollups.getLastSeenDeviceCount(USER_ID, start, end);
+
+        // Then
+        assertThat(result).isEqualTo(expected);
+        verifyZeroInteractions(statsRollupRepository);
+    }
+
+    @Test
+    public void reconcile_whenLeaseIsHeldElsewhere_shouldDoNothing() {
+        // Given
+        doReturn(false).when(leases).tryAcquire(anyString());
+
+        // When
+        statsRollups.reconcile();
+
+        // Then
+        verifyZeroInteractions(statsRollupRepository, deviceRepository);
+    }
+
+    @Test
+    public void reconcile_whenNoRebuildIsPending_shouldStartGenerationAfterRemovingOldOnes() {
+        // Given
+        doReturn(StatsRollupGenerations.builder().current(1L).build()).when(statsRollupRepository).getGenerations();
+
+        // When
+        statsRollups.reconcile();
+
+        // Then
+        verify(statsRollupRepository).removeGenerations(1L);
+        verify(statsRollupRepository).startGeneration(any(Date.class));
+        verifyZeroInteractions(deviceRepository);
+        verify(leases).release(anyString());
+    }
+
+    @Test
+    public void reconcile_whenRebuildIsPending_shouldCountDevicesAsTheyWereAtItsStartThenSwap() {
+        // Given
+        doReturn(getPendingGenerations()).when(statsRollupRepository).getGenerations();
+        doReturn(true).when(statsRollupRepository).startScan(2L);
+        doReturn(getDevices(
+                Device.builder().userId("user1").unitId("unit1").lastEvent(getEvent("v1", HOUR + 10)).build(),
+                Device.builder().userId("user1").unitId("unit2").lastEvent(getEvent("v2", 11 * HOUR)).build(),
+                Device.builder().userId("user1").unitId("unit3").build(),
+                Device.builder().userId("user2").unitId("unit4").lastEvent(getEvent("v2", 10)).build()
+        )).when(deviceRepository).streamAllByUserId(any(DeviceFields.class));
+        doReturn(getEvent("v1", HOUR + 20)).when(deviceEventRepository).findLastEventBefore("user1", "unit2", new Date(10 * HOUR));
+
+        // When
+        statsRollups.reconcile();
+
+        // Then
+        verify(statsRollupRepository).incrementCounts(Arrays.asList(
+                StatsRollup.builder().userId("user1").generation(2L).dimension(StatsRollup.VERSION_ID_DIMENSION).key("v1").count(2).build(),
+                StatsRollup.builder().userId("user1").generation(2L).dimension(StatsRollup.LAST_SEEN_DIMENSION).bucket(new Date(HOUR)).count(2).build()
+        ));
+        verify(statsRollupRepository).incrementCounts(Arrays.asList(
+                StatsRollup.builder().userId("user2").generation(2L).dimension(StatsRollup.VERSION_ID_DIMENSION).key("v2").count(1).build(),
+                StatsRollup.builder().userId("user2").generation(2L).dimension(StatsRollup.LAST_SEEN_DIMENSION).bucket(new Date(0)).count(1).build()
+        ));
+        verify(statsRollupRepository).swapGeneration(2L);
+        verify(leases).release(anyString());
+    }
+
+    @Test
+    public void reconcile_whenPreviousScanDidNotComplete_shouldAbandonGeneration() {
+        // Given
+        doReturn(getPendingGenerations()).when(statsRollupRepository).getGenerations();
+        doReturn(false).when(statsRollupRepository).startScan(2L);
+
+        // When
+        statsRollups.reconcile();
+
+        // Then
+        verify(statsRollupRepository).abandonGeneration(2L);
+        verify(statsRollupRepository, never()).swapGeneration(anyLong());
+        verifyZeroInteractions(deviceRepository);
+    }
+
+    @Test
+    public void reconcile_whenLeaseIsLostDuringScan_shouldAbandonGeneration() {
+        // Given
+        doReturn(true).doReturn(false).when(leases).tryAcquire(anyString());
+        doReturn(getPendingGenerations()).when(statsRollupRepository).getGenerations();
+        doReturn(true).when(statsRollupRepository).startScan(2L);
+        doReturn(getDevices(
+                Device.builder().userId("user1").unitId("unit1").lastEvent(getEvent("v1", HOUR + 10)).build(),
+                Device.builder().userId("user2").unitId("unit2").lastEvent(getEvent("v2", 10)).build()
+        )).when(deviceRepository).streamAllByUserId(any(DeviceFields.class));
+
+        // When
+        statsRollups.reconcile();
+
+        // Then
+        verify(statsRollupRepository).abandonGeneration(2L);
+        verify(statsRollupRepository, never()).swapGeneration(anyLong());
+    }
+
+    private static StatsRollupGenerations getPendingGenerations() {
+        return StatsRollupGenerations.builder().current(1L).latest(2L).pending(2L).pendingFrom(new Date(10 * HOUR)).scanning(false).build();
+    }
+
+    private static CloseableIterator<Device> getDevices(Device... devices) {
+        final Iterator<Device> iterator = Arrays.asList(devices).iterator();
+        return new CloseableIterator<Device>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Device next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<StatsRollup> captureIncrements() {
+        final ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        verify(statsRollupRepository).incrementCounts(captor.capture());
+        return captor.getValue();
+    }
+
+    private static DeviceEvent getEvent(String versionId, long receptionTime) {
+        return DeviceEvent.builder().userId(USER_ID).versionId(versionId).receptionDate(new Date(receptionTime)).build();
+    }
+
+    private static StatsRollup getVersionRollup(String versionId, long count) {
+        return StatsRollup.builder().userId(USER_ID).dimension(StatsRollup.VERSION_ID_DIMENSION).key(versionId).count(count).build();
+    }
+
+    private static StatsRollup getBucketRollup(long bucket, long count) {
+        return StatsRollup.builder().userId(USER_ID).dimension(StatsRollup.LAST_SEEN_DIMENSION).bucket(new Date(bucket)).count(count).build();
+    }
+
+    private static OffsetDateTime toDateTime(long millis) {
+        return Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.manager;
+
+import io.barracks.deviceservice.manager.exception.InvalidStatsKeyException;
+import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.SpaceSaving;
+import io.barracks.deviceservice.model.TopValuesSketch;
+import io.barracks.deviceservice.model.TrackedKeys;
+import io.barracks.deviceservice.repository.DeviceRepository;
+import io.barracks.deviceservice.repository.TopValuesSketchRepository;
+import io.barracks.deviceservice.repository.TrackedKeysRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TopValuesTest {
+    private static final String USER_ID = "userId";
+    private static final String KEY = "customClientData.country";
+
+    @Mock
+    private TopValuesSketchRepository topValuesSketchRepository;
+    @Mock
+    private TrackedKeysRepository trackedKeysRepository;
+    @Mock
+    private DeviceRepository deviceRepository;
+    private TopValues topValues;
+
+    @Before
+    public void setUp() throws Exception {
+        topValues = new TopValues(topValuesSketchRepository, trackedKeysRepository, deviceRepository, true, 10, 30);
+        reset(topValuesSketchRepository, trackedKeysRepository, deviceRepository);
+    }
+
+    @Test
+    public void checkKey_whenKeyIsNotInCustomClientData_shouldThrowException() {
+        // Then When
+        assertThatExceptionOfType(InvalidStatsKeyException.class).isThrownBy(() -> TopValues.checkKey("versionId"));
+        assertThatExceptionOfType(InvalidStatsKeyException.class).isThrownBy(() -> TopValues.checkKey("customClientData"));
+        assertThatExceptionOfType(InvalidStatsKeyException.class).isThrownBy(() -> TopValues.checkKey("customClientData.$where"));
+    }
+
+    @Test
+    public void recordLastEvents_whenValueChanges_shouldMoveDeviceOnFlush() {
+        // Given
+        doReturn(Collections.singletonList(KEY)).when(trackedKeysRepository).getKeys(USER_ID);
+        final Map<String, DeviceEvent> previous = new HashMap<>();
+        previous.put("unit1", getEvent("FR"));
+        previous.put("unit2", getEvent("DE"));
+        final Map<String, DeviceEvent> latest = new HashMap<>();
+        latest.put("unit1", getEvent("DE"));
+        latest.put("unit2", getEvent("DE"));
+        latest.put("unit3", getEvent("DE"));
+        latest.put("unit4", getEvent(null));
+
+        // When
+        topValues.recordLastEvents(USER_ID, previous, latest);
+        topValues.flush();
+
+        // Then
+        final Map<String, Long> expected = new HashMap<>();
+        expected.put("FR", -1L);
+        expected.put("DE", 2L);
+        verify(topValuesSketchRepository).applyCounts(USER_ID, KEY, 10, expected);
+    }
+
+    @Test
+    public void recordLastEvents_whenKeyIsNotTracked_shouldNotRecordAnything() {
+        // Given
+        doReturn(Collections.emptyList()).when(trackedKeysRepository).getKeys(USER_ID);
+
+        // When
+        topValues.recordLastEvents(USER_ID, Collections.emptyMap(), Collections.singletonMap("unit", getEvent("FR")));
+        topValues.flush();
+
+        // Then
+        verifyZeroInteractions(topValuesSketchRepository);
+    }
+
+    @Test
+    public void flush_whenWriteFails_shouldRetryOnNextFlush() {
+        // Given
+        doReturn(Collections.singletonList(KEY)).when(trackedKeysRepository).getKeys(USER_ID);
+        topValues.recordLastEvents(USER_ID, Collections.emptyMap(), Collections.singletonMap("unit", getEvent("FR")));
+        doThrow(new DataAccessResourceFailureException("down")).doNothing()
+                .when(topValuesSketchRepository).applyCounts(eq(USER_ID), eq(KEY), eq(10), anyMapOf(String.class, Long.class));
+        topValues.flush();
+
+        // When
+        topValues.flush();
+
+        // Then
+        verify(topValuesSketchRepository, times(2)).applyCounts(USER_ID, KEY, 10, Collections.singletonMap("FR", 1L));
+    }
+
+    @Test
+    public void getTopValues_shouldIncludePendingMoves() {
+        // Given
+        doReturn(Collections.singletonList(KEY)).when(trackedKeysRepository).getKeys(USER_ID);
+        doReturn(TopValuesSketch.builder()
+                .userId(USER_ID)
+                .key(KEY)
+                .counters(Arrays.asList(new SpaceSaving.Counter("FR", 6, 0), new SpaceSaving.Counter("DE", 3, 0)))
+                .total(9)
+                .build()
+        ).when(topValuesSketchRepository).findByUserIdAndKey(USER_ID, KEY);
+        topValues.recordLastEvents(USER_ID, Collections.singletonMap("unit", getEvent("FR")), Collections.singletonMap("unit", getEvent("DE")));
+
+        // When
+        final DataSet result = topValues.getTopValues(USER_ID, KEY, 1);
+
+        // Then
+        assertThat(result.getValues()).containsOnly(entry("FR", BigDecimal.valueOf(5)));
+        assertThat(result.getTotal()).isEqualByComparingTo(BigDecimal.valueOf(9));
+        assertThat(result.getError()).isZero();
+    }
+
+    @Test
+    public void updateTrackedKeys_shouldSeedNewKeysFromDevices() {
+        // Given
+        final String trackedKey = "customClientData.tracked";
+        doReturn(Collections.singletonList(trackedKey)).when(trackedKeysRepository).getKeys(USER_ID);
+        doReturn(DataSet.builder().value("FR", BigDecimal.valueOf(3)).total(BigDecimal.valueOf(5)).build())
+                .when(deviceRepository).getDeviceCountPerValue(USER_ID, KEY, 10);
+        doReturn(TrackedKeys.builder().userId(USER_ID).keys(Arrays.asList(trackedKey, KEY)).build())
+                .when(trackedKeysRepository).updateKeys(USER_ID, Arrays.asList(trackedKey, KEY));
+
+        // When
+        final List<String> result = topValues.updateTrackedKeys(USER_ID, Arrays.asList(trackedKey, KEY));
+
+        // Then
+        final ArgumentCaptor<SpaceSaving> sketch = ArgumentCaptor.forClass(SpaceSaving.class);
+        verify(topValuesSketchRepository).replaceSketch(eq(USER_ID), eq(KEY), sketch.capture());
+        verify(deviceRepository, never()).getDeviceCountPerValue(eq(USER_ID), eq(trackedKey), anyInt());
+        assertThat(sketch.getValue().getCounters()).containsExactly(new SpaceSaving.Counter("FR", 3, 0));
+        assertThat(sketch.getValue().getTotal()).isEqualTo(5);
+        assertThat(result).containsExactly(trackedKey, KEY);
+    }
+
+    @Test
+    public void getValue_shouldReadNestedCustomClientData() {
+        // Given
+        final Map<String, Object> nested = Collections.singletonMap("level", 3);
+        final DeviceEvent event = DeviceEvent.builder()
+                .additionalProperties(Collections.singletonMap("battery", nested))
+                .build();
+
+        // When
+        final String result = TopValues.getValue(event, "customClientData.battery.level");
+
+        // Then
+        assertThat(result).isEqualTo("3");
+        assertThat(TopValues.getValue(event, "customClientData.battery.missing")).isNull();
+    }
+
+    private DeviceEvent getEvent(String country) {
+        final Map<String, Object> properties = new HashMap<>();
+        if (country != null) {
+            properties.put("country", country);
+        }
+        return DeviceEvent.builder()
+                .userId(USER_ID)
+                .unitId(UUID.randomUUID().toString())
+                .versionId("v1")
+                .additionalProperties(properties)
+                .build();
+    }
+}
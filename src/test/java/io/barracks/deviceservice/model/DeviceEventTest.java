@@ -31,11 +31,11 @@ import net.minidev.json.JSONObject;
 import org.junit.Test;
 
 import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
-import java.util.UUID;
+import java.util.*;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
 
 public class DeviceEventTest {
     @Test
@@ -74,4 +74,33 @@ public class DeviceEventTest {
         assertThat(event.isChanged()).isEqualTo(node.get("changed").booleanValue());
         assertThat(simpleDateFormat.format(event.getReceptionDate())).isEqualTo(node.get("receptionDate").textValue());
     }
+
+    @Test
+    public void getAdditionalProperties_shouldReturnUnmodifiableCopyOfTheGivenProperties() {
+        // Given
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("key", "value");
+        final DeviceEvent event = DeviceEvent.builder().additionalProperties(properties).build();
+        properties.put("other", "value");
+
+        // When
+        final Map<String, Object> result = event.getAdditionalProperties();
+
+        // Then
+        assertThat(result).containsOnly(entry("key", "value"));
+        assertThatThrownBy(() -> result.put("other", "value")).isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    @Test
+    public void toBuilder_shouldShareAdditionalProperties() {
+        // Given
+        final DeviceEvent event = DeviceEvent.builder().additionalProperties(Collections.singletonMap("key", "value")).build();
+
+        // When
+        final DeviceEvent result = event.toBuilder().segmentId(UUID.randomUUID().toString()).build();
+
+        // Then
+        assertThat(result.getAdditionalProperties()).isSameAs(event.getAdditionalProperties());
+        assertThat(result.getAdditionalProperties()).isEqualTo(new HashMap<>(event.getAdditionalProperties()));
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class DeviceFieldsTest {
+    @Test
+    public void parse_whenEmpty_shouldSelectWholeDevice() {
+        // When
+        final DeviceFields result = DeviceFields.parse(" , ");
+
+        // Then
+        assertThat(result).isEqualTo(DeviceFields.ALL);
+        assertThat(result.isAll()).isTrue();
+    }
+
+    @Test
+    public void parse_whenValidPaths_shouldReturnThemOnce() {
+        // When
+        final DeviceFields result = DeviceFields.parse("unitId, lastEvent.versionId,lastEvent.additionalProperties.key,unitId");
+
+        // Then
+        assertThat(result.getPaths()).containsExactly("lastEvent.additionalProperties.key", "lastEvent.versionId", "unitId");
+    }
+
+    @Test
+    public void parse_whenParentIsSelected_shouldDropChildren() {
+        // When
+        final DeviceFields result = DeviceFields.parse("lastEvent.versionId,lastEvent,unitId");
+
+        // Then
+        assertThat(result.getPaths()).containsExactly("lastEvent", "unitId");
+    }
+
+    @Test
+    public void parse_whenUnknownPath_shouldThrowException() {
+        for (String fields : Arrays.asList("unknown", "unitId.value", "lastEvent.unknown", "lastEvent.versionId.value", "lastEvent.", "configuration.id")) {
+            assertThatExceptionOfType(IllegalArgumentException.class).isThrownBy(() -> DeviceFields.parse(fields));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EventFingerprintTest {
+    @Test
+    public void of_whenSameContent_shouldReturnStableValue() {
+        // Given
+        final Map<String, Object> properties = ImmutableMap.of("key", "value", "number", 42, "nested", ImmutableMap.of("list", Arrays.asList(1, "two", 3.0)));
+
+        // When
+        final long result = EventFingerprint.of("v1", properties, "segment", "127.0.0.1");
+
+        // Then
+        assertThat(result).isEqualTo(EventFingerprint.of("v1", new HashMap<>(properties), "segment", "127.0.0.1"));
+        assertThat(result).isEqualTo(-4537147995722066988L);
+    }
+
+    @Test
+    public void of_whenPropertiesAreInAnotherOrder_shouldReturnSameValue() {
+        // Given
+        final Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("a", 1);
+        properties.put("b", "2");
+        final Map<String, Object> reversed = new LinkedHashMap<>();
+        reversed.put("b", "2");
+        reversed.put("a", 1L);
+
+        // When
+        final long result = EventFingerprint.of("v1", properties, null, null);
+
+        // Then
+        assertThat(result).isEqualTo(EventFingerprint.of("v1", reversed, null, null));
+    }
+
+    @Test
+    public void of_whenAnyFieldDiffers_shouldReturnDifferentValues() {
+        // Given
+        final Map<String, Object> properties = ImmutableMap.of("key", "value");
+        final List<Long> fingerprints = Arrays.asList(
+                EventFingerprint.of("v1", properties, "segment", "127.0.0.1"),
+                EventFingerprint.of("v2", properties, "segment", "127.0.0.1"),
+                EventFingerprint.of("v1", ImmutableMap.of("key", "other"), "segment", "127.0.0.1"),
+                EventFingerprint.of("v1", ImmutableMap.of("other", "value"), "segment", "127.0.0.1"),
+                EventFingerprint.of("v1", Collections.emptyMap(), "segment", "127.0.0.1"),
+                EventFingerprint.of("v1", properties, null, "127.0.0.1"),
+                EventFingerprint.of("v1", properties, "", "127.0.0.1"),
+                EventFingerprint.of("v1", properties, "segment", "127.0.0.2"),
+                EventFingerprint.of("v1", properties, "127.0.0.1", "segment"),
+                EventFingerprint.of("v1", ImmutableMap.of("key", 1), "segment", "127.0.0.1"),
+                EventFingerprint.of("v1", ImmutableMap.of("key", 1.0), "segment", "127.0.0.1"),
+                EventFingerprint.of("v1", ImmutableMap.of("key", "1"), "segment", "127.0.0.1"),
+                EventFingerprint.of("v1", ImmutableMap.of("key", true), "segment", "127.0.0.1"),
+                EventFingerprint.of("v1", ImmutableMap.of("key", Arrays.asList(1, 2)), "segment", "127.0.0.1"),
+                EventFingerprint.of("v1", ImmutableMap.of("key", Arrays.asList(2, 1)), "segment", "127.0.0.1")
+        );
+
+        // Then
+        assertThat(new HashSet<>(fingerprints)).hasSameSizeAs(fingerprints);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.within;
+
+public class HyperLogLogTest {
+    @Test
+    public void estimate_whenEmpty_shouldReturnZero() {
+        // When
+        final long result = HyperLogLog.empty().estimate();
+
+        // Then
+        assertThat(result).isZero();
+    }
+
+    @Test
+    public void estimate_whenSmallCardinality_shouldBeNearlyExact() {
+        // Given
+        final HyperLogLog sketch = HyperLogLog.empty();
+        for (int unitIdx = 0; unitIdx < 100; unitIdx++) {
+            sketch.add("unit" + unitIdx);
+            sketch.add("unit" + unitIdx);
+        }
+
+        // When
+        final long result = sketch.estimate();
+
+        // Then
+        assertThat((double) result).isCloseTo(100, within(2.0));
+    }
+
+    @Test
+    public void estimate_whenLargeCardinality_shouldStayWithinErrorBound() {
+        // Given
+        final HyperLogLog sketch = HyperLogLog.empty();
+        for (int unitIdx = 0; unitIdx < 200000; unitIdx++) {
+            sketch.add("unit" + unitIdx);
+        }
+
+        // When
+        final long result = sketch.estimate();
+
+        // Then
+        assertThat((double) result).isCloseTo(200000, within(200000 * 4 * HyperLogLog.getRelativeError()));
+    }
+
+    @Test
+    public void merge_shouldEstimateUnionOfSketches() {
+        // Given
+        final HyperLogLog first = HyperLogLog.empty();
+        final HyperLogLog second = HyperLogLog.empty();
+        final HyperLogLog union = HyperLogLog.empty();
+        for (int unitIdx = 0; unitIdx < 3000; unitIdx++) {
+            (unitIdx < 2000 ? first : second).add("unit" + unitIdx);
+            if (unitIdx >= 1000 && unitIdx < 2000) {
+                second.add("unit" + unitIdx);
+            }
+            union.add("unit" + unitIdx);
+        }
+
+        // When
+        first.merge(second);
+
+        // Then
+        assertThat(first).isEqualTo(union);
+    }
+
+    @Test
+    public void toBytes_whenFewRegistersAreSet_shouldUseSparseFormat() {
+        // Given
+        final HyperLogLog sketch = HyperLogLog.empty();
+        sketch.add("unit1");
+        sketch.add("unit2");
+
+        // When
+        final byte[] result = sketch.toBytes();
+
+        // Then
+        assertThat(result).hasSize(7);
+        assertThat(HyperLogLog.fromBytes(result)).isEqualTo(sketch);
+    }
+
+    @Test
+    public void toBytes_whenManyRegistersAreSet_shouldUseDenseFormat() {
+        // Given
+        final HyperLogLog sketch = HyperLogLog.empty();
+        for (int unitIdx = 0; unitIdx < 10000; unitIdx++) {
+            sketch.add("unit" + unitIdx);
+        }
+
+        // When
+        final byte[] result = sketch.toBytes();
+
+        // Then
+        assertThat(result).hasSize(4097);
+        assertThat(HyperLogLog.fromBytes(result)).isEqualTo(sketch);
+    }
+
+    @Test
+    public void fromBytes_whenFormatIsUnknown_shouldThrowException() {
+        // Then When
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> HyperLogLog.fromBytes(new byte[]{42, 0, 0}));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class PropertiesDeltaTest {
+    @Test
+    public void between_shouldKeepOnlyChangedAndRemovedKeys() {
+        // Given
+        final Map<String, Object> previous = ImmutableMap.of("country", "FR", "battery", 42, "model", "m1");
+        final Map<String, Object> current = ImmutableMap.of("country", "FR", "battery", 41, "firmware", "f2");
+
+        // When
+        final PropertiesDelta result = PropertiesDelta.between(previous, current);
+
+        // Then
+        assertThat(result.getSet()).containsOnly(entry("battery", 41), entry("firmware", "f2"));
+        assertThat(result.getUnset()).containsExactly("model");
+    }
+
+    @Test
+    public void between_whenNothingChanged_shouldBeEmpty() {
+        // Given
+        final Map<String, Object> properties = ImmutableMap.of("country", "FR");
+
+        // When
+        final PropertiesDelta result = PropertiesDelta.between(properties, properties);
+
+        // Then
+        assertThat(result).isEqualTo(new PropertiesDelta(null, null));
+        assertThat(result.getSet()).isEmpty();
+        assertThat(result.getUnset()).isEmpty();
+    }
+
+    @Test
+    public void applyTo_shouldRebuildCurrentProperties() {
+        // Given
+        final Map<String, Object> previous = ImmutableMap.of("country", "FR", "battery", 42, "model", "m1");
+        final Map<String, Object> current = ImmutableMap.of("country", "FR", "battery", 41, "firmware", "f2");
+        final Map<String, Object> properties = new HashMap<>(previous);
+
+        // When
+        PropertiesDelta.between(previous, current).applyTo(properties);
+
+        // Then
+        assertThat(properties).isEqualTo(current);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class QuantileSketchTest {
+    @Test
+    public void getQuantile_whenEmpty_shouldReturnNaN() {
+        // When
+        final double result = QuantileSketch.empty().getQuantile(0.5);
+
+        // Then
+        assertThat(result).isNaN();
+    }
+
+    @Test
+    public void getQuantile_shouldStayWithinRelativeAccuracy() {
+        // Given
+        final QuantileSketch sketch = QuantileSketch.empty();
+        for (int value = 1; value <= 10000; value++) {
+            sketch.add(value);
+        }
+
+        // When
+        final double median = sketch.getQuantile(0.5);
+        final double p99 = sketch.getQuantile(0.99);
+
+        // Then
+        assertThat(sketch.getCount()).isEqualTo(10000);
+        assertThat(median).isCloseTo(5000, within(5000 * QuantileSketch.RELATIVE_ACCURACY));
+        assertThat(p99).isCloseTo(9900, within(9900 * QuantileSketch.RELATIVE_ACCURACY));
+    }
+
+    @Test
+    public void getQuantile_whenValuesAreNegativeOrZero_shouldOrderThem() {
+        // Given
+        final QuantileSketch sketch = QuantileSketch.empty();
+        sketch.add(-100);
+        sketch.add(-1);
+        sketch.add(0);
+        sketch.add(1);
+        sketch.add(100);
+
+        // Then
+        assertThat(sketch.getQuantile(0)).isCloseTo(-100, within(100 * QuantileSketch.RELATIVE_ACCURACY));
+        assertThat(sketch.getQuantile(0.25)).isCloseTo(-1, within(QuantileSketch.RELATIVE_ACCURACY));
+        assertThat(sketch.getQuantile(0.5)).isZero();
+        assertThat(sketch.getQuantile(1)).isCloseTo(100, within(100 * QuantileSketch.RELATIVE_ACCURACY));
+    }
+
+    @Test
+    public void add_whenValueIsNotFinite_shouldIgnoreIt() {
+        // Given
+        final QuantileSketch sketch = QuantileSketch.empty();
+
+        // When
+        sketch.add(Double.NaN);
+        sketch.add(Double.POSITIVE_INFINITY);
+
+        // Then
+        assertThat(sketch.getCount()).isZero();
+    }
+
+    @Test
+    public void merge_shouldEqualSketchOfAllValues() {
+        // Given
+        final Random random = new Random(42);
+        final QuantileSketch first = QuantileSketch.empty();
+        final QuantileSketch second = QuantileSketch.empty();
+        final QuantileSketch all = QuantileSketch.empty();
+        for (int valueIdx = 0; valueIdx < 5000; valueIdx++) {
+            final double value = random.nextGaussian() * 100;
+            (valueIdx % 3 == 0 ? first : second).add(value);
+            all.add(value);
+        }
+
+        // When
+        first.merge(second);
+
+        // Then
+        assertThat(first).isEqualTo(all);
+    }
+
+    @Test
+    public void remove_whenMergedWithSketchOfValue_shouldCancelIt() {
+        // Given
+        final QuantileSketch stored = QuantileSketch.empty();
+        stored.add(42);
+        stored.add(0);
+        final QuantileSketch moved = QuantileSketch.empty();
+        moved.remove(42);
+        moved.add(43);
+
+        // When
+        stored.merge(moved);
+
+        // Then
+        assertThat(stored.getCount()).isEqualTo(2);
+        assertThat(stored.getQuantile(1)).isCloseTo(43, within(43 * QuantileSketch.RELATIVE_ACCURACY));
+    }
+}
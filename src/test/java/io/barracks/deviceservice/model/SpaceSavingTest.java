@@ -0,0 +1,112 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpaceSavingTest {
+    @Test
+    public void offer_whenNotFull_shouldCountExactly() {
+        // Given
+        final SpaceSaving sketch = new SpaceSaving(3);
+
+        // When
+        sketch.offer("a", 2);
+        sketch.offer("b", 1);
+        sketch.offer("a", 1);
+
+        // Then
+        assertThat(sketch.getCounters()).containsExactly(
+                new SpaceSaving.Counter("a", 3, 0),
+                new SpaceSaving.Counter("b", 1, 0)
+        );
+        assertThat(sketch.getTotal()).isEqualTo(4);
+        assertThat(sketch.getMinCount()).isZero();
+    }
+
+    @Test
+    public void offer_whenFull_shouldReplaceLeastFrequentValue() {
+        // Given
+        final SpaceSaving sketch = new SpaceSaving(2);
+        sketch.offer("a", 5);
+        sketch.offer("b", 2);
+
+        // When
+        sketch.offer("c", 1);
+
+        // Then
+        assertThat(sketch.getCounters()).containsExactly(
+                new SpaceSaving.Counter("a", 5, 0),
+                new SpaceSaving.Counter("c", 3, 2)
+        );
+        assertThat(sketch.getTotal()).isEqualTo(8);
+    }
+
+    @Test
+    public void offer_withDecrease_shouldRemoveValuesWithoutCount() {
+        // Given
+        final SpaceSaving sketch = new SpaceSaving(2);
+        sketch.offer("a", 2);
+        sketch.offer("b", 1);
+
+        // When
+        sketch.offer("a", -1);
+        sketch.offer("b", -1);
+        sketch.offer("c", -1);
+
+        // Then
+        assertThat(sketch.getCounters()).containsExactly(new SpaceSaving.Counter("a", 1, 0));
+        assertThat(sketch.getTotal()).isZero();
+    }
+
+    @Test
+    public void top_shouldFindHeavyHittersOfSkewedStream() {
+        // Given
+        final SpaceSaving sketch = new SpaceSaving(20);
+        for (int idx = 0; idx < 10000; idx++) {
+            sketch.offer("rare" + idx, 1);
+            if (idx % 2 == 0) {
+                sketch.offer("frequent", 1);
+            }
+            if (idx % 5 == 0) {
+                sketch.offer("common", 1);
+            }
+        }
+
+        // When
+        final List<SpaceSaving.Counter> result = sketch.top(2);
+
+        // Then
+        assertThat(result).extracting(SpaceSaving.Counter::getValue).isEqualTo(Arrays.asList("frequent", "common"));
+        assertThat(result.get(0).getCount() - result.get(0).getError()).isLessThanOrEqualTo(5000);
+        assertThat(result.get(0).getCount()).isGreaterThanOrEqualTo(5000);
+        assertThat(result.get(0).getError()).isLessThanOrEqualTo(sketch.getMinCount());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model.operator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import io.barracks.commons.test.JsonResourceLoader;
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.operator.comparison.ComparisonOperator;
+import io.barracks.deviceservice.model.operator.comparison.ComparisonOperatorType;
+import io.barracks.deviceservice.model.operator.logical.AndOperator;
+import io.barracks.deviceservice.model.operator.logical.OrOperator;
+import net.minidev.json.JSONObject;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class CompiledOperatorTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void matches_shouldBehaveLikeSourceOperatorForAllComparisons() {
+        // Given
+        final JsonNode device = getDevice();
+        final String[] keys = {"unitId", "versionId", "customClientData.string", "customClientData.int", "customClientData.double", "customClientData.bool", "customClientData.missing", "customClientData.object.nested"};
+        final Object[] values = {"unit", "v1", "value", "valu.*", "[", 42, 43, 41L, 1.5, true, null, Arrays.asList("unit", 42, "v1"), Collections.singletonList("nothing"), "nested"};
+        final List<String> mismatches = new ArrayList<>();
+
+        // When
+        for (ComparisonOperatorType type : ComparisonOperatorType.values()) {
+            for (String key : keys) {
+                for (Object value : values) {
+                    final ComparisonOperator operator = ComparisonOperator.from(type.getName(), key, value);
+                    if (operator.matches(device) != CompiledOperator.compile(operator).matches(device)) {
+                        mismatches.add(operator.toString());
+                    }
+                }
+            }
+        }
+
+        // Then
+        assertThat(mismatches).isEmpty();
+    }
+
+    @Test
+    public void matches_withLogicalOperators_shouldBehaveLikeSourceOperator() {
+        // Given
+        final JsonNode device = getDevice();
+        final Operator matching = ComparisonOperator.from("eq", "unitId", "unit");
+        final Operator notMatching = ComparisonOperator.from("eq", "unitId", "other");
+        final Operator[] operators = {
+                new AndOperator(Arrays.asList(matching, matching)),
+                new AndOperator(Arrays.asList(matching, notMatching)),
+                new OrOperator(Arrays.asList(notMatching, matching)),
+                new OrOperator(Arrays.asList(notMatching, notMatching)),
+                new OrOperator(Collections.singletonList(new AndOperator(Arrays.asList(matching, matching)))),
+                new AndOperator(Collections.emptyList()),
+                new OrOperator(Collections.emptyList())
+        };
+
+        // Then
+        for (Operator operator : operators) {
+            assertThat(CompiledOperator.compile(operator).matches(device)).as(operator.toString()).isEqualTo(operator.matches(device));
+        }
+    }
+
+    @Test
+    public void matches_withUnknownOperator_shouldDelegateToOperator() {
+        // Given
+        final DeviceView device = DeviceView.of(getDevice());
+        final Operator operator = mock(Operator.class);
+        doReturn(true).when(operator).matches(device);
+
+        // When
+        final boolean result = CompiledOperator.compile(operator).matches(device);
+
+        // Then
+        verify(operator).matches(device);
+        assertThat(result).isTrue();
+    }
+
+    @Test
+    public void compile_shouldNotEvaluateSourceOperatorWhenMatching() {
+        // Given
+        final JsonNode device = getDevice();
+        final ComparisonOperator operator = spy(ComparisonOperator.from("regex", "customClientData.string", "val.*"));
+        final CompiledOperator compiled = CompiledOperator.compile(new AndOperator(Collections.singletonList(operator)));
+        reset(operator);
+
+        // When
+        final boolean result = compiled.matches(device);
+
+        // Then
+        verifyZeroInteractions(operator);
+        assertThat(result).isTrue();
+    }
+
+    @Test
+    public void compile_whenAlreadyCompiled_shouldReturnSameInstance() {
+        // Given
+        final CompiledOperator compiled = CompiledOperator.compile(ComparisonOperator.from("eq", "unitId", "unit"));
+
+        // When
+        final CompiledOperator result = CompiledOperator.compile(compiled);
+
+        // Then
+        assertThat(result).isSameAs(compiled);
+    }
+
+    @Test
+    public void equals_shouldCompareSourceOperators() {
+        // Given
+        final Operator source = ComparisonOperator.from("eq", "unitId", "unit");
+
+        // Then
+        assertThat(CompiledOperator.compile(source)).isEqualTo(CompiledOperator.compile(ComparisonOperator.from("eq", "unitId", "unit")));
+        assertThat(CompiledOperator.compile(source).hashCode()).isEqualTo(source.hashCode());
+        assertThat(CompiledOperator.compile(source)).isNotEqualTo(CompiledOperator.compile(ComparisonOperator.from("eq", "unitId", "other")));
+        assertThat(CompiledOperator.compile(source).getSource()).isSameAs(source);
+    }
+
+    @Test
+    public void serialize_shouldWriteSourceOperator() throws Exception {
+        // Given
+        final JSONObject json = JsonResourceLoader.getJsonFromResource(OperatorTest.class, "query");
+        final JsonNode expected = objectMapper.readTree(json.toJSONString());
+        final Operator query = objectMapper.readValue(json.toJSONString(), Operator.class);
+
+        // When
+        final JsonNode result = objectMapper.valueToTree(CompiledOperator.compile(query));
+
+        // Then
+        assertThat(result).isEqualTo(expected);
+    }
+
+    private JsonNode getDevice() {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("string", "value");
+        properties.put("int", 42);
+        properties.put("double", 1.5);
+        properties.put("bool", true);
+        properties.put("object", ImmutableMap.of("nested", "nested"));
+        return objectMapper.valueToTree(Device.builder()
+                .userId("user")
+                .unitId("unit")
+                .lastEvent(DeviceEvent.builder()
+                        .unitId("unit")
+                        .versionId("v1")
+                        .receptionDate(new Date(1234567890L))
+                        .additionalProperties(properties)
+                        .build())
+                .build());
+    }
+}
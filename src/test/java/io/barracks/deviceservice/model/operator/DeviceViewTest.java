@@ -0,0 +1,163 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.model.operator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableMap;
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceComponentRequest;
+import io.barracks.deviceservice.model.DeviceConfiguration;
+import io.barracks.deviceservice.model.DeviceEvent;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class DeviceViewTest {
+    private static final String[][] PATHS = {
+            {"userId"},
+            {"unitId"},
+            {"firstSeen"},
+            {"configuration"},
+            {"lastEvent"},
+            {"lastEvent", "versionId"},
+            {"lastEvent", "receptionDate"},
+            {"lastEvent", "segmentId"},
+            {"lastEvent", "additionalProperties"},
+            {"lastEvent", "additionalProperties", "string"},
+            {"lastEvent", "additionalProperties", "int"},
+            {"lastEvent", "additionalProperties", "long"},
+            {"lastEvent", "additionalProperties", "double"},
+            {"lastEvent", "additionalProperties", "decimal"},
+            {"lastEvent", "additionalProperties", "bool"},
+            {"lastEvent", "additionalProperties", "null"},
+            {"lastEvent", "additionalProperties", "list"},
+            {"lastEvent", "additionalProperties", "object"},
+            {"lastEvent", "additionalProperties", "object", "nested"},
+            {"lastEvent", "additionalProperties", "object", "nested", "deeper"},
+            {"lastEvent", "additionalProperties", "string", "nested"},
+            {"lastEvent", "additionalProperties", "list", "0"},
+            {"lastEvent", "additionalProperties", "missing"},
+            {"lastEvent", "versionId", "nested"},
+            {"whatever", "you", "want"}
+    };
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void of_withDevice_shouldReturnSameValuesAsJsonTree() {
+        // Given
+        final Device device = Device.builder()
+                .userId(UUID.randomUUID().toString())
+                .unitId(UUID.randomUUID().toString())
+                .firstSeen(new Date(1234567890L))
+                .configuration(DeviceConfiguration.builder().build())
+                .lastEvent(DeviceEvent.builder()
+                        .id(UUID.randomUUID().toString())
+                        .versionId(UUID.randomUUID().toString())
+                        .segmentId(UUID.randomUUID().toString())
+                        .receptionDate(new Date(2234567891L))
+                        .additionalProperties(getAdditionalProperties())
+                        .build())
+                .build();
+
+        // Then
+        assertSameValues(DeviceView.of(device), DeviceView.of(objectMapper.<ObjectNode>valueToTree(device)));
+    }
+
+    @Test
+    public void of_withDeviceWithoutEvent_shouldReturnSameValuesAsJsonTree() {
+        // Given
+        final Device device = Device.builder()
+                .userId(UUID.randomUUID().toString())
+                .unitId(UUID.randomUUID().toString())
+                .build();
+
+        // Then
+        assertSameValues(DeviceView.of(device), DeviceView.of(objectMapper.<ObjectNode>valueToTree(device)));
+    }
+
+    @Test
+    public void of_withComponentRequest_shouldReturnSameValuesAsJsonTree() {
+        // Given
+        final DeviceComponentRequest request = DeviceComponentRequest.builder()
+                .userId(UUID.randomUUID().toString())
+                .unitId(UUID.randomUUID().toString())
+                .additionalProperties(getAdditionalProperties())
+                .build();
+        final ObjectNode json = objectMapper.createObjectNode();
+        json.put("userId", request.getUserId());
+        json.put("unitId", request.getUnitId());
+        json.set("lastEvent", objectMapper.valueToTree(request));
+
+        // Then
+        assertSameValues(DeviceView.of(request, () -> json), DeviceView.of(json));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void get_withKnownPaths_shouldNotBuildJsonTree() {
+        // Given
+        final DeviceComponentRequest request = DeviceComponentRequest.builder()
+                .userId(UUID.randomUUID().toString())
+                .unitId(UUID.randomUUID().toString())
+                .additionalProperties(getAdditionalProperties())
+                .build();
+        final Supplier<ObjectNode> json = mock(Supplier.class);
+        final DeviceView view = DeviceView.of(request, (Supplier) json);
+
+        // When
+        view.get(new String[]{"unitId"});
+        view.get(new String[]{"lastEvent", "versionId"});
+        view.get(new String[]{"lastEvent", "additionalProperties", "string"});
+
+        // Then
+        verifyZeroInteractions(json);
+    }
+
+    private void assertSameValues(DeviceView view, DeviceView expected) {
+        for (String[] path : PATHS) {
+            assertThat(view.get(path)).as(String.join(".", path)).isEqualTo(expected.get(path));
+        }
+    }
+
+    private Map<String, Object> getAdditionalProperties() {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put("string", "value");
+        properties.put("int", 42);
+        properties.put("long", 1L << 40);
+        properties.put("double", 1.5);
+        properties.put("decimal", new BigDecimal("1.25"));
+        properties.put("bool", true);
+        properties.put("null", null);
+        properties.put("list", Arrays.asList(1, "two", Collections.singletonMap("three", 3)));
+        properties.put("object", ImmutableMap.of("nested", ImmutableMap.of("deeper", 42L)));
+        return properties;
+    }
+}
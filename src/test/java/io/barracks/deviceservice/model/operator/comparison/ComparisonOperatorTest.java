@@ -725,7 +725,7 @@ public class ComparisonOperatorTest {
 
         for (int i = 0; i < keys.length; i++) {
             final ComparisonOperator operator = mock(ComparisonOperator.class);
-            when(operator.matches(any())).thenCallRealMethod();
+            when(operator.matches(any(JsonNode.class))).thenCallRealMethod();
             doReturn(keys[i]).when(operator).prepareKey();
             final Object expectedParsing = OperatorDeserializer.parseValue(expectedToParse[i]);
             doReturn(true).when(operator).compare(expectedParsing);
@@ -0,0 +1,325 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.commons.test.MongoRepositoryTest;
+import io.barracks.deviceservice.model.CursorPage;
+import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceEventBucket;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class DeviceEventRepositoryBucketsTest extends MongoRepositoryTest {
+    private static final int MAX_EVENTS = 3;
+    private DeviceEventRepositoryImpl deviceRepository;
+    private EventBuckets eventBuckets;
+    private MongoTemplate mongoTemplate;
+
+    public DeviceEventRepositoryBucketsTest() {
+        super(DeviceEventBucket.class.getDeclaredAnnotation(Document.class).collection());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mongoTemplate = new MongoTemplate(getMongo(), getDatabaseName());
+        eventBuckets = new EventBuckets(mongoTemplate, true, false, 86400, MAX_EVENTS, 3600);
+        deviceRepository = new DeviceEventRepositoryImpl(mongoTemplate, eventBuckets);
+    }
+
+    @Test
+    public void insertDeviceEvent_whenBucketIsFull_shouldStartAnotherOne() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final List<DeviceEvent> expected = new ArrayList<>();
+
+        // When
+        for (int eventIdx = 0; eventIdx < MAX_EVENTS + 1; eventIdx++) {
+            expected.add(0, deviceRepository.insertDeviceEvent(getEvent(userId, unitId, new Date(1000000000L + eventIdx * 1000L), true)));
+        }
+
+        // Then
+        assertThat(expected).allMatch(event -> event.getId() != null);
+        assertThat(mongoTemplate.find(query(where("userId").is(userId)), DeviceEventBucket.class)).hasSize(2);
+        assertThat(deviceRepository.findByUserIdAndUnitId(userId, unitId, false, new PageRequest(0, 10)).getContent())
+                .containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void findByUserIdAndUnitId_whenOnlyChanged_shouldReturnOnlyChangedNewestFirst() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final List<DeviceEvent> expected = new ArrayList<>();
+        for (int eventIdx = 0; eventIdx < 6; eventIdx++) {
+            final DeviceEvent event = deviceRepository.insertDeviceEvent(getEvent(userId, unitId, new Date(1000000000L + eventIdx * 100000000L), eventIdx % 2 == 0));
+            if (event.isChanged()) {
+                expected.add(0, event);
+            }
+        }
+
+        // When
+        final Page<DeviceEvent> result = deviceRepository.findByUserIdAndUnitId(userId, unitId, true, new PageRequest(0, 10));
+
+        // Then
+        assertThat(result.getContent()).containsExactlyElementsOf(expected);
+        assertThat(result.getTotalElements()).isEqualTo(3);
+    }
+
+    @Test
+    public void findByUserIdAndUnitId_whenWalkingWithCursor_shouldReturnEventsNewestFirst() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final List<DeviceEvent> expected = new ArrayList<>();
+        for (int eventIdx = 0; eventIdx < 7; eventIdx++) {
+            expected.add(0, deviceRepository.insertDeviceEvent(getEvent(userId, unitId, new Date(1000000000L + eventIdx * 50000000L), true)));
+        }
+        final List<DeviceEvent> result = new ArrayList<>();
+
+        // When
+        String cursor = null;
+        do {
+            final CursorPage<DeviceEvent> page = deviceRepository.findByUserIdAndUnitId(userId, unitId, false, cursor, 2);
+            result.addAll(page.getContent());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        // Then
+        assertThat(result).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void foldHeartbeat_whenPingsAreConcurrent_shouldAppendTheRecordOnce() throws Exception {
+        // Given
+        final DeviceEvent heartbeat = getHeartbeat(new Date(1234567890L));
+        final int pings = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(pings);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<DeviceEvent>> folds = new ArrayList<>();
+
+        // When
+        for (int pingIdx = 0; pingIdx < pings; pingIdx++) {
+            folds.add(executor.submit(() -> {
+                start.await();
+                return deviceRepository.foldHeartbeat(heartbeat);
+            }));
+        }
+        start.countDown();
+        for (Future<DeviceEvent> fold : folds) {
+            fold.get();
+        }
+        executor.shutdown();
+
+        // Then
+        assertThat(deviceRepository.findByUserIdAndUnitId(heartbeat.getUserId(), heartbeat.getUnitId(), false, new PageRequest(0, 10)).getContent())
+                .containsExactly(heartbeat.toBuilder().count(pings).build());
+        assertThat(eventBuckets.countEvents(heartbeat.getUserId(), heartbeat.getUnitId(), false)).isEqualTo(1);
+    }
+
+    @Test
+    public void insertDeviceEvents_whenHeartbeats_shouldFoldThemIntoTheirBucket() {
+        // Given
+        final DeviceEvent heartbeat = getHeartbeat(new Date(1234567890L));
+        final DeviceEvent event = getEvent(heartbeat.getUserId(), heartbeat.getUnitId(), new Date(1234567990L), true);
+        final DeviceEvent folded = heartbeat.toBuilder()
+                .receptionDate(new Date(1234567990L))
+                .lastReceptionDate(new Date(1234567990L))
+                .count(3)
+                .build();
+        deviceRepository.foldHeartbeat(heartbeat);
+
+        // When
+        final Map<Integer, String> result = deviceRepository.insertDeviceEvents(Arrays.asList(folded, event));
+
+        // Then
+        assertThat(result).isEmpty();
+        assertThat(deviceRepository.findByUserIdAndUnitId(heartbeat.getUserId(), heartbeat.getUnitId(), false, new PageRequest(0, 10)).getContent())
+                .containsExactly(event, heartbeat.toBuilder().lastReceptionDate(folded.getLastReceptionDate()).count(4).build());
+    }
+
+    @Test
+    public void getSeenDeviceCount_shouldCountEachUnitSeenWithinBoundariesOnce() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        deviceRepository.insertDeviceEvent(getEvent(userId, unitId, new Date(1000000000L), true));
+        deviceRepository.insertDeviceEvent(getEvent(userId, unitId, new Date(1000001000L), true));
+        deviceRepository.insertDeviceEvent(getEvent(userId, UUID.randomUUID().toString(), new Date(1000002000L), true));
+        deviceRepository.insertDeviceEvent(getEvent(userId, UUID.randomUUID().toString(), new Date(3000000000L), true));
+
+        // When
+        final DataSet result = deviceRepository.getSeenDeviceCount(
+                userId,
+                OffsetDateTime.ofInstant(new Date(900000000L).toInstant(), ZoneOffset.UTC),
+                OffsetDateTime.ofInstant(new Date(2000000000L).toInstant(), ZoneOffset.UTC)
+        );
+
+        // Then
+        assertThat(result.getTotal()).isEqualByComparingTo("2");
+    }
+
+    @Test
+    public void deleteEventsReceivedBefore_shouldOnlyDeleteExpiredEventsAndEmptyBuckets() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final Date before = new Date(2000000000L);
+        deviceRepository.insertDeviceEvent(getEvent(userId, unitId, new Date(1000000000L), false));
+        final DeviceEvent lastUnchanged = deviceRepository.insertDeviceEvent(getEvent(userId, unitId, new Date(1000000500L), false));
+        final DeviceEvent changed = deviceRepository.insertDeviceEvent(getEvent(userId, unitId, new Date(1000001000L), true));
+        final String emptiedUnitId = UUID.randomUUID().toString();
+        deviceRepository.insertDeviceEvent(getEvent(userId, emptiedUnitId, new Date(1000000000L), false));
+        final DeviceEvent recent = deviceRepository.insertDeviceEvent(getEvent(userId, emptiedUnitId, new Date(3000000000L), false));
+
+        // When
+        final CursorPage<String> result = deviceRepository.deleteEventsReceivedBefore(userId, false, before, null, 10);
+
+        // Then
+        assertThat(result.getContent()).hasSize(2);
+        assertThat(deviceRepository.findByUserIdAndUnitId(userId, unitId, false, new PageRequest(0, 10)).getContent()).containsExactly(changed, lastUnchanged);
+        assertThat(deviceRepository.findByUserIdAndUnitId(userId, emptiedUnitId, false, new PageRequest(0, 10)).getContent()).containsExactly(recent);
+        assertThat(mongoTemplate.find(query(where("userId").is(userId).and("unitId").is(emptiedUnitId)), DeviceEventBucket.class)).hasSize(1);
+    }
+
+    @Test
+    public void deleteEventsReceivedBefore_whenEventsStartAChainOfDifferences_shouldKeepLaterEventsReadable() {
+        // Given
+        final PropertyDeltas propertyDeltas = new PropertyDeltas(true, 10);
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final List<Map<String, Object>> expected = new ArrayList<>();
+        DeviceEvent previous = null;
+        for (int eventIdx = 0; eventIdx < 5; eventIdx++) {
+            final Map<String, Object> properties = new HashMap<>();
+            properties.put("country", eventIdx == 0 ? "DE" : "FR");
+            properties.put("battery", 50 - eventIdx);
+            previous = deviceRepository.insertDeviceEvent(propertyDeltas.encode(DeviceEvent.builder()
+                    .userId(userId)
+                    .unitId(unitId)
+                    .versionId("v1")
+                    .receptionDate(new Date(1000000000L + eventIdx * 1000L))
+                    .additionalProperties(properties)
+                    .changed(true)
+                    .build(), previous));
+            expected.add(0, properties);
+        }
+
+        // When
+        final CursorPage<String> deleted = deviceRepository.deleteEventsReceivedBefore(userId, true, new Date(1000002000L), null, 10);
+        final CursorPage<DeviceEvent> result = deviceRepository.findByUserIdAndUnitId(userId, unitId, false, null, 10);
+
+        // Then
+        assertThat(deleted.getContent()).hasSize(2);
+        assertThat(result.getContent()).extracting(DeviceEvent::getAdditionalProperties).containsExactlyElementsOf(expected.subList(0, 3));
+    }
+
+    @Test
+    public void migrate_shouldCopyEventsIntoBuckets() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final List<DeviceEvent> expected = new ArrayList<>();
+        for (int eventIdx = 0; eventIdx < MAX_EVENTS * 2; eventIdx++) {
+            final DeviceEvent event = getEvent(userId, unitId, new Date(1000000000L + eventIdx * 1000L), eventIdx % 2 == 0);
+            mongoTemplate.insert(event);
+            expected.add(0, event);
+        }
+
+        // When
+        eventBuckets.migrate();
+        eventBuckets.migrate();
+
+        // Then
+        assertThat(mongoTemplate.find(query(where("userId").is(userId)), DeviceEventBucket.class)).hasSize(2);
+        assertThat(deviceRepository.findByUserIdAndUnitId(userId, unitId, false, new PageRequest(0, 10)).getContent())
+                .containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void migrate_whenEventsAreWrittenToBothLayouts_shouldMergeThemOnce() {
+        // Given
+        final DeviceEventRepositoryImpl documentRepository = new DeviceEventRepositoryImpl(mongoTemplate, new EventBuckets(mongoTemplate, false, false, 86400, MAX_EVENTS, 3600));
+        final DeviceEventRepositoryImpl dualWriteRepository = new DeviceEventRepositoryImpl(mongoTemplate, new EventBuckets(mongoTemplate, false, true, 86400, MAX_EVENTS, 3600));
+        final DeviceEvent heartbeat = getHeartbeat(new Date(1000000000L));
+        final String userId = heartbeat.getUserId();
+        final String unitId = heartbeat.getUnitId();
+        final DeviceEvent before = documentRepository.insertDeviceEvent(getEvent(userId, unitId, new Date(1000001000L), true));
+        documentRepository.foldHeartbeat(heartbeat);
+        final DeviceEvent after = dualWriteRepository.insertDeviceEvent(getEvent(userId, unitId, new Date(1000002000L), true));
+        dualWriteRepository.foldHeartbeat(heartbeat);
+        dualWriteRepository.foldHeartbeat(heartbeat);
+
+        // When
+        eventBuckets.migrate();
+        eventBuckets.migrate();
+
+        // Then
+        assertThat(deviceRepository.findByUserIdAndUnitId(userId, unitId, false, new PageRequest(0, 10)).getContent())
+                .containsExactly(after, before, heartbeat.toBuilder().count(3).build());
+        assertThat(eventBuckets.countEvents(userId, unitId, false)).isEqualTo(3);
+    }
+
+    private DeviceEvent getEvent(String userId, String unitId, Date receptionDate, boolean changed) {
+        return DeviceEvent.builder()
+                .id(new ObjectId().toString())
+                .userId(userId)
+                .unitId(unitId)
+                .versionId(UUID.randomUUID().toString())
+                .receptionDate(receptionDate)
+                .changed(changed)
+                .build();
+    }
+
+    private DeviceEvent getHeartbeat(Date receptionDate) {
+        return DeviceEvent.builder()
+                .id(new ObjectId().toString() + ":" + receptionDate.getTime())
+                .userId(UUID.randomUUID().toString())
+                .unitId(UUID.randomUUID().toString())
+                .versionId(UUID.randomUUID().toString())
+                .receptionDate(receptionDate)
+                .fingerprint(42L)
+                .changed(false)
+                .lastReceptionDate(receptionDate)
+                .count(1)
+                .build();
+    }
+}
@@ -61,7 +61,7 @@ public class DeviceEventRepositoryStatsTest extends MongoRepositoryTest {
     public void setUp() throws Exception {
         super.setUp();
         mongoTemplate = new MongoTemplate(getMongo(), getDatabaseName());
-        deviceRepository = spy(new DeviceRepositoryImpl(mongoTemplate));
+        deviceRepository = spy(new DeviceRepositoryImpl(mongoTemplate, new PageCounter(mongoTemplate, 100, 10, 100)));
     }
 
     @Test
@@ -24,9 +24,14 @@
 
 package io.barracks.deviceservice.repository;
 
+import com.mongodb.BasicDBObject;
 import io.barracks.commons.test.MongoRepositoryTest;
+import io.barracks.deviceservice.model.CursorPage;
+import io.barracks.deviceservice.model.DataSet;
 import io.barracks.deviceservice.model.DeviceEvent;
 import io.barracks.deviceservice.model.DeviceEventDocument;
+import io.barracks.deviceservice.repository.exception.InvalidCursorException;
+import org.bson.types.ObjectId;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.data.domain.Page;
@@ -35,12 +40,13 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.mapping.Document;
 
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.UUID;
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 
 public class DeviceEventRepositoryTest extends MongoRepositoryTest {
     private DeviceEventRepositoryImpl deviceRepository;
@@ -54,7 +60,7 @@ public class DeviceEventRepositoryTest extends MongoRepositoryTest {
     public void setUp() throws Exception {
         super.setUp();
         mongoTemplate = new MongoTemplate(getMongo(), getDatabaseName());
-        deviceRepository = new DeviceEventRepositoryImpl(mongoTemplate);
+        deviceRepository = new DeviceEventRepositoryImpl(mongoTemplate, new EventBuckets(mongoTemplate, false, false, 86400, 200, 3600));
     }
 
     @Test
@@ -89,6 +95,389 @@ public class DeviceEventRepositoryTest extends MongoRepositoryTest {
         assertThat(result.getContent()).containsExactlyElementsOf(expected);
     }
 
+    @Test
+    public void findByUserIdAndUnitId_whenWalkingWithCursor_shouldReturnEventsNewestFirst() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final List<DeviceEvent> expected = new ArrayList<>();
+        for (int eventIdx = 0; eventIdx < 5; eventIdx++) {
+            final DeviceEvent event = DeviceEvent.builder()
+                    .userId(userId)
+                    .unitId(unitId)
+                    .versionId(UUID.randomUUID().toString())
+                    .receptionDate(new Date(1234567890L + eventIdx * 1000L))
+                    .changed(true)
+                    .build();
+            mongoTemplate.insert(event);
+            expected.add(0, event);
+        }
+        final List<DeviceEvent> result = new ArrayList<>();
+
+        // When
+        String cursor = null;
+        do {
+            final CursorPage<DeviceEvent> page = deviceRepository.findByUserIdAndUnitId(userId, unitId, false, cursor, 2);
+            result.addAll(page.getContent());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        // Then
+        assertThat(result).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void findLastEventBefore_shouldReturnLastEventReceivedBeforeDate() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final List<DeviceEvent> events = new ArrayList<>();
+        for (int eventIdx = 0; eventIdx < 3; eventIdx++) {
+            final DeviceEvent event = DeviceEvent.builder()
+                    .userId(userId)
+                    .unitId(unitId)
+                    .versionId(UUID.randomUUID().toString())
+                    .receptionDate(new Date(1234567890L + eventIdx * 1000L))
+                    .changed(true)
+                    .build();
+            mongoTemplate.insert(event);
+            events.add(event);
+        }
+
+        // When
+        final DeviceEvent result = deviceRepository.findLastEventBefore(userId, unitId, new Date(1234567890L + 2000L));
+        final DeviceEvent none = deviceRepository.findLastEventBefore(userId, unitId, new Date(1234567890L));
+
+        // Then
+        assertThat(result).isEqualTo(events.get(1));
+        assertThat(none).isNull();
+    }
+
+    @Test
+    public void findByUserIdAndUnitId_whenCursorIsNotADate_shouldThrowException() {
+        // Given
+        final String cursor = PageCursors.encode("event", "notADate");
+
+        // Then When
+        assertThatExceptionOfType(InvalidCursorException.class).isThrownBy(
+                () -> deviceRepository.findByUserIdAndUnitId(UUID.randomUUID().toString(), UUID.randomUUID().toString(), false, cursor, 2)
+        );
+    }
+
+    @Test
+    public void findByUserIdAndUnitId_whenPropertiesAreDeltaEncoded_shouldRestoreFullProperties() {
+        // Given
+        final PropertyDeltas propertyDeltas = new PropertyDeltas(true, 3);
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final List<DeviceEvent> expected = new ArrayList<>();
+        DeviceEvent previous = null;
+        for (int eventIdx = 0; eventIdx < 5; eventIdx++) {
+            final Map<String, Object> properties = new HashMap<>();
+            properties.put("country", "FR");
+            properties.put("battery", 50 - eventIdx);
+            previous = deviceRepository.insertDeviceEvent(propertyDeltas.encode(DeviceEvent.builder()
+                    .userId(userId)
+                    .unitId(unitId)
+                    .versionId("v1")
+                    .receptionDate(new Date(1234567890L + eventIdx * 1000L))
+                    .additionalProperties(properties)
+                    .changed(true)
+                    .build(), previous));
+            expected.add(0, previous);
+        }
+
+        // When
+        final CursorPage<DeviceEvent> result = deviceRepository.findByUserIdAndUnitId(userId, unitId, false, null, 2);
+
+        // Then
+        assertThat(result.getContent()).containsExactlyElementsOf(expected.subList(0, 2));
+        assertThat(mongoTemplate.getCollection(mongoTemplate.getCollectionName(DeviceEvent.class)).findOne(new BasicDBObject("_id", new ObjectId(expected.get(0).getId())))
+                .containsField("additionalProperties")).isFalse();
+    }
+
+    @Test
+    public void getSeenDeviceCount_shouldCountEachUnitSeenWithinBoundariesOnce() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final OffsetDateTime start = new Date(1234567890000L).toInstant().atOffset(ZoneOffset.UTC);
+        final OffsetDateTime end = start.plusHours(1);
+        for (int unitIdx = 0; unitIdx < 3; unitIdx++) {
+            final String unitId = UUID.randomUUID().toString();
+            for (int eventIdx = 0; eventIdx < 2; eventIdx++) {
+                mongoTemplate.insert(DeviceEvent.builder()
+                        .userId(userId)
+                        .unitId(unitId)
+                        .versionId(UUID.randomUUID().toString())
+                        .receptionDate(Date.from(start.plusMinutes(unitIdx * 10 + eventIdx).toInstant()))
+                        .build());
+            }
+        }
+        mongoTemplate.insert(DeviceEvent.builder()
+                .userId(userId)
+                .unitId(UUID.randomUUID().toString())
+                .versionId(UUID.randomUUID().toString())
+                .receptionDate(Date.from(end.plusMinutes(1).toInstant()))
+                .build());
+        mongoTemplate.insert(DeviceEvent.builder()
+                .userId(UUID.randomUUID().toString())
+                .unitId(UUID.randomUUID().toString())
+                .versionId(UUID.randomUUID().toString())
+                .receptionDate(Date.from(start.plusMinutes(1).toInstant()))
+                .build());
+
+        // When
+        final DataSet result = deviceRepository.getSeenDeviceCount(userId, start, end);
+
+        // Then
+        assertThat(result.getTotal()).isEqualByComparingTo(BigDecimal.valueOf(3));
+    }
+
+    @Test
+    public void getSeenDeviceCount_whenNoEventMatches_shouldReturnZero() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final OffsetDateTime start = new Date(1234567890000L).toInstant().atOffset(ZoneOffset.UTC);
+        final OffsetDateTime end = start.plusHours(1);
+
+        // When
+        final DataSet result = deviceRepository.getSeenDeviceCount(userId, start, end);
+
+        // Then
+        assertThat(result.getTotal()).isEqualByComparingTo(BigDecimal.ZERO);
+    }
+
+    @Test
+    public void insertDeviceEvents_shouldInsertAllEvents() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final DeviceEvent event = DeviceEvent.builder()
+                .id(UUID.randomUUID().toString())
+                .userId(userId)
+                .unitId(unitId)
+                .versionId(UUID.randomUUID().toString())
+                .receptionDate(new Date(1234567890L))
+                .changed(true)
+                .build();
+        final DeviceEvent other = event.toBuilder()
+                .id(UUID.randomUUID().toString())
+                .receptionDate(new Date(2234567890L))
+                .build();
+
+        // When
+        final Map<Integer, String> result = deviceRepository.insertDeviceEvents(Arrays.asList(event, other));
+
+        // Then
+        assertThat(result).isEmpty();
+        assertThat(deviceRepository.findByUserIdAndUnitId(userId, unitId, false, new PageRequest(0, 10)).getContent())
+                .containsOnly(event, other);
+    }
+
+    @Test
+    public void foldHeartbeat_whenRecordDoesNotExist_shouldCreateIt() {
+        // Given
+        final DeviceEvent heartbeat = getHeartbeat(new Date(1234567890L));
+
+        // When
+        final DeviceEvent result = deviceRepository.foldHeartbeat(heartbeat);
+
+        // Then
+        assertThat(result).isEqualTo(heartbeat);
+        assertThat(deviceRepository.findByUserIdAndUnitId(heartbeat.getUserId(), heartbeat.getUnitId(), false, new PageRequest(0, 10)).getContent())
+                .containsExactly(heartbeat);
+    }
+
+    @Test
+    public void foldHeartbeat_whenRecordExists_shouldKeepFirstReceptionAndCountPings() {
+        // Given
+        final DeviceEvent first = getHeartbeat(new Date(1234567890L));
+        final DeviceEvent second = first.toBuilder()
+                .receptionDate(new Date(1234567990L))
+                .lastReceptionDate(new Date(1234567990L))
+                .build();
+        deviceRepository.foldHeartbeat(first);
+
+        // When
+        deviceRepository.foldHeartbeat(second);
+
+        // Then
+        assertThat(deviceRepository.findByUserIdAndUnitId(first.getUserId(), first.getUnitId(), false, new PageRequest(0, 10)).getContent())
+                .containsExactly(first.toBuilder().lastReceptionDate(second.getLastReceptionDate()).count(2).build());
+    }
+
+    @Test
+    public void insertDeviceEvents_whenHeartbeats_shouldFoldThemAndInsertOtherEvents() {
+        // Given
+        final DeviceEvent heartbeat = getHeartbeat(new Date(1234567890L));
+        final DeviceEvent event = heartbeat.toBuilder()
+                .id(UUID.randomUUID().toString())
+                .receptionDate(new Date(2234567890L))
+                .changed(true)
+                .lastReceptionDate(null)
+                .count(null)
+                .build();
+        final DeviceEvent folded = heartbeat.toBuilder()
+                .receptionDate(new Date(1234567990L))
+                .lastReceptionDate(new Date(1234567990L))
+                .count(3)
+                .build();
+        deviceRepository.foldHeartbeat(heartbeat);
+
+        // When
+        final Map<Integer, String> result = deviceRepository.insertDeviceEvents(Arrays.asList(folded, event));
+
+        // Then
+        assertThat(result).isEmpty();
+        assertThat(deviceRepository.findByUserIdAndUnitId(heartbeat.getUserId(), heartbeat.getUnitId(), false, new PageRequest(0, 10)).getContent())
+                .containsOnly(heartbeat.toBuilder().lastReceptionDate(folded.getLastReceptionDate()).count(4).build(), event);
+    }
+
+    @Test
+    public void deleteEventsReceivedBefore_shouldOnlyDeleteExpiredEventsOfUserAndKind() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final Date before = new Date(2000000000L);
+        final DeviceEvent expired = getEvent(userId, new Date(1000000000L), false).toBuilder().unitId(unitId).build();
+        final DeviceEvent changed = getEvent(userId, new Date(1000000001L), true).toBuilder().unitId(unitId).build();
+        final DeviceEvent recent = getEvent(userId, new Date(3000000000L), false).toBuilder().unitId(unitId).build();
+        final DeviceEvent otherUser = getEvent(UUID.randomUUID().toString(), new Date(1000000000L), false);
+        final DeviceEvent activeHeartbeat = getHeartbeat(new Date(1000000002L)).toBuilder()
+                .userId(userId)
+                .unitId(unitId)
+                .lastReceptionDate(new Date(3000000000L))
+                .build();
+        final DeviceEvent expiredHeartbeat = getHeartbeat(new Date(1000000003L)).toBuilder().userId(userId).unitId(unitId).build();
+        deviceRepository.insertDeviceEvents(Arrays.asList(expired, changed, recent, otherUser, activeHeartbeat, expiredHeartbeat));
+
+        // When
+        final CursorPage<String> result = deviceRepository.deleteEventsReceivedBefore(userId, false, before, null, 10);
+
+        // Then
+        assertThat(result.getContent()).containsOnly(expired.getId(), expiredHeartbeat.getId());
+        assertThat(result.hasNext()).isFalse();
+        assertThat(mongoTemplate.findAll(DeviceEvent.class)).containsOnly(changed, recent, otherUser, activeHeartbeat);
+    }
+
+    @Test
+    public void deleteEventsReceivedBefore_shouldDeleteAtMostLimitEvents() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        for (int eventIdx = 0; eventIdx < 5; eventIdx++) {
+            mongoTemplate.insert(getEvent(userId, new Date(1000000000L + eventIdx), true).toBuilder().unitId(unitId).build());
+        }
+
+        // When
+        final CursorPage<String> result = deviceRepository.deleteEventsReceivedBefore(userId, true, new Date(2000000000L), null, 3);
+
+        // Then
+        assertThat(result.getContent()).hasSize(3);
+        assertThat(result.hasNext()).isTrue();
+        assertThat(mongoTemplate.findAll(DeviceEvent.class)).hasSize(2);
+    }
+
+    @Test
+    public void deleteEventsReceivedBefore_whenUnitsOnlyHaveTheirLastEvent_shouldKeepThemAndContinueWithNextUnits() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<DeviceEvent> kept = new ArrayList<>();
+        for (int unitIdx = 0; unitIdx < 4; unitIdx++) {
+            final DeviceEvent event = getEvent(userId, new Date(1000000000L), true).toBuilder().unitId("unit" + unitIdx).build();
+            mongoTemplate.insert(event);
+            kept.add(event);
+        }
+        final DeviceEvent expired = getEvent(userId, new Date(900000000L), true).toBuilder().unitId("unit3").build();
+        mongoTemplate.insert(expired);
+        final List<String> result = new ArrayList<>();
+
+        // When
+        String cursor = null;
+        do {
+            final CursorPage<String> batch = deviceRepository.deleteEventsReceivedBefore(userId, true, new Date(2000000000L), cursor, 2);
+            result.addAll(batch.getContent());
+            cursor = batch.getNextCursor();
+        } while (cursor != null);
+
+        // Then
+        assertThat(result).containsExactly(expired.getId());
+        assertThat(mongoTemplate.findAll(DeviceEvent.class)).containsOnlyElementsOf(kept);
+    }
+
+    @Test
+    public void deleteEventsReceivedBefore_whenEventsStartAChainOfDifferences_shouldKeepLaterEventsReadable() {
+        // Given
+        final PropertyDeltas propertyDeltas = new PropertyDeltas(true, 10);
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final List<Map<String, Object>> expected = new ArrayList<>();
+        DeviceEvent previous = null;
+        for (int eventIdx = 0; eventIdx < 5; eventIdx++) {
+            final Map<String, Object> properties = new HashMap<>();
+            properties.put("country", eventIdx == 0 ? "DE" : "FR");
+            properties.put("battery", 50 - eventIdx);
+            previous = deviceRepository.insertDeviceEvent(propertyDeltas.encode(DeviceEvent.builder()
+                    .userId(userId)
+                    .unitId(unitId)
+                    .versionId("v1")
+                    .receptionDate(new Date(1000000000L + eventIdx * 1000L))
+                    .additionalProperties(properties)
+                    .changed(true)
+                    .build(), previous));
+            expected.add(0, properties);
+        }
+
+        // When
+        final CursorPage<String> deleted = deviceRepository.deleteEventsReceivedBefore(userId, true, new Date(1000002000L), null, 10);
+        final CursorPage<DeviceEvent> result = deviceRepository.findByUserIdAndUnitId(userId, unitId, false, null, 10);
+
+        // Then
+        assertThat(deleted.getContent()).hasSize(2);
+        assertThat(result.getContent()).extracting(DeviceEvent::getAdditionalProperties).containsExactlyElementsOf(expected.subList(0, 3));
+    }
+
+    @Test
+    public void getUserIds_shouldReturnEachUserOnce() {
+        // Given
+        final String userId1 = UUID.randomUUID().toString();
+        final String userId2 = UUID.randomUUID().toString();
+        mongoTemplate.insert(getEvent(userId1, new Date(1000000000L), true));
+        mongoTemplate.insert(getEvent(userId1, new Date(2000000000L), false));
+        mongoTemplate.insert(getEvent(userId2, new Date(1000000000L), true));
+
+        // When
+        final List<String> result = deviceRepository.getUserIds();
+
+        // Then
+        assertThat(result).containsOnly(userId1, userId2);
+    }
+
+    private DeviceEvent getEvent(String userId, Date receptionDate, boolean changed) {
+        return DeviceEvent.builder()
+                .id(new ObjectId().toString())
+                .userId(userId)
+                .unitId(UUID.randomUUID().toString())
+                .versionId(UUID.randomUUID().toString())
+                .receptionDate(receptionDate)
+                .changed(changed)
+                .build();
+    }
+
+    private DeviceEvent getHeartbeat(Date receptionDate) {
+        return DeviceEvent.builder()
+                .id(new ObjectId().toString() + ":" + receptionDate.getTime())
+                .userId(UUID.randomUUID().toString())
+                .unitId(UUID.randomUUID().toString())
+                .versionId(UUID.randomUUID().toString())
+                .receptionDate(receptionDate)
+                .fingerprint(42L)
+                .changed(false)
+                .lastReceptionDate(receptionDate)
+                .count(1)
+                .build();
+    }
+
     private List<DeviceEvent> createEvents(String userId, String unitId, boolean onlyChanged, Pageable pageable) {
         ArrayList<DeviceEvent> events = new ArrayList<>(pageable.getPageSize());
         for (int eventIdx = 0; eventIdx < pageable.getPageSize(); eventIdx++) {
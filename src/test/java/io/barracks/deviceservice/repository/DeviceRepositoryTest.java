@@ -25,29 +25,45 @@
 package io.barracks.deviceservice.repository;
 
 import io.barracks.commons.test.MongoRepositoryTest;
+import io.barracks.deviceservice.model.CountStrategy;
+import io.barracks.deviceservice.model.CountedPage;
+import io.barracks.deviceservice.model.CursorPage;
 import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DataSetMatrix;
 import io.barracks.deviceservice.model.Device;
 import io.barracks.deviceservice.model.DeviceConfiguration;
 import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceFields;
+import io.barracks.deviceservice.model.Segment;
 import io.barracks.deviceservice.model.operator.Operator;
 import io.barracks.deviceservice.model.operator.comparison.EqualOperator;
 import io.barracks.deviceservice.model.operator.comparison.GreaterThanOperator;
 import io.barracks.deviceservice.model.operator.logical.AndOperator;
 import io.barracks.deviceservice.model.operator.logical.OrOperator;
+import io.barracks.deviceservice.repository.exception.InvalidCursorException;
 import io.barracks.deviceservice.utils.DeviceUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.util.CloseableIterator;
 
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.entry;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -63,7 +79,7 @@ public class DeviceRepositoryTest extends MongoRepositoryTest {
     public void setUp() throws Exception {
         super.setUp();
         mongoTemplate = new MongoTemplate(getMongo(), getDatabaseName());
-        deviceRepository = spy(new DeviceRepositoryImpl(mongoTemplate));
+        deviceRepository = spy(new DeviceRepositoryImpl(mongoTemplate, new PageCounter(mongoTemplate, 100, 10, 100)));
     }
 
     @Test
@@ -72,7 +88,7 @@ public class DeviceRepositoryTest extends MongoRepositoryTest {
         final String userId = UUID.randomUUID().toString();
         final String unitId = UUID.randomUUID().toString();
         final DeviceConfiguration configuration = DeviceConfiguration.builder().unitId(unitId).userId(userId).build();
-        final Device expected = Device.builder().userId(userId).unitId(unitId).configuration(configuration).build();
+        final Device expected = Device.builder().userId(userId).unitId(unitId).configuration(configuration).revision(1L).build();
 
         // When
         final Device result = deviceRepository.updateDocument(userId, unitId, "configuration", configuration);
@@ -90,7 +106,7 @@ public class DeviceRepositoryTest extends MongoRepositoryTest {
         final DeviceEvent event = DeviceEvent.builder().userId(userId).unitId(unitId).build();
         final Device existing = Device.builder().userId(userId).unitId(unitId).configuration(configuration).build();
         mongoTemplate.save(existing);
-        final Device expected = Device.builder().userId(userId).unitId(unitId).configuration(configuration).lastEvent(event).build();
+        final Device expected = Device.builder().userId(userId).unitId(unitId).configuration(configuration).lastEvent(event).revision(1L).build();
 
         // When
         final Device result = deviceRepository.updateDocument(userId, unitId, "event", event);
@@ -110,7 +126,7 @@ public class DeviceRepositoryTest extends MongoRepositoryTest {
         final Device existing = Device.builder().userId(userId).unitId(unitId).configuration(configuration).lastEvent(event).build();
         mongoTemplate.save(existing);
         final DeviceEvent newEvent = DeviceEvent.builder().userId(userId).unitId(unitId).segmentId(segmentId).build();
-        final Device expected = Device.builder().userId(userId).unitId(unitId).configuration(configuration).lastEvent(newEvent).build();
+        final Device expected = Device.builder().userId(userId).unitId(unitId).configuration(configuration).lastEvent(newEvent).revision(1L).build();
 
         // When
         final Device result = deviceRepository.updateDocument(userId, unitId, "event", newEvent);
@@ -171,6 +187,265 @@ public class DeviceRepositoryTest extends MongoRepositoryTest {
         verify(deviceRepository).updateDocument(userId, unitId, firstSeenKey, firstSeen);
     }
 
+    @Test
+    public void upsertDeviceEvent_whenDeviceDoesNotExist_shouldCreateDeviceAndReturnNull() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final Date receptionDate = new Date(1234567890L);
+        final DeviceConfiguration configuration = DeviceConfiguration.builder().id(UUID.randomUUID().toString()).userId(userId).unitId(unitId).build();
+        final DeviceEvent event = DeviceEvent.builder().userId(userId).unitId(unitId).receptionDate(receptionDate).build();
+        final Device expected = Device.builder().userId(userId).unitId(unitId).firstSeen(receptionDate).configuration(configuration).lastEvent(event).revision(1L).build();
+
+        // When
+        final Device result = deviceRepository.upsertDeviceEvent(userId, unitId, event, null, configuration);
+
+        // Then
+        assertThat(result).isNull();
+        assertThat(mongoTemplate.findAll(Device.class))
+                .extracting(device -> device.toBuilder().id(null).build())
+                .containsExactly(expected);
+    }
+
+    @Test
+    public void upsertDeviceEvent_whenDeviceExistsWithoutFirstSeen_shouldSetFirstSeenAndEventAndReturnPreviousState() {
+        // Given
+        final Device existing = DeviceUtils.getDevice().toBuilder().firstSeen(null).build();
+        mongoTemplate.save(existing);
+        final Date receptionDate = new Date(1234567890L);
+        final DeviceEvent event = DeviceEvent.builder().userId(existing.getUserId()).unitId(existing.getUnitId()).receptionDate(receptionDate).build();
+        final DeviceConfiguration configuration = DeviceConfiguration.builder().id(UUID.randomUUID().toString()).build();
+
+        // When
+        final Device result = deviceRepository.upsertDeviceEvent(existing.getUserId(), existing.getUnitId(), event, existing.getRevision(), configuration);
+
+        // Then
+        assertThat(result.getRevision()).isEqualTo(existing.getRevision());
+        assertThat(result.getFirstSeen()).isNull();
+        assertThat(mongoTemplate.findAll(Device.class))
+                .containsExactly(existing.toBuilder().firstSeen(receptionDate).lastEvent(event).revision(2L).build());
+    }
+
+    @Test
+    public void upsertDeviceEvent_whenDeviceExistsWithFirstSeen_shouldOnlyReplaceEventAndReturnPreviousState() {
+        // Given
+        final Device existing = DeviceUtils.getDevice().toBuilder().firstSeen(new Date(1234567890L)).build();
+        mongoTemplate.save(existing);
+        final DeviceEvent event = DeviceEvent.builder().userId(existing.getUserId()).unitId(existing.getUnitId()).receptionDate(new Date(2234567890L)).build();
+
+        // When
+        final Device result = deviceRepository.upsertDeviceEvent(existing.getUserId(), existing.getUnitId(), event, existing.getRevision(), null);
+
+        // Then
+        assertThat(result.getRevision()).isEqualTo(existing.getRevision());
+        assertThat(result.getFirstSeen()).isEqualTo(existing.getFirstSeen());
+        assertThat(result.getLastEvent()).isNull();
+        assertThat(mongoTemplate.findAll(Device.class))
+                .containsExactly(existing.toBuilder().lastEvent(event).revision(2L).build());
+    }
+
+    @Test
+    public void upsertDeviceEvent_whenDeviceIsNoLongerAtRevision_shouldThrowExceptionAndKeepDevice() {
+        // Given
+        final Device existing = DeviceUtils.getDevice().toBuilder().revision(2L).build();
+        mongoTemplate.save(existing);
+        final DeviceEvent event = DeviceEvent.builder().userId(existing.getUserId()).unitId(existing.getUnitId()).receptionDate(new Date(2234567890L)).build();
+
+        // Then When
+        assertThatExceptionOfType(OptimisticLockingFailureException.class).isThrownBy(
+                () -> deviceRepository.upsertDeviceEvent(existing.getUserId(), existing.getUnitId(), event, 1L, null)
+        );
+        assertThat(mongoTemplate.findAll(Device.class)).containsExactly(existing);
+    }
+
+    @Test
+    public void upsertDeviceEvent_whenDeviceIsCreatedConcurrently_shouldThrowException() {
+        // Given
+        final Device existing = DeviceUtils.getDevice();
+        mongoTemplate.save(existing);
+        final DeviceEvent event = DeviceEvent.builder().userId(existing.getUserId()).unitId(existing.getUnitId()).receptionDate(new Date(2234567890L)).build();
+
+        // Then When
+        assertThatExceptionOfType(OptimisticLockingFailureException.class).isThrownBy(
+                () -> deviceRepository.upsertDeviceEvent(existing.getUserId(), existing.getUnitId(), event, null, DeviceConfiguration.builder().build())
+        );
+    }
+
+    @Test
+    public void revertDevice_whenDeviceIsAtClaimedRevision_shouldRestorePreviousStateWithNewRevision() {
+        // Given
+        final Device previous = DeviceUtils.getDevice();
+        mongoTemplate.save(previous);
+        final DeviceEvent event = DeviceEvent.builder().userId(previous.getUserId()).unitId(previous.getUnitId()).receptionDate(new Date()).build();
+        deviceRepository.upsertDeviceEvent(previous.getUserId(), previous.getUnitId(), event, previous.getRevision(), null);
+
+        // When
+        deviceRepository.revertDevice(previous, false);
+
+        // Then
+        assertThat(mongoTemplate.findAll(Device.class)).containsExactly(previous.toBuilder().revision(previous.getRevision() + 2).build());
+    }
+
+    @Test
+    public void revertDevice_whenDeviceWasCreatedByTheClaim_shouldRemoveIt() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final DeviceEvent event = DeviceEvent.builder().userId(userId).unitId(unitId).receptionDate(new Date()).build();
+        deviceRepository.upsertDeviceEvent(userId, unitId, event, null, DeviceConfiguration.builder().build());
+
+        // When
+        deviceRepository.revertDevice(Device.builder().userId(userId).unitId(unitId).build(), true);
+
+        // Then
+        assertThat(mongoTemplate.findAll(Device.class)).isEmpty();
+    }
+
+    @Test
+    public void revertDevice_whenDeviceWasUpdatedSinceTheClaim_shouldKeepIt() {
+        // Given
+        final Device previous = DeviceUtils.getDevice();
+        final Device updated = previous.toBuilder().revision(previous.getRevision() + 2).build();
+        mongoTemplate.save(updated);
+
+        // When
+        deviceRepository.revertDevice(previous, false);
+
+        // Then
+        assertThat(mongoTemplate.findAll(Device.class)).containsExactly(updated);
+    }
+
+    @Test
+    public void upsertDeviceEvent_whenDevicesArePingedConcurrently_shouldApplyEveryEventOnce() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final int threadCount = 8;
+        final int eventsPerThread = 50;
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        final List<Callable<Void>> pingers = new ArrayList<>();
+        for (int threadIdx = 0; threadIdx < threadCount; threadIdx++) {
+            pingers.add(() -> {
+                for (int eventIdx = 0; eventIdx < eventsPerThread; eventIdx++) {
+                    // Each event counts the events applied before it, as the manager compares it to the last event
+                    while (true) {
+                        final Optional<Device> device = deviceRepository.findByUserIdAndUnitId(userId, unitId);
+                        final int previousCount = device.map(Device::getLastEvent).map(DeviceEvent::getCount).orElse(0);
+                        final DeviceEvent event = DeviceEvent.builder()
+                                .userId(userId)
+                                .unitId(unitId)
+                                .receptionDate(new Date())
+                                .count(previousCount + 1)
+                                .build();
+                        try {
+                            deviceRepository.upsertDeviceEvent(userId, unitId, event, device.map(Device::getRevision).orElse(null), null);
+                            break;
+                        } catch (OptimisticLockingFailureException ignored) {
+                            // Read the device again and retry
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+
+        // When
+        for (Future<Void> future : executor.invokeAll(pingers)) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // Then
+        final Device result = deviceRepository.findByUserIdAndUnitId(userId, unitId).get();
+        assertThat(result.getLastEvent().getCount()).isEqualTo(threadCount * eventsPerThread);
+        assertThat(result.getRevision()).isEqualTo((long) threadCount * eventsPerThread);
+    }
+
+    @Test
+    public void updateDevices_whenDeviceDoesNotExist_shouldCreateDeviceWithEventFirstSeenAndConfiguration() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String unitId = UUID.randomUUID().toString();
+        final Date firstSeen = new Date(1234567890L);
+        final DeviceConfiguration configuration = DeviceConfiguration.builder().userId(userId).unitId(unitId).build();
+        final DeviceEvent event = DeviceEvent.builder().userId(userId).unitId(unitId).receptionDate(firstSeen).build();
+        final Device update = Device.builder().userId(userId).unitId(unitId).firstSeen(firstSeen).configuration(configuration).lastEvent(event).build();
+
+        // When
+        final Map<Integer, String> result = deviceRepository.updateDevices(Collections.singletonList(update));
+
+        // Then
+        assertThat(result).isEmpty();
+        assertThat(deviceRepository.findByUserIdAndUnitIdIn(userId, Collections.singleton(unitId)))
+                .extracting(device -> device.toBuilder().id(null).build())
+                .containsExactly(update);
+    }
+
+    @Test
+    public void updateDevices_whenDeviceExists_shouldKeepConfigurationAndFirstSeenAndReplaceEvent() {
+        // Given
+        final Device existing = DeviceUtils.getDevice().toBuilder().firstSeen(new Date(1234567890L)).build();
+        mongoTemplate.save(existing);
+        final DeviceEvent event = DeviceEvent.builder().userId(existing.getUserId()).unitId(existing.getUnitId()).versionId(UUID.randomUUID().toString()).build();
+        final Device update = Device.builder()
+                .userId(existing.getUserId())
+                .unitId(existing.getUnitId())
+                .firstSeen(new Date(2234567890L))
+                .configuration(DeviceConfiguration.builder().userId(existing.getUserId()).build())
+                .lastEvent(event)
+                .revision(existing.getRevision())
+                .build();
+
+        // When
+        final Map<Integer, String> result = deviceRepository.updateDevices(Collections.singletonList(update));
+
+        // Then
+        assertThat(result).isEmpty();
+        assertThat(deviceRepository.findByUserIdAndUnitIdIn(existing.getUserId(), Collections.singleton(existing.getUnitId())))
+                .containsExactly(existing.toBuilder().lastEvent(event).revision(2L).build());
+    }
+
+    @Test
+    public void updateDevices_whenDeviceIsNoLongerAtRevision_shouldReportConcurrentUpdate() {
+        // Given
+        final Device existing = DeviceUtils.getDevice().toBuilder().revision(2L).build();
+        final Device other = DeviceUtils.getDevice().toBuilder().userId(existing.getUserId()).build();
+        mongoTemplate.save(existing);
+        mongoTemplate.save(other);
+        final Device staleUpdate = Device.builder()
+                .userId(existing.getUserId())
+                .unitId(existing.getUnitId())
+                .lastEvent(DeviceEvent.builder().versionId(UUID.randomUUID().toString()).build())
+                .revision(1L)
+                .build();
+        final Device update = staleUpdate.toBuilder().unitId(other.getUnitId()).revision(other.getRevision()).build();
+
+        // When
+        final Map<Integer, String> result = deviceRepository.updateDevices(Arrays.asList(staleUpdate, update));
+
+        // Then
+        assertThat(result).containsOnly(entry(0, DeviceRepositoryCustom.CONCURRENT_UPDATE_ERROR));
+        assertThat(deviceRepository.findByUserIdAndUnitIdIn(existing.getUserId(), Arrays.asList(existing.getUnitId(), other.getUnitId())))
+                .containsOnly(existing, other.toBuilder().lastEvent(update.getLastEvent()).revision(2L).build());
+    }
+
+    @Test
+    public void findByUserIdAndUnitIdIn_shouldReturnRequestedDevicesOfUserOnly() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<Device> userDevices = getDevicesForUser(userId, 5);
+        final List<Device> otherDevices = getDevicesForUser("anotherUser", 5);
+        userDevices.forEach(mongoTemplate::save);
+        otherDevices.forEach(mongoTemplate::save);
+        final List<String> unitIds = Arrays.asList(userDevices.get(0).getUnitId(), userDevices.get(3).getUnitId(), otherDevices.get(0).getUnitId());
+
+        // When
+        final List<Device> result = deviceRepository.findByUserIdAndUnitIdIn(userId, unitIds);
+
+        // Then
+        assertThat(result).containsOnly(userDevices.get(0), userDevices.get(3));
+    }
+
     @Test
     public void findByUserId_WhenNoQueryGivenAndNoDevice_shouldReturnEmptyPage() {
         // Given
@@ -271,6 +546,212 @@ public class DeviceRepositoryTest extends MongoRepositoryTest {
         assertThat(result).containsOnlyElementsOf(expectedResult);
     }
 
+    @Test
+    public void findByUserId_withoutCount_shouldTellWhetherThereIsANextPage() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        getDevicesForUser(userId, 5).forEach(mongoTemplate::save);
+
+        // When
+        final CountedPage<Device> first = deviceRepository.findByUserId(userId, Optional.empty(), new PageRequest(0, 3), CountStrategy.NONE, DeviceFields.ALL);
+        final CountedPage<Device> last = deviceRepository.findByUserId(userId, Optional.empty(), new PageRequest(1, 3), CountStrategy.NONE, DeviceFields.ALL);
+
+        // Then
+        assertThat(first.getCount()).isEqualTo(CountStrategy.NONE);
+        assertThat(first.getContent()).hasSize(3);
+        assertThat(first.hasNext()).isTrue();
+        assertThat(last.getContent()).hasSize(2);
+        assertThat(last.hasNext()).isFalse();
+    }
+
+    @Test
+    public void findByUserId_withEstimate_shouldReuseRecentCount() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final Pageable pageable = new PageRequest(0, 10);
+        getDevicesForUser(userId, 5).forEach(mongoTemplate::save);
+        final CountedPage<Device> counted = deviceRepository.findByUserId(userId, Optional.empty(), pageable, CountStrategy.ESTIMATE, DeviceFields.ALL);
+        mongoTemplate.save(getDeviceForUser(userId));
+
+        // When
+        final CountedPage<Device> result = deviceRepository.findByUserId(userId, Optional.empty(), new PageRequest(1, 2), CountStrategy.ESTIMATE, DeviceFields.ALL);
+
+        // Then
+        assertThat(counted.getCount()).isEqualTo(CountStrategy.EXACT);
+        assertThat(counted.getTotalElements()).isEqualTo(5);
+        assertThat(counted.getMinimumTotal()).isNull();
+        assertThat(result.getCount()).isEqualTo(CountStrategy.ESTIMATE);
+        assertThat(result.getTotalElements()).isEqualTo(5);
+    }
+
+    @Test
+    public void findByUserId_withEstimate_whenMoreDevicesThanLimit_shouldStopCounting() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        deviceRepository = new DeviceRepositoryImpl(mongoTemplate, new PageCounter(mongoTemplate, 100, 10, 3));
+        getDevicesForUser(userId, 5).forEach(mongoTemplate::save);
+
+        // When
+        final CountedPage<Device> result = deviceRepository.findByUserId(userId, Optional.empty(), new PageRequest(0, 2), CountStrategy.ESTIMATE, DeviceFields.ALL);
+
+        // Then
+        assertThat(result.getCount()).isEqualTo(CountStrategy.NONE);
+        assertThat(result.getMinimumTotal()).isEqualTo(3);
+        assertThat(result.getContent()).hasSize(2);
+        assertThat(result.hasNext()).isTrue();
+    }
+
+    @Test
+    public void findByUserId_withExactCount_shouldCountEveryPage() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        getDevicesForUser(userId, 5).forEach(mongoTemplate::save);
+        deviceRepository.findByUserId(userId, Optional.empty(), new PageRequest(0, 2), CountStrategy.EXACT, DeviceFields.ALL);
+        mongoTemplate.save(getDeviceForUser(userId));
+
+        // When
+        final CountedPage<Device> result = deviceRepository.findByUserId(userId, Optional.empty(), new PageRequest(0, 2), CountStrategy.EXACT, DeviceFields.ALL);
+
+        // Then
+        assertThat(result.getCount()).isEqualTo(CountStrategy.EXACT);
+        assertThat(result.getTotalElements()).isEqualTo(6);
+    }
+
+    @Test
+    public void findByUserId_withFields_shouldOnlyReadSelectedFields() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final Device device = getDeviceForUserAndVersion(userId, "v1");
+        mongoTemplate.save(device);
+
+        // When
+        final CountedPage<Device> result = deviceRepository.findByUserId(
+                userId, Optional.empty(), new PageRequest(0, 10), CountStrategy.EXACT, DeviceFields.parse("unitId,lastEvent.versionId")
+        );
+
+        // Then
+        assertThat(result.getContent()).hasSize(1);
+        final Device projected = result.getContent().get(0);
+        assertThat(projected.getId()).isEqualTo(device.getId());
+        assertThat(projected.getUnitId()).isEqualTo(device.getUnitId());
+        assertThat(projected.getLastEvent().getVersionId()).isEqualTo("v1");
+        assertThat(projected.getUserId()).isNull();
+        assertThat(projected.getFirstSeen()).isNull();
+        assertThat(projected.getConfiguration()).isNull();
+        assertThat(projected.getLastEvent().getSegmentId()).isNull();
+    }
+
+    @Test
+    public void findByUserId_whenWalkingWithCursor_shouldReturnEveryDeviceOnceOrderedById() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<Device> userDevices = getDevicesForUser(userId, 10);
+        userDevices.forEach(mongoTemplate::save);
+        getDevicesForUser("anotherUser", 10).forEach(mongoTemplate::save);
+        final List<Device> result = new ArrayList<>();
+        final List<CursorPage<Device>> pages = new ArrayList<>();
+
+        // When
+        String cursor = "";
+        do {
+            final CursorPage<Device> page = deviceRepository.findByUserId(userId, Optional.empty(), cursor, 3, DeviceFields.ALL);
+            pages.add(page);
+            result.addAll(page.getContent());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        // Then
+        assertThat(pages).hasSize(4);
+        assertThat(result).containsExactlyElementsOf(userDevices.stream()
+                .sorted(Comparator.comparing(Device::getId))
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void findIdBoundariesByUserId_shouldReturnFirstIdOfEachRange() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<Device> userDevices = getDevicesForUser(userId, 10);
+        userDevices.forEach(mongoTemplate::save);
+        getDevicesForUser("anotherUser", 10).forEach(mongoTemplate::save);
+        final List<String> ids = userDevices.stream().map(Device::getId).sorted().collect(Collectors.toList());
+
+        // When
+        final List<String> result = deviceRepository.findIdBoundariesByUserId(userId, 4);
+
+        // Then
+        assertThat(result).containsExactly(ids.get(0), ids.get(4), ids.get(8));
+    }
+
+    @Test
+    public void streamByUserId_shouldReturnDevicesOfTheRangeOrderedById() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<Device> userDevices = getDevicesForUser(userId, 10);
+        userDevices.forEach(mongoTemplate::save);
+        getDevicesForUser("anotherUser", 10).forEach(mongoTemplate::save);
+        final List<Device> sorted = userDevices.stream()
+                .sorted(Comparator.comparing(Device::getId))
+                .collect(Collectors.toList());
+        final List<Device> result = new ArrayList<>();
+
+        // When
+        try (CloseableIterator<Device> devices = deviceRepository.streamByUserId(userId, Optional.empty(), DeviceFields.ALL, sorted.get(2).getId(), sorted.get(6).getId())) {
+            devices.forEachRemaining(result::add);
+        }
+
+        // Then
+        assertThat(result).containsExactlyElementsOf(sorted.subList(2, 6));
+    }
+
+    @Test
+    public void findByUserId_whenCursorIsInvalid_shouldThrowException() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String cursor = "notACursor";
+
+        // Then When
+        assertThatExceptionOfType(InvalidCursorException.class)
+                .isThrownBy(() -> deviceRepository.findByUserId(userId, Optional.empty(), cursor, 10, DeviceFields.ALL));
+    }
+
+    @Test
+    public void findBySegmentId_withCursor_shouldReturnDevicesWithSegmentIdAfterCursor() {
+        // Given
+        final String segmentId = UUID.randomUUID().toString();
+        final List<Device> devices = Arrays.asList(
+                getDeviceForUserAndVersionAndSegment(UUID.randomUUID().toString(), "v1", segmentId).toBuilder().id("a").build(),
+                getDeviceForUserAndVersionAndSegment(UUID.randomUUID().toString(), "v1", segmentId).toBuilder().id("b").build(),
+                getDeviceForUserAndVersionAndSegment(UUID.randomUUID().toString(), "v1", UUID.randomUUID().toString()).toBuilder().id("c").build()
+        );
+        devices.forEach(mongoTemplate::save);
+        final CursorPage<Device> first = deviceRepository.findBySegmentId(segmentId, null, 1, DeviceFields.ALL);
+
+        // When
+        final CursorPage<Device> result = deviceRepository.findBySegmentId(segmentId, first.getNextCursor(), 1, DeviceFields.ALL);
+
+        // Then
+        assertThat(first.getContent()).containsExactly(devices.get(0));
+        assertThat(result.getContent()).containsExactly(devices.get(1));
+        assertThat(result.hasNext()).isFalse();
+    }
+
+    @Test
+    public void findDevicesNotIn_withCursor_shouldReturnDevicesFromUserWithoutProvidedIds() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String segmentId = UUID.randomUUID().toString();
+        final Device expected = getDeviceForUserAndVersionAndSegment(userId, "v1", UUID.randomUUID().toString());
+        mongoTemplate.save(expected);
+        mongoTemplate.save(getDeviceForUserAndVersionAndSegment(userId, "v1", segmentId));
+
+        // When
+        final CursorPage<Device> result = deviceRepository.findDevicesNotIn(userId, Collections.singletonList(segmentId), "", 10, DeviceFields.ALL);
+
+        // Then
+        assertThat(result).isEqualTo(new CursorPage<>(Collections.singletonList(expected), null));
+    }
+
     @Test
     public void findBySegmentId_shouldReturnAllDevicesWithSegmentId() {
         // Given
@@ -561,6 +1042,73 @@ public class DeviceRepositoryTest extends MongoRepositoryTest {
         assertThat(result.getTotal()).isEqualTo(expected.getTotal());
     }
 
+    @Test
+    public void getDeviceCountPerSegmentIdAndVersionId_shouldCountDevicesOfEachActiveSegmentAndOthersPerVersion() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String segment1 = UUID.randomUUID().toString();
+        final String segment2 = UUID.randomUUID().toString();
+        final String version1 = UUID.randomUUID().toString();
+        final String version2 = UUID.randomUUID().toString();
+        mongoTemplate.insert(getDeviceForUserAndVersionAndSegment(userId, version1, segment1));
+        mongoTemplate.insert(getDeviceForUserAndVersionAndSegment(userId, version1, segment1));
+        mongoTemplate.insert(getDeviceForUserAndVersionAndSegment(userId, version2, segment1));
+        mongoTemplate.insert(getDeviceForUserAndVersionAndSegment(userId, version1, UUID.randomUUID().toString()));
+        mongoTemplate.insert(getDeviceForUserAndVersionAndSegment(userId, version1, null));
+        mongoTemplate.insert(getDeviceForUser(userId).toBuilder().lastEvent(null).build());
+        mongoTemplate.insert(getDeviceForUserAndVersionAndSegment(UUID.randomUUID().toString(), version1, segment1));
+        final DataSetMatrix expected = DataSetMatrix.builder()
+                .value(segment1, DataSet.builder()
+                        .value(version1, BigDecimal.valueOf(2))
+                        .value(version2, BigDecimal.valueOf(1))
+                        .total(BigDecimal.valueOf(3))
+                        .build())
+                .value(segment2, DataSet.builder().total(BigDecimal.ZERO).build())
+                .value(Segment.OTHER_ID, DataSet.builder()
+                        .value(version1, BigDecimal.valueOf(2))
+                        .total(BigDecimal.valueOf(2))
+                        .build())
+                .total(BigDecimal.valueOf(5))
+                .build();
+
+        // When
+        final DataSetMatrix result = deviceRepository.getDeviceCountPerSegmentIdAndVersionId(userId, Arrays.asList(segment1, segment2));
+
+        // Then
+        assertThat(result).isEqualTo(expected);
+        assertThat(result.getValues().keySet()).containsExactly(segment1, segment2, Segment.OTHER_ID);
+    }
+
+    @Test
+    public void getDeviceCountPerValue_shouldReturnMostFrequentValuesAndDevicesWithKey() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        for (String country : Arrays.asList("FR", "FR", "FR", "DE", "DE", "IT")) {
+            mongoTemplate.insert(getDeviceForUserWithProperty(userId, "country", country));
+        }
+        mongoTemplate.insert(getDeviceForUserWithProperty(userId, "language", "fr"));
+        mongoTemplate.insert(getDeviceForUserWithProperty(UUID.randomUUID().toString(), "country", "IT"));
+
+        // When
+        final DataSet result = deviceRepository.getDeviceCountPerValue(userId, "customClientData.country", 2);
+
+        // Then
+        assertThat(result.getValues()).containsOnly(
+                entry("FR", BigDecimal.valueOf(3)),
+                entry("DE", BigDecimal.valueOf(2))
+        );
+        assertThat(result.getTotal()).isEqualByComparingTo(BigDecimal.valueOf(6));
+    }
+
+    private Device getDeviceForUserWithProperty(String userId, String key, Object value) {
+        final Device device = getDeviceForUser(userId);
+        return device.toBuilder()
+                .lastEvent(device.getLastEvent().toBuilder()
+                        .additionalProperties(Collections.singletonMap(key, value))
+                        .build())
+                .build();
+    }
+
     private Device getDeviceForUser(String userId) {
         return getDeviceForUserAndVersion(userId, UUID.randomUUID().toString());
     }
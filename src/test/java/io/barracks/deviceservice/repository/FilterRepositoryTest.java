@@ -59,7 +59,7 @@ public class FilterRepositoryTest extends MongoRepositoryTest {
     public void setUp() throws Exception {
         super.setUp();
         MongoTemplate mongoTemplate = new MongoTemplate(getMongo(), getDatabaseName());
-        filterRepository = spy(new FilterRepositoryImpl(mongoTemplate));
+        filterRepository = spy(new FilterRepositoryImpl(mongoTemplate, new PageCounter(mongoTemplate, 100, 10, 100)));
     }
 
     @Test
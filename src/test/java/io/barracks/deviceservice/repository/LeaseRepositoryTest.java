@@ -0,0 +1,124 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.commons.test.MongoRepositoryTest;
+import io.barracks.deviceservice.model.Lease;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LeaseRepositoryTest extends MongoRepositoryTest {
+    private LeaseRepositoryImpl repository;
+    private MongoTemplate mongoTemplate;
+
+    public LeaseRepositoryTest() {
+        super(Lease.class.getDeclaredAnnotation(Document.class).collection());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mongoTemplate = new MongoTemplate(getMongo(), getDatabaseName());
+        repository = new LeaseRepositoryImpl(mongoTemplate);
+    }
+
+    @Test
+    public void tryAcquire_whenLeaseIsFree_shouldTakeIt() {
+        // Given
+        final String name = UUID.randomUUID().toString();
+        final Date expirationDate = new Date(System.currentTimeMillis() + 60000L);
+
+        // When
+        final boolean result = repository.tryAcquire(name, "owner", expirationDate);
+
+        // Then
+        assertThat(result).isTrue();
+        assertThat(mongoTemplate.findById(name, Lease.class)).isEqualTo(new Lease(name, "owner", expirationDate));
+    }
+
+    @Test
+    public void tryAcquire_whenHeldByOtherOwner_shouldReturnFalse() {
+        // Given
+        final String name = UUID.randomUUID().toString();
+        final Date expirationDate = new Date(System.currentTimeMillis() + 60000L);
+        repository.tryAcquire(name, "other", expirationDate);
+
+        // When
+        final boolean result = repository.tryAcquire(name, "owner", new Date(System.currentTimeMillis() + 120000L));
+
+        // Then
+        assertThat(result).isFalse();
+        assertThat(mongoTemplate.findById(name, Lease.class).getOwner()).isEqualTo("other");
+    }
+
+    @Test
+    public void tryAcquire_whenHeldBySameOwner_shouldRenewIt() {
+        // Given
+        final String name = UUID.randomUUID().toString();
+        final Date expirationDate = new Date(System.currentTimeMillis() + 120000L);
+        repository.tryAcquire(name, "owner", new Date(System.currentTimeMillis() + 60000L));
+
+        // When
+        final boolean result = repository.tryAcquire(name, "owner", expirationDate);
+
+        // Then
+        assertThat(result).isTrue();
+        assertThat(mongoTemplate.findById(name, Lease.class).getExpirationDate()).isEqualTo(expirationDate);
+    }
+
+    @Test
+    public void tryAcquire_whenHeldLeaseExpired_shouldTakeIt() {
+        // Given
+        final String name = UUID.randomUUID().toString();
+        repository.tryAcquire(name, "other", new Date(System.currentTimeMillis() - 1000L));
+
+        // When
+        final boolean result = repository.tryAcquire(name, "owner", new Date(System.currentTimeMillis() + 60000L));
+
+        // Then
+        assertThat(result).isTrue();
+        assertThat(mongoTemplate.findById(name, Lease.class).getOwner()).isEqualTo("owner");
+    }
+
+    @Test
+    public void release_whenHeldByOtherOwner_shouldKeepLease() {
+        // Given
+        final String name = UUID.randomUUID().toString();
+        repository.tryAcquire(name, "other", new Date(System.currentTimeMillis() + 60000L));
+
+        // When
+        repository.release(name, "owner");
+
+        // Then
+        assertThat(mongoTemplate.findById(name, Lease.class)).isNotNull();
+    }
+}
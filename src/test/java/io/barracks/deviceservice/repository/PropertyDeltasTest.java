@@ -0,0 +1,189 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import com.google.common.collect.ImmutableMap;
+import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.PropertiesDelta;
+import io.barracks.deviceservice.repository.exception.BrokenEventHistoryException;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class PropertyDeltasTest {
+    @Test
+    public void encode_whenDisabled_shouldReturnEventUnchanged() {
+        // Given
+        final PropertyDeltas propertyDeltas = new PropertyDeltas(false, 3);
+        final DeviceEvent previous = getEvent(1, ImmutableMap.of("battery", 42)).toBuilder().snapshotDistance(0).build();
+        final DeviceEvent event = getEvent(2, ImmutableMap.of("battery", 41));
+
+        // When
+        final DeviceEvent result = propertyDeltas.encode(event, previous);
+
+        // Then
+        assertThat(result).isSameAs(event);
+    }
+
+    @Test
+    public void encode_whenPreviousHasNoDistance_shouldKeepAFullCopy() {
+        // Given
+        final PropertyDeltas propertyDeltas = new PropertyDeltas(true, 3);
+        final DeviceEvent event = getEvent(2, ImmutableMap.of("battery", 41));
+
+        // When
+        final DeviceEvent result = propertyDeltas.encode(event, getEvent(1, ImmutableMap.of("battery", 42)));
+
+        // Then
+        assertThat(result).isEqualTo(event.toBuilder().snapshotDistance(0).build());
+    }
+
+    @Test
+    public void encode_shouldStoreDifferenceUntilTheSnapshotInterval() {
+        // Given
+        final PropertyDeltas propertyDeltas = new PropertyDeltas(true, 3);
+        final DeviceEvent first = propertyDeltas.encode(getEvent(1, ImmutableMap.of("battery", 42, "country", "FR")), null);
+
+        // When
+        final DeviceEvent second = propertyDeltas.encode(getEvent(2, ImmutableMap.of("battery", 41, "country", "FR")), first);
+        final DeviceEvent third = propertyDeltas.encode(getEvent(3, ImmutableMap.of("country", "FR")), second);
+        final DeviceEvent fourth = propertyDeltas.encode(getEvent(4, ImmutableMap.of("country", "DE")), third);
+
+        // Then
+        assertThat(first.getSnapshotDistance()).isZero();
+        assertThat(first.getPropertiesDelta()).isNull();
+        assertThat(second.getSnapshotDistance()).isEqualTo(1);
+        assertThat(second.getPropertiesDelta()).isEqualTo(new PropertiesDelta(Collections.singletonMap("battery", 41), null));
+        assertThat(second.getAdditionalProperties()).containsOnlyKeys("battery", "country");
+        assertThat(third.getSnapshotDistance()).isEqualTo(2);
+        assertThat(third.getPropertiesDelta()).isEqualTo(new PropertiesDelta(null, Collections.singletonList("battery")));
+        assertThat(fourth.getSnapshotDistance()).isZero();
+        assertThat(fourth.getPropertiesDelta()).isNull();
+    }
+
+    @Test
+    public void restore_shouldRebuildPropertiesFromTheOlderFullCopy() {
+        // Given
+        final PropertyDeltas propertyDeltas = new PropertyDeltas(true, 10);
+        final List<DeviceEvent> encoded = new ArrayList<>();
+        DeviceEvent previous = null;
+        for (int eventIdx = 0; eventIdx < 6; eventIdx++) {
+            previous = propertyDeltas.encode(getEvent(eventIdx, ImmutableMap.of("battery", 50 - eventIdx, "country", "FR")), previous);
+            encoded.add(0, previous);
+        }
+        final List<DeviceEvent> stored = encoded.stream().map(PropertyDeltasTest::toStored).collect(Collectors.toList());
+        final List<Date> reads = new ArrayList<>();
+        final BiFunction<Date, Integer, List<DeviceEvent>> findEventsBefore = (before, limit) -> {
+            reads.add(before);
+            return stored.stream().filter(event -> event.getReceptionDate().before(before)).limit(limit).collect(Collectors.toList());
+        };
+
+        // When
+        final List<DeviceEvent> result = PropertyDeltas.restore(stored.subList(0, 2), findEventsBefore);
+
+        // Then
+        assertThat(result).containsExactlyElementsOf(encoded.subList(0, 2));
+        assertThat(reads).hasSize(1);
+    }
+
+    @Test
+    public void restore_whenEventsAreFarApart_shouldOnlyReadTheirChains() {
+        // Given
+        final PropertyDeltas propertyDeltas = new PropertyDeltas(true, 10);
+        final List<DeviceEvent> encoded = new ArrayList<>();
+        DeviceEvent previous = null;
+        for (int eventIdx = 0; eventIdx < 25; eventIdx++) {
+            previous = propertyDeltas.encode(getEvent(eventIdx, ImmutableMap.of("battery", 50 - eventIdx, "country", "FR")), previous);
+            encoded.add(0, previous);
+        }
+        final List<DeviceEvent> stored = encoded.stream().map(PropertyDeltasTest::toStored).collect(Collectors.toList());
+        final List<Integer> limits = new ArrayList<>();
+        final BiFunction<Date, Integer, List<DeviceEvent>> findEventsBefore = (before, limit) -> {
+            limits.add(limit);
+            return stored.stream().filter(event -> event.getReceptionDate().before(before)).limit(limit).collect(Collectors.toList());
+        };
+
+        // When
+        final List<DeviceEvent> result = PropertyDeltas.restore(Arrays.asList(stored.get(1), stored.get(21)), findEventsBefore);
+
+        // Then
+        assertThat(result).containsExactly(encoded.get(1), encoded.get(21));
+        assertThat(limits).containsExactly(3, 3);
+    }
+
+    @Test
+    public void restore_whenFullCopyIsMissing_shouldThrowException() {
+        // Given
+        final PropertyDeltas propertyDeltas = new PropertyDeltas(true, 10);
+        final List<DeviceEvent> encoded = new ArrayList<>();
+        DeviceEvent previous = null;
+        for (int eventIdx = 0; eventIdx < 4; eventIdx++) {
+            previous = propertyDeltas.encode(getEvent(eventIdx, ImmutableMap.of("battery", 50 - eventIdx)), previous);
+            encoded.add(0, previous);
+        }
+        final List<DeviceEvent> stored = encoded.subList(0, 3).stream().map(PropertyDeltasTest::toStored).collect(Collectors.toList());
+
+        // Then When
+        assertThatExceptionOfType(BrokenEventHistoryException.class).isThrownBy(() -> PropertyDeltas.restore(
+                stored.subList(0, 1),
+                (before, limit) -> stored.stream().filter(event -> event.getReceptionDate().before(before)).limit(limit).collect(Collectors.toList())
+        ));
+    }
+
+    @Test
+    public void restore_whenNoEventIsEncoded_shouldNotReadHistory() {
+        // Given
+        final List<DeviceEvent> events = Collections.singletonList(getEvent(1, ImmutableMap.of("battery", 42)));
+
+        // When
+        final List<DeviceEvent> result = PropertyDeltas.restore(events, (before, limit) -> {
+            throw new AssertionError("History should not be read");
+        });
+
+        // Then
+        assertThat(result).isSameAs(events);
+    }
+
+    private static DeviceEvent toStored(DeviceEvent event) {
+        return event.getPropertiesDelta() == null ? event : event.toBuilder().additionalProperties(null).build();
+    }
+
+    private static DeviceEvent getEvent(int eventIdx, Map<String, Object> additionalProperties) {
+        return DeviceEvent.builder()
+                .id("event" + eventIdx)
+                .userId("user")
+                .unitId("unit")
+                .versionId("v1")
+                .receptionDate(new Date(1000000000L + eventIdx * 1000L))
+                .additionalProperties(additionalProperties)
+                .changed(true)
+                .build();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.commons.test.MongoRepositoryTest;
+import io.barracks.deviceservice.model.QuantileBucket;
+import io.barracks.deviceservice.model.QuantileSketch;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QuantileBucketRepositoryTest extends MongoRepositoryTest {
+    private static final String KEY = "customClientData.battery";
+
+    private QuantileBucketRepositoryImpl repository;
+    private MongoTemplate mongoTemplate;
+
+    public QuantileBucketRepositoryTest() {
+        super(QuantileBucket.class.getDeclaredAnnotation(Document.class).collection());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mongoTemplate = new MongoTemplate(getMongo(), getDatabaseName());
+        repository = new QuantileBucketRepositoryImpl(mongoTemplate);
+    }
+
+    @Test
+    public void incrementBuckets_whenBucketExists_shouldAddCounts() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final Date bucket = new Date(3600000L);
+        repository.incrementBuckets(Collections.singletonList(QuantileBucket.from(userId, KEY, "segment", bucket, getSketch(-10, 100))));
+
+        // When
+        final Map<Integer, String> result = repository.incrementBuckets(Collections.singletonList(QuantileBucket.from(userId, KEY, "segment", bucket, getSketch(50, 150))));
+
+        // Then
+        assertThat(result).isEmpty();
+        final QuantileSketch expected = getSketch(-10, 100);
+        expected.merge(getSketch(50, 150));
+        assertThat(mongoTemplate.findAll(QuantileBucket.class)).hasSize(1);
+        assertThat(repository.findMergedSketch(userId, KEY, "segment", bucket, bucket)).isEqualTo(expected);
+    }
+
+    @Test
+    public void findMergedSketch_shouldOnlyMergeBucketsOfKeyAndSegmentWithinBounds() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        repository.incrementBuckets(Arrays.asList(
+                QuantileBucket.from(userId, KEY, "segment", new Date(0), getSketch(0, 10)),
+                QuantileBucket.from(userId, KEY, "segment", new Date(3600000L), getSketch(10, 20)),
+                QuantileBucket.from(userId, KEY, "other", new Date(3600000L), getSketch(20, 30)),
+                QuantileBucket.from(userId, "customClientData.level", "segment", new Date(3600000L), getSketch(30, 40)),
+                QuantileBucket.from(UUID.randomUUID().toString(), KEY, "segment", new Date(3600000L), getSketch(40, 50))
+        ));
+
+        // When
+        final QuantileSketch segment = repository.findMergedSketch(userId, KEY, "segment", new Date(3600000L), null);
+        final QuantileSketch all = repository.findMergedSketch(userId, KEY, null, null, null);
+
+        // Then
+        assertThat(segment).isEqualTo(getSketch(10, 20));
+        assertThat(all).isEqualTo(getSketch(0, 30));
+    }
+
+    private static QuantileSketch getSketch(int fromValue, int toValue) {
+        final QuantileSketch sketch = QuantileSketch.empty();
+        for (int value = fromValue; value < toValue; value++) {
+            sketch.add(value);
+        }
+        return sketch;
+    }
+}
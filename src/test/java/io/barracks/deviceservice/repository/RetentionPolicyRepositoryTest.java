@@ -0,0 +1,82 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.commons.test.MongoRepositoryTest;
+import io.barracks.deviceservice.model.RetentionPolicy;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class RetentionPolicyRepositoryTest extends MongoRepositoryTest {
+    private RetentionPolicyRepositoryImpl repository;
+
+    public RetentionPolicyRepositoryTest() {
+        super(RetentionPolicy.class.getDeclaredAnnotation(Document.class).collection());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        repository = new RetentionPolicyRepositoryImpl(new MongoTemplate(getMongo(), getDatabaseName()));
+    }
+
+    @Test
+    public void updatePolicy_whenExisting_shouldReplaceDurations() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        repository.updatePolicy(userId, RetentionPolicy.builder().unchangedEventsDays(7).changedEventsDays(30).build());
+
+        // When
+        final RetentionPolicy result = repository.updatePolicy(userId, RetentionPolicy.builder().unchangedEventsDays(14).build());
+
+        // Then
+        final RetentionPolicy expected = RetentionPolicy.builder().id(result.getId()).userId(userId).unchangedEventsDays(14).build();
+        assertThat(result).isEqualTo(expected);
+        assertThat(repository.getPolicy(userId)).isEqualTo(Optional.of(expected));
+    }
+
+    @Test
+    public void getPolicies_shouldReturnPoliciesByUserId() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final RetentionPolicy policy = repository.updatePolicy(userId, RetentionPolicy.builder().changedEventsDays(365).build());
+
+        // When
+        final Map<String, RetentionPolicy> result = repository.getPolicies();
+
+        // Then
+        assertThat(result).containsExactly(entry(userId, policy));
+        assertThat(repository.getPolicy(UUID.randomUUID().toString())).isEmpty();
+    }
+}
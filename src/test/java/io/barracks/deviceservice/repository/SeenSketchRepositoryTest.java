@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.commons.test.MongoRepositoryTest;
+import io.barracks.deviceservice.model.HyperLogLog;
+import io.barracks.deviceservice.model.SeenSketch;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SeenSketchRepositoryTest extends MongoRepositoryTest {
+    private SeenSketchRepositoryImpl repository;
+    private MongoTemplate mongoTemplate;
+
+    public SeenSketchRepositoryTest() {
+        super(SeenSketch.class.getDeclaredAnnotation(Document.class).collection());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mongoTemplate = new MongoTemplate(getMongo(), getDatabaseName());
+        repository = new SeenSketchRepositoryImpl(mongoTemplate);
+    }
+
+    @Test
+    public void mergeSketch_whenSketchExists_shouldStoreUnion() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final Date bucket = new Date(3600000L);
+        repository.mergeSketch(userId, bucket, getSketch(0, 100));
+
+        // When
+        repository.mergeSketch(userId, bucket, getSketch(50, 150));
+
+        // Then
+        assertThat(mongoTemplate.findAll(SeenSketch.class)).hasSize(1);
+        assertThat(repository.findMergedSketch(userId, bucket, bucket)).isEqualTo(getSketch(0, 150));
+    }
+
+    @Test
+    public void findMergedSketch_shouldOnlyMergeSketchesOfUserWithinBounds() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        repository.mergeSketch(userId, new Date(0), getSketch(0, 10));
+        repository.mergeSketch(userId, new Date(3600000L), getSketch(10, 20));
+        repository.mergeSketch(userId, new Date(7200000L), getSketch(20, 30));
+        repository.mergeSketch(UUID.randomUUID().toString(), new Date(3600000L), getSketch(30, 40));
+
+        // When
+        final HyperLogLog bounded = repository.findMergedSketch(userId, new Date(3600000L), new Date(7200000L));
+        final HyperLogLog unbounded = repository.findMergedSketch(userId, null, null);
+
+        // Then
+        assertThat(bounded).isEqualTo(getSketch(10, 30));
+        assertThat(unbounded).isEqualTo(getSketch(0, 30));
+    }
+
+    private static HyperLogLog getSketch(int fromUnit, int toUnit) {
+        final HyperLogLog sketch = HyperLogLog.empty();
+        for (int unitIdx = fromUnit; unitIdx < toUnit; unitIdx++) {
+            sketch.add("unit" + unitIdx);
+        }
+        return sketch;
+    }
+}
@@ -119,4 +119,34 @@ public class SegmentOrderRepositoryTest extends MongoRepositoryTest {
         // Then
         assertThat(result).isEqualTo(order);
     }
+
+    @Test
+    public void getSegmentIds_ifNotSet_shouldReturnEmptyListAndNotCreateOrder() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+
+        // When
+        final List<String> result = repository.getSegmentIds(userId);
+
+        // Then
+        assertThat(result).isEmpty();
+        assertThat(mongoTemplate.findAll(SegmentOrder.class)).isEmpty();
+    }
+
+    @Test
+    public void getSegmentIds_ifSet_shouldReturnSavedSegmentIds() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final SegmentOrder order = SegmentOrder.builder()
+                .userId(userId)
+                .segmentIds(Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString()))
+                .build();
+        mongoTemplate.save(order);
+
+        // When
+        final List<String> result = repository.getSegmentIds(userId);
+
+        // Then
+        assertThat(result).containsExactlyElementsOf(order.getSegmentIds());
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.commons.test.MongoRepositoryTest;
+import io.barracks.deviceservice.model.StatsRollup;
+import io.barracks.deviceservice.model.StatsRollupGenerations;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class StatsRollupRepositoryTest extends MongoRepositoryTest {
+    private StatsRollupRepositoryImpl repository;
+    private MongoTemplate mongoTemplate;
+
+    public StatsRollupRepositoryTest() {
+        super(StatsRollup.class.getDeclaredAnnotation(Document.class).collection());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mongoTemplate = new MongoTemplate(getMongo(), getDatabaseName());
+        repository = new StatsRollupRepositoryImpl(mongoTemplate);
+        mongoTemplate.dropCollection(StatsRollupGenerations.class);
+    }
+
+    @Test
+    public void incrementCounts_shouldCreateThenIncrementRollups() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        repository.incrementCounts(Arrays.asList(getVersionRollup(userId, "v1", 2), getBucketRollup(userId, 0, 1)));
+
+        // When
+        repository.incrementCounts(Arrays.asList(getVersionRollup(userId, "v1", -1), getVersionRollup(userId, "v2", 1)));
+
+        // Then
+        final List<StatsRollup> result = mongoTemplate.find(query(where("userId").is(userId)), StatsRollup.class);
+        assertThat(result).extracting(rollup -> rollup.toBuilder().id(null).build()).containsOnly(
+                getVersionRollup(userId, "v1", 1),
+                getVersionRollup(userId, "v2", 1),
+                getBucketRollup(userId, 0, 1)
+        );
+    }
+
+    @Test
+    public void sumBucketCounts_shouldOnlySumBucketsWithinBounds() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        repository.incrementCounts(Arrays.asList(
+                getBucketRollup(userId, 0, 1),
+                getBucketRollup(userId, 1000, 2),
+                getBucketRollup(userId, 2000, 4),
+                getBucketRollup(userId, 3000, 8),
+                getBucketRollup(UUID.randomUUID().toString(), 1000, 16),
+                getVersionRollup(userId, "v1", 32)
+        ));
+
+        // When
+        final long bounded = repository.sumBucketCounts(userId, null, StatsRollup.LAST_SEEN_DIMENSION, new Date(1000), new Date(3000));
+        final long unbounded = repository.sumBucketCounts(userId, null, StatsRollup.LAST_SEEN_DIMENSION, null, null);
+
+        // Then
+        assertThat(bounded).isEqualTo(6);
+        assertThat(unbounded).isEqualTo(15);
+    }
+
+    @Test
+    public void sumBucketCounts_shouldOnlySumBucketsOfGeneration() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        repository.incrementCounts(Arrays.asList(
+                getBucketRollup(userId, 0, 1),
+                getBucketRollup(userId, 0, 2).toBuilder().generation(1L).build()
+        ));
+
+        // When
+        final long result = repository.sumBucketCounts(userId, 1L, StatsRollup.LAST_SEEN_DIMENSION, null, null);
+
+        // Then
+        assertThat(result).isEqualTo(2);
+    }
+
+    @Test
+    public void getGenerations_whenNoneWasStarted_shouldReturnNoGeneration() {
+        // When
+        final StatsRollupGenerations result = repository.getGenerations();
+
+        // Then
+        assertThat(result.getCurrent()).isNull();
+        assertThat(result.getPending()).isNull();
+    }
+
+    @Test
+    public void startGeneration_shouldAllocateNewPendingGeneration() {
+        // Given
+        final Date from = new Date(1000L);
+        repository.startGeneration(new Date(0L));
+        repository.swapGeneration(1L);
+
+        // When
+        final StatsRollupGenerations result = repository.startGeneration(from);
+
+        // Then
+        final StatsRollupGenerations stored = repository.getGenerations();
+        assertThat(result.getPending()).isEqualTo(2L);
+        assertThat(stored.getCurrent()).isEqualTo(1L);
+        assertThat(stored.getPending()).isEqualTo(2L);
+        assertThat(stored.getPendingFrom()).isEqualTo(from);
+    }
+
+    @Test
+    public void startScan_whenScanAlreadyStarted_shouldReturnFalse() {
+        // Given
+        repository.startGeneration(new Date(0L));
+
+        // When
+        final boolean first = repository.startScan(1L);
+        final boolean second = repository.startScan(1L);
+
+        // Then
+        assertThat(first).isTrue();
+        assertThat(second).isFalse();
+    }
+
+    @Test
+    public void swapGeneration_whenGenerationWasAbandoned_shouldKeepCurrentGeneration() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        repository.startGeneration(new Date(0L));
+        repository.incrementCounts(Arrays.asList(getVersionRollup(userId, "v1", 1), getVersionRollup(userId, "v1", 2).toBuilder().generation(1L).build()));
+        repository.abandonGeneration(1L);
+
+        // When
+        final boolean result = repository.swapGeneration(1L);
+
+        // Then
+        assertThat(result).isFalse();
+        assertThat(repository.getGenerations().getCurrent()).isNull();
+        assertThat(mongoTemplate.find(query(where("userId").is(userId)), StatsRollup.class))
+                .extracting(StatsRollup::getGeneration, StatsRollup::getCount)
+                .containsOnly(tuple(null, 1L));
+    }
+
+    @Test
+    public void removeGenerations_shouldOnlyKeepCurrentGeneration() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        repository.incrementCounts(Arrays.asList(
+                getVersionRollup(userId, "v1", 1),
+                getVersionRollup(userId, "v1", 2).toBuilder().generation(1L).build(),
+                getVersionRollup(userId, "v1", 3).toBuilder().generation(2L).build()
+        ));
+
+        // When
+        repository.removeGenerations(2L);
+
+        // Then
+        assertThat(mongoTemplate.find(query(where("userId").is(userId)), StatsRollup.class))
+                .extracting(StatsRollup::getGeneration, StatsRollup::getCount)
+                .containsOnly(tuple(2L, 3L));
+    }
+
+    private static StatsRollup getVersionRollup(String userId, String versionId, long count) {
+        return StatsRollup.builder().userId(userId).dimension(StatsRollup.VERSION_ID_DIMENSION).key(versionId).count(count).build();
+    }
+
+    private static StatsRollup getBucketRollup(String userId, long bucket, long count) {
+        return StatsRollup.builder().userId(userId).dimension(StatsRollup.LAST_SEEN_DIMENSION).bucket(new Date(bucket)).count(count).build();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.commons.test.MongoRepositoryTest;
+import io.barracks.deviceservice.model.SpaceSaving;
+import io.barracks.deviceservice.model.TopValuesSketch;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class TopValuesSketchRepositoryTest extends MongoRepositoryTest {
+    private static final String KEY = "customClientData.country";
+    private TopValuesSketchRepositoryImpl repository;
+    private MongoTemplate mongoTemplate;
+
+    public TopValuesSketchRepositoryTest() {
+        super(TopValuesSketch.class.getDeclaredAnnotation(Document.class).collection());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mongoTemplate = new MongoTemplate(getMongo(), getDatabaseName());
+        repository = new TopValuesSketchRepositoryImpl(mongoTemplate);
+    }
+
+    @Test
+    public void applyCounts_whenSketchDoesNotExist_shouldCreateIt() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final Map<String, Long> deltas = new HashMap<>();
+        deltas.put("FR", 2L);
+        deltas.put("DE", 1L);
+
+        // When
+        repository.applyCounts(userId, KEY, 10, deltas);
+
+        // Then
+        final TopValuesSketch result = findSketch(userId);
+        assertThat(result.getCounters()).containsExactly(new SpaceSaving.Counter("FR", 2, 0), new SpaceSaving.Counter("DE", 1, 0));
+        assertThat(result.getTotal()).isEqualTo(3);
+    }
+
+    @Test
+    public void applyCounts_whenSketchExists_shouldApplyDecreasesBeforeIncreases() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final Map<String, Long> initial = new HashMap<>();
+        initial.put("FR", 2L);
+        initial.put("DE", 1L);
+        repository.applyCounts(userId, KEY, 2, initial);
+        final Map<String, Long> deltas = new HashMap<>();
+        deltas.put("DE", -1L);
+        deltas.put("IT", 1L);
+
+        // When
+        repository.applyCounts(userId, KEY, 2, deltas);
+
+        // Then
+        final TopValuesSketch result = findSketch(userId);
+        assertThat(result.getCounters()).containsExactly(new SpaceSaving.Counter("FR", 2, 0), new SpaceSaving.Counter("IT", 1, 0));
+        assertThat(result.getTotal()).isEqualTo(3);
+        assertThat(result.getVersion()).isEqualTo(1);
+    }
+
+    @Test
+    public void replaceSketch_shouldOverwriteStoredSketch() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        repository.applyCounts(userId, KEY, 10, Collections.singletonMap("FR", 4L));
+        final SpaceSaving sketch = new SpaceSaving(10, Arrays.asList(new SpaceSaving.Counter("DE", 3, 0)), 5);
+
+        // When
+        repository.replaceSketch(userId, KEY, sketch);
+
+        // Then
+        final TopValuesSketch result = findSketch(userId);
+        assertThat(mongoTemplate.findAll(TopValuesSketch.class)).hasSize(1);
+        assertThat(result.getCounters()).containsExactly(new SpaceSaving.Counter("DE", 3, 0));
+        assertThat(result.getTotal()).isEqualTo(5);
+    }
+
+    private TopValuesSketch findSketch(String userId) {
+        return mongoTemplate.findOne(query(where("userId").is(userId).and("key").is(KEY)), TopValuesSketch.class);
+    }
+}
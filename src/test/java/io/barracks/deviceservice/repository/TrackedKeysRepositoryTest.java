@@ -0,0 +1,94 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.repository;
+
+import io.barracks.commons.test.MongoRepositoryTest;
+import io.barracks.deviceservice.model.TrackedKeys;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TrackedKeysRepositoryTest extends MongoRepositoryTest {
+    private TrackedKeysRepositoryImpl repository;
+
+    public TrackedKeysRepositoryTest() {
+        super(TrackedKeys.class.getDeclaredAnnotation(Document.class).collection());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        repository = new TrackedKeysRepositoryImpl(new MongoTemplate(getMongo(), getDatabaseName()));
+    }
+
+    @Test
+    public void updateKeys_whenExisting_shouldReplaceKeys() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<String> keys = Arrays.asList("customClientData.a", "customClientData.b");
+        repository.updateKeys(userId, Collections.singletonList("customClientData.c"));
+
+        // When
+        final TrackedKeys result = repository.updateKeys(userId, keys);
+
+        // Then
+        assertThat(result).isEqualTo(TrackedKeys.builder().id(result.getId()).userId(userId).keys(keys).build());
+        assertThat(repository.getKeys(userId)).isEqualTo(keys);
+    }
+
+    @Test
+    public void getKeys_whenNotSet_shouldReturnEmptyList() {
+        // When
+        final List<String> result = repository.getKeys(UUID.randomUUID().toString());
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void updateQuantileKeys_shouldKeepTopValuesKeys() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<String> keys = Collections.singletonList("customClientData.country");
+        final List<String> quantileKeys = Collections.singletonList("customClientData.battery");
+        repository.updateKeys(userId, keys);
+
+        // When
+        final TrackedKeys result = repository.updateQuantileKeys(userId, quantileKeys);
+
+        // Then
+        assertThat(result.getKeys()).isEqualTo(keys);
+        assertThat(repository.getQuantileKeys(userId)).isEqualTo(quantileKeys);
+        assertThat(repository.getKeys(userId)).isEqualTo(keys);
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.rest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BulkheadFilterTest {
+    private static final long QUEUE_TIMEOUT = 1000L;
+
+    @Mock
+    private GaugeService gaugeService;
+
+    private BulkheadFilter bulkheadFilter;
+
+    @Before
+    public void setUp() {
+        bulkheadFilter = new BulkheadFilter(Arrays.asList(
+                new BulkheadFilter.Bulkhead(TrafficClass.INGESTION, 2, 10),
+                new BulkheadFilter.Bulkhead(TrafficClass.STATS, 1, 1)
+        ), gaugeService, QUEUE_TIMEOUT);
+    }
+
+    @Test
+    public void doFilter_whenRequestIsNotClassified_shouldPassThrough() throws Exception {
+        // Given
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/owners/user/filters");
+        final AtomicInteger calls = new AtomicInteger();
+
+        // When
+        bulkheadFilter.doFilter(request, new MockHttpServletResponse(), (req, res) -> calls.incrementAndGet());
+
+        // Then
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(getMetrics()).containsEntry("bulkhead.stats.admitted", 0L);
+    }
+
+    @Test
+    public void doFilter_whenBulkheadHasRoom_shouldProcessRequestAndReleaseIt() throws Exception {
+        // Given
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stats/user/devices/perVersionId");
+        final AtomicInteger activeDuringRequest = new AtomicInteger();
+
+        // When
+        bulkheadFilter.doFilter(request, new MockHttpServletResponse(),
+                (req, res) -> activeDuringRequest.set(getMetrics().get("bulkhead.stats.active").intValue()));
+
+        // Then
+        assertThat(activeDuringRequest.get()).isEqualTo(1);
+        assertThat(request.isAsyncStarted()).isFalse();
+        assertThat(getMetrics()).contains(entry("bulkhead.stats.active", 0), entry("bulkhead.stats.admitted", 1L));
+    }
+
+    @Test
+    public void doFilter_whenBulkheadIsBusy_shouldQueueRequestUntilSlotIsReleased() throws Exception {
+        // Given
+        final MockHttpServletRequest queued = createAsyncRequest("/stats/user/devices/perVersionId");
+        final AtomicInteger queuedCalls = new AtomicInteger();
+        final FilterChain queuedChain = (req, res) -> queuedCalls.incrementAndGet();
+        final FilterChain busyChain = (req, res) -> {
+            // When
+            bulkheadFilter.doFilter(queued, new MockHttpServletResponse(), queuedChain);
+
+            // Then
+            assertThat(queued.isAsyncStarted()).isTrue();
+            assertThat(queuedCalls.get()).isEqualTo(0);
+            assertThat(getMetrics()).contains(entry("bulkhead.stats.active", 1), entry("bulkhead.stats.queued", 1));
+        };
+
+        // When
+        bulkheadFilter.doFilter(new MockHttpServletRequest("GET", "/stats/user/devices/seen"), new MockHttpServletResponse(), busyChain);
+        final MockAsyncContext context = (MockAsyncContext) queued.getAsyncContext();
+        queued.setAsyncStarted(false);
+        queued.setDispatcherType(DispatcherType.ASYNC);
+        bulkheadFilter.doFilter(queued, new MockHttpServletResponse(), queuedChain);
+
+        // Then
+        assertThat(context.getDispatchedPath()).isNotNull();
+        assertThat(context.getTimeout()).isEqualTo(QUEUE_TIMEOUT);
+        assertThat(queuedCalls.get()).isEqualTo(1);
+        assertThat(queued.getAttribute(BulkheadFilter.ADMITTED_ATTRIBUTE)).isNull();
+        assertThat(getMetrics()).contains(
+                entry("bulkhead.stats.active", 0),
+                entry("bulkhead.stats.queued", 0),
+                entry("bulkhead.stats.admitted", 2L)
+        );
+        verify(gaugeService).submit(eq("timer.bulkhead.stats.wait"), anyDouble());
+    }
+
+    @Test
+    public void doFilter_whenQueueIsFull_shouldRejectRequest() throws Exception {
+        // Given
+        final MockHttpServletResponse rejectedResponse = new MockHttpServletResponse();
+        final AtomicInteger calls = new AtomicInteger();
+        final FilterChain busyChain = (req, res) -> {
+            bulkheadFilter.doFilter(createAsyncRequest("/stats/user/devices/seen"), new MockHttpServletResponse(), (r, s) -> calls.incrementAndGet());
+
+            // When
+            bulkheadFilter.doFilter(createAsyncRequest("/stats/user/devices/lastSeen"), rejectedResponse, (r, s) -> calls.incrementAndGet());
+        };
+        bulkheadFilter.doFilter(new MockHttpServletRequest("GET", "/stats/user/devices/perVersionId"), new MockHttpServletResponse(), busyChain);
+
+        // Then
+        assertThat(rejectedResponse.getStatus()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE.value());
+        assertThat(getMetrics()).contains(entry("bulkhead.stats.rejected", 1L), entry("bulkhead.ingestion.rejected", 0L));
+    }
+
+    @Test
+    public void doFilter_whenOtherClassIsBusy_shouldProcessRequest() throws Exception {
+        // Given
+        final MockHttpServletRequest ingestion = new MockHttpServletRequest("POST", "/devices");
+        final AtomicInteger calls = new AtomicInteger();
+        final FilterChain busyChain = (req, res) -> bulkheadFilter.doFilter(ingestion, new MockHttpServletResponse(), (r, s) -> calls.incrementAndGet());
+
+        // When
+        bulkheadFilter.doFilter(new MockHttpServletRequest("GET", "/stats/user/devices/perVersionId"), new MockHttpServletResponse(), busyChain);
+
+        // Then
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(ingestion.isAsyncStarted()).isFalse();
+    }
+
+    @Test
+    public void doFilter_whenQueuedRequestTimesOut_shouldRejectIt() throws Exception {
+        // Given
+        final MockHttpServletRequest queued = createAsyncRequest("/stats/user/devices/seen");
+        final MockHttpServletResponse queuedResponse = new MockHttpServletResponse();
+        final FilterChain busyChain = (req, res) -> {
+            bulkheadFilter.doFilter(queued, queuedResponse, (r, s) -> {
+            });
+
+            // When
+            final MockAsyncContext context = (MockAsyncContext) queued.getAsyncContext();
+            for (AsyncListener listener : context.getListeners()) {
+                listener.onTimeout(new AsyncEvent(context, queued, queuedResponse));
+            }
+
+            // Then
+            assertThat(context.getDispatchedPath()).isNull();
+        };
+        bulkheadFilter.doFilter(new MockHttpServletRequest("GET", "/stats/user/devices/perVersionId"), new MockHttpServletResponse(), busyChain);
+
+        // Then
+        assertThat(queuedResponse.getStatus()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE.value());
+        assertThat(getMetrics()).contains(
+                entry("bulkhead.stats.timedOut", 1L),
+                entry("bulkhead.stats.queued", 0),
+                entry("bulkhead.stats.active", 0)
+        );
+    }
+
+    @Test
+    public void doFilter_whenQueuedRequestTimesOutWhileBeingAdmitted_shouldRejectIt() throws Exception {
+        // Given
+        final MockHttpServletRequest queued = new MockHttpServletRequest("GET", "/stats/user/devices/seen") {
+            @Override
+            public AsyncContext startAsync(ServletRequest request, ServletResponse response) {
+                // The container refuses the dispatch of a request whose timeout already fired
+                final MockAsyncContext context = new MockAsyncContext(request, response) {
+                    @Override
+                    public void dispatch() {
+                        throw new IllegalStateException("Timed out");
+                    }
+                };
+                setAsyncStarted(true);
+                setAsyncContext(context);
+                return context;
+            }
+        };
+        queued.setAsyncSupported(true);
+        final MockHttpServletResponse queuedResponse = new MockHttpServletResponse();
+        final FilterChain busyChain = (req, res) -> bulkheadFilter.doFilter(queued, queuedResponse, (r, s) -> {
+        });
+
+        // When
+        bulkheadFilter.doFilter(new MockHttpServletRequest("GET", "/stats/user/devices/perVersionId"), new MockHttpServletResponse(), busyChain);
+
+        // Then
+        assertThat(queuedResponse.getStatus()).isEqualTo(HttpStatus.SERVICE_UNAVAILABLE.value());
+        assertThat(queued.isAsyncStarted()).isFalse();
+        assertThat(getMetrics()).contains(
+                entry("bulkhead.stats.timedOut", 1L),
+                entry("bulkhead.stats.queued", 0),
+                entry("bulkhead.stats.active", 0)
+        );
+    }
+
+    @Test
+    public void doFilter_whenHandlerStartsAsyncProcessing_shouldKeepSlotUntilCompletion() throws Exception {
+        // Given
+        final MockHttpServletRequest request = createAsyncRequest("/stats/user/devices/perVersionId");
+
+        // When
+        bulkheadFilter.doFilter(request, new MockHttpServletResponse(), (req, res) -> req.startAsync());
+
+        // Then
+        assertThat(getMetrics()).containsEntry("bulkhead.stats.active", 1);
+        request.getAsyncContext().complete();
+        assertThat(getMetrics()).containsEntry("bulkhead.stats.active", 0);
+    }
+
+    private MockHttpServletRequest createAsyncRequest(String path) {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+        request.setAsyncSupported(true);
+        return request;
+    }
+
+    private Map<String, Number> getMetrics() {
+        return bulkheadFilter.metrics().stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package io.barracks.deviceservice.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.commons.test.ServiceClientTest;
+import io.barracks.deviceservice.config.ExceptionConfig;
+import io.barracks.deviceservice.manager.DeviceExporter;
+import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceFields;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.restdocs.RestDocumentation;
+import org.springframework.restdocs.mockmvc.RestDocumentationResultHandler;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static org.mockito.Mockito.*;
+import static org.springframework.restdocs.mockmvc.MockMvcRestDocumentation.document;
+import static org.springframework.restdocs.mockmvc.MockMvcRestDocumentation.documentationConfiguration;
+import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeviceExportResourceTest extends ServiceClientTest {
+    @Rule
+    public final RestDocumentation restDocumentation = new RestDocumentation("build/generated-snippets");
+    private MockMvc mvc;
+
+    @Mock
+    private DeviceExporter deviceExporter;
+
+    @Before
+    public void setUp() throws Exception {
+        final RestDocumentationResultHandler document = document("{method-name}", preprocessRequest(prettyPrint()), preprocessResponse(prettyPrint()));
+        this.mvc = MockMvcBuilders
+                .standaloneSetup(new DeviceExportResource(new ObjectMapper(), deviceExporter))
+                .setHandlerExceptionResolvers(new ExceptionConfig().restExceptionResolver().build())
+                .apply(documentationConfiguration(restDocumentation))
+                .alwaysDo(document)
+                .build();
+    }
+
+    @Test
+    public void exportDevices_shouldStreamOneSelectedDevicePerLine() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DeviceFields fields = DeviceFields.parse("unitId");
+        final Device device1 = Device.builder().userId(userId).unitId("unit1").build();
+        final Device device2 = Device.builder().userId(userId).unitId("unit2").build();
+        doAnswer(invocation -> {
+            final Consumer<Device> consumer = (Consumer<Device>) invocation.getArguments()[3];
+            consumer.accept(device1);
+            consumer.accept(device2);
+            return null;
+        }).when(deviceExporter).exportDevices(eq(userId), eq(Optional.empty()), eq(fields), any());
+
+        // When
+        final MvcResult started = mvc.perform(
+                MockMvcRequestBuilders.get("/devices:export?userId={userId}&fields={fields}", userId, "unitId")
+                        .accept(DeviceExportResource.NDJSON_VALUE)
+        ).andExpect(request().asyncStarted()).andReturn();
+        final ResultActions result = mvc.perform(asyncDispatch(started));
+
+        // Then
+        verify(deviceExporter).exportDevices(eq(userId), eq(Optional.empty()), eq(fields), any());
+        result.andExpect(status().isOk())
+                .andExpect(content().string("{\"unitId\":\"unit1\"}\n{\"unitId\":\"unit2\"}\n"));
+    }
+
+    @Test
+    public void exportDevices_withInvalidQuery_shouldReturn400BadRequest() throws Exception {
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get("/devices:export?userId={userId}&query={query}", UUID.randomUUID().toString(), "{invalid")
+                        .accept(DeviceExportResource.NDJSON_VALUE)
+        );
+
+        // Then
+        verifyZeroInteractions(deviceExporter);
+        result.andExpect(status().isBadRequest());
+    }
+}
@@ -29,11 +29,18 @@ import io.barracks.commons.test.AnyBarracksClientException;
 import io.barracks.commons.test.JsonResourceLoader;
 import io.barracks.commons.test.ServiceClientTest;
 import io.barracks.deviceservice.config.ExceptionConfig;
+import io.barracks.deviceservice.manager.DeviceEventIngester;
 import io.barracks.deviceservice.manager.DeviceManager;
+import io.barracks.deviceservice.manager.exception.InvalidDeviceEventException;
+import io.barracks.deviceservice.model.CountStrategy;
+import io.barracks.deviceservice.model.CountedPage;
 import io.barracks.deviceservice.model.Device;
 import io.barracks.deviceservice.model.DeviceConfiguration;
 import io.barracks.deviceservice.model.DeviceEvent;
+import io.barracks.deviceservice.model.DeviceEventBatchItem;
+import io.barracks.deviceservice.model.DeviceFields;
 import io.barracks.deviceservice.model.operator.Operator;
+import io.barracks.deviceservice.utils.DeviceUtils;
 import net.minidev.json.JSONObject;
 import org.junit.Before;
 import org.junit.Rule;
@@ -42,8 +49,10 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.web.HateoasPageableHandlerMethodArgumentResolver;
 import org.springframework.data.web.PagedResourcesAssembler;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.restdocs.RestDocumentation;
@@ -60,6 +69,7 @@ import static org.mockito.Mockito.*;
 import static org.springframework.restdocs.mockmvc.MockMvcRestDocumentation.document;
 import static org.springframework.restdocs.mockmvc.MockMvcRestDocumentation.documentationConfiguration;
 import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -77,6 +87,8 @@ public class DeviceResourceTest extends ServiceClientTest {
 
     @Mock
     private DeviceManager deviceManager;
+    @Mock
+    private DeviceEventIngester deviceEventIngester;
 
     private HateoasPageableHandlerMethodArgumentResolver argumentResolver = new HateoasPageableHandlerMethodArgumentResolver();
 
@@ -85,7 +97,7 @@ public class DeviceResourceTest extends ServiceClientTest {
         final PagedResourcesAssembler<DeviceEvent> deviceEventAssembler = new PagedResourcesAssembler<>(argumentResolver, null);
         final PagedResourcesAssembler<Device> deviceAssembler = new PagedResourcesAssembler<>(argumentResolver, null);
         objectMapper = new ObjectMapper();
-        deviceResource = new DeviceResource(objectMapper, deviceManager, deviceAssembler, deviceEventAssembler);
+        deviceResource = new DeviceResource(objectMapper, deviceManager, deviceEventIngester, deviceAssembler, deviceEventAssembler);
         final RestDocumentationResultHandler document = document("{method-name}", preprocessRequest(prettyPrint()), preprocessResponse(prettyPrint()));
         this.mvc = MockMvcBuilders
                 .standaloneSetup(deviceResource)
@@ -94,7 +106,7 @@ public class DeviceResourceTest extends ServiceClientTest {
                 .apply(documentationConfiguration(restDocumentation))
                 .alwaysDo(document)
                 .build();
-        reset(deviceManager);
+        reset(deviceManager, deviceEventIngester);
     }
 
     @Test
@@ -167,6 +179,110 @@ public class DeviceResourceTest extends ServiceClientTest {
         verify(deviceManager).saveDeviceEvent(source);
     }
 
+    @Test
+    public void createDevice_whenAsynchronous_shouldQueueEventAndReturnAccepted() throws Exception {
+        // Given
+        final JSONObject json = getJsonFromResource("request");
+        final DeviceEvent source = DeviceEvent.builder()
+                .userId(json.getAsString("userId"))
+                .unitId(json.getAsString("unitId"))
+                .versionId(json.getAsString("versionId"))
+                .build();
+        doReturn(true).when(deviceEventIngester).isAsynchronous();
+        doReturn(true).when(deviceEventIngester).enqueue(source);
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.post("/devices/")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(json.toJSONString())
+        );
+
+        // Then
+        verify(deviceEventIngester).enqueue(source);
+        verifyZeroInteractions(deviceManager);
+        result.andExpect(status().isAccepted())
+                .andExpect(jsonPath("userId").value(source.getUserId()))
+                .andExpect(jsonPath("unitId").value(source.getUnitId()));
+    }
+
+    @Test
+    public void createDevice_whenAsynchronousAndQueueIsFull_shouldReturnTooManyRequests() throws Exception {
+        // Given
+        final JSONObject json = getJsonFromResource("request");
+        doReturn(true).when(deviceEventIngester).isAsynchronous();
+        doReturn(false).when(deviceEventIngester).enqueue(any());
+        doReturn(5L).when(deviceEventIngester).getRetryAfter();
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.post("/devices/")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(json.toJSONString())
+        );
+
+        // Then
+        verifyZeroInteractions(deviceManager);
+        result.andExpect(status().isTooManyRequests())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "5"));
+    }
+
+    @Test
+    public void createDevice_whenAsynchronousAndEventIsInvalid_shouldReturnBadRequest() throws Exception {
+        // Given
+        final JSONObject json = getJsonFromResource("request");
+        doReturn(true).when(deviceEventIngester).isAsynchronous();
+        doThrow(new InvalidDeviceEventException(Collections.emptySet())).when(deviceEventIngester).enqueue(any());
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.post("/devices/")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(json.toJSONString())
+        );
+
+        // Then
+        verifyZeroInteractions(deviceManager);
+        result.andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void createDevices_whenAllIsFine_shouldCallManagerAndReturnResultForEachEvent() throws Exception {
+        // Given
+        final JSONObject json = getJsonFromResource("request");
+        final DeviceEvent source = DeviceEvent.builder()
+                .userId(json.getAsString("userId"))
+                .unitId(json.getAsString("unitId"))
+                .versionId(json.getAsString("versionId"))
+                .build();
+        final DeviceEvent created = source.toBuilder()
+                .id(UUID.randomUUID().toString())
+                .receptionDate(new Date(123456789000L))
+                .build();
+        final List<DeviceEventBatchItem> items = Arrays.asList(
+                DeviceEventBatchItem.created(0, created),
+                DeviceEventBatchItem.failed(1, HttpStatus.INTERNAL_SERVER_ERROR, "error")
+        );
+        doReturn(items).when(deviceManager).saveDeviceEvents(Arrays.asList(source, source));
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.post("/devices/events:batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[" + json.toJSONString() + "," + json.toJSONString() + "]")
+        );
+
+        // Then
+        verify(deviceManager).saveDeviceEvents(Arrays.asList(source, source));
+        result.andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].index").value(0))
+                .andExpect(jsonPath("$[0].status").value(201))
+                .andExpect(jsonPath("$[0].event.id").value(created.getId()))
+                .andExpect(jsonPath("$[1].index").value(1))
+                .andExpect(jsonPath("$[1].status").value(500))
+                .andExpect(jsonPath("$[1].error").value("error"));
+    }
+
     @Test
     public void getDevicesByUserId_whenAllIsFineAndNoDevice_shouldCallManagerAndReturnEmptyPage() throws Exception {
         // Given
@@ -222,6 +338,45 @@ public class DeviceResourceTest extends ServiceClientTest {
         result.andExpect(status().isBadRequest());
     }
 
+    @Test
+    public void getDevicesByUserId_withFields_shouldRenderSelectedFieldsOnly() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final Device device = DeviceUtils.getDevice().toBuilder()
+                .lastEvent(DeviceEvent.builder().versionId(UUID.randomUUID().toString()).build())
+                .build();
+        final DeviceFields fields = DeviceFields.parse("unitId,lastEvent.versionId");
+        doReturn(new CountedPage<>(Collections.singletonList(device), new PageRequest(0, 20), 1, CountStrategy.EXACT))
+                .when(deviceManager).getDevicesByUserId(eq(userId), eq(Optional.empty()), any(), eq(CountStrategy.EXACT), eq(fields));
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get(GET_DEVICES_BY_USER_ID_ENDPOINT + "&fields={fields}", userId, "unitId,lastEvent.versionId")
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verify(deviceManager).getDevicesByUserId(eq(userId), eq(Optional.empty()), any(), eq(CountStrategy.EXACT), eq(fields));
+        result.andExpect(status().isOk())
+                .andExpect(jsonPath("$.content[0].unitId").value(device.getUnitId()))
+                .andExpect(jsonPath("$.content[0].lastEvent.versionId").value(device.getLastEvent().getVersionId()))
+                .andExpect(jsonPath("$.content[0].userId").doesNotExist())
+                .andExpect(jsonPath("$.content[0].lastEvent.additionalProperties").doesNotExist());
+    }
+
+    @Test
+    public void getDevicesByUserId_withUnknownField_shouldReturn400BadRequest() throws Exception {
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get(GET_DEVICES_BY_USER_ID_ENDPOINT + "&fields={fields}", UUID.randomUUID().toString(), "unitId,unknown")
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verifyZeroInteractions(deviceManager);
+        result.andExpect(status().isBadRequest());
+    }
+
     @Test
     public void getDevices_whenAllIsFine_shouldCallManagerAndReturnDeviceList() throws Exception {
         // Given
@@ -434,4 +589,23 @@ public class DeviceResourceTest extends ServiceClientTest {
                 .andExpect(jsonPath("unitId").value(unitId))
                 .andExpect(jsonPath("lastEvent.versionId").value(event.getVersionId()));
     }
+
+    @Test
+    public void getUnit_whenUnitIdIsExport_shouldReturnUnit() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final Device device = Device.builder().unitId("export").userId(userId).build();
+        doReturn(device).when(deviceManager).getDeviceByUserIdAndUnitId(userId, "export");
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get("/devices/{unitId}?userId={userId}", "export", userId)
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verify(deviceManager).getDeviceByUserIdAndUnitId(userId, "export");
+        result.andExpect(status().isOk())
+                .andExpect(jsonPath("unitId").value("export"));
+    }
 }
@@ -25,6 +25,8 @@
 package io.barracks.deviceservice.rest;
 
 import io.barracks.deviceservice.manager.FilterManager;
+import io.barracks.deviceservice.model.CountStrategy;
+import io.barracks.deviceservice.model.CountedPage;
 import io.barracks.deviceservice.model.Filter;
 import io.barracks.deviceservice.utils.FilterUtils;
 import io.barracks.deviceservice.utils.PagedResourcesUtils;
@@ -118,6 +120,27 @@ public class FilterResourceTest {
         assertThat(result).isEqualTo(expected);
     }
 
+    @Test
+    public void getFilters_withCount_shouldCallManagerAndReturnKindOfCount() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final Pageable pageable = new PageRequest(0, 10);
+        final CountedPage<Filter> page = new CountedPage<>(Lists.newArrayList(FilterUtils.getFilter()), pageable, 42, CountStrategy.ESTIMATE);
+        final PagedResources<Resource<Filter>> assembled = PagedResourcesUtils.buildPagedResourcesFromPage(page);
+
+        when(filterManager.getFiltersByUserId(userId, pageable, CountStrategy.ESTIMATE)).thenReturn(page);
+        when(filterPagedResourcesAssembler.toResource(page)).thenReturn(assembled);
+
+        // When
+        final PagedResources<Resource<Filter>> result = filterResource.getFilters(userId, CountStrategy.ESTIMATE, pageable);
+
+        // Then
+        verify(filterManager).getFiltersByUserId(userId, pageable, CountStrategy.ESTIMATE);
+        assertThat(result.getContent()).isEqualTo(assembled.getContent());
+        assertThat(result.getMetadata().getTotalElements()).isEqualTo(42);
+        assertThat(result.getMetadata()).isInstanceOf(CountedPages.CountedPageMetadata.class);
+        assertThat(((CountedPages.CountedPageMetadata) result.getMetadata()).getCount()).isEqualTo("estimate");
+    }
 
     @Test
     public void getFilter_whenFilter_shouldCallManagerAndReturnFilter() throws Exception {
@@ -0,0 +1,132 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.rest;
+
+import io.barracks.commons.test.ServiceClientTest;
+import io.barracks.deviceservice.config.ExceptionConfig;
+import io.barracks.deviceservice.manager.EventRetention;
+import io.barracks.deviceservice.model.RetentionPolicy;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.MediaType;
+import org.springframework.restdocs.RestDocumentation;
+import org.springframework.restdocs.mockmvc.RestDocumentationResultHandler;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.UUID;
+
+import static org.mockito.Mockito.*;
+import static org.springframework.restdocs.mockmvc.MockMvcRestDocumentation.document;
+import static org.springframework.restdocs.mockmvc.MockMvcRestDocumentation.documentationConfiguration;
+import static org.springframework.restdocs.operation.preprocess.Preprocessors.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RetentionResourceTest extends ServiceClientTest {
+    @Rule
+    public final RestDocumentation restDocumentation = new RestDocumentation("build/generated-snippets");
+    private MockMvc mvc;
+
+    @Mock
+    private EventRetention eventRetention;
+
+    @Before
+    public void setUp() throws Exception {
+        final RestDocumentationResultHandler document = document("{method-name}", preprocessRequest(prettyPrint()), preprocessResponse(prettyPrint()));
+        this.mvc = MockMvcBuilders
+                .standaloneSetup(new RetentionResource(eventRetention))
+                .setHandlerExceptionResolvers(new ExceptionConfig().restExceptionResolver().build())
+                .apply(documentationConfiguration(restDocumentation))
+                .alwaysDo(document)
+                .build();
+    }
+
+    @Test
+    public void getPolicy_shouldReturnProperlyFormattedJson() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final RetentionPolicy policy = RetentionPolicy.builder().userId(userId).unchangedEventsDays(30).changedEventsDays(365).build();
+        when(eventRetention.getPolicy(userId)).thenReturn(policy);
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get("/retention/{userId}", userId)
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verify(eventRetention).getPolicy(userId);
+        result.andExpect(status().isOk())
+                .andExpect(jsonPath("unchangedEventsDays").value(30))
+                .andExpect(jsonPath("changedEventsDays").value(365))
+                .andExpect(jsonPath("userId").doesNotExist());
+    }
+
+    @Test
+    public void updatePolicy_shouldReturnUpdatedPolicy() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final RetentionPolicy policy = RetentionPolicy.builder().unchangedEventsDays(7).build();
+        final RetentionPolicy updated = policy.toBuilder().userId(userId).changedEventsDays(0).build();
+        when(eventRetention.updatePolicy(userId, policy)).thenReturn(updated);
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.put("/retention/{userId}", userId)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"unchangedEventsDays\": 7}")
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verify(eventRetention).updatePolicy(userId, policy);
+        result.andExpect(status().isOk())
+                .andExpect(jsonPath("unchangedEventsDays").value(7))
+                .andExpect(jsonPath("changedEventsDays").value(0));
+    }
+
+    @Test
+    public void updatePolicy_whenDaysAreNegative_shouldReturnBadRequest() throws Exception {
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.put("/retention/{userId}", UUID.randomUUID().toString())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"unchangedEventsDays\": -1}")
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verifyZeroInteractions(eventRetention);
+        result.andExpect(status().isBadRequest());
+    }
+}
@@ -28,7 +28,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import io.barracks.commons.test.ServiceClientTest;
 import io.barracks.deviceservice.config.ExceptionConfig;
 import io.barracks.deviceservice.manager.SegmentManager;
+import io.barracks.deviceservice.model.CursorPage;
 import io.barracks.deviceservice.model.Device;
+import io.barracks.deviceservice.model.DeviceFields;
 import io.barracks.deviceservice.model.Segment;
 import io.barracks.deviceservice.utils.DeviceUtils;
 import net.minidev.json.JSONObject;
@@ -51,6 +53,7 @@ import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
 import java.util.Arrays;
@@ -81,7 +84,7 @@ public class SegmentResourceTest extends ServiceClientTest {
     public void setUp() throws Exception {
         final PagedResourcesAssembler<Segment> assembler = new PagedResourcesAssembler<>(argumentResolver, null);
         final PagedResourcesAssembler<Device> deviceAssembler = new PagedResourcesAssembler<>(argumentResolver, null);
-        segmentResource = new SegmentResource(assembler, deviceAssembler, segmentManager);
+        segmentResource = new SegmentResource(assembler, deviceAssembler, segmentManager, new ObjectMapper());
         final RestDocumentationResultHandler document = document("{method-name}", preprocessRequest(prettyPrint()), preprocessResponse(prettyPrint()));
         this.mvc = MockMvcBuilders
                 .standaloneSetup(segmentResource)
@@ -399,6 +402,35 @@ public class SegmentResourceTest extends ServiceClientTest {
         result.andExpect(jsonPath("$.content[1].unitId").value(devices.get(1).getUnitId()));
     }
 
+    @Test
+    public void getDevicesForSegment_withCursor_shouldCallManager_andLinkNextPage() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String segmentId = UUID.randomUUID().toString();
+        final String nextCursor = UUID.randomUUID().toString();
+        final MultiValueMap<String, String> query = new LinkedMultiValueMap<>();
+        query.add("cursor", "");
+        query.add("size", "2");
+        final List<Device> devices = Arrays.asList(
+                Device.builder().unitId(UUID.randomUUID().toString()).userId(userId).build(),
+                Device.builder().unitId(UUID.randomUUID().toString()).userId(userId).build()
+        );
+        doReturn(new CursorPage<>(devices, nextCursor)).when(segmentManager).getDevicesBySegmentId(segmentId, "", 2, DeviceFields.ALL);
+
+        // When
+        ResultActions result = mvc.perform(MockMvcRequestBuilders
+                .get(getUri(query, "segments", segmentId, "devices"))
+                .accept(MediaTypes.HAL_JSON_VALUE)
+        );
+
+        // Then
+        verify(segmentManager).getDevicesBySegmentId(segmentId, "", 2, DeviceFields.ALL);
+        result.andExpect(status().isOk())
+                .andExpect(jsonPath("$.content[0].unitId").value(devices.get(0).getUnitId()))
+                .andExpect(jsonPath("$.content[1].unitId").value(devices.get(1).getUnitId()))
+                .andExpect(jsonPath("$.links[1].rel").value("next"));
+    }
+
     @Test
     public void getOtherDevicesForUser_shouldCallManager_andReturnResult() throws Exception {
         // Given
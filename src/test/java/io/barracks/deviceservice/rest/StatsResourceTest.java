@@ -27,7 +27,10 @@ package io.barracks.deviceservice.rest;
 import io.barracks.commons.test.ServiceClientTest;
 import io.barracks.deviceservice.config.ExceptionConfig;
 import io.barracks.deviceservice.manager.StatsManager;
+import io.barracks.deviceservice.manager.exception.InvalidStatsKeyException;
 import io.barracks.deviceservice.model.DataSet;
+import io.barracks.deviceservice.model.DataSetMatrix;
+import io.barracks.deviceservice.model.Segment;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -47,6 +50,7 @@ import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.ResultMatcher;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.validation.beanvalidation.MethodValidationPostProcessor;
 
 import java.math.BigDecimal;
 import java.security.SecureRandom;
@@ -76,7 +80,10 @@ public class StatsResourceTest extends ServiceClientTest {
 
     @Before
     public void setUp() throws Exception {
-        statsResource = new StatsResource(statsManager);
+        // The resource is proxied as in the application so that its parameters are validated
+        final MethodValidationPostProcessor validation = new MethodValidationPostProcessor();
+        validation.afterPropertiesSet();
+        statsResource = (StatsResource) validation.postProcessAfterInitialization(new StatsResource(statsManager), "statsResource");
         final RestDocumentationResultHandler document = document("{method-name}", preprocessRequest(prettyPrint()), preprocessResponse(prettyPrint()));
         this.mvc = MockMvcBuilders
                 .standaloneSetup(statsResource)
@@ -254,6 +261,43 @@ public class StatsResourceTest extends ServiceClientTest {
         result.andExpect(DataSetMatcher.from(dataSet));
     }
 
+    @Test
+    public void getSeen_whenExact_shouldCallExactCount() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DataSet dataSet = prepareRandomDataSet();
+        when(statsManager.getExactSeenDeviceCount(userId, OffsetDateTime.MIN, OffsetDateTime.MAX)).thenReturn(dataSet);
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get("/stats/{userId}/devices/seen?exact=true", userId)
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verify(statsManager).getExactSeenDeviceCount(userId, OffsetDateTime.MIN, OffsetDateTime.MAX);
+        verify(statsManager, never()).getSeenDeviceCount(any(), any(), any());
+        result.andExpect(DataSetMatcher.from(dataSet));
+    }
+
+    @Test
+    public void getSeen_whenEstimated_shouldReturnErrorBound() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DataSet dataSet = DataSet.builder().total(BigDecimal.valueOf(42)).error(0.01625).build();
+        when(statsManager.getSeenDeviceCount(userId, OffsetDateTime.MIN, OffsetDateTime.MAX)).thenReturn(dataSet);
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get("/stats/{userId}/devices/seen", userId)
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        result.andExpect(DataSetMatcher.from(dataSet))
+                .andExpect(jsonPath("error").value(0.01625));
+    }
+
     @Test
     public void getSeen_withIncorrectDate_shouldReturnBadRequest() throws Exception {
         // Given
@@ -296,6 +340,173 @@ public class StatsResourceTest extends ServiceClientTest {
         result.andExpect(DataSetMatcher.from(dataSet));
     }
 
+    @Test
+    public void getDeviceCountPerSegmentAndVersion_shouldReturnProperlyFormattedJson() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String segmentId = UUID.randomUUID().toString();
+        final DataSet segment = prepareRandomDataSet();
+        final DataSet other = prepareRandomDataSet();
+        final DataSetMatrix matrix = DataSetMatrix.builder()
+                .value(segmentId, segment)
+                .value(Segment.OTHER_ID, other)
+                .total(segment.getTotal().add(other.getTotal()))
+                .build();
+        when(statsManager.getDeviceCountPerSegmentIdAndVersionId(userId)).thenReturn(matrix);
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get("/stats/{userId}/devices/perSegmentAndVersion", userId)
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verify(statsManager).getDeviceCountPerSegmentIdAndVersionId(userId);
+        result.andExpect(status().isOk())
+                .andExpect(jsonPath("values.%s.total", segmentId).value(anyOf(equalTo(segment.getTotal().intValue()), equalTo(segment.getTotal().longValue()))))
+                .andExpect(jsonPath("values.other.total").value(anyOf(equalTo(other.getTotal().intValue()), equalTo(other.getTotal().longValue()))));
+    }
+
+    @Test
+    public void getTopValues_shouldReturnProperlyFormattedJson() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String key = "customClientData.country";
+        final DataSet dataSet = prepareRandomDataSet();
+        when(statsManager.getTopValues(userId, key, 5)).thenReturn(dataSet);
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get("/stats/{userId}/devices/topValues", userId)
+                        .param("key", key)
+                        .param("limit", "5")
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verify(statsManager).getTopValues(userId, key, 5);
+        result.andExpect(DataSetMatcher.from(dataSet));
+    }
+
+    @Test
+    public void getTopValues_whenLimitIsNotPositive_shouldReturnBadRequest() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get("/stats/{userId}/devices/topValues", userId)
+                        .param("key", "customClientData.country")
+                        .param("limit", "0")
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verifyZeroInteractions(statsManager);
+        result.andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void getTopValues_whenLimitIsTooLarge_shouldReturnBadRequest() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get("/stats/{userId}/devices/topValues", userId)
+                        .param("key", "customClientData.country")
+                        .param("limit", String.valueOf(StatsResource.MAX_TOP_VALUES_LIMIT + 1))
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verifyZeroInteractions(statsManager);
+        result.andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void getTopValues_whenKeyIsInvalid_shouldReturnBadRequest() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        when(statsManager.getTopValues(userId, "versionId", 10)).thenThrow(new InvalidStatsKeyException("Invalid custom client data key 'versionId'"));
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get("/stats/{userId}/devices/topValues", userId)
+                        .param("key", "versionId")
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verify(statsManager).getTopValues(userId, "versionId", 10);
+        result.andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void updateTrackedKeys_shouldReturnTrackedKeys() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<String> keys = Arrays.asList("customClientData.country", "customClientData.language");
+        when(statsManager.updateTrackedKeys(userId, keys)).thenReturn(keys);
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.put("/stats/{userId}/devices/topValues/keys", userId)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[\"customClientData.country\", \"customClientData.language\"]")
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verify(statsManager).updateTrackedKeys(userId, keys);
+        result.andExpect(status().isOk())
+                .andExpect(jsonPath("$[0]").value(keys.get(0)))
+                .andExpect(jsonPath("$[1]").value(keys.get(1)));
+    }
+
+    @Test
+    public void getQuantiles_shouldReturnProperlyFormattedJson() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String segmentId = UUID.randomUUID().toString();
+        final String key = "customClientData.battery";
+        final DataSet dataSet = prepareRandomDataSet();
+        when(statsManager.getQuantiles(userId, key, segmentId, OffsetDateTime.MIN, OffsetDateTime.MAX)).thenReturn(dataSet);
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.get("/stats/{userId}/devices/quantiles", userId)
+                        .param("key", key)
+                        .param("segmentId", segmentId)
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verify(statsManager).getQuantiles(userId, key, segmentId, OffsetDateTime.MIN, OffsetDateTime.MAX);
+        result.andExpect(DataSetMatcher.from(dataSet));
+    }
+
+    @Test
+    public void updateQuantileKeys_shouldReturnTrackedKeys() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<String> keys = Collections.singletonList("customClientData.battery");
+        when(statsManager.updateQuantileKeys(userId, keys)).thenReturn(keys);
+
+        // When
+        final ResultActions result = mvc.perform(
+                MockMvcRequestBuilders.put("/stats/{userId}/devices/quantiles/keys", userId)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[\"customClientData.battery\"]")
+                        .accept(MediaType.APPLICATION_JSON)
+        );
+
+        // Then
+        verify(statsManager).updateQuantileKeys(userId, keys);
+        result.andExpect(status().isOk())
+                .andExpect(jsonPath("$[0]").value(keys.get(0)));
+    }
+
     private DataSet prepareRandomDataSet() {
         final SecureRandom random = new SecureRandom();
         final DataSet.Builder builder = DataSet.builder();
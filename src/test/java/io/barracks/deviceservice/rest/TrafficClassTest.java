@@ -0,0 +1,62 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deviceservice.rest;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TrafficClassTest {
+    @Test
+    public void of_whenDeviceSendsEvents_shouldReturnIngestion() {
+        // Then When
+        assertThat(TrafficClass.of("POST", "/devices")).contains(TrafficClass.INGESTION);
+        assertThat(TrafficClass.of("POST", "/devices/events:batch")).contains(TrafficClass.INGESTION);
+    }
+
+    @Test
+    public void of_whenOtherDeviceRequest_shouldReturnDeviceReads() {
+        // Then When
+        assertThat(TrafficClass.of("GET", "/devices")).contains(TrafficClass.DEVICE_READS);
+        assertThat(TrafficClass.of("GET", "/devices:export")).contains(TrafficClass.DEVICE_READS);
+        assertThat(TrafficClass.of("POST", "/devices/unit/configuration")).contains(TrafficClass.DEVICE_READS);
+    }
+
+    @Test
+    public void of_whenReportingRequest_shouldReturnItsClass() {
+        // Then When
+        assertThat(TrafficClass.of("GET", "/segments/other/devices")).contains(TrafficClass.SEGMENT_LISTINGS);
+        assertThat(TrafficClass.of("GET", "/stats/user/devices/perVersionId")).contains(TrafficClass.STATS);
+        assertThat(TrafficClass.of("POST", "/match")).contains(TrafficClass.MATCH);
+    }
+
+    @Test
+    public void of_whenRequestIsNotClassified_shouldReturnEmpty() {
+        // Then When
+        assertThat(TrafficClass.of("GET", "/owners/user/filters")).isEmpty();
+        assertThat(TrafficClass.of("GET", "/statistics")).isEmpty();
+        assertThat(TrafficClass.of("GET", "/health")).isEmpty();
+    }
+}
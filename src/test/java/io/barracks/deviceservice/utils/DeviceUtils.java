@@ -42,6 +42,7 @@ public class DeviceUtils {
                 .firstSeen(new Date())
                 .configuration(DeviceConfiguration.builder().build())
                 .lastEvent(DeviceEvent.builder().build())
+                .revision(1L)
                 .build();
         assertThat(device).hasNoNullFieldsOrProperties();
         return device;